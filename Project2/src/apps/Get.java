@@ -1,9 +1,15 @@
 package apps;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 import common.*;
 import naming.*;
+import storage.*;
 import client.*;
 
 /** Retrieves a file stored on the distributed filesystem.
@@ -15,13 +21,19 @@ import client.*;
     able to contact the remote server and create the local file, the source file
     is copied to the destination file. If the destination is a directory, a new
     file is created in the directory with the same name as the source file.
+
+    <p>
+    The file is transferred as ranges, several at once, over separate
+    connections to the storage servers hosting the file. Connections are spread
+    over all the storage servers hosting a replica of the file. The number of
+    connections can be given with the <code>-p</code> option, which precedes the
+    other arguments. Each range is written at its offset in a temporary file in
+    the destination directory, which replaces the destination file once the
+    transfer is complete. If the transfer fails, the destination file is left
+    as it was. The throughput of the transfer is printed once it is complete.
  */
 public class Get extends ClientApplication
 {
-    /** The size of each request for data cannot exceed
-        <code>BLOCK_SIZE</code>. */
-    private static final int    BLOCK_SIZE = 1024 * 1024;
-
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -35,10 +47,21 @@ public class Get extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
+        // Parse the number of connections, if given. The remaining arguments
+        // are checked below whatever their number.
+        int             parallelism = ParallelTransfer.DEFAULT_PARALLELISM;
+
+        if(arguments.length >= 2 &&
+           arguments[0].equals(ParallelTransfer.PARALLELISM_OPTION))
+        {
+            parallelism = ParallelTransfer.parseParallelism(arguments[1]);
+            arguments = Arrays.copyOfRange(arguments, 2, arguments.length);
+        }
+
         if(arguments.length != 2)
         {
-            throw new ApplicationFailure("usage: get source_file " +
-                                         "destination_file");
+            throw new ApplicationFailure("usage: get [-p connections] " +
+                                         "source_file destination_file");
         }
 
         // Parse the source and destination paths.
@@ -66,12 +89,17 @@ public class Get extends ClientApplication
         if(destination.isDirectory())
             destination = new File(destination, source.path.last());
 
-        // Get a stub for the naming server and lock the source file.
-        Service         naming_server = NamingStubs.service(source.hostname);
+        // Get a stub for the naming server and lock the source file. The stub
+        // caches metadata, so that the size is retrieved from one of the
+        // replicas without another request to the naming server.
+        MetadataCache   naming_server =
+            new MetadataCache(NamingStubs.service(source.hostname));
+
+        long            lease_id;
 
         try
         {
-            naming_server.lock(source.path, false);
+            lease_id = naming_server.lock(source.path, false);
         }
         catch(Throwable t)
         {
@@ -79,40 +107,58 @@ public class Get extends ClientApplication
                                          t.getMessage());
         }
 
-        // Create an input stream reading bytes from the remote file, and an
-        // output stream for writing bytes to a local copy of the file.
-        // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
-        // write them to the local file.
-        byte[]              read_buffer;
-        DFSInputStream      input_stream = null;
-        OutputStream        output_stream = null;
+        // The transfer may take longer than the lease on the lock, which is
+        // renewed until the lock is released.
+        LeaseRenewer    lease =
+            new LeaseRenewer(naming_server, lease_id);
+
+        // Find the storage servers hosting the file, and create a temporary
+        // file next to the destination. Each worker reads ranges of the remote
+        // file from one of the storage servers, and writes them to the
+        // temporary file.
+        File                temporary = null;
+        RandomAccessFile    output_file = null;
+        boolean             transferred = false;
 
         try
         {
-            read_buffer = new byte[BLOCK_SIZE];
-            output_stream = new FileOutputStream(destination);
-            input_stream = new DFSInputStream(naming_server, source.path);
+            Storage[]       replicas = naming_server.getReplicas(source.path);
+            long            length = naming_server.size(source.path);
+
+            temporary = File.createTempFile(
+                "." + destination.getName() + ".", ".part",
+                destination.getAbsoluteFile().getParentFile());
+            output_file = new RandomAccessFile(temporary, "rw");
+            output_file.setLength(length);
 
-            int             bytes_remaining = input_stream.available();
-            int             bytes_to_transfer;
-            int             bytes_read;
+            Fetcher[]       workers =
+                new Fetcher[ParallelTransfer.workers(length, parallelism)];
 
-            while(bytes_remaining > 0)
+            for(int index = 0; index < workers.length; ++index)
             {
-                bytes_to_transfer = bytes_remaining;
-                if(bytes_to_transfer > BLOCK_SIZE)
-                    bytes_to_transfer = BLOCK_SIZE;
+                workers[index] =
+                    new Fetcher(replicas[index % replicas.length],
+                                source.path, output_file.getChannel());
+            }
 
-                bytes_read =
-                    input_stream.read(read_buffer, 0, bytes_to_transfer);
-                bytes_remaining = input_stream.available();
+            long            start = System.nanoTime();
 
-                if(bytes_read <= 0)
-                    throw new EOFException("unexpected end of file");
+            ParallelTransfer.run(length, workers);
 
-                // Write only as many bytes as were actually read.
-                output_stream.write(read_buffer, 0, bytes_read);
-            }
+            System.out.println(
+                ParallelTransfer.report(length, System.nanoTime() - start,
+                                        workers.length,
+                                        Math.min(workers.length,
+                                                 replicas.length)));
+
+            // The complete file replaces the destination in one step.
+            output_file.close();
+            output_file = null;
+
+            Files.move(temporary.toPath(), destination.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            transferred = true;
         }
         catch(Throwable t)
         {
@@ -121,29 +167,26 @@ public class Get extends ClientApplication
         }
         finally
         {
-            // In all cases, make an effort to close all streams, and to
-            // unlock the file.
-            if(input_stream != null)
+            // In all cases, make an effort to close and remove the temporary
+            // file, and to unlock the remote file. The workers have been
+            // closed by the transfer.
+            if(output_file != null)
             {
                 try
                 {
-                    input_stream.close();
+                    output_file.close();
                 }
                 catch(Throwable t) { }
             }
 
-            if(output_stream != null)
-            {
-                try
-                {
-                    output_stream.close();
-                }
-                catch(Throwable t) { }
-            }
+            if(!transferred && temporary != null)
+                temporary.delete();
+
+            lease.stop();
 
             try
             {
-                naming_server.unlock(source.path, false);
+                naming_server.unlock(lease_id);
             }
             catch(Throwable t)
             {
@@ -152,4 +195,61 @@ public class Get extends ClientApplication
             }
         }
     }
+
+    /** Reads ranges of the remote file from a storage server, and writes them
+        to the temporary file.
+
+        <p>
+        Data is received on a data channel to the storage server, if the server
+        provides one, and with <code>Storage.read</code> otherwise.
+     */
+    private static class Fetcher implements ParallelTransfer.Worker
+    {
+        /** Storage server hosting the file. */
+        private final Storage       storage_server;
+        /** Path to the remote file. */
+        private final Path          path;
+        /** Channel for positional writes to the temporary file. */
+        private final FileChannel   output;
+        /** Data channel to the storage server, opened on the first range. */
+        private DataChannel         data_channel = null;
+        /** Indicates that the storage server provides no data channel. */
+        private boolean             no_data_channel = false;
+
+        /** Creates a worker reading from the given storage server. */
+        Fetcher(Storage storage_server, Path path, FileChannel output)
+        {
+            this.storage_server = storage_server;
+            this.path = path;
+            this.output = output;
+        }
+
+        @Override
+        public void transfer(long offset, byte[] buffer, int length)
+            throws Exception
+        {
+            if(data_channel == null && !no_data_channel)
+            {
+                data_channel = DataChannel.open(storage_server);
+                no_data_channel = (data_channel == null);
+            }
+
+            if(data_channel != null)
+                data_channel.read(path, offset, buffer, 0, length);
+            else
+                buffer = storage_server.read(path, offset, length);
+
+            ByteBuffer  data = ByteBuffer.wrap(buffer, 0, length);
+
+            while(data.hasRemaining())
+                output.write(data, offset + data.position());
+        }
+
+        @Override
+        public void close()
+        {
+            if(data_channel != null)
+                data_channel.close();
+        }
+    }
 }
@@ -3,6 +3,7 @@ package apps;
 import java.util.*;
 
 import naming.*;
+import client.*;
 
 /** Lists files and directories.
 
@@ -20,6 +21,12 @@ import naming.*;
  */
 public class List extends ClientApplication
 {
+    /** Naming server stubs caching metadata, by naming server hostname. The
+        same paths given in several arguments are listed with a single request
+        to the naming server. */
+    private final Map<String, MetadataCache>    naming_servers =
+        new HashMap<String, MetadataCache>();
+
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -85,11 +92,20 @@ public class List extends ClientApplication
 
         // If the path is remote, obtain a naming server stub. Lock the path on
         // the naming server and list it.
-        Service         naming_server = NamingStubs.service(object.hostname);
+        MetadataCache   naming_server = naming_servers.get(object.hostname);
+
+        if(naming_server == null)
+        {
+            naming_server =
+                new MetadataCache(NamingStubs.service(object.hostname));
+            naming_servers.put(object.hostname, naming_server);
+        }
+
+        long            lease_id;
 
         try
         {
-            naming_server.lock(object.path, false);
+            lease_id = naming_server.lock(object.path, false);
         }
         catch(Throwable t)
         {
@@ -114,7 +130,7 @@ public class List extends ClientApplication
             // In all cases, make an effort to unlock the path.
             try
             {
-                naming_server.unlock(object.path, false);
+                naming_server.unlock(lease_id);
             }
             catch(Throwable t)
             {
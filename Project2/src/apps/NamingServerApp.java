@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,15 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively.
+
+    <p>
+    The application takes an optional argument: a directory in which the naming
+    server keeps its directory tree. If the directory is given, the directory
+    tree survives restarts of the naming server. Otherwise, it is kept only in
+    memory, and rebuilt as storage servers register.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +40,27 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws IOException If the directory tree cannot be recovered from the
+                            metadata directory.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        if(arguments.length > 1)
+            throw new BadUsageException("usage: naming [metadata_directory]");
+
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+        {
+            server = new StoppingNamingServer(
+                new File(arguments[0]).getAbsoluteFile());
+        }
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +74,19 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server which keeps its directory tree in
+            memory. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server which keeps its directory tree in the
+            given directory. */
+        StoppingNamingServer(File metadata_directory) throws IOException
+        {
+            super(metadata_directory);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -0,0 +1,194 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Transfers a file as byte ranges, over several connections at once.
+
+    <p>
+    The file is split into ranges of <code>RANGE_SIZE</code> bytes. Each worker
+    runs in its own thread, and repeatedly takes the next untransferred range
+    and transfers it, until no ranges remain. Workers typically hold their own
+    connections to storage servers, so that ranges are transferred
+    concurrently. Ranges are written to their offsets in the destination file,
+    and may be written in any order.
+
+    <p>
+    This class is used by the <code>get</code> and <code>put</code>
+    applications, which accept the number of workers as an option.
+ */
+class ParallelTransfer
+{
+    /** Size of each range transferred in a single request. */
+    static final int            RANGE_SIZE = 1024 * 1024;
+    /** Number of workers used if none is given on the command line. */
+    static final int            DEFAULT_PARALLELISM = 4;
+    /** Command line option preceding the number of workers. */
+    static final String         PARALLELISM_OPTION = "-p";
+
+    /** Transfers ranges of a file. Each worker is used by a single thread. */
+    interface Worker
+    {
+        /** Transfers a range of the file.
+
+            @param offset Offset of the range in the file.
+            @param buffer Buffer of at least <code>length</code> bytes, which
+                          the worker may use to hold the range.
+            @param length Length of the range.
+            @throws Exception If the range cannot be transferred. The transfer
+                              is abandoned.
+         */
+        void transfer(long offset, byte[] buffer, int length) throws Exception;
+
+        /** Releases the resources held by the worker, such as its connection.
+            Called once the transfer is complete or abandoned. */
+        void close();
+    }
+
+    /** Returns the number of workers to be used for a file of the given
+        length.
+
+        <p>
+        There are never more workers than ranges, and there is at least one.
+
+        @param length Length of the file.
+        @param parallelism Maximum number of workers.
+     */
+    static int workers(long length, int parallelism)
+    {
+        long        ranges = (length + RANGE_SIZE - 1) / RANGE_SIZE;
+
+        return (int)Math.max(1, Math.min(parallelism, ranges));
+    }
+
+    /** Transfers a file of the given length using the given workers.
+
+        <p>
+        Each worker is closed once the transfer is complete, whether or not it
+        succeeds.
+
+        @param length Length of the file.
+        @param workers Workers transferring the file.
+        @throws Exception The first error raised by a worker.
+     */
+    static void run(final long length, final Worker[] workers) throws Exception
+    {
+        final AtomicLong    next_range = new AtomicLong(0);
+        ExecutorService     threads =
+            Executors.newFixedThreadPool(workers.length);
+        ArrayList<Future<Void>> results =
+            new ArrayList<Future<Void>>(workers.length);
+
+        try
+        {
+            for(final Worker worker : workers)
+            {
+                results.add(threads.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        byte[]  buffer =
+                            new byte[(int)Math.min(RANGE_SIZE, length)];
+                        long    offset;
+
+                        try
+                        {
+                            while((offset =
+                                   next_range.getAndAdd(RANGE_SIZE)) < length)
+                            {
+                                int count =
+                                    (int)Math.min(RANGE_SIZE, length - offset);
+                                worker.transfer(offset, buffer, count);
+                            }
+                        }
+                        catch(Exception e)
+                        {
+                            // Abandon the remaining ranges, so that the other
+                            // workers stop after their current range.
+                            next_range.set(length);
+                            throw e;
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for every worker, and report the first failure.
+            Exception       failure = null;
+
+            for(Future<Void> result : results)
+            {
+                try
+                {
+                    result.get();
+                }
+                catch(ExecutionException e)
+                {
+                    if(failure == null && e.getCause() instanceof Exception)
+                        failure = (Exception)e.getCause();
+                    else if(failure == null)
+                        failure = e;
+                }
+            }
+
+            if(failure != null)
+                throw failure;
+        }
+        finally
+        {
+            threads.shutdownNow();
+
+            for(Worker worker : workers)
+                worker.close();
+        }
+    }
+
+    /** Parses the number of workers given on the command line.
+
+        @param argument Command line argument following the option.
+        @return The number of workers.
+        @throws ApplicationFailure If the argument is not a positive integer.
+     */
+    static int parseParallelism(String argument) throws ApplicationFailure
+    {
+        int         parallelism;
+
+        try
+        {
+            parallelism = Integer.parseInt(argument);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new ApplicationFailure("cannot parse parallelism: " +
+                                         argument);
+        }
+
+        if(parallelism <= 0)
+            throw new ApplicationFailure("parallelism must be positive");
+
+        return parallelism;
+    }
+
+    /** Formats a report of the throughput of a transfer.
+
+        @param bytes Number of bytes transferred.
+        @param nanoseconds Duration of the transfer.
+        @param workers Number of workers used.
+        @param servers Number of storage servers used.
+     */
+    static String report(long bytes, long nanoseconds, int workers,
+                         int servers)
+    {
+        double      seconds = Math.max(nanoseconds, 1) / 1e9;
+        double      megabytes = bytes / (1024.0 * 1024.0);
+
+        return String.format("%d bytes in %.3f s (%.2f MB/s), " +
+                             "%d connection%s to %d storage server%s",
+                             bytes, seconds, megabytes / seconds,
+                             workers, workers == 1 ? "" : "s",
+                             servers, servers == 1 ? "" : "s");
+    }
+}
@@ -1,9 +1,13 @@
 package apps;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import common.*;
 import naming.*;
+import storage.*;
 import client.*;
 
 /** Uploads a file to the distributed filesystem.
@@ -12,13 +16,16 @@ import client.*;
     The <code>put</code> command expects two arguments. The first is the source,
     which must be a path to a local file. The second is the destination, which
     must be a path to a remote file or directory.
+
+    <p>
+    The file is transferred as ranges, several at once, over separate
+    connections to the storage server hosting the new remote file. The number
+    of connections can be given with the <code>-p</code> option, which precedes
+    the other arguments. Each range is read from its offset in the local file.
+    The throughput of the transfer is printed once it is complete.
  */
 public class Put extends ClientApplication
 {
-    /** At most <code>BLOCK_SIZE</code> bytes of data are sent in a single write
-        request. */
-    private static final int    BLOCK_SIZE = 1024 * 1024;
-
     /** Application entry point. */
     public static void main(String[] arguments)
     {
@@ -32,10 +39,21 @@ public class Put extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws ApplicationFailure
     {
+        // Parse the number of connections, if given. The remaining arguments
+        // are checked below whatever their number.
+        int             parallelism = ParallelTransfer.DEFAULT_PARALLELISM;
+
+        if(arguments.length >= 2 &&
+           arguments[0].equals(ParallelTransfer.PARALLELISM_OPTION))
+        {
+            parallelism = ParallelTransfer.parseParallelism(arguments[1]);
+            arguments = Arrays.copyOfRange(arguments, 2, arguments.length);
+        }
+
         if(arguments.length != 2)
         {
-            throw new ApplicationFailure("usage: put source_file " +
-                                         "destination_file");
+            throw new ApplicationFailure("usage: put [-p connections] " +
+                                         "source_file destination_file");
         }
 
         // Parse the source and destination paths.
@@ -75,14 +93,18 @@ public class Put extends ClientApplication
         else
             path_to_lock = destination.path.parent();
 
-        // Obtain a stub for the remote naming server.
+        // Obtain a stub for the remote naming server. The stub caches
+        // metadata, so that the destination is examined with as few requests
+        // as possible.
         Service         naming_server =
-            NamingStubs.service(destination.hostname);
+            new MetadataCache(NamingStubs.service(destination.hostname));
 
         // Lock the parent of the destination path on the remote server.
+        long            lease_id;
+
         try
         {
-            naming_server.lock(path_to_lock, true);
+            lease_id = naming_server.lock(path_to_lock, true);
         }
         catch(Throwable t)
         {
@@ -90,9 +112,12 @@ public class Put extends ClientApplication
                                          t.getMessage());
         }
 
-        byte[]              read_buffer;
-        InputStream         input_stream = null;
-        DFSOutputStream     output_stream = null;
+        // The transfer may take longer than the lease on the lock, which is
+        // renewed until the lock is released.
+        LeaseRenewer    lease =
+            new LeaseRenewer(naming_server, lease_id);
+
+        RandomAccessFile    input_file = null;
 
         try
         {
@@ -131,48 +156,30 @@ public class Put extends ClientApplication
             // Create a new file with the name of the destination file.
             naming_server.createFile(destination_path);
 
-            // Obtain the size of the source file.
-            long            bytes_remaining = source.length();
+            // Open the source file and obtain its size. Each worker reads
+            // ranges of the source file, and writes them to the storage server
+            // hosting the new file.
+            input_file = new RandomAccessFile(source, "r");
 
-            // Allocate the temporary read buffer and open streams.
-            read_buffer = new byte[BLOCK_SIZE];
-            input_stream = new FileInputStream(source);
-            output_stream =
-                new DFSOutputStream(naming_server, destination_path);
+            long            length = input_file.length();
+            Storage         storage_server =
+                naming_server.getStorage(destination_path);
+            Sender[]        workers =
+                new Sender[ParallelTransfer.workers(length, parallelism)];
 
-            // As long as there are bytes remaining to be copied from the
-            // source file, copy at most BLOCK_SIZE bytes at a time. Read
-            // the bytes to be transferred in a single block into the buffer
-            // read_buffer, and then send the buffer to the storage server.
-            while(bytes_remaining > 0)
+            for(int index = 0; index < workers.length; ++index)
             {
-                int         bytes_to_transfer = BLOCK_SIZE;
-                if(bytes_remaining < BLOCK_SIZE)
-                    bytes_to_transfer = (int)bytes_remaining;
-
-                int         bytes_loaded = 0;
-                int         bytes_read;
-
-                // Reading from the local file is done in a loop, because
-                // the read call for local files does not guarantee that the
-                // number of bytes read will be equal to the number of bytes
-                // requested, even if care has been taken to avoid premature
-                // end of file conditions.
-                while(bytes_loaded < bytes_to_transfer)
-                {
-                    bytes_read =
-                        input_stream.read(read_buffer, bytes_loaded,
-                                          bytes_to_transfer - bytes_loaded);
+                workers[index] = new Sender(storage_server, destination_path,
+                                            input_file.getChannel());
+            }
 
-                    if(bytes_read <= 0)
-                        throw new EOFException("unexpected end of file");
+            long            start = System.nanoTime();
 
-                    bytes_loaded += bytes_read;
-                }
+            ParallelTransfer.run(length, workers);
 
-                output_stream.write(read_buffer, 0, bytes_to_transfer);
-                bytes_remaining -= bytes_to_transfer;
-            }
+            System.out.println(
+                ParallelTransfer.report(length, System.nanoTime() - start,
+                                        workers.length, 1));
         }
         catch(ApplicationFailure e) { throw e; }
         catch(Throwable t)
@@ -183,29 +190,23 @@ public class Put extends ClientApplication
         }
         finally
         {
-            // In all cases, make an effort to close all streams and unlock
-            // the parent directory.
-            if(output_stream != null)
+            // In all cases, make an effort to close the local file and unlock
+            // the parent directory. The workers have been closed by the
+            // transfer.
+            if(input_file != null)
             {
                 try
                 {
-                    output_stream.close();
+                    input_file.close();
                 }
                 catch(Throwable t) { }
             }
 
-            if(input_stream != null)
-            {
-                try
-                {
-                    input_stream.close();
-                }
-                catch(Throwable t) { }
-            }
+            lease.stop();
 
             try
             {
-                naming_server.unlock(path_to_lock, true);
+                naming_server.unlock(lease_id);
             }
             catch(Throwable t)
             {
@@ -214,4 +215,70 @@ public class Put extends ClientApplication
             }
         }
     }
+
+    /** Reads ranges of the local file, and writes them to the storage server
+        hosting the remote file.
+
+        <p>
+        Data is sent on a data channel to the storage server, if the server
+        provides one, and with <code>Storage.write</code> otherwise.
+     */
+    private static class Sender implements ParallelTransfer.Worker
+    {
+        /** Storage server hosting the file. */
+        private final Storage       storage_server;
+        /** Path to the remote file. */
+        private final Path          path;
+        /** Channel for positional reads from the local file. */
+        private final FileChannel   input;
+        /** Data channel to the storage server, opened on the first range. */
+        private DataChannel         data_channel = null;
+        /** Indicates that the storage server provides no data channel. */
+        private boolean             no_data_channel = false;
+
+        /** Creates a worker writing to the given storage server. */
+        Sender(Storage storage_server, Path path, FileChannel input)
+        {
+            this.storage_server = storage_server;
+            this.path = path;
+            this.input = input;
+        }
+
+        @Override
+        public void transfer(long offset, byte[] buffer, int length)
+            throws Exception
+        {
+            if(data_channel == null && !no_data_channel)
+            {
+                data_channel = DataChannel.open(storage_server);
+                no_data_channel = (data_channel == null);
+            }
+
+            // Reading from the local file is done in a loop, because a read
+            // does not guarantee that the number of bytes read will be equal
+            // to the number of bytes requested.
+            ByteBuffer  data = ByteBuffer.wrap(buffer, 0, length);
+
+            while(data.hasRemaining())
+            {
+                if(input.read(data, offset + data.position()) < 0)
+                    throw new EOFException("unexpected end of file");
+            }
+
+            if(data_channel != null)
+                data_channel.write(path, offset, buffer, 0, length);
+            else if(length == buffer.length)
+                storage_server.write(path, offset, buffer);
+            else
+                storage_server.write(path, offset,
+                                     Arrays.copyOf(buffer, length));
+        }
+
+        @Override
+        public void close()
+        {
+            if(data_channel != null)
+                data_channel.close();
+        }
+    }
 }
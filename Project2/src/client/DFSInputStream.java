@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
 
 import rmi.*;
 import common.*;
@@ -13,6 +14,16 @@ import storage.*;
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
     hosting the given file. Each read call corresponds to one network request.
+    File data is received on a data channel to the storage server, directly
+    into the caller's buffer, if the server provides one.
+
+    <p>
+    When the stream is read sequentially, it switches to read-ahead: file data
+    is requested in chunks ahead of the stream offset, and reads are served
+    from the chunks received. On a data channel, a window of chunk requests is
+    kept in flight, so that the storage server sends the following chunks
+    while earlier ones are being consumed. The chunk size and window can be
+    set with <code>setReadAhead</code>.
     If this behavior is not desirable, the <code>DFSInputStream</code> should be
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
@@ -25,9 +36,20 @@ import storage.*;
     would not be possible to combine use of the input stream with other
     operations, such as retrieving file size, or operations that require the
     parent directory of the file to be locked for exclusive access.
+
+    <p>
+    If the naming server stub given is a <code>MetadataCache</code>, the
+    storage server hosting the file and the length of the file are taken from
+    the cache when available.
  */
 public class DFSInputStream extends InputStream
 {
+    /** Default size of the chunks requested ahead of the stream offset. */
+    public static final int DEFAULT_READ_AHEAD_CHUNK_SIZE = 1024 * 1024;
+    /** Default number of chunk requests kept in flight ahead of the stream
+        offset. */
+    public static final int DEFAULT_READ_AHEAD_WINDOW = 4;
+
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
@@ -40,6 +62,35 @@ public class DFSInputStream extends InputStream
     /** Total file length. */
     private final long      length;
 
+    /** Data channel to the storage server, opened on the first read. */
+    private DataChannel     data_channel = null;
+    /** Indicates that the storage server provides no data channel, and data
+        is read with <code>Storage.read</code>. */
+    private boolean         no_data_channel = false;
+
+    /** Size of the chunks requested ahead of the stream offset. */
+    private int             read_ahead_chunk_size =
+                                DEFAULT_READ_AHEAD_CHUNK_SIZE;
+    /** Number of chunk requests kept in flight, or zero if read-ahead is
+        disabled. */
+    private int             read_ahead_window = DEFAULT_READ_AHEAD_WINDOW;
+    /** Offset at which the previous read ended. A read starting at this
+        offset is sequential. */
+    private long            sequential_offset = 0;
+    /** Most recently received chunk of file data. */
+    private byte[]          chunk = null;
+    /** Offset in the file of the chunk. */
+    private long            chunk_offset = 0;
+    /** Number of valid bytes in the chunk. */
+    private int             chunk_length = 0;
+    /** Offsets and lengths of the chunks requested on the data channel but
+        not yet received, oldest first. */
+    private final ArrayDeque<long[]>    requested = new ArrayDeque<long[]>();
+    /** Offset of the next chunk to be requested. */
+    private long            next_request = 0;
+    /** Buffer for single byte reads. */
+    private final byte[]    single_byte = new byte[1];
+
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
@@ -72,10 +123,14 @@ public class DFSInputStream extends InputStream
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
+        // Retrieve the length of the file from the storage server, unless it
+        // is cached by the client.
         try
         {
-            length = storage_server.size(file);
+            if(naming_server instanceof MetadataCache)
+                length = ((MetadataCache)naming_server).size(file);
+            else
+                length = storage_server.size(file);
         }
         catch(RMIException e)
         {
@@ -164,12 +219,44 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+
+        if(data_channel != null)
+            data_channel.close();
+    }
+
+    /** Sets the size of the chunks requested ahead of the stream offset during
+        sequential reads, and the number of chunk requests kept in flight.
+
+        <p>
+        Chunk requests are kept in flight only on a data channel. Otherwise,
+        one chunk is requested at a time.
+
+        @param chunk_size Size of each chunk, in bytes.
+        @param window Number of chunk requests kept in flight, or zero to
+                      disable read-ahead. Each read is then performed in a
+                      single request to the storage server.
+        @throws IllegalArgumentException If <code>chunk_size</code> is not
+                                         positive, or <code>window</code> is
+                                         negative.
+     */
+    public void setReadAhead(int chunk_size, int window)
+    {
+        if(chunk_size <= 0)
+            throw new IllegalArgumentException("chunk size is not positive");
+
+        if(window < 0)
+            throw new IllegalArgumentException("window is negative");
+
+        read_ahead_chunk_size = chunk_size;
+        read_ahead_window = window;
     }
 
     /** Reads bytes from the input stream into a byte buffer.
 
         <p>
-        The read is performed in a single request to the storage server. If the
+        If the read continues from where the previous read ended, it is served
+        from chunks requested ahead of the stream offset. Otherwise, the read
+        is performed in a single request to the storage server. If the
         operation succeeds, the number of bytes read will be either
         <code>read_length</code> or the number of bytes remaining in the file,
         whichever is less.
@@ -232,33 +319,168 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
-        // Read bytes from file and advance the stream offset if the request
-        // succeeds.
-        byte[]      result;
+        // Open the data channel on the first read.
+        if(data_channel == null && !no_data_channel)
+        {
+            data_channel = DataChannel.open(storage_server);
+            no_data_channel = (data_channel == null);
+        }
+
+        // Read bytes from file and advance the stream offset as they are
+        // read. Bytes already received ahead of the stream offset are copied
+        // from the current chunk. Sequential reads receive further chunks,
+        // other reads are performed directly.
+        boolean     sequential =
+            (offset == sequential_offset) && (read_ahead_window > 0);
+        int         bytes_read = 0;
 
         try
         {
-            result = storage_server.read(path, offset, read_length);
-            offset += read_length;
+            while(bytes_read < read_length)
+            {
+                if(offset >= chunk_offset &&
+                   offset < chunk_offset + chunk_length)
+                {
+                    int     count = (int)Math.min(read_length - bytes_read,
+                                        chunk_offset + chunk_length - offset);
+
+                    System.arraycopy(chunk, (int)(offset - chunk_offset),
+                                     buffer, buffer_offset + bytes_read,
+                                     count);
+                    bytes_read += count;
+                    offset += count;
+                }
+                else if(sequential)
+                    nextChunk();
+                else
+                {
+                    readDirect(buffer, buffer_offset + bytes_read,
+                               read_length - bytes_read);
+                    offset += read_length - bytes_read;
+                    bytes_read = read_length;
+                }
+            }
         }
         catch(FileNotFoundException e)
         {
+            dropDataChannel();
             throw new IOException("file missing on storage server", e);
         }
         catch(RMIException e)
         {
             throw new IOException("unable to contact storage server", e);
         }
+        catch(IOException e)
+        {
+            dropDataChannel();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            dropDataChannel();
+            throw e;
+        }
 
-        // Copy bytes from the buffer that was received over the network into
-        // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        sequential_offset = offset;
 
         // Return the number of bytes read.
         return read_length;
     }
 
+    /** Reads bytes at the stream offset in a single request. Bytes received
+        on the data channel are placed directly in the buffer provided by the
+        caller. */
+    private void readDirect(byte[] buffer, int buffer_offset, int read_length)
+        throws IOException, RMIException
+    {
+        if(data_channel != null)
+        {
+            // Chunks requested ahead are received before the channel can be
+            // used for another request.
+            while(!requested.isEmpty())
+                receiveChunk();
+
+            data_channel.read(path, offset, buffer, buffer_offset,
+                              read_length);
+        }
+        else
+        {
+            byte[]  result = storage_server.read(path, offset, read_length);
+            System.arraycopy(result, 0, buffer, buffer_offset, read_length);
+        }
+    }
+
+    /** Makes the chunk starting at the stream offset the current chunk. */
+    private void nextChunk() throws IOException, RMIException
+    {
+        // Without a data channel, chunks are requested one at a time.
+        if(data_channel == null)
+        {
+            int     count =
+                (int)Math.min(read_ahead_chunk_size, length - offset);
+
+            chunk = storage_server.read(path, offset, count);
+            chunk_offset = offset;
+            chunk_length = count;
+            return;
+        }
+
+        // Chunks requested before the stream offset was moved elsewhere are
+        // received and dropped.
+        while(!requested.isEmpty() && requested.peekFirst()[0] != offset)
+            receiveChunk();
+
+        if(requested.isEmpty())
+            next_request = offset;
+
+        requestChunks();
+        receiveChunk();
+        requestChunks();
+    }
+
+    /** Requests chunks following those already requested, until the window is
+        full or the end of file is reached. */
+    private void requestChunks() throws IOException
+    {
+        while(requested.size() < read_ahead_window && next_request < length)
+        {
+            int     count =
+                (int)Math.min(read_ahead_chunk_size, length - next_request);
+
+            data_channel.requestRead(path, next_request, count);
+            requested.addLast(new long[] {next_request, count});
+            next_request += count;
+        }
+    }
+
+    /** Receives the oldest requested chunk into the current chunk. */
+    private void receiveChunk() throws IOException
+    {
+        long[]      request = requested.pollFirst();
+        int         count = (int)request[1];
+
+        if(chunk == null || chunk.length < count)
+            chunk = new byte[count];
+
+        chunk_length = 0;
+        data_channel.receiveRead(chunk, 0, count);
+        chunk_offset = request[0];
+        chunk_length = count;
+    }
+
+    /** Closes the data channel after an error, dropping the chunks requested
+        on it. The next read opens a new data channel. */
+    private void dropDataChannel()
+    {
+        if(data_channel != null)
+        {
+            data_channel.close();
+            data_channel = null;
+        }
+
+        requested.clear();
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
@@ -271,16 +493,16 @@ public class DFSInputStream extends InputStream
     @Override
     public int read() throws IOException
     {
-        // This method relies on the read(byte[], int, int) method. Create a
-        // buffer with enough space for one byte, read a byte into that buffer,
-        // and return the appropriate result.
-        byte[]      buffer = new byte[1];
-        int         result = read(buffer, 0, 1);
+        // This method relies on the read(byte[], int, int) method, which
+        // serves sequential single byte reads from the current chunk. Read a
+        // byte into the single byte buffer, and return the appropriate
+        // result.
+        int         result = read(single_byte, 0, 1);
 
         if(result == -1)
             return -1;
 
-        return buffer[0];
+        return single_byte[0] & 0xff;
     }
 
     /** Advances the stream offset.
@@ -12,18 +12,41 @@ import storage.*;
 
     <p>
     Write calls on a <code>DFSOutputStream</code> are directed to a storage
-    server hosting the given file. Each call corresponds to one network request.
-    If this is not desirable, the <code>DFSOutputStream</code> should be wrapped
-    in a <code>BufferedOutputStream</code> object.
+    server hosting the given file. File data is sent on a data channel to the
+    storage server, directly from the caller's buffer, if the server provides
+    one.
+
+    <p>
+    By default, each write is performed in a single request to the storage
+    server, and completes before <code>write</code> returns. A stream can be
+    made to write behind with <code>setWriteBehind</code>: small writes are
+    then coalesced into chunks, and chunks are sent without waiting for the
+    storage server to complete them. On a data channel, a window of chunk
+    writes is kept in flight. Errors reported by the storage server for a
+    chunk are thrown by a later call to <code>write</code>, <code>flush</code>
+    or <code>close</code>. After such an error, the file contents are
+    undefined, and all further writes fail. Data is only known to have been
+    written once <code>flush</code> or <code>close</code> returns.
 
     <p>
     Creating a <code>DFSOutputStream</code> for a file does not cause the file
     to be created or truncated. The file must exist, and the existing file data
     is left in place. Writes to the stream cause file data to be overwritten,
     starting from the beginning of the file.
+
+    <p>
+    If the naming server stub given is a <code>MetadataCache</code>, the
+    storage server hosting the file is taken from the cache when available,
+    and the cached metadata of the file is invalidated when the stream is
+    closed.
  */
 public class DFSOutputStream extends OutputStream
 {
+    /** Suggested size of the chunks into which writes are coalesced. */
+    public static final int DEFAULT_WRITE_BEHIND_CHUNK_SIZE = 1024 * 1024;
+    /** Suggested number of chunk writes kept in flight. */
+    public static final int DEFAULT_WRITE_BEHIND_WINDOW = 4;
+
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
@@ -34,6 +57,32 @@ public class DFSOutputStream extends OutputStream
     /** Current write offset in the file. */
     private long            offset = 0;
 
+    /** Data channel to the storage server, opened on the first write. */
+    private DataChannel     data_channel = null;
+    /** Indicates that the storage server provides no data channel, and data
+        is written with <code>Storage.write</code>. */
+    private boolean         no_data_channel = false;
+
+    /** Size of the chunks into which writes are coalesced. */
+    private int             write_behind_chunk_size =
+                                DEFAULT_WRITE_BEHIND_CHUNK_SIZE;
+    /** Number of chunk writes kept in flight, or zero if write-behind is
+        disabled, which it is until <code>setWriteBehind</code> is called. */
+    private int             write_behind_window = 0;
+    /** Buffer in which written bytes are coalesced before being sent. */
+    private byte[]          pending = null;
+    /** Number of bytes in the pending buffer. The bytes end at the stream
+        offset. */
+    private int             pending_length = 0;
+    /** Number of writes sent on the data channel whose results have not yet
+        been received. */
+    private int             unacknowledged = 0;
+    /** Error which caused an earlier write to fail, thrown by every further
+        write. */
+    private IOException     failure = null;
+    /** Buffer for single byte writes. */
+    private final byte[]    single_byte = new byte[1];
+
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
@@ -141,19 +190,84 @@ public class DFSOutputStream extends OutputStream
     /** Closes the output stream.
 
         <p>
-        The stream is marked as closed. Further attempts to use the output
-        stream will result in <code>IOException</code>.
+        Buffered bytes are written to the storage server, and all writes in
+        flight are completed. The stream is then marked as closed. Further
+        attempts to use the output stream will result in
+        <code>IOException</code>. Closing a closed stream has no effect.
+
+        @throws IOException If the storage server cannot be contacted, or if a
+                            write error occurs on the storage server. The
+                            stream is closed even if an error occurs.
      */
     @Override
     public void close() throws IOException
     {
-        closed = true;
+        if(closed)
+            return;
+
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            closed = true;
+
+            if(data_channel != null)
+                data_channel.close();
+
+            // The file has been written, so its cached size is stale.
+            if(naming_server instanceof MetadataCache)
+                ((MetadataCache)naming_server).invalidate(path);
+        }
+    }
+
+    /** Sets the size of the chunks into which writes are coalesced, and the
+        number of chunk writes kept in flight.
+
+        <p>
+        Write-behind is disabled until this method is called. It is enabled
+        with the suggested settings by passing
+        <code>DEFAULT_WRITE_BEHIND_CHUNK_SIZE</code> and
+        <code>DEFAULT_WRITE_BEHIND_WINDOW</code>.
+
+        <p>
+        Chunk writes are kept in flight only on a data channel. Otherwise,
+        each chunk is written in a single request to the storage server, which
+        completes before the next write is sent.
+
+        @param chunk_size Size of each chunk, in bytes.
+        @param window Number of chunk writes kept in flight, or zero to disable
+                      write-behind. Each write is then performed in a single
+                      request to the storage server, and errors are thrown by
+                      the write that causes them.
+        @throws IOException If the stream is closed, or if bytes buffered under
+                            the previous settings cannot be written.
+        @throws IllegalArgumentException If <code>chunk_size</code> is not
+                                         positive, or <code>window</code> is
+                                         negative.
+     */
+    public void setWriteBehind(int chunk_size, int window) throws IOException
+    {
+        if(chunk_size <= 0)
+            throw new IllegalArgumentException("chunk size is not positive");
+
+        if(window < 0)
+            throw new IllegalArgumentException("window is negative");
+
+        flush();
+
+        write_behind_chunk_size = chunk_size;
+        write_behind_window = window;
+        pending = null;
     }
 
     /** Writes bytes from a buffer to the output stream.
 
         <p>
-        The write is performed in a single request to the storage server.
+        If write-behind is enabled, the bytes are buffered or sent without
+        waiting for the storage server to write them. Otherwise, the write is
+        performed in a single request to the storage server.
 
         @param buffer Buffer containing bytes to be written.
         @param buffer_offset Offset into the buffer from which bytes are to be
@@ -161,7 +275,7 @@ public class DFSOutputStream extends OutputStream
         @param write_length Number of bytes to be written.
         @throws IOException If the stream is closed, if the storage server
                             cannot be contacted, or if a write error occurs on
-                            the storage server.
+                            the storage server for this or an earlier write.
         @throws NullPointerException If <code>buffer</code> is
                                      <code>null</code>.
         @throws IndexOutOfBoundsException If <code>buffer_offset</code> or
@@ -174,12 +288,9 @@ public class DFSOutputStream extends OutputStream
     public void write(byte[] buffer, int buffer_offset, int write_length)
         throws IOException
     {
-        // Stop immediately if the stream is closed.
-        if(closed)
-        {
-            throw new IOException("distributed filesystem output stream " +
-                                  "already closed");
-        }
+        // Stop immediately if the stream is closed, or if an earlier write has
+        // failed.
+        checkOpen();
 
         // Check that all the arguments are valid.
         if(buffer == null)
@@ -199,53 +310,223 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
-        // Create the data buffer that will be sent over the network. If the
-        // buffer offset is zero and all the bytes in the user-provided buffer
-        // are to be written, the user-provided buffer will be serialized
-        // directly. Otherwise, make a new buffer, copy the requisite number of
-        // bytes from the proper offset in the user-provided buffer to the new
-        // buffer, and later serialize the new buffer.
-        byte[]      data;
+        // Without write-behind, send the write request to the server and wait
+        // for it to complete.
+        if(write_behind_window == 0)
+        {
+            send(buffer, buffer_offset, write_length);
+            complete();
+            return;
+        }
 
-        if((buffer_offset == 0) && (buffer.length == write_length))
-            data = buffer;
-        else
+        // Copy the bytes into the pending buffer while it holds a partial
+        // chunk. Whole chunks following it are sent directly from the
+        // user-provided buffer, and any remainder is buffered.
+        while(write_length > 0)
+        {
+            if(pending_length == 0 && write_length >= write_behind_chunk_size)
+            {
+                send(buffer, buffer_offset, write_behind_chunk_size);
+                buffer_offset += write_behind_chunk_size;
+                write_length -= write_behind_chunk_size;
+                continue;
+            }
+
+            if(pending == null)
+                pending = new byte[write_behind_chunk_size];
+
+            int     count = Math.min(write_length,
+                                     write_behind_chunk_size - pending_length);
+
+            System.arraycopy(buffer, buffer_offset, pending, pending_length,
+                             count);
+            pending_length += count;
+            offset += count;
+            buffer_offset += count;
+            write_length -= count;
+
+            if(pending_length == write_behind_chunk_size)
+                sendPending();
+        }
+    }
+
+    /** Writes a single byte to the output stream.
+
+        @param b Value of the byte to be written. The argument is taken modulo
+                 <code>256</code> to obtain the byte value.
+        @throws IOException If the stream is closed, if the storage server
+                            cannot be contacted, or if a write error occurs on
+                            the storage server for this or an earlier write.
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        single_byte[0] = (byte)b;
+        write(single_byte, 0, 1);
+    }
+
+    /** Writes buffered bytes to the storage server, and waits for all writes
+        in flight to complete.
+
+        @throws IOException If the stream is closed, if the storage server
+                            cannot be contacted, or if a write error occurs on
+                            the storage server for any earlier write.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        checkOpen();
+
+        sendPending();
+        complete();
+    }
+
+    /** Throws if the stream is closed, or if an earlier write has failed. */
+    private void checkOpen() throws IOException
+    {
+        if(closed)
         {
-            data = new byte[write_length];
+            throw new IOException("distributed filesystem output stream " +
+                                  "already closed");
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    /** Sends the bytes in the pending buffer, which end at the stream
+        offset. */
+    private void sendPending() throws IOException
+    {
+        if(pending_length == 0)
+            return;
+
+        int         count = pending_length;
+
+        pending_length = 0;
+        offset -= count;
+        send(pending, 0, count);
+    }
 
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+    /** Sends a write request at the stream offset and advances the stream
+        offset. On a data channel, the request is sent without waiting for its
+        result, once fewer than the window of writes are in flight. */
+    private void send(byte[] buffer, int buffer_offset, int write_length)
+        throws IOException
+    {
+        // Open the data channel on the first write. Bytes are sent on the
+        // data channel directly from the given buffer.
+        if(data_channel == null && !no_data_channel)
+        {
+            data_channel = DataChannel.open(storage_server);
+            no_data_channel = (data_channel == null);
         }
 
-        // Send the write request to the server. If the write request succeds,
-        // advance the stream offset.
         try
         {
-            storage_server.write(path, offset, data);
+            if(data_channel != null)
+            {
+                while(unacknowledged > 0 &&
+                      unacknowledged >= write_behind_window)
+                {
+                    receive();
+                }
+
+                data_channel.requestWrite(path, offset, buffer, buffer_offset,
+                                          write_length);
+                ++unacknowledged;
+            }
+            else
+            {
+                storage_server.write(path, offset,
+                                     data(buffer, buffer_offset, write_length));
+            }
+
             offset += write_length;
         }
         catch(FileNotFoundException e)
         {
-            throw new IOException("file missing on storage server", e);
+            throw fail(new IOException("file missing on storage server", e));
         }
         catch(RMIException e)
         {
-            throw new IOException("unable to contact storage server", e);
+            throw fail(new IOException("unable to contact storage server",
+                                       e));
+        }
+        catch(IOException e)
+        {
+            throw fail(e);
+        }
+        catch(RuntimeException e)
+        {
+            throw fail(new IOException("write failed on storage server", e));
         }
     }
 
-    /** Writes a single byte to the output stream.
+    /** Waits for all writes in flight to complete. */
+    private void complete() throws IOException
+    {
+        try
+        {
+            while(unacknowledged > 0)
+                receive();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw fail(new IOException("file missing on storage server", e));
+        }
+        catch(IOException e)
+        {
+            throw fail(e);
+        }
+        catch(RuntimeException e)
+        {
+            throw fail(new IOException("write failed on storage server", e));
+        }
+    }
 
-        @param b Value of the byte to be written. The argument is taken modulo
-                 <code>256</code> to obtain the byte value.
-        @throws IOException If the stream is closed, if the storage server
-                            cannot be contacted, or if a write error occurs on
-                            the storage server.
+    /** Receives the result of the oldest write in flight. */
+    private void receive() throws IOException
+    {
+        --unacknowledged;
+        data_channel.receiveWrite();
+    }
+
+    /** Records the error which caused a write to fail, and closes the data
+        channel, whose remaining results are no longer of interest. Returns
+        the error. */
+    private IOException fail(IOException e)
+    {
+        failure = e;
+        pending_length = 0;
+        unacknowledged = 0;
+
+        if(data_channel != null)
+        {
+            data_channel.close();
+            data_channel = null;
+        }
+
+        return e;
+    }
+
+    /** Creates the data buffer that will be serialized for a write request.
+
+        <p>
+        If the buffer offset is zero and all the bytes in the user-provided
+        buffer are to be written, the user-provided buffer is returned.
+        Otherwise, the requisite number of bytes are copied to a new buffer.
      */
-    @Override
-    public void write(int b) throws IOException
+    private static byte[] data(byte[] buffer, int buffer_offset,
+                               int write_length)
     {
-        write(new byte[] {(byte)b}, 0, 1);
+        if((buffer_offset == 0) && (buffer.length == write_length))
+            return buffer;
+
+        byte[]      data = new byte[write_length];
+        System.arraycopy(buffer, buffer_offset, data, 0, write_length);
+
+        return data;
     }
 
     /** Advances the stream offset.
@@ -254,19 +535,20 @@ public class DFSOutputStream extends OutputStream
         It is possible to advance the offset past the current end of file.
 
         @param count Number of bytes to advance stream offset by.
-        @throws IOException If the stream has been closed.
+        @throws IOException If the stream has been closed, or if a write error
+                            occurs for an earlier write.
      */
     public void skip(long count) throws IOException
     {
-        if(closed)
-        {
-            throw new IOException("distributed filesystem output stream " +
-                                  "already closed");
-        }
+        checkOpen();
 
         if(count < 0)
             return;
 
+        // Buffered bytes end at the stream offset, so they are sent before it
+        // is moved.
+        sendPending();
+
         offset += count;
     }
 }
@@ -0,0 +1,104 @@
+package client;
+
+import java.util.concurrent.*;
+
+import naming.*;
+
+/** Keeps the lease on a lock held by the client from expiring.
+
+    <p>
+    Locks granted by the naming server are leased for
+    <code>Service.LEASE_TIME</code> milliseconds, and are released by the
+    naming server unless renewed. A <code>LeaseRenewer</code> renews one lease,
+    given by the identifier returned when the lock was taken, in the
+    background, every third of the lease time, until it is stopped. It should
+    be created as soon as the lock is taken, if the lock may be held for
+    longer than a fraction of the lease time, and stopped before the lock is
+    released.
+
+    <p>
+    A renewal which fails because the naming server cannot be contacted is
+    retried at the next interval. If the naming server reports that the lock
+    is no longer held, renewal stops, and <code>lost</code> returns
+    <code>true</code>.
+ */
+public class LeaseRenewer
+{
+    /** Interval between renewals, in milliseconds. */
+    private static final long   RENEWAL_INTERVAL = Service.LEASE_TIME / 3;
+
+    /** Thread renewing the leases of all renewers. */
+    private static final ScheduledExecutorService   timer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread  thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Naming server which granted the lock. */
+    private final Service           naming_server;
+    /** Identifier of the lease. */
+    private final long              lease;
+    /** Renewal scheduled on the timer. */
+    private final ScheduledFuture<?>    renewal;
+    /** Set when the naming server reports that the lock is not held. */
+    private volatile boolean        lost = false;
+
+    /** Starts renewing a lease on locks taken with <code>lock</code> or
+        <code>lockAll</code>.
+
+        @param naming_server Naming server which granted the lease.
+        @param lease The identifier of the lease.
+        @throws NullPointerException If <code>naming_server</code> is
+                                     <code>null</code>.
+     */
+    public LeaseRenewer(Service naming_server, long lease)
+    {
+        if(naming_server == null)
+            throw new NullPointerException("naming server is null");
+
+        this.naming_server = naming_server;
+        this.lease = lease;
+
+        renewal = timer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                renew();
+            }
+        }, RENEWAL_INTERVAL, RENEWAL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops renewing the lease. */
+    public void stop()
+    {
+        renewal.cancel(false);
+    }
+
+    /** Determines whether the lease has been found to have expired. */
+    public boolean lost()
+    {
+        return lost;
+    }
+
+    /** Renews the lease once. */
+    private void renew()
+    {
+        try
+        {
+            naming_server.renew(lease);
+        }
+        catch(IllegalArgumentException e)
+        {
+            lost = true;
+            stop();
+        }
+        catch(Throwable t) { }
+    }
+}
@@ -0,0 +1,706 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Naming server stub which caches file metadata on the client.
+
+    <p>
+    A <code>MetadataCache</code> wraps a stub for a naming server, and can be
+    used wherever the stub is. The results of <code>isDirectory</code>,
+    <code>list</code>, <code>getStorage</code> and <code>getReplicas</code>,
+    and file sizes retrieved with <code>size</code>, are cached. The metadata
+    returned by <code>stat</code> is cached in the same way. Repeated
+    requests for the same metadata are then served without contacting the
+    naming server or storage servers.
+
+    <p>
+    Cached metadata is valid for a time-to-live after it is retrieved. In
+    addition, metadata retrieved while the client holds the lock protecting it
+    stays valid for as long as the lock is held, since no other client can
+    change it. The metadata of a directory listing is protected by a lock on
+    the directory, the result of <code>isDirectory</code> by a lock on the
+    parent directory, and the storage servers and size of a file by a lock on
+    the file. Only locks taken through the cache are known to it.
+
+    <p>
+    Metadata is invalidated when the client changes it through the cache:
+    creating or deleting an object invalidates the object, its subtree, and
+    the listing of its parent directory. Locking or unlocking an object for
+    exclusive access invalidates the object's metadata, because the client may
+    write to the file, and because the naming server invalidates the file's
+    replicas. Changes made by other clients are only seen once the
+    time-to-live expires, or the lock protecting the metadata is taken: taking
+    a lock through the cache discards the metadata it protects that was
+    retrieved without holding it.
+ */
+public class MetadataCache implements Service
+{
+    /** Default time-to-live of cached metadata, in milliseconds. */
+    public static final long    DEFAULT_TIME_TO_LIVE = 5000;
+
+    /** Naming server whose metadata is cached. */
+    private final Service       naming_server;
+    /** Time-to-live of cached metadata, in milliseconds. */
+    private final long          time_to_live;
+
+    /** Cached results of <code>isDirectory</code>. */
+    private final Map<Path, Cached<Boolean>>    directories =
+        new ConcurrentHashMap<Path, Cached<Boolean>>();
+    /** Cached directory listings. */
+    private final Map<Path, Cached<String[]>>   listings =
+        new ConcurrentHashMap<Path, Cached<String[]>>();
+    /** Cached storage servers returned by <code>getStorage</code>. */
+    private final Map<Path, Cached<Storage>>    storage =
+        new ConcurrentHashMap<Path, Cached<Storage>>();
+    /** Cached storage servers returned by <code>getReplicas</code>. */
+    private final Map<Path, Cached<Storage[]>>  replicas =
+        new ConcurrentHashMap<Path, Cached<Storage[]>>();
+    /** Cached file sizes. */
+    private final Map<Path, Cached<Long>>       sizes =
+        new ConcurrentHashMap<Path, Cached<Long>>();
+
+    /** Locks held by the client, taken through the cache. Accessed only while
+        holding the monitor of this object. */
+    private final Map<Path, Hold>               holds =
+        new HashMap<Path, Hold>();
+    /** Leases on the locks taken through the cache, by identifier. Accessed
+        only while holding the monitor of this object. */
+    private final Map<Long, Leased>             leases =
+        new HashMap<Long, Leased>();
+
+    /** Creates a <code>MetadataCache</code> for the given naming server, with
+        the default time-to-live.
+
+        @param naming_server Stub for the naming server.
+     */
+    public MetadataCache(Service naming_server)
+    {
+        this(naming_server, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /** Creates a <code>MetadataCache</code> for the given naming server.
+
+        @param naming_server Stub for the naming server.
+        @param time_to_live Time, in milliseconds, for which metadata is
+                            cached. If zero, metadata is cached only while the
+                            lock protecting it is held.
+        @throws NullPointerException If <code>naming_server</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>time_to_live</code> is
+                                         negative.
+     */
+    public MetadataCache(Service naming_server, long time_to_live)
+    {
+        if(naming_server == null)
+            throw new NullPointerException("naming server stub is null");
+
+        if(time_to_live < 0)
+            throw new IllegalArgumentException("time-to-live is negative");
+
+        this.naming_server = naming_server;
+        this.time_to_live = time_to_live;
+    }
+
+    /** Returns the stub for the naming server whose metadata is cached. */
+    public Service namingServer()
+    {
+        return naming_server;
+    }
+
+    @Override
+    public long lock(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        long        lease = naming_server.lock(path, exclusive);
+
+        acquired(lease, new Path[] {path}, exclusive);
+        return lease;
+    }
+
+    @Override
+    public void unlock(Path path, boolean exclusive) throws RMIException
+    {
+        forget(new Path[] {path}, exclusive);
+        released(new Path[] {path}, exclusive);
+
+        naming_server.unlock(path, exclusive);
+    }
+
+    @Override
+    public void unlock(long lease) throws RMIException
+    {
+        Leased      leased = forget(lease);
+
+        if(leased != null)
+            released(leased.paths, leased.exclusive);
+
+        naming_server.unlock(lease);
+    }
+
+    @Override
+    public long lock(Path path, boolean exclusive, long timeout)
+        throws RMIException, FileNotFoundException
+    {
+        long        lease = naming_server.lock(path, exclusive, timeout);
+
+        if(lease != 0)
+            acquired(lease, new Path[] {path}, exclusive);
+
+        return lease;
+    }
+
+    @Override
+    public void renew(long lease) throws RMIException
+    {
+        naming_server.renew(lease);
+    }
+
+    @Override
+    public long lockAll(Path[] paths, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        long        lease = naming_server.lockAll(paths, exclusive);
+
+        acquired(lease, paths, exclusive);
+        return lease;
+    }
+
+    @Override
+    public void unlockAll(Path[] paths, boolean exclusive) throws RMIException
+    {
+        forget(paths, exclusive);
+        released(paths, exclusive);
+
+        naming_server.unlockAll(paths, exclusive);
+    }
+
+    /** Records locks taken through the cache, and discards the metadata they
+        protect that was retrieved without holding them. */
+    private void acquired(long lease, Path[] paths, boolean exclusive)
+    {
+        Path[]      distinct = distinct(paths);
+
+        synchronized(this)
+        {
+            for(Path path : distinct)
+                hold(path);
+
+            leases.put(lease, new Leased(distinct, exclusive));
+        }
+
+        for(Path path : distinct)
+        {
+            if(exclusive)
+                invalidateObject(path);
+            else
+                invalidateUnheld(path);
+        }
+    }
+
+    /** Records that locks are about to be released through the cache.
+
+        <p>
+        The holds are released before the locks, so that no metadata is
+        considered protected by a lock which may already be released.
+     */
+    private void released(Path[] paths, boolean exclusive)
+    {
+        for(Path path : distinct(paths))
+        {
+            release(path);
+
+            if(exclusive)
+                invalidateObject(path);
+        }
+    }
+
+    /** Removes the record of a lease, and returns it, or <code>null</code> if
+        the lease was not taken through the cache. */
+    private synchronized Leased forget(long lease)
+    {
+        return leases.remove(lease);
+    }
+
+    /** Removes the record of a lease on the given paths, for a client which
+        releases the locks by path. Any one of the leases on the same locks is
+        removed, as they cannot be told apart. */
+    private synchronized void forget(Path[] paths, boolean exclusive)
+    {
+        List<Path>          locked = Arrays.asList(distinct(paths));
+        Iterator<Leased>    iterator = leases.values().iterator();
+
+        while(iterator.hasNext())
+        {
+            Leased  leased = iterator.next();
+
+            if(leased.exclusive == exclusive &&
+               Arrays.asList(leased.paths).equals(locked))
+            {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    /** Returns the distinct paths among the given paths, sorted. */
+    private static Path[] distinct(Path[] paths)
+    {
+        return new TreeSet<Path>(Arrays.asList(paths)).toArray(new Path[0]);
+    }
+
+    @Override
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        Boolean     result = lookup(directories, path);
+
+        if(result != null)
+            return result;
+
+        Path        guard = path.isRoot() ? path : path.parent();
+        Hold        hold = currentHold(guard);
+
+        result = naming_server.isDirectory(path);
+        directories.put(path, new Cached<Boolean>(result, hold));
+
+        return result;
+    }
+
+    @Override
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        String[]    result = lookup(listings, directory);
+
+        if(result == null)
+        {
+            Hold    hold = currentHold(directory);
+
+            result = naming_server.list(directory);
+            listings.put(directory, new Cached<String[]>(result, hold));
+        }
+
+        // The caller may modify the array returned.
+        return result.clone();
+    }
+
+    @Override
+    public boolean createFile(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createFile(file);
+        }
+        finally
+        {
+            invalidate(file);
+        }
+    }
+
+    @Override
+    public boolean createDirectory(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createDirectory(directory);
+        }
+        finally
+        {
+            invalidate(directory);
+        }
+    }
+
+    @Override
+    public boolean delete(Path path) throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.delete(path);
+        }
+        finally
+        {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public boolean[] createFiles(Path[] files)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createFiles(files);
+        }
+        finally
+        {
+            for(Path file : files)
+                invalidate(file);
+        }
+    }
+
+    @Override
+    public boolean[] createDirectories(Path[] directories)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createDirectories(directories);
+        }
+        finally
+        {
+            for(Path directory : directories)
+                invalidate(directory);
+        }
+    }
+
+    @Override
+    public boolean[] deleteAll(Path[] paths)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.deleteAll(paths);
+        }
+        finally
+        {
+            for(Path path : paths)
+                invalidate(path);
+        }
+    }
+
+    /** {@inheritDoc}
+
+        <p>
+        The status retrieved is not itself cached, but the metadata it contains
+        is, and later calls to <code>isDirectory</code>,
+        <code>getReplicas</code> and <code>size</code> for the same objects are
+        served from the cache.
+     */
+    @Override
+    public FileStatus[] stat(Path[] paths) throws RMIException
+    {
+        Hold[]          directory_holds = new Hold[paths.length];
+        Hold[]          file_holds = new Hold[paths.length];
+
+        for(int index = 0; index < paths.length; ++index)
+        {
+            Path        path = paths[index];
+
+            directory_holds[index] =
+                currentHold(path.isRoot() ? path : path.parent());
+            file_holds[index] = currentHold(path);
+        }
+
+        FileStatus[]    status = naming_server.stat(paths);
+
+        for(int index = 0; index < paths.length; ++index)
+        {
+            if(status[index] == null)
+                continue;
+
+            Path        path = paths[index];
+
+            directories.put(path,
+                new Cached<Boolean>(status[index].isDirectory(),
+                                    directory_holds[index]));
+
+            if(!status[index].isDirectory())
+            {
+                replicas.put(path,
+                    new Cached<Storage[]>(status[index].storage(),
+                                          file_holds[index]));
+
+                if(status[index].size() != FileStatus.UNKNOWN_SIZE)
+                {
+                    sizes.put(path, new Cached<Long>(status[index].size(),
+                                                     file_holds[index]));
+                }
+            }
+        }
+
+        return status;
+    }
+
+    @Override
+    public ListingPage listTree(Path directory, int depth, String prefix,
+                                int page_size)
+        throws RMIException, FileNotFoundException
+    {
+        return naming_server.listTree(directory, depth, prefix, page_size);
+    }
+
+    @Override
+    public ListingPage nextPage(long cursor) throws RMIException
+    {
+        return naming_server.nextPage(cursor);
+    }
+
+    @Override
+    public void closeListing(long cursor) throws RMIException
+    {
+        naming_server.closeListing(cursor);
+    }
+
+    @Override
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        Storage     result = lookup(storage, file);
+
+        if(result != null)
+            return result;
+
+        Hold        hold = currentHold(file);
+
+        result = naming_server.getStorage(file);
+        storage.put(file, new Cached<Storage>(result, hold));
+
+        return result;
+    }
+
+    @Override
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        Storage[]   result = lookup(replicas, file);
+
+        if(result == null)
+        {
+            Hold    hold = currentHold(file);
+
+            result = naming_server.getReplicas(file);
+            replicas.put(file, new Cached<Storage[]>(result, hold));
+        }
+
+        return result.clone();
+    }
+
+    /** Returns the size of a file.
+
+        <p>
+        The size is retrieved from the storage server hosting the file. The
+        file should be locked for shared access before this call is made.
+
+        @param file Path to the file.
+        @return The size of the file, in bytes.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the naming server or the storage server cannot
+                             be contacted.
+     */
+    public long size(Path file) throws RMIException, FileNotFoundException
+    {
+        Long        result = lookup(sizes, file);
+
+        if(result != null)
+            return result;
+
+        Hold        hold = currentHold(file);
+
+        // Any storage server hosting the file can report its size. Replicas
+        // already retrieved spare a request to the naming server.
+        Storage[]   hosts = lookup(replicas, file);
+        Storage     server = (hosts != null) ? hosts[0] : getStorage(file);
+
+        result = server.size(file);
+        sizes.put(file, new Cached<Long>(result, hold));
+
+        return result;
+    }
+
+    /** Discards cached metadata for an object, its subtree, and the listing of
+        its parent directory.
+
+        <p>
+        This should be called after the object is changed by means other than
+        the cache, for example by writing to a file through a storage server
+        stub while holding a lock not taken through the cache.
+
+        @param path The object whose metadata is to be discarded.
+     */
+    public void invalidate(Path path)
+    {
+        for(Map<Path, ? extends Cached<?>> map : maps())
+        {
+            Iterator<Path>  paths = map.keySet().iterator();
+
+            while(paths.hasNext())
+            {
+                if(paths.next().isSubpath(path))
+                    paths.remove();
+            }
+        }
+
+        if(!path.isRoot())
+            listings.remove(path.parent());
+    }
+
+    /** Discards all cached metadata. */
+    public void invalidateAll()
+    {
+        for(Map<Path, ? extends Cached<?>> map : maps())
+            map.clear();
+    }
+
+    /** Discards cached metadata for an object only. */
+    private void invalidateObject(Path path)
+    {
+        for(Map<Path, ? extends Cached<?>> map : maps())
+            map.remove(path);
+    }
+
+    /** Discards cached metadata protected by the lock on a path which was
+        retrieved without holding the lock. Other clients may have changed it
+        before the lock was taken. */
+    private void invalidateUnheld(Path guard)
+    {
+        Hold        hold = currentHold(guard);
+
+        for(Map<Path, ? extends Cached<?>> map :
+                Arrays.<Map<Path, ? extends Cached<?>>>asList(
+                    listings, storage, replicas, sizes))
+        {
+            Cached<?>   cached = map.get(guard);
+
+            if(cached != null && cached.hold != hold)
+                map.remove(guard, cached);
+        }
+
+        // The result of isDirectory is protected by the lock on the parent
+        // directory, or by the lock on the root for the root itself.
+        Iterator<Map.Entry<Path, Cached<Boolean>>>  entries =
+            directories.entrySet().iterator();
+
+        while(entries.hasNext())
+        {
+            Map.Entry<Path, Cached<Boolean>>    entry = entries.next();
+            Path                                path = entry.getKey();
+            Path                                protector =
+                path.isRoot() ? path : path.parent();
+
+            if(protector.equals(guard) && entry.getValue().hold != hold)
+                entries.remove();
+        }
+    }
+
+    /** Returns the maps holding cached metadata. */
+    private List<Map<Path, ? extends Cached<?>>> maps()
+    {
+        return Arrays.<Map<Path, ? extends Cached<?>>>asList(
+            directories, listings, storage, replicas, sizes);
+    }
+
+    /** Returns cached metadata for a path, or <code>null</code> if there is
+        no valid cached metadata. Invalid metadata is removed. */
+    private <T> T lookup(Map<Path, Cached<T>> map, Path path)
+    {
+        Cached<T>   cached = map.get(path);
+
+        if(cached == null)
+            return null;
+
+        if(cached.valid())
+            return cached.value;
+
+        map.remove(path, cached);
+        return null;
+    }
+
+    /** Records that the client has taken a lock on the given path. */
+    private synchronized void hold(Path path)
+    {
+        Hold        hold = holds.get(path);
+
+        if(hold == null)
+        {
+            hold = new Hold();
+            holds.put(path, hold);
+        }
+
+        ++hold.count;
+    }
+
+    /** Records that the client has released a lock on the given path. */
+    private synchronized void release(Path path)
+    {
+        Hold        hold = holds.get(path);
+
+        if(hold != null && --hold.count == 0)
+            holds.remove(path);
+    }
+
+    /** Returns the hold on the lock protecting metadata of the given path, or
+        <code>null</code> if the client does not hold the lock. */
+    private synchronized Hold currentHold(Path guard)
+    {
+        return holds.get(guard);
+    }
+
+    /** Record of a lock held by the client on a path. A new record is created
+        each time the lock is taken after having been released. */
+    private static class Hold
+    {
+        /** Number of times the lock is held, by any thread of the client.
+            Accessed only while holding the monitor of the cache. */
+        int                 count = 0;
+    }
+
+    /** Record of a lease on locks taken through the cache. */
+    private static class Leased
+    {
+        /** Objects locked, distinct and sorted. */
+        final Path[]        paths;
+        /** Whether the objects are locked for exclusive access. */
+        final boolean       exclusive;
+
+        Leased(Path[] paths, boolean exclusive)
+        {
+            this.paths = paths;
+            this.exclusive = exclusive;
+        }
+    }
+
+    /** Cached metadata. */
+    private class Cached<T>
+    {
+        /** The metadata. */
+        final T             value;
+        /** Time, as given by <code>System.nanoTime</code>, at which the
+            time-to-live expires. */
+        final long          expires;
+        /** Hold on the lock protecting the metadata at the time it was
+            retrieved, or <code>null</code> if the lock was not held. */
+        final Hold          hold;
+
+        Cached(T value, Hold hold)
+        {
+            this.value = value;
+            this.expires = System.nanoTime() + time_to_live * 1000000L;
+            this.hold = hold;
+        }
+
+        /** Determines whether the metadata is within its time-to-live, or is
+            protected by a lock held since it was retrieved. */
+        boolean valid()
+        {
+            if(System.nanoTime() - expires < 0)
+                return true;
+
+            if(hold == null)
+                return false;
+
+            synchronized(MetadataCache.this)
+            {
+                return hold.count > 0;
+            }
+        }
+    }
+}
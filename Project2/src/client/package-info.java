@@ -8,5 +8,15 @@
     be accessed as regular Java streams. For example, a file can be read by a
     <code>BufferedReader</code> or a <code>Scanner</code> by constructing those
     from a <code>DFSInputStream</code>.
+
+    <p>
+    The class <code>MetadataCache</code> wraps a naming server stub, and caches
+    file metadata on the client, so that repeated lookups of the same objects
+    do not each require a request to the naming server.
+
+    <p>
+    Locks granted by the naming server are leased, and released by the naming
+    server unless renewed. The class <code>LeaseRenewer</code> renews the lease
+    on a lock in the background for as long as the client holds it.
  */
 package client;
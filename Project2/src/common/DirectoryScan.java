@@ -0,0 +1,107 @@
+package common;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/* Scan of one directory of a local directory tree, for Path.list. Files in
+ * the directory are collected by the task itself, and each subdirectory is
+ * scanned by a subtask, so that directories are listed in parallel on a
+ * fork-join pool. Paths are built by appending one component to the path of
+ * the directory, and the results of all tasks are copied once, into the final
+ * array, when the whole tree has been scanned.
+ *
+ * Listing a directory blocks on the disk, so each scan runs on a pool of its
+ * own, with more threads than processors, rather than on the common pool,
+ * whose threads are shared with the rest of the process */
+class DirectoryScan extends RecursiveAction
+{
+	private static final long serialVersionUID = 1L;
+	/* Threads scanning directories, for each processor */
+	private static final int THREADS_PER_PROCESSOR = 4;
+
+	private final File directory;
+	private final Path path;
+	/* Files directly in the directory */
+	private final ArrayList<Path> files = new ArrayList<Path>();
+	/* Scans of the subdirectories */
+	private final ArrayList<DirectoryScan> subdirectories =
+		new ArrayList<DirectoryScan>();
+	/* Number of files in the directory tree, known once the scan is done */
+	private int count;
+
+	DirectoryScan(File directory, Path path)
+	{
+		this.directory = directory;
+		this.path = path;
+	}
+
+	/* Lists all files in the directory tree, relative to its root */
+	static Path[] scan(File root)
+	{
+		DirectoryScan scan = new DirectoryScan(root, new Path());
+		ForkJoinPool pool = new ForkJoinPool(THREADS_PER_PROCESSOR *
+				Runtime.getRuntime().availableProcessors());
+
+		try {
+			pool.invoke(scan);
+		} finally {
+			pool.shutdown();
+		}
+
+		Path[] listing = new Path[scan.count];
+		scan.copyTo(listing, 0);
+		return listing;
+	}
+
+	@Override
+	protected void compute()
+	{
+		String[] names = this.directory.list();
+
+		//The directory was removed or cannot be read, it has no files
+		if (names == null){
+			return;
+		}
+
+		for (String name : names){
+			File file = new File(this.directory, name);
+			Path child = new Path(this.path, name);
+
+			if (file.isDirectory()){
+				this.subdirectories.add(new DirectoryScan(file, child));
+			} else {
+				this.files.add(child);
+			}
+		}
+
+		//Fork all subdirectory scans but one, which runs in this thread
+		ForkJoinTask.invokeAll(this.subdirectories);
+
+		this.count = this.files.size();
+		for (DirectoryScan subdirectory : this.subdirectories){
+			this.count += subdirectory.count;
+		}
+	}
+
+	/* Copies the files in the directory tree into the array, starting at the
+	 * given index, and returns the index following the last file copied */
+	private int copyTo(Path[] listing, int index)
+	{
+		for (Path file : this.files){
+			listing[index++] = file;
+		}
+		for (DirectoryScan subdirectory : this.subdirectories){
+			index = subdirectory.copyTo(listing, index);
+		}
+		return index;
+	}
+}
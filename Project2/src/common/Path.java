@@ -8,11 +8,14 @@ package common;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.StringTokenizer;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /** Distributed filesystem paths.
 
@@ -32,12 +35,30 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class Path implements Iterable<String>, Comparable<Path>, Serializable
 {
-    private CopyOnWriteArrayList<String> components;
+    /* Components of the path are the first length elements of the array.
+     * Since paths are immutable, the array is shared between a path and its
+     * parents, which makes parent() and getSubPaths() cheap */
+    private transient String[] components;
+    private transient int length;
+    /* Hash code, computed on first use. Zero if not yet computed */
+    private transient int hash;
+    /* String representation, computed on first use */
+    private transient String string;
+
+    private static final String[] NO_COMPONENTS = new String[0];
 
 	/** Creates a new path which represents the root directory. */
     public Path()
     {
-        this.components = new CopyOnWriteArrayList<String>();
+        this(NO_COMPONENTS, 0);
+    }
+
+    /* Creates a path from the first length elements of the array, which
+     * must not be modified afterwards */
+    private Path(String[] components, int length)
+    {
+    	this.components = components;
+    	this.length = length;
     }
 
     /** Creates a new path by appending the given component to an existing path.
@@ -51,15 +72,16 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     */
     public Path(Path path, String component)
     {
-    	this(path.toString());
-    	
     	if (component.equals("")||
-    		component.contains(":")||
-    		component.contains("/")){
+    		component.indexOf(':') >= 0||
+    		component.indexOf('/') >= 0){
     		
     		throw new IllegalArgumentException();
     	}
-    	this.components.add(component);
+    	
+    	this.components = Arrays.copyOf(path.components, path.length + 1);
+    	this.components[path.length] = component;
+    	this.length = path.length + 1;
     }
 
     /** Creates a new path from a path string.
@@ -76,17 +98,27 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public Path(String path)
     {
-    	if (!path.startsWith("/") || path.contains(":")){
+    	if (!path.startsWith("/") || path.indexOf(':') >= 0){
     		throw new IllegalArgumentException();
     	}
     	
-    	this.components = new CopyOnWriteArrayList<String>();
+    	//Parse string into path components, dropping empty components
+    	ArrayList<String> parsed = new ArrayList<String>();
+    	int start = 1;
     	
-    	//Parse string into path components
-        StringTokenizer strtok = new StringTokenizer(path, "/");
-        while(strtok.hasMoreTokens()){
-        	this.components.add(strtok.nextToken());
-        }
+    	while(start < path.length()){
+    		int end = path.indexOf('/', start);
+    		if(end < 0){
+    			end = path.length();
+    		}
+    		if(end > start){
+    			parsed.add(path.substring(start, end));
+    		}
+    		start = end + 1;
+    	}
+    	
+    	this.components = parsed.toArray(NO_COMPONENTS);
+    	this.length = this.components.length;
     }
 
     /** Returns an iterator over the components of the path.
@@ -100,13 +132,18 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public Iterator<String> iterator()
     {
-        PathIterator p = new PathIterator(this.components.iterator());
+        PathIterator p = new PathIterator(
+        	Arrays.asList(this.components).subList(0, this.length).iterator());
         return p;
     }
 
     /** Lists the paths of all files in a directory tree on the local
         filesystem.
 
+        <p>
+        Subdirectories are listed in parallel, on a fork-join pool created for
+        the listing.
+
         @param directory The root directory of the directory tree.
         @return An array of relative paths, one for each file in the directory
                 tree.
@@ -122,26 +159,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
         	throw new IllegalArgumentException();
         }
         
-        
-        
-        ArrayList<Path> pathList = new ArrayList<Path>();
-        
-        for (File f : directory.listFiles()){
-        	
-        	//If f is a directory, recursively list its contents
-        	if (f.isDirectory()){
-        		Path[] directoryListing = Path.list(f);
-        		for (Path p : directoryListing){
-        			pathList.add(new Path("/" + f.getName() + p.toString()));
-        		}
-        	} else {
-        		pathList.add(new Path("/" + f.getName()));
-        	}
-        }
-        
-        Path[] pathArray = new Path[pathList.size()];
-        pathList.toArray(pathArray);
-        return pathArray;
+        return DirectoryScan.scan(directory);
     }
 
     /** Determines whether the path represents the root directory.
@@ -151,7 +169,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public boolean isRoot()
     {
-    	return this.components.isEmpty();
+    	return this.length == 0;
     }
 
     /** Returns the path to the parent of this path.
@@ -164,10 +182,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     	if (this.isRoot()){
     		throw new IllegalArgumentException();
     	} else {
-    		String last = this.components.remove(this.components.size()-1);
-    		String parentPath = this.toString();
-    		this.components.add(last);
-    		return new Path(parentPath);
+    		return new Path(this.components, this.length - 1);
     	}
     }
 
@@ -182,7 +197,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     	if (this.isRoot()){
     		throw new IllegalArgumentException();
     	} else {
-    		return this.components.get(this.components.size()-1);
+    		return this.components[this.length - 1];
     	}
     }
 
@@ -198,24 +213,17 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
      */
     public boolean isSubpath(Path other)
     {
-    	if (other.isRoot()){
-    		return true;
+    	if (other.length > this.length){
+    		return false;
     	}
     	
-    	int localPathLength = this.components.size();
-    	int otherPathLength = other.getNumberOfComponents();
-    	Path localPath = this;
-    	
-    	//Stop when localPath has less components than other
-    	while(localPathLength >= otherPathLength){
-    		if (other.equals(localPath)){
-    			return true;
-    		} else {
-    			localPath = localPath.parent();
-    			localPathLength--;
+    	//Compare from the last component, where paths usually differ
+    	for (int i = other.length - 1; i >= 0; i--){
+    		if (!this.components[i].equals(other.components[i])){
+    			return false;
     		}
     	}
-    	return false;
+    	return true;
     }
 
     /** Converts the path to <code>File</code> object.
@@ -277,11 +285,9 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     	//to files at the same level in the directory tree and so they do not 
     	//depend on one another and can be locked alphabetically.
     	
-    	int otherSize = other.getNumberOfComponents();
-    	
-    	if(this.components.size() != otherSize){
+    	if(this.length != other.length){
     		//paths on different levels, use number of components
-    		return this.components.size()-otherSize;
+    		return this.length - other.length;
     	} else {
     		//paths on same level of directory tree so use alphabetical ordering
     		return this.toString().compareTo(other.toString());
@@ -289,7 +295,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     }
 
     public int getNumberOfComponents(){
-    	return this.components.size();
+    	return this.length;
     }
     
     /** Compares two paths for equality.
@@ -303,14 +309,33 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public boolean equals(Object other)
     {
-        return this.toString().equals(other.toString());
+    	if (this == other){
+    		return true;
+    	} else if (!(other instanceof Path)){
+    		return false;
+    	}
+    	
+    	Path otherPath = (Path)other;
+    	
+    	return this.length == otherPath.length && 
+    		this.hashCode() == otherPath.hashCode() &&
+    		this.isSubpath(otherPath);
     }
 
     /** Returns the hash code of the path. */
     @Override
     public int hashCode()
     {
-    	return this.toString().hashCode();
+    	int h = this.hash;
+    	
+    	if (h == 0){
+    		for (int i = 0; i < this.length; i++){
+    			h = 31 * h + this.components[i].hashCode();
+    		}
+    		this.hash = h;
+    	}
+    	
+    	return h;
     }
 
     /** Converts the path to a string.
@@ -324,49 +349,70 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     @Override
     public String toString()
     {
-    	if (this.components.isEmpty()){
-    		return "/";
-    	}
+    	String s = this.string;
     	
-    	StringBuilder sb = new StringBuilder();
-    	for(String s : this.components){
-    		sb.append("/");
-    		sb.append(s);
+    	if (s == null){
+    		if (this.isRoot()){
+    			s = "/";
+    		} else {
+    			StringBuilder sb = new StringBuilder();
+    			for (int i = 0; i < this.length; i++){
+    				sb.append("/");
+    				sb.append(this.components[i]);
+    			}
+    			s = sb.toString();
+    		}
+    		this.string = s;
     	}
-        
-    	return sb.toString();
+    	
+    	return s;
     }
     
     public String getFileName(){
     	//return last component
-    	return this.components.get(this.components.size()-1);
+    	return this.last();
     }
     
-    //return a list of all possible subpaths for locking purposes
+    //return a list of all possible subpaths for locking purposes. The subpaths
+    //share the components of this path
     public Path[] getSubPaths() {
-    		
-    	if (this.isRoot()){
-    		Path[] listing = new Path[1];
-    		listing[0] = this;
-    		return listing;
-    	}
-    	else {
+    	Path[] listing = new Path[this.length + 1];
     	
-	    	Path[] listing = new Path[components.size() + 1];
-	    	listing[0] = new Path();
-	    	
-	    	StringBuilder sb = new StringBuilder();
-	    	for(int i = 0; i < components.size(); i++) {
-	    		sb.append("/");
-	    		sb.append(components.get(i));
-	    		listing[i + 1] = new Path(sb.toString()); 
-	    	}
-	    	
-	    	
-	    	return listing;
+    	for(int i = 0; i < this.length; i++) {
+    		listing[i] = new Path(this.components, i);
     	}
+    	listing[this.length] = this;
     	
+    	return listing;
     }
     
+    /* Only the components of the path are serialized, not the components of
+     * longer paths which share the array */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+    	out.defaultWriteObject();
+    	out.writeInt(this.length);
+    	for (int i = 0; i < this.length; i++){
+    		out.writeUTF(this.components[i]);
+    	}
+    }
     
-}
\ No newline at end of file
+    private void readObject(ObjectInputStream in) 
+    	throws IOException, ClassNotFoundException
+    {
+    	in.defaultReadObject();
+    	this.length = in.readInt();
+    	if (this.length < 0){
+    		throw new InvalidObjectException("negative path length");
+    	}
+    	this.components = new String[this.length];
+    	for (int i = 0; i < this.length; i++){
+    		String component = in.readUTF();
+    		if (component.equals("") || component.indexOf(':') >= 0 ||
+    			component.indexOf('/') >= 0){
+    			throw new InvalidObjectException("invalid path component");
+    		}
+    		this.components[i] = component;
+    	}
+    }
+}
@@ -0,0 +1,127 @@
+package naming;
+
+import common.*;
+import storage.*;
+import rmi.RMIException;
+
+/** Naming server registration interface, with registration in batches and
+    load reports.
+
+    <p>
+    A storage server which registers through this interface sends its files in
+    batches, and only the files the naming server does not already know. Once
+    registered, it reports its load periodically. The naming server stubs
+    returned by <code>NamingStubs.registration</code> implement this interface.
+    Storage servers given a stub which implements only
+    <code>Registration</code> register with a single call to
+    <code>register</code>, and do not report their load.
+ */
+public interface BatchRegistration extends Registration
+{
+    /** Begins the registration of a storage server whose files are sent in
+        batches.
+
+        <p>
+        This has the effect of <code>register</code>, split over several calls.
+        The storage server first sends the digest of all the files it hosts, as
+        computed by <code>FileDigest</code>. The naming server compares it with
+        the digest of the files it has recorded as hosted by the storage
+        server, which it may know from before a restart. It replies with the
+        buckets whose digests differ. The storage server then sends the files
+        in those buckets, in any number of calls to <code>registerFiles</code>,
+        and finishes with <code>endRegistration</code>. A storage server whose
+        files are unchanged sends no files at all.
+
+        <p>
+        The storage server is identified by an identity which it keeps across
+        restarts, rather than by its stubs, which change when it restarts on
+        different ports. If a storage server with the same identity registered
+        earlier with other stubs, the naming server assumes that it has
+        restarted: the earlier stubs are no longer registered, and the files
+        recorded as hosted by them are considered hosted by the new stubs. A
+        registration session of the earlier stubs which has not finished is
+        discarded. A session which is not used for a minute is also discarded,
+        so that the sessions of storage servers which fail while registering
+        are not kept.
+
+        @param identity Identity of the storage server, which must not be
+                        zero.
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @param digest Digests of the buckets of the files hosted by the storage
+                      server.
+        @return The registration session, which tells which files must be
+                sent.
+        @throws IllegalStateException If the storage server is already
+                                      registered with the same stubs.
+        @throws IllegalArgumentException If the digest does not have one value
+                                         for each bucket, or the identity is
+                                         zero.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public RegistrationSession beginRegistration(long identity,
+                                                 Storage client_stub,
+                                                 Command command_stub,
+                                                 long[] digest)
+        throws RMIException;
+
+    /** Sends a batch of files hosted by a registering storage server.
+
+        <p>
+        The files are merged with the directory tree as by
+        <code>register</code>. The root directory is locked once for the whole
+        batch.
+
+        @param session Identifier of the registration session.
+        @param files Files hosted by the storage server, in the buckets which
+                     must be sent.
+        @return A list of the files in the batch to delete on the local storage
+                of the storage server.
+        @throws IllegalArgumentException If there is no registration session
+                                         with the given identifier, or it has
+                                         been discarded.
+        @throws NullPointerException If <code>files</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Path[] registerFiles(long session, Path[] files)
+        throws RMIException;
+
+    /** Finishes the registration of a storage server.
+
+        <p>
+        Files recorded as hosted by the storage server, in the buckets which
+        were sent, and which the storage server did not send, are no longer
+        considered to be hosted by it.
+
+        @param session Identifier of the registration session.
+        @throws IllegalArgumentException If there is no registration session
+                                         with the given identifier, or it has
+                                         been discarded.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void endRegistration(long session) throws RMIException;
+
+    /** Reports the load of a registered storage server.
+
+        <p>
+        The naming server uses the most recent report from each storage server
+        to choose the servers on which new files and replicas are placed, and
+        to order the replicas of files returned to clients.
+
+        @param client_stub Storage server client service stub, as given at
+                           registration.
+        @param load Current load of the storage server.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void reportLoad(Storage client_stub, StorageLoad load)
+        throws RMIException;
+}
@@ -0,0 +1,45 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+/* Count of events which decays exponentially with time, halving every half
+ * life. The count approximates the number of events in the last half life
+ * divided by ln 2, so it follows the recent rate of events and falls back to
+ * zero once they stop */
+class DecayingCounter {
+	/* Decay per nanosecond */
+	private final double decay;
+	private double count = 0;
+	/* Time of the last update of the count, from System.nanoTime */
+	private long updated = System.nanoTime();
+
+	/* Creates a counter with the given half life, in nanoseconds */
+	DecayingCounter(long halfLife) {
+		this.decay = Math.log(2) / halfLife;
+	}
+
+	/* Counts an event at the given time, and returns the new count */
+	synchronized double add(long now) {
+		this.decayTo(now);
+		this.count += 1;
+		return this.count;
+	}
+
+	/* Returns the count at the given time */
+	synchronized double value(long now) {
+		this.decayTo(now);
+		return this.count;
+	}
+
+	private void decayTo(long now) {
+		long elapsed = now - this.updated;
+		if(elapsed > 0) {
+			this.count *= Math.exp(-this.decay * elapsed);
+			this.updated = now;
+		}
+	}
+}
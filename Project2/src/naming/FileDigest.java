@@ -0,0 +1,83 @@
+package naming;
+
+import common.Path;
+
+/** Digest of the set of files hosted by a storage server.
+
+    <p>
+    Files are divided by their paths among a fixed number of buckets. The
+    digest of a bucket is the sum of 64-bit hashes of the paths of the files in
+    it, and so does not depend on the order in which the files are listed. A
+    storage server sends the digest of its files when it registers. The naming
+    server compares it with the digest of the files it has recorded for the
+    storage server, and asks only for the files in the buckets which differ.
+ */
+public class FileDigest
+{
+    /** Number of buckets. */
+    public static final int     BUCKETS = 64;
+
+    /** Digests of the buckets. */
+    private final long[]        buckets = new long[BUCKETS];
+
+    /** Adds a file to the digest. */
+    public void add(Path file)
+    {
+        long    hash = hash(file);
+        buckets[bucket(hash)] += hash;
+    }
+
+    /** Returns the digests of the buckets. */
+    public long[] buckets()
+    {
+        return buckets.clone();
+    }
+
+    /** Computes the digest of a list of files.
+
+        @param files The files.
+        @return The digests of the buckets.
+     */
+    public static long[] of(Path[] files)
+    {
+        FileDigest  digest = new FileDigest();
+
+        for(Path file : files)
+            digest.add(file);
+
+        return digest.buckets;
+    }
+
+    /** Returns the bucket into which a file falls. */
+    public static int bucket(Path file)
+    {
+        return bucket(hash(file));
+    }
+
+    /** Returns the bucket of a path hash. The bucket is taken from the high
+        bits, which are mixed from every character of the path. */
+    private static int bucket(long hash)
+    {
+        return (int)(hash >>> 58) & (BUCKETS - 1);
+    }
+
+    /** Returns the 64-bit FNV-1a hash of the path's string form, with a final
+        mixing step so that the high bits depend on every character. */
+    private static long hash(Path file)
+    {
+        String  string = file.toString();
+        long    hash = 0xcbf29ce484222325L;
+
+        for(int index = 0; index < string.length(); ++index)
+        {
+            hash ^= string.charAt(index);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
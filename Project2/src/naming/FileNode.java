@@ -0,0 +1,133 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import storage.Storage;
+
+/* Node of the directory tree, standing for a file or a directory. Each node
+ * holds everything the naming server knows about its object: the lock on the
+ * object, and either the children of the directory, by name, or the storage
+ * servers hosting the file. Paths are resolved by walking down from the root
+ * node one component at a time */
+class FileNode {
+	/* Lock on the object */
+	private final ReadWriteLock lock = new ReadWriteLock();
+	/* Children of the directory by name, or null if the node is a file */
+	private final ConcurrentHashMap<String, FileNode> children;
+	/* Storage servers hosting the file, or null if the node is a directory */
+	private final Set<Storage> storage;
+	/* Copies of the file to new replicas, scheduled and not yet waited for.
+	 * Guarded by the node */
+	private final ArrayList<Future<?>> replications;
+	/* Demand for the file, or null if the node is a directory */
+	private final DecayingCounter reads;
+
+	private FileNode(ConcurrentHashMap<String, FileNode> children,
+			Set<Storage> storage) {
+		this.children = children;
+		this.storage = storage;
+		this.replications = storage == null ? null : new ArrayList<Future<?>>();
+		this.reads = storage == null ? null :
+			new DecayingCounter(ReplicationController.HALF_LIFE);
+	}
+
+	/* Creates a node for an empty directory */
+	static FileNode directory() {
+		return new FileNode(new ConcurrentHashMap<String, FileNode>(), null);
+	}
+
+	/* Creates a node for a file hosted by the given storage server */
+	static FileNode file(Storage storageServer) {
+		Set<Storage> storage =
+			Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
+		storage.add(storageServer);
+		return new FileNode(null, storage);
+	}
+
+	boolean isDirectory() {
+		return this.children != null;
+	}
+
+	ReadWriteLock lock() {
+		return this.lock;
+	}
+
+	/* Returns the child with the given name, or null if there is none or the
+	 * node is a file */
+	FileNode child(String name) {
+		if(this.children == null) {
+			return null;
+		}
+		return this.children.get(name);
+	}
+
+	/* Adds a child unless one with the same name exists. Returns the child
+	 * with the name */
+	FileNode addChild(String name, FileNode child) {
+		FileNode existing = this.children.putIfAbsent(name, child);
+		return existing == null ? child : existing;
+	}
+
+	/* Removes the child with the given name, with its whole subtree */
+	FileNode removeChild(String name) {
+		return this.children.remove(name);
+	}
+
+	/* Names of the children of the directory */
+	Set<String> childNames() {
+		return this.children.keySet();
+	}
+
+	/* Children of the directory */
+	Collection<FileNode> children() {
+		return this.children.values();
+	}
+
+	/* Storage servers hosting the file. The set is modified in place when
+	 * the file is replicated or invalidated */
+	Set<Storage> storage() {
+		return this.storage;
+	}
+
+	DecayingCounter reads() {
+		return this.reads;
+	}
+
+	synchronized void addReplication(Future<?> replication) {
+		this.replications.add(replication);
+	}
+
+	/* Determines whether any copy of the file is still in progress */
+	synchronized boolean isReplicating() {
+		Iterator<Future<?>> iterator = this.replications.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().isDone()) {
+				iterator.remove();
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Returns the copies scheduled, which the caller must wait for, and
+	 * forgets them */
+	synchronized List<Future<?>> takeReplications() {
+		ArrayList<Future<?>> taken = new ArrayList<Future<?>>(this.replications);
+		this.replications.clear();
+		return taken;
+	}
+}
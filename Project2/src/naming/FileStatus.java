@@ -0,0 +1,75 @@
+package naming;
+
+import java.io.Serializable;
+
+import storage.Storage;
+
+/** Status of a file or directory, as returned by <code>Service.stat</code>.
+
+    <p>
+    The status gathers the metadata a client typically retrieves about an
+    object in several calls: whether it is a directory, and for a file, its
+    size and the storage servers hosting it. The size of a file is unknown if
+    none of the storage servers hosting it could be contacted.
+ */
+public class FileStatus implements Serializable
+{
+    private static final long   serialVersionUID = 1L;
+
+    /** Size reported for a file whose storage servers could not be
+        contacted. */
+    public static final long    UNKNOWN_SIZE = -1;
+
+    /** Indicates that the object is a directory. */
+    private final boolean       directory;
+    /** Size of the file, in bytes. */
+    private final long          size;
+    /** Storage servers hosting the file. */
+    private final Storage[]     storage;
+
+    /** Creates the status of a directory. */
+    public FileStatus()
+    {
+        this(true, 0, new Storage[0]);
+    }
+
+    /** Creates the status of a file.
+
+        @param size Size of the file, in bytes, or <code>UNKNOWN_SIZE</code>.
+        @param storage Stubs for the storage servers hosting the file.
+     */
+    public FileStatus(long size, Storage[] storage)
+    {
+        this(false, size, storage);
+    }
+
+    /** Creates the status of an object. */
+    private FileStatus(boolean directory, long size, Storage[] storage)
+    {
+        this.directory = directory;
+        this.size = size;
+        this.storage = storage;
+    }
+
+    /** Returns <code>true</code> if the object is a directory, and
+        <code>false</code> if it is a file. */
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    /** Returns the size of the file, in bytes, or zero for a directory.
+        Returns <code>UNKNOWN_SIZE</code> if none of the storage servers
+        hosting the file could be contacted. */
+    public long size()
+    {
+        return size;
+    }
+
+    /** Returns stubs for the storage servers hosting the file. The array is
+        empty for a directory, and contains at least one stub for a file. */
+    public Storage[] storage()
+    {
+        return storage.clone();
+    }
+}
@@ -0,0 +1,72 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Lease on the locks granted to a client by one lock request. The lease
+ * expires unless the client renews it, and the locks are then released on the
+ * client's behalf. A lease is ended exactly once: either by the client
+ * unlocking the objects, or by the naming server reclaiming it */
+class Lease {
+	/* Identifier given to the client */
+	private final long identifier;
+	/* Key of the lease in the lease table */
+	private final LeaseTable.Key key;
+	/* Locks held under the lease, in locking order, each mapped to true if
+	 * it is held for exclusive access */
+	private final Map<FileNode, Boolean> locks;
+	/* Time, as given by System.nanoTime, at which the lease expires */
+	private volatile long expiry;
+	/* Set once the lease has ended */
+	private final AtomicBoolean ended = new AtomicBoolean(false);
+
+	Lease(long identifier, LeaseTable.Key key, Map<FileNode, Boolean> locks,
+			long expiry) {
+		this.identifier = identifier;
+		this.key = key;
+		this.locks = locks;
+		this.expiry = expiry;
+	}
+
+	long identifier() {
+		return this.identifier;
+	}
+
+	LeaseTable.Key key() {
+		return this.key;
+	}
+
+	Map<FileNode, Boolean> locks() {
+		return this.locks;
+	}
+
+	long expiry() {
+		return this.expiry;
+	}
+
+	/* Extends the lease. The lease is not moved in the timer wheel: the
+	 * wheel finds the new expiry when it next reaches the lease */
+	void renew(long expiry) {
+		this.expiry = expiry;
+	}
+
+	boolean hasExpired(long now) {
+		return now - this.expiry >= 0;
+	}
+
+	/* Ends the lease. Returns true only to the first caller, which must then
+	 * release the locks */
+	boolean end() {
+		return this.ended.compareAndSet(false, true);
+	}
+
+	boolean hasEnded() {
+		return this.ended.get();
+	}
+}
@@ -0,0 +1,259 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import common.Path;
+
+/* Leases on the locks held by clients, and the timer wheel which finds the
+ * expired ones.
+ *
+ * Each lease is given an identifier when it is granted, by which its client
+ * renews and ends it. Leases are also found by the objects locked and the
+ * access requested, for clients which unlock an object by its path. Clients
+ * holding shared locks on the same objects cannot be told apart by path, so
+ * several leases may have the same key: unlocking by key ends the lease which
+ * expires last.
+ *
+ * Each lease is also kept in the slot of the wheel for the tick in which it
+ * expires. The wheel is advanced one tick at a time by reclaimExpired, which
+ * looks only at the leases in the slots passed. A renewed lease is not moved:
+ * when its old slot is reached it is put in the slot for its new expiry */
+class LeaseTable {
+	/* Leases by identifier */
+	private final ConcurrentHashMap<Long, Lease> identified =
+			new ConcurrentHashMap<Long, Lease>();
+	/* Leases by key. A lease is held while it is in this table: it is
+	 * removed, and then ended, exactly once */
+	private final ConcurrentHashMap<Key, ArrayList<Lease>> leases =
+			new ConcurrentHashMap<Key, ArrayList<Lease>>();
+	/* Slots of the wheel. Slot i holds the leases expiring in ticks equal
+	 * to i modulo the number of slots */
+	private final ArrayList<ConcurrentLinkedQueue<Lease>> slots;
+	/* Length of a tick, in nanoseconds */
+	private final long tick;
+	/* Next tick to be reclaimed. Accessed only by reclaimExpired */
+	private long nextTick;
+	/* Next identifier to be given. Identifiers start at a random value, so
+	 * that those given before a restart are not given again */
+	private final AtomicLong nextIdentifier =
+			new AtomicLong(new Random().nextLong());
+
+	LeaseTable(int slotCount, long tick) {
+		this.slots = new ArrayList<ConcurrentLinkedQueue<Lease>>(slotCount);
+		for(int i = 0; i < slotCount; i++) {
+			this.slots.add(new ConcurrentLinkedQueue<Lease>());
+		}
+		this.tick = tick;
+		this.nextTick = Math.floorDiv(System.nanoTime(), tick);
+	}
+
+	/* Grants a lease on the given locks, and returns its identifier, which is
+	 * never zero */
+	long add(Key key, Map<FileNode, Boolean> locks, long expiry) {
+		long identifier;
+		do {
+			identifier = this.nextIdentifier.getAndIncrement();
+		} while(identifier == 0);
+
+		final Lease lease = new Lease(identifier, key, locks, expiry);
+		this.identified.put(identifier, lease);
+		this.leases.compute(key,
+			new BiFunction<Key, ArrayList<Lease>, ArrayList<Lease>>() {
+				public ArrayList<Lease> apply(Key key, ArrayList<Lease> list) {
+					if(list == null) {
+						list = new ArrayList<Lease>(1);
+					}
+					list.add(lease);
+					return list;
+				}
+			});
+
+		this.schedule(lease);
+		return identifier;
+	}
+
+	/* Ends the lease with the given identifier, and returns it. Returns null
+	 * if the lease is not held */
+	Lease take(long identifier) {
+		Lease lease = this.identified.get(identifier);
+
+		if(lease == null || !this.remove(lease, false) || !lease.end()) {
+			return null;
+		}
+
+		this.identified.remove(identifier, lease);
+		return lease;
+	}
+
+	/* Ends the lease with the given key which expires last, and returns it.
+	 * Returns null if no lease with the key is held */
+	Lease take(Key key) {
+		final Lease[] taken = new Lease[1];
+
+		this.leases.computeIfPresent(key,
+			new BiFunction<Key, ArrayList<Lease>, ArrayList<Lease>>() {
+				public ArrayList<Lease> apply(Key key, ArrayList<Lease> list) {
+					int last = -1;
+					for(int i = 0; i < list.size(); i++) {
+						if(last < 0 || list.get(i).expiry() -
+								list.get(last).expiry() > 0) {
+							last = i;
+						}
+					}
+
+					/* Leases in the list have not been ended, as leases are
+					 * removed before they are ended */
+					if(last >= 0 && list.get(last).end()) {
+						taken[0] = list.remove(last);
+					}
+					return list.isEmpty() ? null : list;
+				}
+			});
+
+		if(taken[0] != null) {
+			this.identified.remove(taken[0].identifier(), taken[0]);
+		}
+		return taken[0];
+	}
+
+	/* Extends the lease with the given identifier. Returns false if the lease
+	 * is not held */
+	boolean renew(long identifier, final long expiry) {
+		final Lease lease = this.identified.get(identifier);
+		final boolean[] renewed = new boolean[1];
+
+		if(lease == null) {
+			return false;
+		}
+
+		/* The lease is renewed only while it is in the table, so that it is
+		 * not renewed once the reclaimer has found it expired */
+		this.leases.computeIfPresent(lease.key(),
+			new BiFunction<Key, ArrayList<Lease>, ArrayList<Lease>>() {
+				public ArrayList<Lease> apply(Key key, ArrayList<Lease> list) {
+					if(list.contains(lease)) {
+						lease.renew(expiry);
+						renewed[0] = true;
+					}
+					return list;
+				}
+			});
+
+		return renewed[0];
+	}
+
+	/* Advances the wheel to the current time. Returns the leases which have
+	 * expired, ended and removed from the table: the caller must release
+	 * their locks */
+	ArrayList<Lease> reclaimExpired() {
+		ArrayList<Lease> expired = new ArrayList<Lease>();
+		long currentTick = Math.floorDiv(System.nanoTime(), this.tick);
+
+		for(; this.nextTick <= currentTick; this.nextTick++) {
+			ConcurrentLinkedQueue<Lease> slot = this.slotOf(this.nextTick);
+
+			/* Leases put back in the slot while it is drained belong to a
+			 * later turn of the wheel, so only those present now are taken */
+			ArrayList<Lease> due = new ArrayList<Lease>();
+			for(Lease lease = slot.poll(); lease != null; lease = slot.poll()) {
+				due.add(lease);
+			}
+
+			for(Lease lease : due) {
+				if(lease.hasEnded()) {
+					continue;
+				} else if(this.remove(lease, true) && lease.end()) {
+					this.identified.remove(lease.identifier(), lease);
+					expired.add(lease);
+				} else if(!lease.hasEnded()) {
+					this.schedule(lease);
+				}
+			}
+		}
+
+		return expired;
+	}
+
+	/* Puts a lease in the slot for the tick in which it expires, or for the
+	 * next tick if that has been passed already */
+	private void schedule(Lease lease) {
+		long expiryTick = Math.floorDiv(lease.expiry(), this.tick) + 1;
+		long earliest = Math.floorDiv(System.nanoTime(), this.tick) + 1;
+		this.slotOf(Math.max(expiryTick, earliest)).add(lease);
+	}
+
+	private ConcurrentLinkedQueue<Lease> slotOf(long tickNumber) {
+		return this.slots.get(Math.floorMod(tickNumber, this.slots.size()));
+	}
+
+	/* Removes a lease from the table. If expired is true, the lease is
+	 * removed only if it has expired. Returns false if it was not removed:
+	 * it was taken in the meantime, or has not expired */
+	private boolean remove(final Lease lease, final boolean expired) {
+		final boolean[] removed = new boolean[1];
+
+		this.leases.computeIfPresent(lease.key(),
+			new BiFunction<Key, ArrayList<Lease>, ArrayList<Lease>>() {
+				public ArrayList<Lease> apply(Key key, ArrayList<Lease> list) {
+					if(!expired || lease.hasExpired(System.nanoTime())) {
+						removed[0] = list.remove(lease);
+					}
+					return list.isEmpty() ? null : list;
+				}
+			});
+
+		return removed[0];
+	}
+	/* Key of a lease: the objects locked, in locking order, and the access
+	 * requested */
+	static class Key {
+		private final Path[] paths;
+		private final boolean exclusive;
+
+		/* Creates the key of a lease on the given objects. The same key is
+		 * created for the same objects given in any order or repeated */
+		Key(Path[] paths, boolean exclusive) {
+			Path[] sorted = paths.clone();
+			Arrays.sort(sorted);
+
+			int distinct = 0;
+			for(int i = 0; i < sorted.length; i++) {
+				if(distinct == 0 || !sorted[i].equals(sorted[distinct - 1])) {
+					sorted[distinct++] = sorted[i];
+				}
+			}
+
+			this.paths = Arrays.copyOf(sorted, distinct);
+			this.exclusive = exclusive;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Key)) {
+				return false;
+			}
+
+			Key key = (Key)other;
+			return this.exclusive == key.exclusive &&
+					Arrays.equals(this.paths, key.paths);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(this.paths) * 2 + (this.exclusive ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package naming;
+
+import java.io.Serializable;
+
+import common.Path;
+
+/** Page of a recursive directory listing, as returned by
+    <code>Service.listTree</code> and <code>Service.nextPage</code>.
+
+    <p>
+    Each page holds a run of entries of the listing, in the order in which the
+    tree is walked: each directory is followed by its contents, and the entries
+    of a directory are ordered by name. Unless the page is the last, the
+    following page is retrieved by passing the page's cursor to
+    <code>nextPage</code>. The cursor names the following page, so passing
+    the same cursor again returns the same page.
+ */
+public class ListingPage implements Serializable
+{
+    private static final long   serialVersionUID = 1L;
+
+    /** Cursor identifying the listing on the naming server. */
+    private final long          cursor;
+    /** Paths of the entries on the page. */
+    private final Path[]        paths;
+    /** For each entry, whether it is a directory. */
+    private final boolean[]     directories;
+    /** Indicates that no entries follow this page. */
+    private final boolean       last;
+
+    /** Creates a page of a listing.
+
+        @param cursor Cursor identifying the listing on the naming server.
+        @param paths Paths of the entries on the page.
+        @param directories For each entry, <code>true</code> if the entry is a
+                           directory, and <code>false</code> if it is a file.
+        @param last <code>true</code> if no entries follow this page.
+     */
+    public ListingPage(long cursor, Path[] paths, boolean[] directories,
+                       boolean last)
+    {
+        this.cursor = cursor;
+        this.paths = paths;
+        this.directories = directories;
+        this.last = last;
+    }
+
+    /** Returns the cursor from which the following page can be retrieved. */
+    public long cursor()
+    {
+        return cursor;
+    }
+
+    /** Returns the number of entries on the page. */
+    public int size()
+    {
+        return paths.length;
+    }
+
+    /** Returns the path of an entry on the page. */
+    public Path path(int index)
+    {
+        return paths[index];
+    }
+
+    /** Returns <code>true</code> if an entry on the page is a directory, and
+        <code>false</code> if it is a file. */
+    public boolean isDirectory(int index)
+    {
+        return directories[index];
+    }
+
+    /** Returns <code>true</code> if no entries follow this page. */
+    public boolean isLast()
+    {
+        return last;
+    }
+}
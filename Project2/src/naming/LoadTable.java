@@ -0,0 +1,96 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import storage.Storage;
+
+/* Most recent load reported by each storage server, with the number of times
+ * the naming server has chosen the server since the report. A choice stands
+ * for a request which the server will receive before its next report, and is
+ * counted as queued, so that the policies do not direct every request to the
+ * server which was least loaded at its last report */
+class LoadTable {
+	/* Free space below which a server is not given new files, unless every
+	 * server is as full */
+	static final long FREE_SPACE_RESERVE = 64L * 1024 * 1024;
+
+	private final ConcurrentHashMap<Storage, Entry> entries =
+		new ConcurrentHashMap<Storage, Entry>();
+
+	/* Records the load reported by a storage server */
+	void report(Storage server, StorageLoad load) {
+		this.entries.put(server, new Entry(load));
+	}
+
+	/* Forgets the load of a storage server which is no longer registered */
+	void forget(Storage server) {
+		this.entries.remove(server);
+	}
+
+	/* Counts a request directed to a storage server */
+	void chosen(Storage server) {
+		Entry entry = this.entries.get(server);
+		if(entry != null) {
+			entry.chosen.incrementAndGet();
+		}
+	}
+
+	/* Returns the load of a storage server, with its choices since the report
+	 * counted as queued requests */
+	StorageLoad load(Storage server) {
+		Entry entry = this.entries.get(server);
+		if(entry == null) {
+			return StorageLoad.UNKNOWN;
+		}
+		return entry.load.withQueued(entry.chosen.get());
+	}
+
+	/* Orders storage servers by a policy, most preferred first. When servers
+	 * are placed, the servers without room for new files are ranked after the
+	 * others */
+	Storage[] rank(List<Storage> servers, ReplicaPolicy policy,
+			boolean placement) {
+		StorageLoad[] loads = new StorageLoad[servers.size()];
+		for(int i = 0; i < loads.length; i++) {
+			loads[i] = this.load(servers.get(i));
+		}
+
+		int[] order = policy.rank(loads);
+		if(order.length != loads.length) {
+			throw new IllegalStateException("policy did not rank all servers");
+		}
+
+		Storage[] ranked = new Storage[loads.length];
+		int next = 0;
+		for(int pass = 0; pass < (placement ? 2 : 1); pass++) {
+			for(int i : order) {
+				boolean full = placement && hasNoRoom(loads[i]);
+				if(!placement || full == (pass == 1)) {
+					ranked[next++] = servers.get(i);
+				}
+			}
+		}
+		return ranked;
+	}
+
+	private static boolean hasNoRoom(StorageLoad load) {
+		return load.freeSpace() >= 0 && load.freeSpace() < FREE_SPACE_RESERVE;
+	}
+
+	private static class Entry {
+		final StorageLoad load;
+		final AtomicInteger chosen = new AtomicInteger();
+
+		Entry(StorageLoad load) {
+			this.load = load;
+		}
+	}
+}
@@ -0,0 +1,808 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import storage.Storage;
+import common.Path;
+
+/* Durable record of the naming server's directory tree.
+ *
+ * Every change to the tree is appended to a log: creation and deletion of
+ * objects, and addition and removal of replicas. Appending does not wait for
+ * the disk. A writer thread takes all records appended since its last write,
+ * writes them together and forces them to disk once, so that concurrent
+ * requests share the cost of each force. A request waits with sync until its
+ * records are durable before it replies to its client.
+ *
+ * The log is kept in numbered segment files. Once enough records have been
+ * written, the writer starts a new segment and a snapshot of the whole tree is
+ * written in the background, after which the older segments are deleted. The
+ * tree is not locked while the snapshot is taken, so the snapshot may include
+ * some changes logged in the new segment. Replaying a record sets the state of
+ * its object regardless of the state found, so replaying the new segment over
+ * the snapshot gives the tree as logged.
+ *
+ * On start, the snapshot is loaded and the segments after it replayed. A
+ * record torn by a crash, which fails its checksum or is incomplete, ends the
+ * log. A log opened without a directory records nothing.
+ *
+ * Creating, renaming and deleting files only changes the directory, which is
+ * forced to disk separately: after a segment is created, so that forced
+ * records are not lost with the segment's name, and after the snapshot is
+ * moved into place, so that the segments it replaces are deleted only once
+ * the snapshot is sure to be found */
+class MetadataLog {
+	/* Kinds of records. A storage record assigns a number to a storage server
+	 * stub, by which later records in the same file refer to it, and gives
+	 * the identity of the storage server, if known. A bind record makes a
+	 * stub the stub of its storage server, in place of any earlier stub */
+	private static final byte STORAGE = 0;
+	private static final byte CREATE_FILE = 1;
+	private static final byte CREATE_DIRECTORY = 2;
+	private static final byte DELETE = 3;
+	private static final byte ADD_REPLICA = 4;
+	private static final byte REMOVE_REPLICA = 5;
+	private static final byte BIND = 6;
+
+	private static final int SNAPSHOT_MAGIC = 0x4e534e50;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String SEGMENT_PREFIX = "log.";
+	/* Number of records after which a snapshot is taken */
+	private static final int SNAPSHOT_INTERVAL = 100000;
+
+	/* Directory holding the snapshot and log segments, or null */
+	private final File directory;
+	/* Root of the tree recorded */
+	private final FileNode root;
+	/* Storage servers referred to by the recovered tree, which have not
+	 * registered since. The naming server adds the new stub of a storage
+	 * server which restarts, once the replicas on its earlier stub are moved
+	 * to it */
+	private final Set<Storage> recoveredStorage =
+		Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
+	/* Identity of each storage server stub whose identity is known */
+	private final Map<Storage, Long> identities =
+		new ConcurrentHashMap<Storage, Long>();
+	/* Stub recovered for each storage server identity */
+	private final Map<Long, Storage> identifiedStorage =
+		new ConcurrentHashMap<Long, Storage>();
+
+	/* Records appended and not yet taken by the writer. Accessed only while
+	 * holding the monitor of the log, as are the counts below */
+	private ArrayList<Record> pending = new ArrayList<Record>();
+	/* Sequence number of the last record appended */
+	private long appended = 0;
+	/* Sequence number of the last record forced to disk */
+	private long durable = 0;
+	/* Error which stopped the writer */
+	private IOException failure = null;
+	private boolean closed = false;
+
+	/* Open segment, its number and the writer of its records. Accessed only
+	 * by the writer thread, or once it has exited */
+	private FileChannel segment;
+	private long segmentNumber;
+	private RecordWriter segmentRecords;
+	private int recordsSinceSnapshot;
+	/* Snapshot being written in the background, if any */
+	private Thread snapshotter = null;
+
+	private Thread writer;
+
+	/* Creates a log which records nothing */
+	MetadataLog(FileNode root) {
+		this.directory = null;
+		this.root = root;
+	}
+
+	/* Opens the log in the given directory, and recovers the tree recorded
+	 * in it into the given root, which must be empty */
+	MetadataLog(File directory, FileNode root) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+
+		this.directory = directory;
+		this.root = root;
+
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+		File[] files = directory.listFiles();
+		for(File file : files) {
+			String name = file.getName();
+			if(name.startsWith(SEGMENT_PREFIX)) {
+				try {
+					segments.put(Long.parseLong(
+						name.substring(SEGMENT_PREFIX.length())), file);
+				} catch (NumberFormatException e) {}
+			}
+		}
+
+		long firstSegment = this.loadSnapshot();
+
+		for(Map.Entry<Long, File> entry : segments.entrySet()) {
+			if(entry.getKey() < firstSegment) {
+				entry.getValue().delete();
+			} else {
+				this.recordsSinceSnapshot += this.replay(entry.getValue());
+			}
+		}
+
+		/* Records are appended to a new segment, after any torn record */
+		long last = segments.isEmpty() ? 0 : segments.lastKey();
+		this.openSegment(Math.max(last + 1, firstSegment));
+
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeRecords();
+			}
+		}, "metadata log writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/* Storage servers referred to by the tree recovered from the log. The
+	 * naming server removes each as it finishes registering */
+	Set<Storage> recoveredStorage() {
+		return this.recoveredStorage;
+	}
+
+	/* Stubs of the storage servers recovered from the log, by identity */
+	Map<Long, Storage> identifiedStorage() {
+		return this.identifiedStorage;
+	}
+
+	/* The following methods append a record of a change to the tree, made
+	 * before the call, and return its sequence number for sync */
+	long createFile(Path file, Storage storage) {
+		return this.append(new Record(CREATE_FILE, file, storage));
+	}
+
+	long createDirectory(Path directory) {
+		return this.append(new Record(CREATE_DIRECTORY, directory, null));
+	}
+
+	long delete(Path path) {
+		return this.append(new Record(DELETE, path, null));
+	}
+
+	long addReplica(Path file, Storage storage) {
+		return this.append(new Record(ADD_REPLICA, file, storage));
+	}
+
+	long removeReplica(Path file, Storage storage) {
+		return this.append(new Record(REMOVE_REPLICA, file, storage));
+	}
+
+	/* Records that the storage server with the given identity now has the
+	 * given stub, and that the replicas on its earlier stub, if any, have
+	 * been moved to it */
+	long bindStorage(long identity, Storage storage) {
+		this.identities.values().removeAll(Collections.singleton(identity));
+		this.identities.put(storage, identity);
+		return this.append(new Record(BIND, null, storage));
+	}
+
+	/* Records of changes made once the log is closed, by requests finishing
+	 * while the naming server stops, are dropped */
+	private synchronized long append(Record record) {
+		if(this.directory == null || this.closed) {
+			return 0;
+		}
+
+		this.pending.add(record);
+		this.notifyAll();
+		return ++this.appended;
+	}
+
+	/* Waits until the record with the given sequence number, and all records
+	 * before it, are on disk */
+	synchronized void sync(long sequence) {
+		while(this.durable < sequence) {
+			if(this.failure != null) {
+				throw new IllegalStateException("metadata log failed",
+						this.failure);
+			}
+
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException();
+			}
+		}
+	}
+
+	/* Writes the records appended, stops the writer, and takes a snapshot,
+	 * so that the next start only loads the snapshot */
+	void close() {
+		if(this.directory == null) {
+			return;
+		}
+
+		synchronized(this) {
+			this.closed = true;
+			this.notifyAll();
+		}
+
+		try {
+			this.writer.join();
+			if(this.snapshotter != null) {
+				this.snapshotter.join();
+			}
+
+			if(this.failure == null) {
+				this.openSegment(this.segmentNumber + 1);
+				this.writeSnapshot(this.segmentNumber);
+			}
+			this.segment.close();
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			/* The log remains, and is replayed on the next start */
+		}
+	}
+
+	/* Body of the writer thread */
+	private void writeRecords() {
+		while(true) {
+			ArrayList<Record> batch;
+			long last;
+
+			synchronized(this) {
+				while(this.pending.isEmpty() && !this.closed) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {}
+				}
+
+				if(this.pending.isEmpty()) {
+					return;
+				}
+
+				batch = this.pending;
+				this.pending = new ArrayList<Record>();
+				last = this.appended;
+			}
+
+			try {
+				for(Record record : batch) {
+					this.segmentRecords.write(record);
+				}
+				this.segment.write(
+						ByteBuffer.wrap(this.segmentRecords.take()));
+				this.segment.force(false);
+			} catch (IOException e) {
+				synchronized(this) {
+					this.failure = e;
+					this.notifyAll();
+				}
+				return;
+			}
+
+			synchronized(this) {
+				this.durable = last;
+				this.notifyAll();
+			}
+
+			this.recordsSinceSnapshot += batch.size();
+			if(this.recordsSinceSnapshot >= SNAPSHOT_INTERVAL &&
+					(this.snapshotter == null || !this.snapshotter.isAlive())) {
+				this.startSnapshot();
+			}
+		}
+	}
+
+	/* Starts a new segment, and snapshots the tree in the background. The
+	 * snapshot replaces the segments before the new one */
+	private void startSnapshot() {
+		final long firstSegment = this.segmentNumber + 1;
+
+		try {
+			this.openSegment(firstSegment);
+		} catch (IOException e) {
+			/* The current segment is kept, and snapshot retried later */
+			return;
+		}
+
+		this.recordsSinceSnapshot = 0;
+		this.snapshotter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeSnapshot(firstSegment);
+				} catch (IOException e) {
+					/* The segments are kept until a later snapshot */
+				}
+			}
+		}, "metadata snapshot");
+		this.snapshotter.setDaemon(true);
+		this.snapshotter.start();
+	}
+
+	/* Closes the current segment, if any, and opens the given one */
+	private void openSegment(long number) throws IOException {
+		File file = new File(this.directory, SEGMENT_PREFIX + number);
+		boolean created = !file.exists();
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+
+		if(created) {
+			try {
+				this.forceDirectory();
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		if(this.segment != null) {
+			this.segment.close();
+		}
+
+		this.segment = channel;
+		this.segmentNumber = number;
+		this.segmentRecords = new RecordWriter(this.identities);
+	}
+
+	/* Writes a snapshot of the tree, to be followed by the given segment and
+	 * those after it, and deletes the segments before it */
+	private void writeSnapshot(long firstSegment) throws IOException {
+		File temporary = new File(this.directory, SNAPSHOT + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary);
+
+		try {
+			DataOutputStream header = new DataOutputStream(file);
+			header.writeInt(SNAPSHOT_MAGIC);
+			header.writeLong(firstSegment);
+			header.flush();
+
+			RecordWriter records = new RecordWriter(this.identities);
+			this.snapshotTree(this.root, new Path(), records, file);
+			file.write(records.take());
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+
+		Files.move(temporary.toPath(),
+				new File(this.directory, SNAPSHOT).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.forceDirectory();
+
+		for(File segment : this.directory.listFiles()) {
+			String name = segment.getName();
+			if(!name.startsWith(SEGMENT_PREFIX)) {
+				continue;
+			}
+			try {
+				long number =
+					Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+				if(number < firstSegment) {
+					segment.delete();
+				}
+			} catch (NumberFormatException e) {}
+		}
+	}
+
+	/* Forces the entries of the log directory to disk. Platforms on which a
+	 * directory cannot be opened do not need it to be forced */
+	private void forceDirectory() throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(this.directory.toPath(),
+					StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/* Writes the records recreating a subtree. Records are written out to
+	 * the file as they accumulate */
+	private void snapshotTree(FileNode node, Path path, RecordWriter records,
+			FileOutputStream file) throws IOException {
+		if(node.isDirectory()) {
+			if(!path.isRoot()) {
+				records.write(new Record(CREATE_DIRECTORY, path, null));
+			}
+
+			for(String name : node.childNames()) {
+				FileNode child = node.child(name);
+				if(child != null) {
+					this.snapshotTree(child, new Path(path, name), records,
+							file);
+				}
+			}
+		} else {
+			Iterator<Storage> storage = node.storage().iterator();
+			if(storage.hasNext()) {
+				records.write(new Record(CREATE_FILE, path, storage.next()));
+			}
+			while(storage.hasNext()) {
+				records.write(new Record(ADD_REPLICA, path, storage.next()));
+			}
+		}
+
+		if(records.size() >= (1 << 16)) {
+			file.write(records.take());
+		}
+	}
+
+	/* Loads the snapshot, if any. Returns the number of the first segment to
+	 * be replayed after it */
+	private long loadSnapshot() throws IOException {
+		File file = new File(this.directory, SNAPSHOT);
+		if(!file.exists()) {
+			return 0;
+		}
+
+		DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			if(input.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			long firstSegment = input.readLong();
+
+			/* A snapshot is only in place once written completely */
+			if(!new CountingReplay().run(input)) {
+				throw new IOException(file + " is corrupt");
+			}
+			return firstSegment;
+		} finally {
+			input.close();
+		}
+	}
+
+	/* Replays a segment, and truncates it after its last complete record.
+	 * Returns the number of records replayed */
+	private int replay(File file) throws IOException {
+		RandomAccessFile segment = new RandomAccessFile(file, "rw");
+
+		try {
+			DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(segment.getFD())));
+			CountingReplay replay = new CountingReplay();
+
+			replay.run(input);
+			if(replay.validLength < segment.length()) {
+				segment.setLength(replay.validLength);
+				segment.getChannel().force(true);
+			}
+			return replay.count;
+		} finally {
+			segment.close();
+		}
+	}
+
+	/* Replay of one file of records, which tracks where the complete records
+	 * end. The run returns false if the file ends with a torn record */
+	private class CountingReplay {
+		final Map<Integer, Storage> storage = new HashMap<Integer, Storage>();
+		long validLength = 0;
+		int count = 0;
+
+		boolean run(DataInputStream input) throws IOException {
+			while(true) {
+				byte[] payload;
+
+				/* The input ends cleanly only between records */
+				int first = input.read();
+				if(first < 0) {
+					return true;
+				}
+
+				try {
+					int length = (first << 24) | (input.readUnsignedByte() << 16)
+						| input.readUnsignedShort();
+					int checksum = input.readInt();
+					if(length < 0) {
+						return false;
+					}
+					payload = new byte[length];
+					input.readFully(payload);
+
+					CRC32 crc = new CRC32();
+					crc.update(payload);
+					if((int)crc.getValue() != checksum) {
+						return false;
+					}
+				} catch (EOFException e) {
+					return false;
+				}
+
+				this.apply(new DataInputStream(
+						new ByteArrayInputStream(payload)));
+				this.validLength += 8 + payload.length;
+				this.count++;
+			}
+		}
+
+		private void apply(DataInputStream record) throws IOException {
+			byte kind = record.readByte();
+
+			if(kind == STORAGE) {
+				int id = record.readInt();
+				long identity = record.readLong();
+				byte[] stub = new byte[record.readInt()];
+				record.readFully(stub);
+				Storage server = decodeStorage(stub);
+				this.storage.put(id, server);
+				if(identity != 0) {
+					identities.put(server, identity);
+					identifiedStorage.putIfAbsent(identity, server);
+				}
+				return;
+			} else if(kind == BIND) {
+				replayBind(this.storage.get(record.readInt()));
+				return;
+			}
+
+			Path path = new Path(record.readUTF());
+			Storage server = null;
+			if(kind == CREATE_FILE || kind == ADD_REPLICA ||
+					kind == REMOVE_REPLICA) {
+				server = this.storage.get(record.readInt());
+			}
+
+			switch(kind) {
+			case CREATE_FILE:
+				replayCreateFile(path, server);
+				break;
+			case CREATE_DIRECTORY:
+				replayDirectory(path);
+				break;
+			case DELETE:
+				replayDelete(path);
+				break;
+			case ADD_REPLICA:
+				replayReplica(path, server, true);
+				break;
+			case REMOVE_REPLICA:
+				replayReplica(path, server, false);
+				break;
+			default:
+				throw new IOException("unknown record kind " + kind);
+			}
+		}
+	}
+
+	/* The following methods replay records on the tree. Each sets the state
+	 * of its object, whatever the state found */
+	private void replayCreateFile(Path file, Storage storage) {
+		FileNode parent = this.replayDirectory(file.parent());
+		parent.removeChild(file.last());
+		parent.addChild(file.last(), FileNode.file(storage));
+		this.recoveredStorage.add(storage);
+	}
+
+	/* Creates a directory and the directories on the way to it, replacing
+	 * any files in their place */
+	private FileNode replayDirectory(Path directory) {
+		FileNode node = this.root;
+
+		for(String name : directory) {
+			FileNode child = node.child(name);
+			if(child == null || !child.isDirectory()) {
+				node.removeChild(name);
+				child = node.addChild(name, FileNode.directory());
+			}
+			node = child;
+		}
+
+		return node;
+	}
+
+	private void replayDelete(Path path) {
+		FileNode parent = this.resolve(path.parent());
+		if(parent != null && parent.isDirectory()) {
+			parent.removeChild(path.last());
+		}
+	}
+
+	private void replayReplica(Path file, Storage storage, boolean add) {
+		FileNode node = this.resolve(file);
+		if(node == null || node.isDirectory()) {
+			return;
+		}
+
+		if(add) {
+			node.storage().add(storage);
+			this.recoveredStorage.add(storage);
+		} else {
+			node.storage().remove(storage);
+		}
+	}
+
+	/* Makes a stub the stub of its storage server, and moves the replicas on
+	 * the server's earlier stub to it */
+	private void replayBind(Storage storage) {
+		Long identity = this.identities.get(storage);
+		if(identity == null) {
+			return;
+		}
+
+		Storage previous = this.identifiedStorage.put(identity, storage);
+		if(previous != null && !previous.equals(storage)) {
+			this.identities.remove(previous);
+			if(this.recoveredStorage.remove(previous)) {
+				replaceStorage(this.root, previous, storage);
+				this.recoveredStorage.add(storage);
+			}
+		}
+	}
+
+	/* Moves the replicas on one storage server stub in a subtree to another.
+	 * Used by the naming server when a storage server registers with a new
+	 * stub, and in replaying the record of it */
+	static void replaceStorage(FileNode node, Storage previous,
+			Storage storage) {
+		for(String name : node.childNames()) {
+			FileNode child = node.child(name);
+
+			if(child == null) {
+				continue;
+			} else if(child.isDirectory()) {
+				replaceStorage(child, previous, storage);
+			} else if(child.storage().remove(previous)) {
+				child.storage().add(storage);
+			}
+		}
+	}
+
+	private FileNode resolve(Path path) {
+		FileNode node = this.root;
+		for(String name : path) {
+			node = node.child(name);
+			if(node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	private static Storage decodeStorage(byte[] stub) throws IOException {
+		ObjectInputStream input =
+			new ObjectInputStream(new ByteArrayInputStream(stub));
+		try {
+			return (Storage)input.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("cannot read storage server stub", e);
+		} finally {
+			input.close();
+		}
+	}
+
+	/* A change to the tree */
+	private static class Record {
+		final byte kind;
+		final Path path;
+		final Storage storage;
+
+		Record(byte kind, Path path, Storage storage) {
+			this.kind = kind;
+			this.path = path;
+			this.storage = storage;
+		}
+	}
+
+	/* Encodes records for one file. Each record is framed by its length and
+	 * checksum. Storage server stubs are numbered the first time they are
+	 * written to the file, and written with their identities */
+	private static class RecordWriter {
+		private final Map<Storage, Long> identities;
+		private final Map<Storage, Integer> storageIds =
+			new HashMap<Storage, Integer>();
+		private final ByteArrayOutputStream buffer =
+			new ByteArrayOutputStream();
+		private final ByteArrayOutputStream payload =
+			new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(payload);
+
+		RecordWriter(Map<Storage, Long> identities) {
+			this.identities = identities;
+		}
+
+		void write(Record record) throws IOException {
+			Integer id = null;
+
+			if(record.storage != null) {
+				id = this.storageIds.get(record.storage);
+				if(id == null) {
+					id = this.storageIds.size();
+					this.storageIds.put(record.storage, id);
+
+					byte[] stub = encodeStorage(record.storage);
+					Long identity = this.identities.get(record.storage);
+					this.output.writeByte(STORAGE);
+					this.output.writeInt(id);
+					this.output.writeLong(identity == null ? 0 : identity);
+					this.output.writeInt(stub.length);
+					this.output.write(stub);
+					this.frame();
+				}
+			}
+
+			this.output.writeByte(record.kind);
+			if(record.path != null) {
+				this.output.writeUTF(record.path.toString());
+			}
+			if(id != null) {
+				this.output.writeInt(id);
+			}
+			this.frame();
+		}
+
+		/* Number of bytes encoded and not yet taken */
+		int size() {
+			return this.buffer.size();
+		}
+
+		/* Returns the bytes encoded since the last call */
+		byte[] take() {
+			byte[] bytes = this.buffer.toByteArray();
+			this.buffer.reset();
+			return bytes;
+		}
+
+		private void frame() throws IOException {
+			this.output.flush();
+			byte[] bytes = this.payload.toByteArray();
+			this.payload.reset();
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			DataOutputStream framed = new DataOutputStream(this.buffer);
+			framed.writeInt(bytes.length);
+			framed.writeInt((int)crc.getValue());
+			framed.write(bytes);
+			framed.flush();
+		}
+
+		private static byte[] encodeStorage(Storage storage)
+			throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream output = new ObjectOutputStream(bytes);
+			output.writeObject(storage);
+			output.close();
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -1,19 +1,34 @@
 package naming;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import rmi.GracefulSkeleton;
 import rmi.RMIException;
 import rmi.Skeleton;
+import rmi.SkeletonExecutors;
 import storage.Command;
 import storage.Storage;
 
@@ -54,28 +69,86 @@ import common.Path;
     replication.
 
     <p>
-    The majority of the naming server logic is implemented in this class.
-    Additional logic related to replication and invalidation is implemented in
-    <code>FileNode</code>.
+    The majority of the naming server logic is implemented in this class. The
+    directory tree is kept as a tree of <code>FileNode</code> objects, each of
+    which holds the lock on its object, and either the directory's children or
+    the storage servers hosting the file. The number of replicas of each file
+    is decided by <code>ReplicationController</code>, and replication is
+    performed by <code>ReplicateThread</code>. Storage servers for new files
+    and replicas, and the order of the replicas returned to clients, are
+    chosen by <code>ReplicaPolicy</code> objects, from the loads reported by
+    storage servers.
  */
-public class NamingServer implements Service, Registration
+public class NamingServer implements Service, BatchRegistration
 {
     /* Skeleton for service method calls */
-	private Skeleton<Service> serviceSkeleton;
+	private GracefulSkeleton<Service> serviceSkeleton;
     /* Skeleton for registration method calls */
-	private Skeleton<Registration> registrationSkeleton;
-    /* HashMap mapping path object to set containing all storage servers (stubs)
-	that contain it */
-	private ConcurrentHashMap<Path, Set<Storage>> storageMap;
+	private GracefulSkeleton<BatchRegistration> registrationSkeleton;
+    /* Root of the directory tree. Each node holds the lock, children or
+	storage servers of its object */
+	private FileNode root;
     /* Maps a storage server (stub) to its command stub */
 	private ConcurrentHashMap<Storage, Command> registeredStorageServers;
-    /* Directory structure which maps all directory paths to the files and 
-	subdirectories that are in them */
-	private ConcurrentHashMap<Path, Set<Path>> directoryStructure;
-    /* Maps a path to a lock */
-	private ConcurrentHashMap<Path, ReadWriteLock> fileLocks;
+    /* Current stub of each storage server which has given its identity, so
+	that a server which restarts with new stubs replaces its earlier stubs */
+	private ConcurrentHashMap<Long, Storage> identifiedStorage;
     /* Thread which does replication */
 	private ExecutorService replicator;
+    /* Executor performing service requests, one thread per request */
+	private ExecutorService serviceExecutor;
+    /* Executor performing registration requests */
+	private ExecutorService registrationExecutor;
+    /* Time for which stop waits for the requests and replication being
+	performed to finish, so that the changes they make are logged */
+	private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    /* Recursive listings whose pages are being retrieved, by identifier. A
+	cursor holds the identifier of its listing in its high 32 bits, and the
+	index of the first entry of the page it retrieves in its low 32 bits */
+	private ConcurrentHashMap<Long, TreeListing> treeListings;
+    /* Identifier of the next recursive listing */
+	private AtomicLong nextCursor;
+    /* Time after which a recursive listing not accessed is released */
+	private static final long LISTING_TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+    /* Leases on the locks held by clients */
+	private LeaseTable leases;
+    /* Thread which releases the locks of expired leases */
+	private ScheduledExecutorService leaseReclaimer;
+    /* Interval at which expired leases are reclaimed, and number of slots in
+	the timer wheel, which together span a little more than a lease */
+	private static final long LEASE_TICK = TimeUnit.SECONDS.toNanos(1);
+	private static final int LEASE_SLOTS = 64;
+    /* Durable log of changes to the directory tree */
+	private MetadataLog log;
+    /* Registrations of storage servers in progress, by session */
+	private ConcurrentHashMap<Long, StorageRegistration> registrations;
+    /* Time after which a registration session not used is discarded */
+	private static final long REGISTRATION_TIMEOUT =
+		TimeUnit.MINUTES.toNanos(1);
+    /* Identifier of the next registration session */
+	private AtomicLong nextRegistration;
+    /* Loads reported by storage servers, and the policies which use them to
+	place files and replicas, and to order the replicas given to clients */
+	private LoadTable loads;
+	private volatile ReplicaPolicy placementPolicy;
+	private volatile ReplicaPolicy selectionPolicy;
+    /* Decides how many replicas files should have, and the thread which
+	removes the surplus replicas of files no longer in demand */
+	private ReplicationController replication;
+	private ScheduledExecutorService replicationSweeper;
+    /* Threads retrieving file sizes from storage servers for stat, so that
+	the sizes of a batch are retrieved from several servers at once */
+	private ExecutorService sizeFetcher;
+	private static final int SIZE_FETCHERS = 16;
+    /* Creates the naming server's own threads, which do not keep the process
+	running */
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
 
 	/** Creates the naming server object.
 
@@ -85,12 +158,20 @@ public class NamingServer implements Service, Registration
     public NamingServer()
     {    	
     	/* Initialize all data structures */
-		this.storageMap = new ConcurrentHashMap<Path, Set<Storage>>();
-    	this.directoryStructure = new ConcurrentHashMap<Path, Set<Path>>();
+		this.root = FileNode.directory();
     	this.registeredStorageServers=new ConcurrentHashMap<Storage, Command>();
-    	this.fileLocks = new ConcurrentHashMap<Path, ReadWriteLock>();
-    	this.fileLocks.put(new Path(), new ReadWriteLock());
+    	this.identifiedStorage = new ConcurrentHashMap<Long, Storage>();
     	this.replicator = Executors.newCachedThreadPool();
+    	this.treeListings = new ConcurrentHashMap<Long, TreeListing>();
+    	this.nextCursor = new AtomicLong(1);
+    	this.registrations = new ConcurrentHashMap<Long, StorageRegistration>();
+    	this.nextRegistration = new AtomicLong(1);
+    	this.loads = new LoadTable();
+    	this.placementPolicy = ReplicaPolicy.POWER_OF_TWO_CHOICES;
+    	this.selectionPolicy = ReplicaPolicy.POWER_OF_TWO_CHOICES;
+    	this.replication = new ReplicationController();
+    	this.leases = new LeaseTable(LEASE_SLOTS, LEASE_TICK);
+    	this.sizeFetcher = Executors.newFixedThreadPool(SIZE_FETCHERS, DAEMONS);
     	
 		/* Listen on well known ports and start service and registration skeletons */
 		InetSocketAddress serviceAddr = 
@@ -98,12 +179,52 @@ public class NamingServer implements Service, Registration
 		
     	this.serviceSkeleton = 
 				new GracefulSkeleton<Service>(Service.class, this, serviceAddr);
+    	
+    	/* Lock requests block until the lock is released by later requests,
+    	 * so a bound on outstanding requests would let waiting lock requests
+    	 * shut out the unlock requests which wake them. Clients are limited
+    	 * by the bound on connections instead */
+    	this.serviceSkeleton.setMaxRequests(Integer.MAX_VALUE);
 
 		InetSocketAddress regAddr = 
 				new InetSocketAddress(NamingStubs.REGISTRATION_PORT);
 		
 		this.registrationSkeleton = 
-		new GracefulSkeleton<Registration>(Registration.class, this, regAddr);
+		new GracefulSkeleton<BatchRegistration>(BatchRegistration.class, this,
+				regAddr);
+
+		/* The directory tree is kept only in memory */
+		this.log = new MetadataLog(this.root);
+    }
+
+	/** Creates a naming server which keeps its directory tree on disk.
+
+        <p>
+        Every change to the directory tree is recorded in a log in the given
+        directory before it is reported to the client, and the log is
+        periodically compacted into a snapshot of the tree. The directory tree
+        recorded in the directory is recovered, so that the filesystem is
+        available as soon as the naming server starts. Storage servers must
+        still register again before the files they host can be replicated or
+        invalidated.
+
+        <p>
+        The naming server is not started.
+
+        @param metadata_directory Directory holding the snapshot and log. It is
+                                  created if it does not exist.
+        @throws IOException If the directory tree cannot be recovered.
+     */
+    public NamingServer(File metadata_directory) throws IOException
+    {
+    	this();
+
+    	if(metadata_directory == null){
+    		throw new NullPointerException();
+    	}
+
+    	this.log = new MetadataLog(metadata_directory, this.root);
+    	this.identifiedStorage.putAll(this.log.identifiedStorage());
     }
 
     /** Starts the naming server.
@@ -119,8 +240,34 @@ public class NamingServer implements Service, Registration
      */
     public synchronized void start() throws RMIException
     {
+    	/* Every service request gets its own thread: a virtual thread where
+    	 * the platform supports them, so that queued lock requests are cheap.
+    	 * The executors and timers are shut down when the server stops, so
+    	 * they are created when it starts */
+    	this.serviceExecutor = SkeletonExecutors.threadPerRequest();
+    	this.serviceSkeleton.setExecutor(this.serviceExecutor);
+    	this.registrationExecutor =
+    		SkeletonExecutors.fixed(Skeleton.DEFAULT_THREADS);
+    	this.registrationSkeleton.setExecutor(this.registrationExecutor);
         this.serviceSkeleton.start();
         this.registrationSkeleton.start();
+
+        this.leaseReclaimer =
+        	Executors.newSingleThreadScheduledExecutor(DAEMONS);
+        this.leaseReclaimer.scheduleAtFixedRate(new Runnable() {
+        	public void run() {
+        		reclaimExpiredLeases();
+        	}
+        }, LEASE_TICK, LEASE_TICK, TimeUnit.NANOSECONDS);
+
+        this.replicationSweeper =
+        	Executors.newSingleThreadScheduledExecutor(DAEMONS);
+        this.replicationSweeper.scheduleWithFixedDelay(new Runnable() {
+        	public void run() {
+        		sweepReplicas();
+        	}
+        }, ReplicationController.SWEEP_INTERVAL,
+        	ReplicationController.SWEEP_INTERVAL, TimeUnit.NANOSECONDS);
     }
 
     /** Stops the naming server.
@@ -135,33 +282,113 @@ public class NamingServer implements Service, Registration
     public void stop()
     {
     	this.replicator.shutdown();
+    	if(this.leaseReclaimer != null)
+    		this.leaseReclaimer.shutdownNow();
+    	if(this.replicationSweeper != null)
+    		this.replicationSweeper.shutdownNow();
+    	this.sizeFetcher.shutdown();
     	
     	this.serviceSkeleton.stop();
     	/* Wait until listening threads terminates and calls stop */
 		synchronized(this.serviceSkeleton){
 	    	try {
-				this.serviceSkeleton.wait();
+	    		while(!this.serviceSkeleton.isStopped()){
+	    			this.serviceSkeleton.wait();
+	    		}
 			} catch (InterruptedException e) {}
     	}
     	
     	this.registrationSkeleton.stop();
     	synchronized(this.registrationSkeleton){
     		try {
-    			this.registrationSkeleton.wait();
+    			while(!this.registrationSkeleton.isStopped()){
+    				this.registrationSkeleton.wait();
+    			}
     		} catch (InterruptedException e) {}
     	}
     	
-    	Collection<ReadWriteLock> locks = this.fileLocks.values();
-    	
     	/* Interrupt all locks but only after waiting for listening thread in 
 		 * skeletons to terminate */
-		for(ReadWriteLock lock : locks){
-    		lock.interrupt();
-    	}
+		this.interruptLocks(this.root);
+    	
+    	/* Threads finish the requests which were woken and then exit */
+    	if(this.serviceExecutor != null)
+    		this.serviceExecutor.shutdown();
+    	if(this.registrationExecutor != null)
+    		this.registrationExecutor.shutdown();
+
+    	/* Requests and copies still running log their changes, so the log is
+    	 * closed only once they finish. Changes made after the timeout are not
+    	 * recorded */
+    	long deadline = System.nanoTime() + STOP_TIMEOUT;
+    	awaitTermination(this.serviceExecutor, deadline);
+    	awaitTermination(this.registrationExecutor, deadline);
+    	awaitTermination(this.replicator, deadline);
+    	awaitTermination(this.replicationSweeper, deadline);
+
+    	/* Write the changes logged so far, and compact the log */
+    	this.log.close();
     	
     	this.stopped(null);
     }
 
+    /* Waits until an executor which has been shut down terminates, or the
+     * deadline passes */
+    private static void awaitTermination(ExecutorService executor,
+    		long deadline)
+    {
+    	if(executor == null){
+    		return;
+    	}
+
+    	try {
+    		executor.awaitTermination(deadline - System.nanoTime(),
+    				TimeUnit.NANOSECONDS);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
+    /** Sets the policy by which storage servers are chosen for new files and
+        replicas.
+
+        <p>
+        Storage servers with less than 64 MB of free space are chosen only if
+        every other server is as full. The default policy is
+        <code>ReplicaPolicy.POWER_OF_TWO_CHOICES</code>.
+
+        @param policy The policy.
+        @throws NullPointerException If <code>policy</code> is
+                                     <code>null</code>.
+     */
+    public void setPlacementPolicy(ReplicaPolicy policy)
+    {
+    	if(policy == null){
+    		throw new NullPointerException();
+    	}
+
+    	this.placementPolicy = policy;
+    }
+
+    /** Sets the policy by which the replicas of a file are ordered for
+        clients, which read from the first.
+
+        <p>
+        The default policy is <code>ReplicaPolicy.POWER_OF_TWO_CHOICES</code>.
+
+        @param policy The policy.
+        @throws NullPointerException If <code>policy</code> is
+                                     <code>null</code>.
+     */
+    public void setSelectionPolicy(ReplicaPolicy policy)
+    {
+    	if(policy == null){
+    		throw new NullPointerException();
+    	}
+
+    	this.selectionPolicy = policy;
+    }
+
     /** Indicates that the server has completely shut down.
 
         <p>
@@ -175,100 +402,329 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /* Interrupts the locks of a subtree */
+    private void interruptLocks(FileNode node)
+    {
+    	node.lock().interrupt();
+
+    	if(node.isDirectory()){
+    		for(FileNode child : node.children()){
+    			this.interruptLocks(child);
+    		}
+    	}
+    }
+
+    /* Releases the locks of leases which have expired */
+    private void reclaimExpiredLeases()
+    {
+    	for(Lease lease : this.leases.reclaimExpired()){
+    		try {
+    			this.releaseLocks(lease.locks());
+    		} catch (RuntimeException e) {
+    			/* The remaining leases are still reclaimed */
+    		}
+    	}
+    }
+
     // The following public methods are documented in Service.java.
     @Override
-    public void lock(Path path, boolean exclusive) throws FileNotFoundException
+    public long lock(Path path, boolean exclusive) throws FileNotFoundException
+    {
+    	return this.lockPath(path, exclusive, -1);
+    }
+
+    @Override
+    public long lock(Path path, boolean exclusive, long timeout)
+    	throws FileNotFoundException
+    {
+    	if(timeout < 0) {
+    		throw new IllegalArgumentException("timeout is negative");
+    	}
+
+    	return this.lockPath(path, exclusive,
+    			TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    /* Locks an object, waiting at most the given time in nanoseconds, or
+     * without limit if the time is negative, and grants the client a lease on
+     * the locks taken. Returns the identifier of the lease, or zero if the
+     * time expired first */
+    private long lockPath(Path path, boolean exclusive, long timeout)
+    	throws FileNotFoundException
     {
     	if(path == null) {
     		throw new NullPointerException();
     	}
-    	else if (!this.fileLocks.containsKey(path)) {
 
-    		throw new FileNotFoundException(); 
+    	ArrayList<FileNode> acquired = this.lockNodes(path, exclusive, timeout);
+    	if(acquired == null) {
+    		return 0;
     	}
-    	
-    	/* Acquire all subpaths needed for locking */
-		Path[] lockPaths = path.getSubPaths();
-    	
-    	for(int i = 0; i < lockPaths.length; i++) {
-    		
-    		/* Lock all subpaths in a downward order */
-			if(i == lockPaths.length - 1) {
+
+    	FileNode node = acquired.get(acquired.size() - 1);
+    	try {
+    		this.lockAcquired(node, path, exclusive);
+    	} catch (RuntimeException e) {
+    		this.unlockNodes(acquired, exclusive);
+    		throw e;
+    	}
+
+    	/* The directories on the way are held for shared access, and the
+    	 * object itself for the access requested */
+    	LinkedHashMap<FileNode, Boolean> locks =
+    			new LinkedHashMap<FileNode, Boolean>();
+    	for(FileNode held : acquired) {
+    		locks.put(held, false);
+    	}
+    	locks.put(node, exclusive);
+
+    	return this.grantLease(new Path[] {path}, exclusive, locks);
+    }
+
+    /* Locks the nodes from the root to an object, the object for the given
+     * access and the directories on the way for shared access, waiting at
+     * most the given time in nanoseconds, or without limit if the time is
+     * negative. Returns the nodes locked, or null if the time expired
+     * first */
+    private ArrayList<FileNode> lockNodes(Path path, boolean exclusive,
+    		long timeout) throws FileNotFoundException
+    {
+    	long deadline = System.nanoTime() + timeout;
+
+    	/* Lock all subpaths in a downward order. Each directory on the way is
+    	 * locked for shared access before its child is looked up, so that the
+    	 * child cannot be deleted in the meantime */
+    	ArrayList<FileNode> acquired = new ArrayList<FileNode>();
+    	Iterator<String> components = path.iterator();
+    	FileNode node = this.root;
+
+    	while(true) {
+    		boolean last = !components.hasNext();
+    		ReadWriteLock lock = node.lock();
+    		long remaining = deadline - System.nanoTime();
+    		boolean granted = true;
+
+    		try {
     			/* Check for read or write lock */
-				if(exclusive == true) {
-    				if(this.fileLocks.get(lockPaths[i]).isStopped()){
+    			if(last && exclusive == true) {
+    				if(lock.isStopped()){
+    					this.unlockNodes(acquired, false);
     					throw new IllegalStateException();
     				}
-    				try {
-						fileLocks.get(lockPaths[i]).lockWrite();
-					
-    				} catch (InterruptedException e) {
-    					throw new IllegalStateException();
-					}
-    			}
-    			else {
-    				try {
-						fileLocks.get(lockPaths[i]).lockRead();
-					} catch (InterruptedException e) {
-						throw new IllegalStateException();
-					}
+    				if(timeout < 0) {
+    					lock.lockWrite();
+    				} else {
+    					granted = lock.tryLockWrite(remaining);
+    				}
+    			} else {
+    				if(timeout < 0) {
+    					lock.lockRead();
+    				} else {
+    					granted = lock.tryLockRead(remaining);
+    				}
     			}
+    		} catch (InterruptedException e) {
+    			this.unlockNodes(acquired, false);
+    			throw new IllegalStateException();
     		}
-    		else {
-    			try {
-					fileLocks.get(lockPaths[i]).lockRead();
-				} catch (InterruptedException e) {
-					throw new IllegalStateException();
-				}
+
+    		if(!granted) {
+    			this.unlockNodes(acquired, false);
+    			return null;
+    		}
+    		acquired.add(node);
+
+    		if(last) {
+    			return acquired;
+    		}
+
+    		node = node.child(components.next());
+    		if(node == null) {
+    			this.unlockNodes(acquired, false);
+    			throw new FileNotFoundException();
     		}
     	}
+    }
+
+    /* Grants a lease on locks taken by a request, and returns its
+     * identifier */
+    private long grantLease(Path[] paths, boolean exclusive,
+    		Map<FileNode, Boolean> locks)
+    {
+    	LeaseTable.Key key = new LeaseTable.Key(paths, exclusive);
+    	return this.leases.add(key, locks, this.leaseExpiry());
+    }
+
+    /* Expiry of a lease granted or renewed now */
+    private long leaseExpiry()
+    {
+    	return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_TIME);
+    }
+
+    /* Treats a lock on an object, once acquired, as a read or write request:
+     * counts a read towards the demand for the file, and adds the replicas
+     * the demand calls for, or invalidates the stale copies of a file locked
+     * for writing */
+    private void lockAcquired(FileNode node, Path path, boolean exclusive)
+    {
+    	if(node.isDirectory()){
+    		return;
+    	}
+
+    	if(exclusive == false){
+    		this.replicate(node, path, this.replication.read(node));
+    		return;
+    	}
+
+		/* Copies still in progress must finish before invalidation, otherwise
+		 * they would add stale replicas after the write */
+		for(Future<?> copy : node.takeReplications()){
+			try {
+				copy.get();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException();
+			} catch (ExecutionException e) {}
+		}
+
+		/* If write lock is acquired, pick one copy to keep and delete other
+		 * copies. A copy on a registered storage server is kept */
+		this.dropReplicas(node, path, 1);
+		this.replication.forget(node);
+    }
 
-    	/* Replicate if read is called >= 20 times */
-		if(!this.directoryStructure.containsKey(path) && 
-    		fileLocks.get(path).getTotalReadRequests() >= 20 && 
-    		exclusive == false) {
-    		
-    		Set<Storage> storageLocations = this.storageMap.get(path);
-    		Set<Storage> storageServers = 
+    /* Schedules copies of a file until it has the given number of replicas,
+     * or as many as there are storage servers, unless copies of the file are
+     * already in progress. Fewer copies are made if too many copies of other
+     * files are in progress; the demand for the file calls for them again at
+     * its next read */
+    private void replicate(FileNode node, Path path, int replicas)
+    {
+    	synchronized(node){
+    		int missing = replicas - node.storage().size();
+    		if(missing <= 0 || node.isReplicating()){
+    			return;
+    		}
+
+    		Set<Storage> storageServers =
     			new HashSet<Storage>(this.registeredStorageServers.keySet());
-    		storageServers.removeAll(storageLocations);
+    		storageServers.removeAll(node.storage());
+    		missing = Math.min(missing, storageServers.size());
+
+    		/* A replica on a storage server which has not registered since
+    		 * the naming server restarted may no longer exist */
+    		Storage[] sources = this.registeredReplicasOf(node);
+    		int started = this.replication.startCopies(missing);
+    		if(sources.length == 0 || started == 0){
+    			this.replication.finishCopies(started);
+    			return;
+    		}
 
-    		Storage replicationTarget = getRandomElementFromSet(storageServers);
+    		Storage[] targets = this.place(storageServers, started);
+    		this.replication.finishCopies(started - targets.length);
+    		this.replication.replicating(node, path);
 
-    		if(replicationTarget != null){
-    			Command replicationTargetCommand =
-    					this.registeredStorageServers.get(replicationTarget);
+    		for(int i = 0; i < targets.length; i++){
+    			Command targetCommand =
+    					this.registeredStorageServers.get(targets[i]);
 
     			/* spawn new thread to perform asynchronous replication to ensure
-				 * locking doesn't wait for replication to finish */
-				ReplicateThread r = 
-    				new ReplicateThread(path, replicationTargetCommand, 
-    					storageLocations, this.fileLocks, replicationTarget);
-    			this.replicator.execute(r);
+				 * locking doesn't wait for replication to finish. Copies are
+				 * spread over the replicas already present */
+				final ReplicateThread r =
+    				new ReplicateThread(path, targetCommand, node, targets[i],
+    					sources[i % sources.length], this.log);
+    			node.addReplication(this.replicator.submit(new Runnable() {
+    				public void run() {
+    					try {
+    						r.run();
+    					} finally {
+    						replication.finishCopies(1);
+    					}
+    				}
+    			}));
     		}
+    	}
+    }
 
+    /* Deletes all replicas of a file but the given number. The replicas kept
+     * are those first in the order of the selection policy, so a copy on a
+     * registered storage server is kept. The caller holds the lock on the file
+     * for exclusive access */
+    private void dropReplicas(FileNode node, Path path, int kept)
+    {
+    	if(node.storage().size() <= kept){
+    		return;
     	}
-    	
-    	
-		/* If write lock is acquired, pick one copy to keep and delete other copies */
-		if(!path.isRoot() && !this.directoryStructure.containsKey(path) && 
-    			this.storageMap.get(path).size()>1 && exclusive == true){
-    		
-    		Set<Storage> storageLocations = this.storageMap.get(path);    		
-    		Storage[] storageArray = new Storage[storageLocations.size()];
-    		storageLocations.toArray(storageArray);
-    		
-    		for (int i = 1; i<storageArray.length; i++){
-    			Command commandStub = 
-    					this.registeredStorageServers.get(storageArray[i]);
 
-    			try {
+		Set<Storage> storageLocations = node.storage();
+		Storage[] storageArray = this.replicasOf(node);
+		long sequence = 0;
+
+		for (int i = kept; i<storageArray.length; i++){
+			Command commandStub =
+					this.registeredStorageServers.get(storageArray[i]);
+
+			/* A copy on a storage server which has not registered since
+			 * the naming server started is deleted when it registers */
+			try {
+				if(commandStub != null){
 					commandStub.delete(path);
-	    			storageLocations.remove(storageArray[i]);
-				} catch (RMIException e) {
-					throw new IllegalStateException();
-				}	
-    		}	
+				}
+    			storageLocations.remove(storageArray[i]);
+    			sequence = this.log.removeReplica(path, storageArray[i]);
+			} catch (RMIException e) {
+				this.log.sync(sequence);
+				throw new IllegalStateException();
+			}
+		}
+
+		this.log.sync(sequence);
+    }
+
+    /* Removes the surplus replicas of files whose demand has fallen. A file
+     * in use is skipped, and swept again later */
+    private void sweepReplicas()
+    {
+    	for(Map.Entry<FileNode, Path> entry : this.replication.replicated()){
+    		FileNode node = entry.getKey();
+    		Path path = entry.getValue();
+
+    		if(node.storage().size() <= 1 && !node.isReplicating()){
+    			this.replication.forget(node);
+    			continue;
+    		}
+
+    		int kept = this.replication.retained(node);
+    		if(node.storage().size() <= kept){
+    			continue;
+    		}
+
+    		ArrayList<FileNode> acquired;
+    		try {
+    			acquired = this.lockNodes(path, true, 0);
+    		} catch (FileNotFoundException e) {
+    			this.replication.forget(node);
+    			continue;
+    		} catch (IllegalStateException e) {
+    			return;
+    		}
+
+    		if(acquired == null){
+    			continue;
+    		}
+
+    		try {
+    			/* The file was deleted, and another created at its path */
+    			if(acquired.get(acquired.size() - 1) != node){
+    				this.replication.forget(node);
+    			} else if(!node.isReplicating()){
+    				this.dropReplicas(node, path, kept);
+    			}
+    		} catch (RuntimeException e) {
+    			/* The replicas not deleted are swept again */
+    		} finally {
+    			this.unlockNodes(acquired, true);
+    		}
     	}
     }
 
@@ -278,31 +734,54 @@ public class NamingServer implements Service, Registration
     	if(path == null) {
     		throw new NullPointerException();
     	}
-    	else if (!this.fileLocks.containsKey(path)) {
-    		throw new IllegalArgumentException(); 
+
+    	/* The lease records the locks taken, which are released in a
+    	 * downward order. There is none if the lock is not held */
+    	Lease lease =
+    		this.leases.take(new LeaseTable.Key(new Path[] {path}, exclusive));
+    	if (lease == null) {
+    		throw new IllegalArgumentException();
     	}
-    	
-    	Path[] lockPaths = path.getSubPaths();
-       	
-   
-    	/* Release all neccessary locks included all the parent directory locks 
-    	 * in a downward order */
-    	for(int i = 0; i < lockPaths.length; i++) {
-        		
-    		if(i == lockPaths.length - 1) {
-    			if(exclusive == true) {
-    				try {
-						fileLocks.get(lockPaths[i]).unlockWrite();
-					} catch (InterruptedException e) {
-						throw new IllegalStateException();
-					}
-    			} else {
-    				fileLocks.get(lockPaths[i]).unlockRead();
+
+    	this.releaseLocks(lease.locks());
+    }
+
+    @Override
+    public void unlock(long lease)
+    {
+    	Lease taken = this.leases.take(lease);
+
+    	if(taken == null) {
+    		throw new IllegalArgumentException("lock is not held");
+    	}
+
+    	this.releaseLocks(taken.locks());
+    }
+
+    @Override
+    public void renew(long lease)
+    {
+    	if(!this.leases.renew(lease, this.leaseExpiry())) {
+    		throw new IllegalArgumentException("lock is not held");
+    	}
+    }
+
+    /* Releases the locks on a chain of nodes from the root, the last for the
+     * given access and the others for shared access */
+    private void unlockNodes(ArrayList<FileNode> nodes, boolean exclusive)
+    {
+    	for(int i = 0; i < nodes.size(); i++) {
+    		ReadWriteLock lock = nodes.get(i).lock();
+
+    		if(i == nodes.size() - 1 && exclusive == true) {
+    			try {
+    				lock.unlockWrite();
+    			} catch (InterruptedException e) {
+    				throw new IllegalStateException();
     			}
     		} else {
-    			fileLocks.get(lockPaths[i]).unlockRead();
+    			lock.unlockRead();
     		}
-    		
     	}
     }
 
@@ -312,101 +791,87 @@ public class NamingServer implements Service, Registration
         if (path == null){
         	throw new NullPointerException();
         }
-        
-        boolean isDirectory = this.directoryStructure.containsKey(path);
-        boolean isFile = this.storageMap.containsKey(path);
-        
-        if(!isDirectory && !isFile){
+
+        FileNode node = this.resolve(path);
+
+        if(node == null){
         	throw new FileNotFoundException();
         }
-        
-        return isDirectory;
-        
+
+        return node.isDirectory();
+
     }
 
     @Override
     public String[] list(Path directory) throws FileNotFoundException
     {
-    	if (!this.isDirectory(directory)){
+    	FileNode node = this.resolveDirectory(directory);
+
+    	if (node == null){
     		throw new FileNotFoundException();
     	}
-    	
-    	Set<Path> pathSet = this.directoryStructure.get(directory);
-    	
-    	
-    	Path[] listing = new Path[pathSet.size()];
-    	pathSet.toArray(listing);
-    	
-    	String[] directoryListing = new String[listing.length];
 
-    	for (int i = 0; i < listing.length; i++){
-    		directoryListing[i] = listing[i].getFileName();
-    	}
-    	
-    	
-    	return directoryListing;
-    	
+    	return node.childNames().toArray(new String[0]);
+
     }
 
     @Override
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
-        if(!file.isRoot()&&!this.directoryStructure.containsKey(file.parent())){
+    	FileNode parent = null;
+
+        if(!file.isRoot() &&
+        		(parent = this.resolveDirectory(file.parent())) == null){
         	throw new FileNotFoundException();
         }
-        
+
         if(this.registeredStorageServers.isEmpty()){
         	throw new IllegalStateException();
         }
-        
-        if (!file.isRoot() && !this.directoryStructure.containsKey(file) && 
-        		!this.storageMap.containsKey(file)){
-        	
-        	Storage chosenStorageStub = 
-        this.getRandomElementFromSet(this.registeredStorageServers.keySet());
-        	
-        	Command chosenCommandStub = 
+
+        if (!file.isRoot() && parent.child(file.last()) == null){
+
+        	Storage chosenStorageStub =
+        		this.place(this.registeredStorageServers.keySet(), 1)[0];
+
+        	Command chosenCommandStub =
         			this.registeredStorageServers.get(chosenStorageStub);
-        	
+
         	boolean result = chosenCommandStub.create(file);
-        	
+
         	if(result){
-        		updateDirectoryStructure(file);
-        		Set<Storage> storageList = 
-        Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
-        		
-				storageList.add(chosenStorageStub);
-        		this.storageMap.put(file, storageList);
+        		parent.addChild(file.last(), FileNode.file(chosenStorageStub));
+        		this.log.sync(this.log.createFile(file, chosenStorageStub));
         	}
-        	
+
     		return result;
     	}
-        
+
         return false;
     }
 
     @Override
     public boolean createDirectory(Path directory) throws FileNotFoundException
     {
-    	if (!directory.isRoot() && 
-    			!this.directoryStructure.containsKey(directory.parent())){
+    	FileNode parent = null;
+
+    	if (!directory.isRoot() &&
+    		(parent = this.resolveDirectory(directory.parent())) == null){
     		throw new FileNotFoundException();
     	}
-    	
-    	/* insert directory path into directory structure */
-    	if (!directory.isRoot() && 
-    		!this.directoryStructure.containsKey(directory) && 
-    		!this.storageMap.containsKey(directory)){
-    		
-    		updateDirectoryStructure(directory);
-    		Set<Path> directoryContents = 
-    		Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
-    		
-    		this.directoryStructure.put(directory, directoryContents);
+
+    	/* insert directory node into the directory tree */
+    	if (!directory.isRoot()){
+    		FileNode created = FileNode.directory();
+    		if(parent.addChild(directory.last(), created) != created){
+    			return false;
+    		}
+
+    		this.log.sync(this.log.createDirectory(directory));
     		return true;
     	}
-    	
+
     	return false;
     }
 
@@ -417,42 +882,29 @@ public class NamingServer implements Service, Registration
     		throw new NullPointerException();
     	} else if (path.isRoot()){
     		return false;
-    	}else if (!this.fileLocks.containsKey(path) || 
-    			!this.fileLocks.containsKey(path.parent())) {
-    		throw new FileNotFoundException(); 
-    	} 
-    	
+    	}
+
+    	FileNode parent = this.resolveDirectory(path.parent());
+    	if (parent == null || parent.child(path.last()) == null) {
+    		throw new FileNotFoundException();
+    	}
+
         boolean deleted = false;
-        
+
         /* Delete file from all storage locations */
         Set<Storage> storageLocations = this.registeredStorageServers.keySet();
         for (Storage s : storageLocations){
         	Command commandStub = this.registeredStorageServers.get(s);
 			deleted = commandStub.delete(path) || deleted;
         }
-        
-        /* Fix directory structures */
-        deleteAllReferences(path);
-    	this.directoryStructure.get(path.parent()).remove(path);
+
+        /* Removing the node removes its whole subtree, with the locks and
+         * replication records of the objects in it */
+    	parent.removeChild(path.last());
+    	this.log.sync(this.log.delete(path));
 
         return deleted;
     }
-    
-    private void deleteAllReferences(Path path){
-    	/* Recursively delete from file structure */ 
-    	if (!this.directoryStructure.containsKey(path)){
-        	this.storageMap.remove(path);
-        } else {
-        	Set<Path> directoryContents = this.directoryStructure.get(path);
-        	for (Path p : directoryContents){
-        		deleteAllReferences(p);
-        	}
-        	this.directoryStructure.remove(path);
-        }
-    	
-    	/* Delete lock associated with path */
-    	this.fileLocks.remove(path);
-    }
 
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
@@ -460,101 +912,805 @@ public class NamingServer implements Service, Registration
     	if (file == null){
     		throw new NullPointerException();
     	}
-    	
-    	if (!this.storageMap.containsKey(file)){
+
+    	FileNode node = this.resolve(file);
+    	if (node == null || node.isDirectory()){
     		throw new FileNotFoundException();
     	}
-        
+
     	/* Return storage stub for path */
-    	
-    	return getRandomElementFromSet(this.storageMap.get(file));
-    	
+
+    	Storage[] replicas = this.replicasOf(node);
+    	return replicas.length == 0 ? null : replicas[0];
+
     }
 
-    // The method register is documented in Registration.java.
     @Override
-    public Path[] register(Storage client_stub, Command command_stub,
-                           Path[] files)
+    public Storage[] getReplicas(Path file) throws FileNotFoundException
     {
-    	if (client_stub == null || command_stub == null || files == null){
+    	if (file == null){
     		throw new NullPointerException();
-    	} 
-    	
-    	if (this.registeredStorageServers.containsKey(client_stub)){
-    		throw new IllegalStateException();
-    	} else {
-    		this.registeredStorageServers.put(client_stub, command_stub);
     	}
-    	
-    	ArrayList<Path> filesToDelete = new ArrayList<Path>();
-    	for (Path p : files){
-    		if (p.isRoot()){
-    			//silently ignore this attempt to add root directory as a file
-    		} else if (this.directoryStructure.containsKey(p)){
-    			filesToDelete.add(p);
-    		} else if (this.storageMap.containsKey(p)){
-    			filesToDelete.add(p);
-    		} else {
-    			Set<Storage> storageList = 
-    	Collections.newSetFromMap(new ConcurrentHashMap<Storage, Boolean>());
-				storageList.add(client_stub);
-    			this.storageMap.put(p, storageList);
-    			
-    			try{
-    				this.fileLocks.get(new Path()).lockWrite();
-    				updateDirectoryStructure(p);
-    				this.fileLocks.get(new Path()).unlockWrite();
-    			} catch (InterruptedException e) {
-    				e.printStackTrace();
-    			}
-    			
-    		}
+
+    	FileNode node = this.resolve(file);
+    	if (node == null || node.isDirectory()){
+    		throw new FileNotFoundException();
     	}
-    	
-    	Path[] dupList = new Path[filesToDelete.size()];
-    	filesToDelete.toArray(dupList);
 
-    	return dupList;
+    	return this.replicasOf(node);
     }
-    
-    /* Recursively add directory and its subdirectories mapping to subdirectories and files */
-    private void updateDirectoryStructure(Path p){
-    	Path parent = p;
-		Path child = p;
 
-		if(!this.fileLocks.containsKey(child)){
-			this.fileLocks.put(child, new ReadWriteLock());
-		}
+    /* Returns the storage servers hosting a file ordered by the selection
+     * policy, so that clients which read from the first replicas spread their
+     * reads by load. The first is counted as chosen. Storage servers recovered
+     * from the log which have not registered again are placed last, in random
+     * order */
+    private Storage[] replicasOf(FileNode node)
+    {
+    	ArrayList<Storage> unregistered = new ArrayList<Storage>();
 
-		while (!child.isRoot()){
-			parent = child.parent();
-			if(!this.fileLocks.containsKey(parent)){
-				this.fileLocks.put(parent, new ReadWriteLock());
-			}
-			if(this.directoryStructure.containsKey(parent)){
-				this.directoryStructure.get(parent).add(child);
-			} else {
-				Set<Path> directoryContents = 
-			Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
-				directoryContents.add(child);
-				this.directoryStructure.put(parent, directoryContents);
-			}
-			child = parent;
-		}
-    }
-    
-    /* Returns a random element from a given set */
-    private <T> T getRandomElementFromSet(Set<T> set){
-    	if(set.isEmpty()){
-    		return null;
+    	for(Storage replica : node.storage()){
+    		if(!this.registeredStorageServers.containsKey(replica)){
+    			unregistered.add(replica);
+    		}
     	}
-    	
-    	int index = (int)(set.size() * Math.random()); 
-    	
-    	Object[] array = new Object[set.size()];
-    	set.toArray(array);
 
-    	return (T)array[index];
+    	Storage[] ranked = this.registeredReplicasOf(node);
+    	Storage[] replicas =
+    		Arrays.copyOf(ranked, ranked.length + unregistered.size());
+
+    	Collections.shuffle(unregistered);
+    	for(int i = 0; i < unregistered.size(); i++){
+    		replicas[ranked.length + i] = unregistered.get(i);
+    	}
+
+    	return replicas;
+    }
+
+    /* Returns the replicas of a file on registered storage servers, ordered
+     * by the selection policy. The first is counted as chosen */
+    private Storage[] registeredReplicasOf(FileNode node)
+    {
+    	ArrayList<Storage> registered = new ArrayList<Storage>();
+
+    	for(Storage replica : node.storage()){
+    		if(this.registeredStorageServers.containsKey(replica)){
+    			registered.add(replica);
+    		}
+    	}
+
+    	Storage[] ranked =
+    		this.loads.rank(registered, this.selectionPolicy, false);
+
+    	if(ranked.length > 0){
+    		this.loads.chosen(ranked[0]);
+    	}
+
+    	return ranked;
+    }
+
+    /* Chooses storage servers for a new file or replicas by the placement
+     * policy, and counts them as chosen. Returns at most the given number of
+     * servers, and fewer if there are not as many candidates */
+    private Storage[] place(Set<Storage> candidates, int count)
+    {
+    	Storage[] ranked = this.loads.rank(new ArrayList<Storage>(candidates),
+    			this.placementPolicy, true);
+    	Storage[] chosen =
+    		Arrays.copyOf(ranked, Math.min(count, ranked.length));
+
+    	for(Storage server : chosen){
+    		this.loads.chosen(server);
+    	}
+
+    	return chosen;
+    }
+
+    @Override
+    public long lockAll(Path[] paths, boolean exclusive)
+    	throws FileNotFoundException
+    {
+    	TreeMap<Path, Boolean> lockModes = this.lockModes(paths, exclusive);
+
+    	if(lockModes == null){
+    		throw new FileNotFoundException();
+    	}
+
+    	/* Each lock is taken once, in the same downward order as by lock, so
+    	 * that the batch does not wait for itself and cannot deadlock with
+    	 * other requests. A node is looked up once the locks on the way to it
+    	 * are held */
+    	LinkedHashMap<FileNode, Boolean> acquired =
+    			new LinkedHashMap<FileNode, Boolean>();
+
+    	try {
+    		for(Map.Entry<Path, Boolean> entry : lockModes.entrySet()){
+    			FileNode node = this.resolve(entry.getKey());
+
+    			if(node == null){
+    				this.releaseLocks(acquired);
+    				throw new FileNotFoundException();
+    			}
+
+    			if(entry.getValue()){
+    				if(node.lock().isStopped()){
+    					throw new IllegalStateException();
+    				}
+    				node.lock().lockWrite();
+    			} else {
+    				node.lock().lockRead();
+    			}
+    			acquired.put(node, entry.getValue());
+    		}
+
+    		for(Path path : new TreeSet<Path>(Arrays.asList(paths))){
+    			this.lockAcquired(this.resolve(path), path, exclusive);
+    		}
+
+    		return this.grantLease(paths, exclusive, acquired);
+    	} catch (InterruptedException e) {
+    		this.releaseLocks(acquired);
+    		throw new IllegalStateException();
+    	} catch (RuntimeException e) {
+    		this.releaseLocks(acquired);
+    		throw e;
+    	}
+    }
+
+    @Override
+    public void unlockAll(Path[] paths, boolean exclusive)
+    {
+    	Lease lease = this.leases.take(this.leaseKey(paths, exclusive));
+
+    	if(lease == null){
+    		throw new IllegalArgumentException();
+    	}
+
+    	this.releaseLocks(lease.locks());
+    }
+
+    /* Returns the key of the lease on locks taken on the given paths */
+    private LeaseTable.Key leaseKey(Path[] paths, boolean exclusive)
+    {
+    	if(paths == null){
+    		throw new NullPointerException();
+    	}
+
+    	for(Path path : paths){
+    		if(path == null){
+    			throw new NullPointerException();
+    		}
+    	}
+
+    	return new LeaseTable.Key(paths, exclusive);
+    }
+
+    /* Returns the locks taken by a batch, in locking order, each mapped to
+     * true if it is taken for exclusive access. The objects themselves are
+     * locked for the requested access and the directories leading to them for
+     * shared access. Returns null if an object does not exist */
+    private TreeMap<Path, Boolean> lockModes(Path[] paths, boolean exclusive)
+    {
+    	if(paths == null){
+    		throw new NullPointerException();
+    	}
+
+    	TreeMap<Path, Boolean> lockModes = new TreeMap<Path, Boolean>();
+
+    	for(Path path : paths){
+    		if(path == null){
+    			throw new NullPointerException();
+    		} else if(this.resolve(path) == null){
+    			return null;
+    		}
+
+    		for(Path subPath : path.getSubPaths()){
+    			if(!lockModes.containsKey(subPath)){
+    				lockModes.put(subPath, false);
+    			}
+    		}
+    		lockModes.put(path, exclusive);
+    	}
+
+    	return lockModes;
+    }
+
+    /* Releases the given locks of a batch, each mapped to true if it is held
+     * for exclusive access */
+    private void releaseLocks(Map<FileNode, Boolean> locks)
+    {
+    	for(Map.Entry<FileNode, Boolean> entry : locks.entrySet()){
+    		ReadWriteLock lock = entry.getKey().lock();
+
+    		if(entry.getValue()){
+    			try {
+					lock.unlockWrite();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException();
+				}
+    		} else {
+    			lock.unlockRead();
+    		}
+    	}
+    }
+
+    @Override
+    public boolean[] createFiles(Path[] files)
+    	throws RMIException, FileNotFoundException
+    {
+    	if(files == null){
+    		throw new NullPointerException();
+    	}
+
+    	boolean[] created = new boolean[files.length];
+
+    	for(int i = 0; i < files.length; i++){
+    		created[i] = this.createFile(files[i]);
+    	}
+
+    	return created;
+    }
+
+    @Override
+    public boolean[] createDirectories(Path[] directories)
+    	throws FileNotFoundException
+    {
+    	if(directories == null){
+    		throw new NullPointerException();
+    	}
+
+    	boolean[] created = new boolean[directories.length];
+
+    	for(int i = 0; i < directories.length; i++){
+    		created[i] = this.createDirectory(directories[i]);
+    	}
+
+    	return created;
+    }
+
+    @Override
+    public boolean[] deleteAll(Path[] paths)
+    	throws FileNotFoundException, RMIException
+    {
+    	if(paths == null){
+    		throw new NullPointerException();
+    	}
+
+    	boolean[] deleted = new boolean[paths.length];
+    	/* Directories deleted so far. Their contents are gone with them, and
+    	 * are not deleted again from every storage server */
+    	ArrayList<Path> deletedDirectories = new ArrayList<Path>();
+
+    	for(int i = 0; i < paths.length; i++){
+    		if(paths[i] == null){
+    			throw new NullPointerException();
+    		}
+
+    		boolean insideDeleted = false;
+    		for(Path directory : deletedDirectories){
+    			if(!paths[i].equals(directory) &&
+    					paths[i].isSubpath(directory)){
+    				insideDeleted = true;
+    				break;
+    			}
+    		}
+
+    		if(insideDeleted){
+    			deleted[i] = true;
+    			continue;
+    		}
+
+    		FileNode node = this.resolve(paths[i]);
+    		boolean isDirectory = node != null && node.isDirectory();
+
+    		deleted[i] = this.delete(paths[i]);
+
+    		if(isDirectory){
+    			deletedDirectories.add(paths[i]);
+    		}
+    	}
+
+    	return deleted;
+    }
+
+    @Override
+    public FileStatus[] stat(Path[] paths) throws RMIException
+    {
+    	if(paths == null){
+    		throw new NullPointerException();
+    	}
+
+    	FileStatus[] status = new FileStatus[paths.length];
+    	ArrayList<Future<Long>> sizes = new ArrayList<Future<Long>>();
+    	Storage[][] hosts = new Storage[paths.length][];
+
+    	/* Sizes are retrieved from the storage servers in parallel */
+    	for(int i = 0; i < paths.length; i++){
+    		if(paths[i] == null){
+    			throw new NullPointerException();
+    		}
+
+    		FileNode node = this.resolve(paths[i]);
+
+    		if(node == null){
+    			sizes.add(null);
+    		} else if(node.isDirectory()){
+    			status[i] = new FileStatus();
+    			sizes.add(null);
+    		} else {
+    			hosts[i] = this.replicasOf(node);
+    			sizes.add(this.fetchSize(paths[i], hosts[i]));
+    		}
+    	}
+
+    	for(int i = 0; i < paths.length; i++){
+    		if(sizes.get(i) == null){
+    			continue;
+    		}
+
+    		try {
+    			status[i] = new FileStatus(sizes.get(i).get(), hosts[i]);
+    		} catch (ExecutionException e) {
+    			/* Deleted while the status was being retrieved */
+    		} catch (InterruptedException e) {
+    			throw new IllegalStateException(e);
+    		}
+    	}
+
+    	return status;
+    }
+
+    /* Retrieves the size of a file from the first of its storage servers
+     * which can be contacted. The size is the same on every replica. It is
+     * unknown if none can be contacted. The task fails with
+     * FileNotFoundException if the file has been deleted */
+    private Future<Long> fetchSize(final Path file, final Storage[] replicas)
+    {
+    	return this.sizeFetcher.submit(new Callable<Long>() {
+    		public Long call() throws FileNotFoundException {
+    			for(Storage replica : replicas){
+    				try {
+    					return replica.size(file);
+    				} catch (RMIException e) {
+    					/* Try the next replica */
+    				}
+    			}
+
+    			return FileStatus.UNKNOWN_SIZE;
+    		}
+    	});
+    }
+
+    @Override
+    public ListingPage listTree(Path directory, int depth, String prefix,
+    		int page_size) throws FileNotFoundException
+    {
+    	if(directory == null || prefix == null){
+    		throw new NullPointerException();
+    	} else if(page_size <= 0){
+    		throw new IllegalArgumentException("page size is not positive");
+    	}
+
+    	/* The directory is locked for shared access while the subtree is
+    	 * walked, and the walk locks the directories under it, so that no
+    	 * entry is created or deleted during the walk */
+    	ArrayList<FileNode> acquired = this.lockNodes(directory, false, -1);
+    	TreeListing listing;
+    	try {
+    		FileNode node = acquired.get(acquired.size() - 1);
+    		if(!node.isDirectory()){
+    			throw new FileNotFoundException();
+    		}
+
+    		listing = new TreeListing(node, directory, depth, prefix, 
+    				page_size);
+    	} catch (InterruptedException e) {
+    		throw new IllegalStateException();
+    	} finally {
+    		this.unlockNodes(acquired, false);
+    	}
+
+    	/* Release listings abandoned by their clients */
+    	long now = System.nanoTime();
+    	for(Map.Entry<Long, TreeListing> entry : this.treeListings.entrySet()){
+    		if(now - entry.getValue().lastAccess() > LISTING_TIMEOUT){
+    			this.treeListings.remove(entry.getKey(), entry.getValue());
+    		}
+    	}
+
+    	long identifier = this.nextCursor.getAndIncrement();
+    	ListingPage page = listing.page(identifier, 0);
+
+    	if(!page.isLast()){
+    		this.treeListings.put(identifier, listing);
+    	}
+
+    	return page;
     }
-    
-}
\ No newline at end of file
+
+    @Override
+    public ListingPage nextPage(long cursor)
+    {
+    	/* The cursor names the page, so a request sent again returns the same
+    	 * page. The listing is kept after its last page for the same reason,
+    	 * until it is closed or times out */
+    	TreeListing listing = this.treeListings.get(cursor >>> 32);
+
+    	if(listing == null){
+    		throw new IllegalArgumentException("no listing with cursor " +
+    				cursor);
+    	}
+
+    	return listing.page(cursor >>> 32, (int)cursor);
+    }
+
+    @Override
+    public void closeListing(long cursor)
+    {
+    	this.treeListings.remove(cursor >>> 32);
+    }
+
+    // The registration methods are documented in Registration.java and
+    // BatchRegistration.java.
+    @Override
+    public Path[] register(Storage client_stub, Command command_stub,
+                           Path[] files)
+    {
+    	if (client_stub == null || command_stub == null || files == null){
+    		throw new NullPointerException();
+    	}
+
+    	/* All files are sent, in a single batch. The storage server has no
+    	 * identity, and is known only by its stub */
+    	long session =
+    		this.openRegistration(0, client_stub, command_stub, null);
+    	Path[] dupList = this.registerFiles(session, files);
+    	this.endRegistration(session);
+
+    	return dupList;
+    }
+
+    @Override
+    public RegistrationSession beginRegistration(long identity,
+    		Storage client_stub, Command command_stub, long[] digest)
+    {
+    	if (client_stub == null || command_stub == null || digest == null){
+    		throw new NullPointerException();
+    	} else if (digest.length != FileDigest.BUCKETS){
+    		throw new IllegalArgumentException("digest has " + digest.length +
+    				" buckets");
+    	} else if (identity == 0){
+    		throw new IllegalArgumentException("identity is zero");
+    	}
+
+    	long session = this.openRegistration(identity, client_stub,
+    			command_stub, digest);
+    	return new RegistrationSession(session,
+    			this.registrations.get(session).changed());
+    }
+
+    /* Registers a storage server, and opens a registration session in which
+     * the files in the buckets whose digests differ from the files recorded
+     * for the storage server are sent. All files are sent if the digest is
+     * null. The identity is zero for a storage server known only by its
+     * stub */
+    private long openRegistration(long identity, Storage client_stub,
+    		Command command_stub, long[] digest)
+    {
+    	if (this.registeredStorageServers.putIfAbsent(client_stub,
+    			command_stub) != null){
+    		throw new IllegalStateException();
+    	}
+
+    	if (identity != 0){
+    		this.bindStorage(identity, client_stub);
+    	}
+
+    	/* Only a storage server recovered from the log, or which has taken
+    	 * over the replicas of its earlier stub, can have files recorded */
+    	boolean recovered =
+    		this.log.recoveredStorage().contains(client_stub);
+    	boolean[] changed = new boolean[FileDigest.BUCKETS];
+
+    	if (digest == null){
+    		Arrays.fill(changed, true);
+    	} else {
+    		FileDigest recorded = new FileDigest();
+    		if (recovered){
+    			this.digestReplicas(this.root, new Path(), client_stub,
+    					recorded);
+    		}
+
+    		long[] buckets = recorded.buckets();
+    		for (int i = 0; i < changed.length; i++){
+    			changed[i] = buckets[i] != digest[i];
+    		}
+    	}
+
+    	/* Discard the sessions of storage servers which failed while
+    	 * registering: sessions not used for a while, and an unfinished
+    	 * session of this storage server before it restarted */
+    	long now = System.nanoTime();
+    	for (Map.Entry<Long, StorageRegistration> entry :
+    			this.registrations.entrySet()){
+    		StorageRegistration other = entry.getValue();
+    		if ((identity != 0 && other.identity() == identity) ||
+    				now - other.lastAccess() > REGISTRATION_TIMEOUT){
+    			this.registrations.remove(entry.getKey(), other);
+    		}
+    	}
+
+    	long session = this.nextRegistration.getAndIncrement();
+    	this.registrations.put(session, new StorageRegistration(identity,
+    		client_stub, changed, recovered));
+
+    	return session;
+    }
+
+    @Override
+    public Path[] registerFiles(long session, Path[] files)
+    {
+    	StorageRegistration registration = this.registrations.get(session);
+
+    	if (registration == null){
+    		throw new IllegalArgumentException("no registration session " +
+    				session);
+    	} else if (files == null){
+    		throw new NullPointerException();
+    	}
+
+    	registration.touch();
+    	Storage client_stub = registration.storage();
+    	ArrayList<Path> filesToDelete = new ArrayList<Path>();
+    	long sequence = 0;
+
+    	/* The whole batch is merged under one lock on the root */
+    	try {
+    		this.root.lock().lockWrite();
+    	} catch (InterruptedException e) {
+    		throw new IllegalStateException();
+    	}
+
+    	try {
+    		for (Path p : files){
+    			if (p.isRoot()){
+    				//silently ignore this attempt to add root directory as a file
+    				continue;
+    			}
+
+    			registration.sent(p);
+    			FileNode node = this.resolve(p);
+
+    			if (node == null){
+    				if (this.addFile(p, client_stub)){
+    					sequence = this.log.createFile(p, client_stub);
+    				} else {
+    					filesToDelete.add(p);
+    				}
+    			} else if (node.isDirectory()){
+    				filesToDelete.add(p);
+    			} else if (node.storage().contains(client_stub)){
+    				/* Replica recovered from the log */
+    			} else if (!this.hasRegisteredReplica(node)){
+    				/* The file was recovered from the log, and none of the
+    				 * storage servers recorded as hosting it has registered:
+    				 * the copy offered is kept */
+    				node.storage().add(client_stub);
+    				sequence = this.log.addReplica(p, client_stub);
+    			} else {
+    				filesToDelete.add(p);
+    			}
+    		}
+    	} finally {
+    		this.unlockRoot();
+    	}
+
+    	this.log.sync(sequence);
+
+    	Path[] dupList = new Path[filesToDelete.size()];
+    	filesToDelete.toArray(dupList);
+
+    	return dupList;
+    }
+
+    @Override
+    public void endRegistration(long session)
+    {
+    	StorageRegistration registration = this.registrations.remove(session);
+
+    	if (registration == null){
+    		throw new IllegalArgumentException("no registration session " +
+    				session);
+    	}
+
+    	/* Replicas recorded in the log which the storage server no longer
+    	 * hosts are forgotten */
+    	if (registration.isRecovered() &&
+    			this.log.recoveredStorage().remove(registration.storage())){
+    		long sequence;
+
+    		try {
+    			this.root.lock().lockWrite();
+    		} catch (InterruptedException e) {
+    			throw new IllegalStateException();
+    		}
+
+    		try {
+    			sequence = this.forgetReplicas(this.root, new Path(),
+    					registration);
+    		} finally {
+    			this.unlockRoot();
+    		}
+
+    		this.log.sync(sequence);
+    	}
+    }
+
+    @Override
+    public void reportLoad(Storage client_stub, StorageLoad load)
+    {
+    	if(client_stub == null || load == null){
+    		throw new NullPointerException();
+    	}
+
+    	if(!this.registeredStorageServers.containsKey(client_stub)){
+    		throw new IllegalStateException("storage server not registered");
+    	}
+
+    	this.loads.report(client_stub, load);
+    }
+
+    /* Makes a stub the stub of the storage server with the given identity.
+     * The server has restarted if it had an earlier stub: the earlier stub is
+     * no longer registered, and the replicas recorded on it are moved to the
+     * new stub, to be checked against the files the server sends */
+    private void bindStorage(long identity, Storage client_stub)
+    {
+    	long sequence;
+
+    	try {
+    		this.root.lock().lockWrite();
+    	} catch (InterruptedException e) {
+    		this.registeredStorageServers.remove(client_stub);
+    		throw new IllegalStateException();
+    	}
+
+    	try {
+    		Storage previous =
+    			this.identifiedStorage.put(identity, client_stub);
+
+    		if (previous != null && !previous.equals(client_stub)){
+    			this.registeredStorageServers.remove(previous);
+    			this.loads.forget(previous);
+    			this.log.recoveredStorage().remove(previous);
+    			MetadataLog.replaceStorage(this.root, previous, client_stub);
+    			this.log.recoveredStorage().add(client_stub);
+    		}
+
+    		sequence = this.log.bindStorage(identity, client_stub);
+    	} finally {
+    		this.unlockRoot();
+    	}
+
+    	this.log.sync(sequence);
+    }
+
+    /* Releases the exclusive lock on the root taken by registration */
+    private void unlockRoot(){
+    	try {
+    		this.root.lock().unlockWrite();
+    	} catch (InterruptedException e) {
+    		throw new IllegalStateException();
+    	}
+    }
+
+    /* Determines whether a file has a replica on a registered storage
+     * server */
+    private boolean hasRegisteredReplica(FileNode node){
+    	for (Storage replica : node.storage()){
+    		if (this.registeredStorageServers.containsKey(replica)){
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /* Adds the files in a subtree recorded as hosted by a storage server to
+     * a digest */
+    private void digestReplicas(FileNode node, Path path, Storage storage,
+    		FileDigest digest){
+    	for (String name : node.childNames()){
+    		FileNode child = node.child(name);
+
+    		if (child == null){
+    			continue;
+    		} else if (child.isDirectory()){
+    			this.digestReplicas(child, new Path(path, name), storage,
+    					digest);
+    		} else if (child.storage().contains(storage)){
+    			digest.add(new Path(path, name));
+    		}
+    	}
+    }
+
+    /* Removes a registering storage server from the replicas of the files in
+     * a subtree which it no longer hosts. Files left without replicas are
+     * deleted. Returns the sequence number of the last change logged */
+    private long forgetReplicas(FileNode node, Path path,
+    		StorageRegistration registration){
+    	Storage storage = registration.storage();
+    	long sequence = 0;
+
+    	for (String name : node.childNames()){
+    		FileNode child = node.child(name);
+    		Path childPath = new Path(path, name);
+
+    		if (child == null){
+    			continue;
+    		} else if (child.isDirectory()){
+    			sequence = Math.max(sequence,
+    				this.forgetReplicas(child, childPath, registration));
+    		} else if (child.storage().contains(storage) &&
+    				registration.isForgotten(childPath) &&
+    				child.storage().remove(storage)){
+    			if (child.storage().isEmpty()){
+    				node.removeChild(name);
+    				sequence = this.log.delete(childPath);
+    			} else {
+    				sequence = this.log.removeReplica(childPath, storage);
+    			}
+    		}
+    	}
+
+    	return sequence;
+    }
+
+    /* Adds a file hosted by the given storage server to the directory tree,
+     * with any missing directories on the way to it. Returns false if the
+     * path, or a path on the way to it, is already taken by another object */
+    private boolean addFile(Path p, Storage storage){
+    	Iterator<String> components = p.iterator();
+    	FileNode parent = this.root;
+    	String name = components.next();
+
+		while (components.hasNext()){
+			FileNode child = parent.addChild(name, FileNode.directory());
+			if (!child.isDirectory()){
+				return false;
+			}
+			parent = child;
+			name = components.next();
+		}
+
+		FileNode file = FileNode.file(storage);
+		return parent.addChild(name, file) == file;
+    }
+
+    /* Returns the node of the object at the given path, walking down the tree
+     * from the root, or null if there is no such object */
+    private FileNode resolve(Path path){
+    	FileNode node = this.root;
+
+    	for (String component : path){
+    		node = node.child(component);
+    		if (node == null){
+    			return null;
+    		}
+    	}
+
+    	return node;
+    }
+
+    /* Returns the node of the directory at the given path, or null if there
+     * is no such directory */
+    private FileNode resolveDirectory(Path path){
+    	FileNode node = this.resolve(path);
+
+    	if (node == null || !node.isDirectory()){
+    		return null;
+    	}
+
+    	return node;
+    }
+
+}
@@ -5,7 +5,11 @@ import java.net.*;
 import rmi.*;
 
 /** Default port numbers for the naming server and convenience methods for
-    making naming server stubs. */
+    making naming server stubs.
+
+    <p>
+    The stubs use the <code>COMPACT</code> codec.
+ */
 public abstract class NamingStubs
 {
     /** Default naming server client service port. */
@@ -21,7 +25,7 @@ public abstract class NamingStubs
     public static Service service(String hostname, int port)
     {
         InetSocketAddress   address = new InetSocketAddress(hostname, port);
-        return Stub.create(Service.class, address);
+        return Stub.create(Service.class, address, Codec.COMPACT);
     }
 
     /** Returns a stub for a naming server client service interface.
@@ -38,13 +42,17 @@ public abstract class NamingStubs
 
     /** Returns a stub for a naming server registration interface.
 
+        <p>
+        The stub implements <code>BatchRegistration</code>, so that storage
+        servers given the stub register in batches.
+
         @param hostname Naming server hostname.
         @param port Registration interface port.
      */
     public static Registration registration(String hostname, int port)
     {
         InetSocketAddress   address = new InetSocketAddress(hostname, port);
-        return Stub.create(Registration.class, address);
+        return Stub.create(BatchRegistration.class, address, Codec.COMPACT);
     }
 
     /** Returns a stub for a naming server registration interface.
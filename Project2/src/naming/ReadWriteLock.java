@@ -1,83 +1,183 @@
 package naming;
 
 /******************************************************************************
- * 
- * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP) 
- * 
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
  ******************************************************************************/
 
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/* Shared/exclusive lock on a filesystem object, granted in first-come
+ * first-serve order. Waiting requests are kept in a FIFO queue, and a release
+ * wakes only the request at the head of the queue: either one exclusive
+ * request, or the run of consecutive shared requests at the head, which are
+ * granted the lock together. A request arriving while others are queued waits
+ * behind them, so shared requests never overtake a waiting exclusive request.
+ *
+ * When the lock is free or held for shared access and no request is queued,
+ * shared requests are granted by a single compare-and-set, without taking any
+ * monitor. The locks of directories near the root, which are taken for shared
+ * access by nearly every request, therefore stay cheap when uncontended.
+ *
+ * The lock is not owned by a thread: the naming server takes and releases it
+ * on behalf of clients, from whichever threads carry their requests */
 public class ReadWriteLock {
-	private volatile int readLocksOut = 0;
-	private volatile boolean isWriteLocked = false;
-	private volatile int writeRequests = 0;
-	private volatile int totalReadRequests = 0;
-	private volatile boolean stopped = false; 
-	  
-	/* Flips interrupt flag and notifies all */ 
-	public synchronized void interrupt() {
-		this.stopped = true;
-		this.notifyAll();
-	}
+	/* State of the synchronizer: the number of shared holders, or -1 if the
+	 * lock is held for exclusive access */
+	private static class Sync extends AbstractQueuedSynchronizer {
+		private static final long serialVersionUID = 1L;
+
+		/* Set once the lock is stopped. Every request is then granted at
+		 * once, and wakes the next queued request */
+		volatile boolean stopped = false;
+
+		@Override
+		protected int tryAcquireShared(int ignored) {
+			if(stopped) {
+				return 1;
+			}
+
+			/* Requests queued earlier are served first */
+			if(hasQueuedPredecessors()) {
+				return -1;
+			}
+
+			for(;;) {
+				int holders = getState();
+				if(holders < 0) {
+					return -1;
+				}
+				if(compareAndSetState(holders, holders + 1)) {
+					return 1;
+				}
+			}
+		}
+
+		@Override
+		protected boolean tryReleaseShared(int released) {
+			if(stopped) {
+				return true;
+			}
+
+			for(;;) {
+				int holders = getState();
+				int remaining = holders - released;
+				if(compareAndSetState(holders, remaining)) {
+					/* Wake the head of the queue once the last holder leaves */
+					return remaining == 0;
+				}
+			}
+		}
+
+		@Override
+		protected boolean tryAcquire(int ignored) {
+			if(stopped) {
+				return true;
+			}
+
+			return !hasQueuedPredecessors() && compareAndSetState(0, -1);
+		}
+
+		@Override
+		protected boolean tryRelease(int ignored) {
+			if(!stopped) {
+				setState(0);
+			}
+			return true;
+		}
+
+		@Override
+		protected boolean isHeldExclusively() {
+			return getState() < 0;
+		}
 
-	/* Read lock blocks while writers are out and if a write request is waiting */
-	public synchronized void lockRead() throws InterruptedException {	
-		while(!stopped && (isWriteLocked || writeRequests > 0)){
-			wait();
+		int holders() {
+			return getState();
 		}
-		/* Update request and reader count */
-		readLocksOut++;
-		totalReadRequests++;
 	}
 
-	/* Update reader count and notify blocking threads */
-	public synchronized void unlockRead() {
-		readLocksOut--;
-		notifyAll();
+	private final Sync sync = new Sync();
+
+	/* Stops the lock and wakes all waiting requests, which are granted the
+	 * lock */
+	public void interrupt() {
+		sync.stopped = true;
+		sync.releaseShared(0);
 	}
 
-	
-	public synchronized void lockWrite() throws InterruptedException {
-		/* Update request counter */
-		writeRequests++;
+	/* Takes the lock for shared access. A request waits while the lock is
+	 * held for exclusive access, or while earlier requests are waiting */
+	public void lockRead() throws InterruptedException {
+		sync.acquireSharedInterruptibly(1);
+		this.passOnIfStopped();
+	}
 
-		/* Block while readers and writers are out */
-		while(!stopped && (readLocksOut > 0 || isWriteLocked)){
-			wait();
+	/* Takes the lock for shared access, waiting at most the given time in
+	 * nanoseconds. Returns false, and withdraws the request, if the lock
+	 * could not be taken in time */
+	public boolean tryLockRead(long timeout) throws InterruptedException {
+		if(!sync.tryAcquireSharedNanos(1, timeout)) {
+			return false;
 		}
-		/* Update count and boolean when lock is taken */
-		writeRequests--;
-	    isWriteLocked = true;
+		this.passOnIfStopped();
+		return true;
+	}
+
+	/* Releases a shared lock. The request at the head of the queue is woken
+	 * once the last holder leaves */
+	public void unlockRead() {
+		sync.releaseShared(1);
+	}
+
+	/* Takes the lock for exclusive access. A request which is interrupted
+	 * while waiting is withdrawn from the queue, and the requests behind it
+	 * are woken if they can now take the lock */
+	public void lockWrite() throws InterruptedException {
+		sync.acquireInterruptibly(1);
+		this.passOnIfStopped();
 	}
 
-	public synchronized void unlockWrite() throws InterruptedException {
-		/* Update writer boolean and notify */
-		isWriteLocked = false;
-	    notifyAll();
+	/* Takes the lock for exclusive access, waiting at most the given time in
+	 * nanoseconds */
+	public boolean tryLockWrite(long timeout) throws InterruptedException {
+		if(!sync.tryAcquireNanos(1, timeout)) {
+			return false;
+		}
+		this.passOnIfStopped();
+		return true;
 	}
-	  
-	/* Methods to check status and get counts in lock */
-	public synchronized boolean isWriteLocked() {
-		return isWriteLocked;
+
+	/* Releases an exclusive lock, and wakes the request at the head of the
+	 * queue: an exclusive request, or all shared requests ahead of the next
+	 * exclusive request */
+	public void unlockWrite() throws InterruptedException {
+		sync.release(1);
 	}
-	  
-	public synchronized boolean isReadLocked() {
-		return readLocksOut > 0;
+
+	/* Once the lock is stopped, each request granted wakes the next one, so
+	 * that all waiting requests leave the queue */
+	private void passOnIfStopped() {
+		if(sync.stopped) {
+			sync.releaseShared(0);
+		}
 	}
-	  
-	public synchronized boolean hasWriteRequests() {
-		return writeRequests > 0;
+
+	/* Methods to check status of lock */
+	public boolean isWriteLocked() {
+		return sync.isHeldExclusively();
 	}
-	  
-	public synchronized int getTotalReadRequests() {
-		return this.totalReadRequests;
+
+	public boolean isReadLocked() {
+		return sync.holders() > 0;
 	}
-	  
-	public synchronized void resetReadCount(){
-		totalReadRequests = 0;
+
+	public boolean hasWriteRequests() {
+		return !sync.getExclusiveQueuedThreads().isEmpty();
 	}
-	  
-	public synchronized boolean isStopped(){
-		return this.stopped;
+
+	public boolean isStopped(){
+		return sync.stopped;
 	}
-	
+
 }
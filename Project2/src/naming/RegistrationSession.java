@@ -0,0 +1,61 @@
+package naming;
+
+import java.io.Serializable;
+
+import common.Path;
+
+/** Registration in progress, as returned by
+    <code>BatchRegistration.beginRegistration</code>.
+
+    <p>
+    The session tells the storage server which of its files the naming server
+    needs: those in the buckets of the <code>FileDigest</code> whose digests
+    differ from the digests of the files recorded for the storage server.
+ */
+public class RegistrationSession implements Serializable
+{
+    private static final long   serialVersionUID = 1L;
+
+    /** Identifier of the session on the naming server. */
+    private final long          id;
+    /** For each bucket, whether its files must be sent. */
+    private final boolean[]     changed;
+
+    /** Creates a registration session.
+
+        @param id Identifier of the session on the naming server.
+        @param changed For each bucket of the <code>FileDigest</code>,
+                       <code>true</code> if the files in the bucket must be
+                       sent.
+     */
+    public RegistrationSession(long id, boolean[] changed)
+    {
+        this.id = id;
+        this.changed = changed;
+    }
+
+    /** Returns the identifier of the session, to be passed to
+        <code>registerFiles</code> and <code>endRegistration</code>. */
+    public long id()
+    {
+        return id;
+    }
+
+    /** Determines whether a file must be sent to the naming server. */
+    public boolean mustSend(Path file)
+    {
+        return changed[FileDigest.bucket(file)];
+    }
+
+    /** Determines whether any files must be sent to the naming server. */
+    public boolean mustSendAny()
+    {
+        for(boolean bucket : changed)
+        {
+            if(bucket)
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,199 @@
+package naming;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Policy by which the naming server chooses among storage servers.
+
+    <p>
+    The naming server uses one policy to place new files and replicas, and
+    another to order the replicas of a file returned to clients, who read from
+    the first. Both are set on <code>NamingServer</code>. A policy ranks a set
+    of storage servers, given their most recent load reports, most preferred
+    first.
+
+    <p>
+    Four policies are provided. <code>RANDOM</code> ignores load.
+    <code>LEAST_LOADED</code> prefers the servers with the lowest
+    <code>StorageLoad.cost</code>. <code>POWER_OF_TWO_CHOICES</code> picks two
+    servers at random and prefers the less loaded, which avoids directing every
+    request to the same server between load reports.
+    <code>CAPACITY_WEIGHTED</code> picks servers at random, in proportion to
+    their free space.
+ */
+public abstract class ReplicaPolicy
+{
+    /** Ranks servers in random order. */
+    public static final ReplicaPolicy   RANDOM = new ReplicaPolicy()
+    {
+        @Override
+        public int[] rank(StorageLoad[] loads)
+        {
+            return shuffled(loads.length);
+        }
+    };
+
+    /** Ranks servers by increasing cost. Servers with the same cost are ranked
+        in random order. */
+    public static final ReplicaPolicy   LEAST_LOADED = new ReplicaPolicy()
+    {
+        @Override
+        public int[] rank(final StorageLoad[] loads)
+        {
+            Integer[]   order = boxed(shuffled(loads.length));
+
+            // The sort is stable, so ties keep their random order.
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer first, Integer second)
+                {
+                    return Double.compare(loads[first].cost(),
+                                          loads[second].cost());
+                }
+            });
+
+            return unboxed(order);
+        }
+    };
+
+    /** Ranks first the less loaded of two servers chosen at random, and the
+        other servers after it in random order. */
+    public static final ReplicaPolicy   POWER_OF_TWO_CHOICES =
+        new ReplicaPolicy()
+    {
+        @Override
+        public int[] rank(StorageLoad[] loads)
+        {
+            int[]       order = shuffled(loads.length);
+
+            if(order.length >= 2 &&
+               loads[order[1]].cost() < loads[order[0]].cost())
+            {
+                swap(order, 0, 1);
+            }
+
+            return order;
+        }
+    };
+
+    /** Ranks servers in random order, each server being ranked before the
+        others in proportion to its free space. Servers whose free space is
+        unknown are given the average free space of the others. */
+    public static final ReplicaPolicy   CAPACITY_WEIGHTED = new ReplicaPolicy()
+    {
+        @Override
+        public int[] rank(StorageLoad[] loads)
+        {
+            // Weighted sampling without replacement: each server draws the
+            // key u^(1/w) for a uniform u, and servers are ranked by
+            // decreasing key. Logarithms of the keys are compared instead.
+            ThreadLocalRandom   random = ThreadLocalRandom.current();
+            double              average = averageFreeSpace(loads);
+            final double[]      keys = new double[loads.length];
+            Integer[]           order = new Integer[loads.length];
+
+            for(int index = 0; index < loads.length; ++index)
+            {
+                long    free_space = loads[index].freeSpace();
+                double  weight = free_space < 0 ? average : free_space;
+
+                keys[index] = Math.log(1.0 - random.nextDouble()) /
+                              Math.max(weight, 1.0);
+                order[index] = index;
+            }
+
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer first, Integer second)
+                {
+                    return Double.compare(keys[second], keys[first]);
+                }
+            });
+
+            return unboxed(order);
+        }
+    };
+
+    /** Ranks storage servers.
+
+        @param loads Most recent loads of the servers, with the requests
+                     directed to each server since its report added.
+                     <code>StorageLoad.UNKNOWN</code> is given for a server
+                     which has not reported its load.
+        @return The indices of the servers in <code>loads</code>, most
+                preferred first. Every index appears exactly once.
+     */
+    public abstract int[] rank(StorageLoad[] loads);
+
+    /** Returns the indices from zero to <code>count - 1</code> in random
+        order. */
+    protected static int[] shuffled(int count)
+    {
+        ThreadLocalRandom   random = ThreadLocalRandom.current();
+        int[]               order = new int[count];
+
+        for(int index = 0; index < count; ++index)
+        {
+            int         other = random.nextInt(index + 1);
+
+            order[index] = order[other];
+            order[other] = index;
+        }
+
+        return order;
+    }
+
+    /** Exchanges two elements of an array. */
+    private static void swap(int[] array, int first, int second)
+    {
+        int         element = array[first];
+
+        array[first] = array[second];
+        array[second] = element;
+    }
+
+    /** Returns the average free space of the servers which reported it, or
+        one byte if none did. */
+    private static double averageFreeSpace(StorageLoad[] loads)
+    {
+        double      total = 0;
+        int         known = 0;
+
+        for(StorageLoad load : loads)
+        {
+            if(load.freeSpace() >= 0)
+            {
+                total += load.freeSpace();
+                ++known;
+            }
+        }
+
+        return known == 0 ? 1 : total / known;
+    }
+
+    /** Converts an array of indices to objects, for sorting with a
+        comparator. */
+    private static Integer[] boxed(int[] array)
+    {
+        Integer[]   result = new Integer[array.length];
+
+        for(int index = 0; index < array.length; ++index)
+            result[index] = array[index];
+
+        return result;
+    }
+
+    /** Converts an array of indices back from objects. */
+    private static int[] unboxed(Integer[] array)
+    {
+        int[]       result = new int[array.length];
+
+        for(int index = 0; index < array.length; ++index)
+            result[index] = array[index];
+
+        return result;
+    }
+}
@@ -6,9 +6,6 @@ package naming;
  * 
  ******************************************************************************/
 
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
 import storage.Command;
 import storage.Storage;
 import common.Path;
@@ -17,53 +14,41 @@ public class ReplicateThread implements Runnable {
 
 	private Path path;
 	private Command replicationTargetCommand;
-	private Set<Storage> storageLocations;
-	private ConcurrentHashMap<Path, ReadWriteLock> fileLocks; 
+	private FileNode node;
 	private Storage replicationTarget;
+	private Storage replicationSource;
+	private MetadataLog log;
 	
-	/* Initializes objects needed to replicate and update data structures */
-	public ReplicateThread(Path path, Command replicationTargetCommand, Set<Storage> 
-	storageLocations, ConcurrentHashMap<Path, ReadWriteLock> fileLocks, 
-	Storage replicationTarget) {
+	/* Initializes objects needed to replicate from the given copy, update the
+	 * file's node and record the new replica */
+	ReplicateThread(Path path, Command replicationTargetCommand, 
+	FileNode node, Storage replicationTarget, Storage replicationSource,
+	MetadataLog log) {
 		this.path = path;
 		this.replicationTargetCommand = replicationTargetCommand;
-		this.storageLocations = storageLocations;
-		this.fileLocks = fileLocks;
+		this.node = node;
 		this.replicationTarget = replicationTarget;
+		this.replicationSource = replicationSource;
+		this.log = log;
 	}
 
 	
-	/* Calls copy on a command stub of a server and updates the hashmap of path 
-	 * to storage stubs by adding new storage stub */
+	/* Calls copy on a command stub of a server and adds the new storage stub
+	 * to the storage servers hosting the file */
 	public void run() {
 		boolean result = false;
 		try{
-			/* Copies to target server given a storage stub containing a copy */
-			result = replicationTargetCommand.copy(path, 
-					getRandomElementFromSet(storageLocations));
+			/* Copies to target server from the copy chosen by the naming
+			 * server's selection policy */
+			result = replicationTargetCommand.copy(path, replicationSource);
 		} catch (Exception e){}
 
 		if (result == true){
-			/* Adds new storage stub to the path to storage stubs HashMap */
-			storageLocations.add(replicationTarget);
-			this.fileLocks.get(path).resetReadCount();
+			/* Adds new storage stub to the file's storage servers */
+			node.storage().add(replicationTarget);
+			log.sync(log.addReplica(path, replicationTarget));
 		}
 	}
 
-    /* Helper method that returns a random element from a given set */
-	private <T> T getRandomElementFromSet(Set<T> set){
-    	if(set.isEmpty()){
-    		return null;
-    	}
-    	
-    	int index = (int)(set.size() * Math.random()); 
-    	
-    	Object[] array = new Object[set.size()];
-    	set.toArray(array);
-    	
-    	return (T)array[index];
-    }
-
 
 }
-
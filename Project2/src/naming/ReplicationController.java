@@ -0,0 +1,81 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import common.Path;
+
+/* Decides how many replicas each file should have from its demand: the count
+ * of reads of the file, decaying with a half life of a minute. A file is given
+ * one replica more for each READS_PER_REPLICA of demand, so a popular file is
+ * given several replicas at once. Replicas are kept until the demand falls to
+ * half of what justified them, so that a file whose demand varies a little is
+ * not copied and deleted over and over, and the surplus replicas of files
+ * which have cooled down are then removed by periodic sweeps. Copies are
+ * limited to MAX_COPIES at a time across all files, so that replication does
+ * not take all the bandwidth of the storage servers */
+class ReplicationController {
+	static final long HALF_LIFE = TimeUnit.SECONDS.toNanos(60);
+	static final int READS_PER_REPLICA = 20;
+	static final int MAX_COPIES = 4;
+	/* Interval between sweeps for surplus replicas */
+	static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+	/* Permits for copies in progress */
+	private final Semaphore copies = new Semaphore(MAX_COPIES);
+	/* Files which have been replicated, with their paths, to be swept until
+	 * they are back to one replica */
+	private final ConcurrentHashMap<FileNode, Path> replicated =
+		new ConcurrentHashMap<FileNode, Path>();
+
+	/* Counts a read of a file, and returns the number of replicas the file
+	 * should have */
+	int read(FileNode file) {
+		double demand = file.reads().add(System.nanoTime());
+		return 1 + (int)(demand / READS_PER_REPLICA);
+	}
+
+	/* Returns the number of replicas of a file to keep: those the file would
+	 * be given with twice its current demand */
+	int retained(FileNode file) {
+		double demand = file.reads().value(System.nanoTime());
+		return 1 + (int)(2 * demand / READS_PER_REPLICA);
+	}
+
+	/* Takes permits for up to the given number of copies. Returns the number
+	 * of copies which may be started, each of which must be finished */
+	int startCopies(int wanted) {
+		int started = 0;
+		while(started < wanted && this.copies.tryAcquire()) {
+			started++;
+		}
+		return started;
+	}
+
+	void finishCopies(int count) {
+		this.copies.release(count);
+	}
+
+	/* Records that a file is being replicated, so that it is swept */
+	void replicating(FileNode file, Path path) {
+		this.replicated.put(file, path);
+	}
+
+	/* Files being swept, with their paths */
+	Iterable<Map.Entry<FileNode, Path>> replicated() {
+		return this.replicated.entrySet();
+	}
+
+	/* Stops sweeping a file which is back to one replica or was deleted */
+	void forget(FileNode file) {
+		this.replicated.remove(file);
+	}
+}
@@ -16,6 +16,10 @@ import storage.Storage;
  */
 public interface Service
 {
+    /** Time, in milliseconds, for which a lock is leased to a client. A lock
+        not renewed within this time is released by the naming server. */
+    public static final long    LEASE_TIME = 60000;
+
     /** Locks a file or directory for either shared or exclusive access.
 
         <p>
@@ -87,10 +91,21 @@ public interface Service
         <code>A</code> and <code>B</code> for shared access. User <code>D</code>
         must wait until <code>C</code> is done with the lock.
 
+        <p>
+        Each lock granted is leased to the client for <code>LEASE_TIME</code>
+        milliseconds. A client holding a lock for longer must renew the lease
+        with <code>renew</code> before it expires. When a lease expires, the
+        naming server releases the lock as if by <code>unlock</code>, so that a
+        client which fails while holding a lock does not block other clients
+        indefinitely. The client which held the lock is told that the lock is
+        lost the next time it attempts to renew or release it.
+
         @param path The file or directory to be locked.
         @param exclusive If <code>true</code>, the object is to be locked for
                          exclusive access. Otherwise, it is to be locked for
                          shared access.
+        @return The identifier of the lease on the lock, which is never zero.
+                The lease is renewed and released by its identifier.
         @throws FileNotFoundException If the object specified by
                                       <code>path</code> cannot be found.
         @throws IllegalStateException If the object is a file, the file is
@@ -103,11 +118,18 @@ public interface Service
                              error. This includes server shutdown while a client
                              is waiting to obtain the lock.
      */
-    public void lock(Path path, boolean exclusive)
+    public long lock(Path path, boolean exclusive)
         throws RMIException, FileNotFoundException;
 
     /** Unlocks a file or directory.
 
+        <p>
+        Leases on shared locks held on the same object by several clients
+        cannot be told apart by path: the call ends the lease which expires
+        last. Clients which renew their leases should unlock by lease
+        identifier instead, so that they do not end the lease of another
+        client.
+
         @param path The file or directory to be unlocked.
         @param exclusive Must be <code>true</code> if the object was locked for
                          exclusive access, and <code>false</code> if it was
@@ -117,12 +139,71 @@ public interface Service
                                          is a client programming error, as the
                                          path must have previously been locked,
                                          and cannot be removed while it is
-                                         locked.
+                                         locked. The exception is also thrown
+                                         if the lease on the lock has expired,
+                                         and the lock has been released by the
+                                         naming server.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
     public void unlock(Path path, boolean exclusive) throws RMIException;
 
+    /** Releases the locks held under a lease.
+
+        @param lease The identifier returned by <code>lock</code> or
+                     <code>lockAll</code> when the locks were taken.
+        @throws IllegalArgumentException If the client does not hold the
+                                         locks: they have been released, or
+                                         the lease has expired.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void unlock(long lease) throws RMIException;
+
+    /** Locks a file or directory, waiting at most the given time for the
+        lock.
+
+        <p>
+        The lock is taken as by <code>lock</code>. If the lock cannot be
+        granted within the timeout, the request is withdrawn, any locks taken
+        along the path are released, and the method returns
+        zero. The requests queued behind it are then served as
+        if it had never been made.
+
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is to be locked for
+                         exclusive access. Otherwise, it is to be locked for
+                         shared access.
+        @param timeout Maximum time, in milliseconds, to wait for the lock.
+        @return The identifier of the lease on the lock, as for
+                <code>lock</code>, or zero if the timeout expired first.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+        @throws IllegalStateException As for <code>lock</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long lock(Path path, boolean exclusive, long timeout)
+        throws RMIException, FileNotFoundException;
+
+    /** Renews a lease on locks held by the client.
+
+        <p>
+        The lease is extended to <code>LEASE_TIME</code> milliseconds from the
+        time of the call. A client holding a lock should renew it well before
+        the lease expires, for example every third of the lease time.
+
+        @param lease The identifier returned by <code>lock</code> or
+                     <code>lockAll</code> when the locks were taken.
+        @throws IllegalArgumentException If the client does not hold the
+                                         locks: they have been released, or
+                                         the lease has expired.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void renew(long lease) throws RMIException;
+
     /** Determines whether a path refers to a directory.
 
         <p>
@@ -228,4 +309,216 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all the storage servers hosting a file.
+
+        <p>
+        Clients reading a file may spread their reads over the storage servers
+        returned. They should lock the file for shared access before making
+        this call, so that the file is not written, and its replicas are not
+        invalidated, while they are reading.
+
+        @param file Path to the file.
+        @return Stubs for communicating with the storage servers. The array
+                contains at least one stub.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Locks several files or directories in a single request.
+
+        <p>
+        The effect is that of calling <code>lock</code> on each path, except
+        that each lock along the paths is taken once, in the locking order
+        used by <code>lock</code>, so that the batch cannot deadlock with
+        other clients. A path which is on the way to another path in the batch
+        is locked for the access requested for it, and the other path is then
+        effectively locked by it. The locks taken by the call are leased
+        together, and are released with <code>unlock</code> given the lease
+        identifier, or with <code>unlockAll</code> given the same paths and
+        access.
+
+        @param paths The files or directories to be locked. Duplicates are
+                     ignored.
+        @param exclusive If <code>true</code>, the objects are to be locked for
+                         exclusive access. Otherwise, they are to be locked for
+                         shared access.
+        @return The identifier of the lease on the locks, which is never zero.
+        @throws FileNotFoundException If any of the objects cannot be found.
+                                      No locks are then taken.
+        @throws IllegalStateException As for <code>lock</code>. Any locks
+                                      taken by the call are released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long lockAll(Path[] paths, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Unlocks several files or directories locked with <code>lockAll</code>.
+
+        <p>
+        As for <code>unlock</code>, leases on the same shared locks held by
+        several clients cannot be told apart by path.
+
+        @param paths The paths given to <code>lockAll</code>.
+        @param exclusive The access given to <code>lockAll</code>.
+        @throws IllegalArgumentException If the locks are not held, because
+                                         any of the objects cannot be found or
+                                         the lease on the locks has expired.
+                                         No locks are then released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void unlockAll(Path[] paths, boolean exclusive) throws RMIException;
+
+    /** Creates several files, as if by <code>createFile</code> on each path.
+
+        <p>
+        Paths are processed in order. The parent directories should be locked
+        for exclusive access before this operation is performed.
+
+        @param files Paths at which the files are to be created.
+        @return For each path, <code>true</code> if the file is created, and
+                <code>false</code> otherwise.
+        @throws FileNotFoundException If the parent directory of a path does
+                                      not exist. The paths before it have been
+                                      processed.
+        @throws IllegalStateException If no storage servers are connected to the
+                                      naming server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] createFiles(Path[] files)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates several directories, as if by <code>createDirectory</code> on
+        each path.
+
+        <p>
+        Paths are processed in order, so a directory may be created in a
+        directory created earlier in the same call. The parent directories
+        should be locked for exclusive access before this operation is
+        performed.
+
+        @param directories Paths at which the directories are to be created.
+        @return For each path, <code>true</code> if the directory is created,
+                and <code>false</code> otherwise.
+        @throws FileNotFoundException If the parent directory of a path does
+                                      not exist. The paths before it have been
+                                      processed.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] createDirectories(Path[] directories)
+        throws RMIException, FileNotFoundException;
+
+    /** Deletes several files or directories, as if by <code>delete</code> on
+        each path.
+
+        <p>
+        Paths are processed in order. The parent directories should be locked
+        for exclusive access before this operation is performed. A path inside
+        a directory deleted earlier in the same call is not deleted again, and
+        is reported as deleted.
+
+        @param paths Paths to the files or directories to be deleted.
+        @return For each path, <code>true</code> if the object is deleted, and
+                <code>false</code> otherwise.
+        @throws FileNotFoundException If an object or its parent directory does
+                                      not exist. The paths before it have been
+                                      processed.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] deleteAll(Path[] paths)
+        throws RMIException, FileNotFoundException;
+
+    /** Retrieves the status of several files or directories.
+
+        <p>
+        For each file, the status includes the storage servers hosting the file
+        and the file size, which is retrieved from one of them. If none of them
+        can be contacted, the size is <code>FileStatus.UNKNOWN_SIZE</code>, and
+        the status of the other objects is still retrieved. The objects, or
+        their parent directories, should be locked for shared access before
+        this operation is performed.
+
+        @param paths The objects whose status is to be retrieved.
+        @return For each path, the status of the object, or <code>null</code> if
+                the object does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public FileStatus[] stat(Path[] paths) throws RMIException;
+
+    /** Lists the subtree under a directory, in pages.
+
+        <p>
+        The listing is taken from a snapshot of the subtree made by this call,
+        so pages retrieved later are not affected by changes made to the
+        subtree in the meantime. Each directory is listed before its contents,
+        and the entries of a directory are ordered by name. The naming server
+        locks the directory, and each directory under it which is listed, for
+        shared access while the snapshot is made, so the call waits for
+        clients changing the subtree. The caller must not hold a lock for
+        exclusive access on any of these directories.
+
+        <p>
+        If the listing has more than one page, the remaining pages are
+        retrieved with <code>nextPage</code>. A listing with more than one page
+        should be released with <code>closeListing</code> once the client has
+        retrieved the pages it needs. Listings not accessed for some time are
+        released by the naming server.
+
+        @param directory The directory whose subtree is to be listed. The
+                         directory itself is not listed.
+        @param depth Maximum depth of the entries listed, relative to the
+                     directory: <code>1</code> lists only the directory's
+                     contents. If zero or negative, the depth is unlimited.
+        @param prefix Only entries whose paths, as strings, start with this
+                      prefix are listed. The empty string lists all entries.
+        @param page_size Maximum number of entries on each page.
+        @return The first page of the listing.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>page_size</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public ListingPage listTree(Path directory, int depth, String prefix,
+                                int page_size)
+        throws RMIException, FileNotFoundException;
+
+    /** Retrieves the page of a listing following the page with the given
+        cursor.
+
+        <p>
+        The cursor names the page retrieved, so a call made again with the
+        same cursor, for example after a network error, returns the same page.
+
+        @param cursor The cursor of the previous page.
+        @return The next page of the listing.
+        @throws IllegalArgumentException If the cursor does not identify a
+                                         page of a listing, for example
+                                         because the listing has been
+                                         released.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public ListingPage nextPage(long cursor) throws RMIException;
+
+    /** Releases a listing whose pages have not all been retrieved.
+
+        <p>
+        Releasing a listing which has already been released has no effect.
+
+        @param cursor The cursor of any page of the listing.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void closeListing(long cursor) throws RMIException;
 }
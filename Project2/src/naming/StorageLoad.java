@@ -0,0 +1,109 @@
+package naming;
+
+import java.io.Serializable;
+
+/** Load of a storage server, as reported to the naming server.
+
+    <p>
+    Storage servers report their load periodically through
+    <code>BatchRegistration.reportLoad</code>. The naming server uses the
+    reports to place new files and replicas, and to order the replicas it
+    returns to clients, according to its <code>ReplicaPolicy</code> objects.
+ */
+public class StorageLoad implements Serializable
+{
+    private static final long   serialVersionUID = 1L;
+
+    /** Load of a storage server which has not reported its load. */
+    public static final StorageLoad UNKNOWN = new StorageLoad(-1, -1, 0, 0);
+
+    /** Latency assumed for a storage server whose requests do not wait, in
+        nanoseconds. */
+    private static final long   MINIMUM_LATENCY = 100000;
+
+    /** Free space, in bytes, or -1 if unknown. */
+    private final long          free_space;
+    /** Total space, in bytes, or -1 if unknown. */
+    private final long          total_space;
+    /** Number of requests in progress or waiting. */
+    private final int           queue_depth;
+    /** Average recent time requests waited to be served, in nanoseconds. */
+    private final long          latency;
+
+    /** Creates a load report.
+
+        @param free_space Space available for new data, in bytes, or -1 if
+                          unknown.
+        @param total_space Total space, in bytes, or -1 if unknown.
+        @param queue_depth Number of requests being served or waiting for
+                           locks.
+        @param latency Average recent time requests waited for locks before
+                       being served, in nanoseconds, or zero if no requests
+                       have been served. The time taken to serve a request,
+                       which depends on the data it moves, is not
+                       included.
+     */
+    public StorageLoad(long free_space, long total_space, int queue_depth,
+                       long latency)
+    {
+        this.free_space = free_space;
+        this.total_space = total_space;
+        this.queue_depth = queue_depth;
+        this.latency = latency;
+    }
+
+    /** Returns the space available for new data, in bytes, or -1 if
+        unknown. */
+    public long freeSpace()
+    {
+        return free_space;
+    }
+
+    /** Returns the total space, in bytes, or -1 if unknown. */
+    public long totalSpace()
+    {
+        return total_space;
+    }
+
+    /** Returns the number of requests being served or waiting. */
+    public int queueDepth()
+    {
+        return queue_depth;
+    }
+
+    /** Returns the average recent time requests waited to be served, in
+        nanoseconds. */
+    public long latency()
+    {
+        return latency;
+    }
+
+    /** Returns the expected time a new request would wait: the recent wait of
+        one request, multiplied by the number of requests it would queue
+        behind and itself.
+
+        @return The cost, in nanoseconds.
+     */
+    public double cost()
+    {
+        return (double)(queue_depth + 1) * Math.max(latency, MINIMUM_LATENCY);
+    }
+
+    /** Returns this load with further requests queued.
+
+        <p>
+        The naming server adds the requests it has directed to a storage
+        server since its last report, so that servers are not chosen
+        repeatedly between reports.
+
+        @param requests Number of requests to add.
+     */
+    public StorageLoad withQueued(int requests)
+    {
+        if(requests == 0)
+            return this;
+
+        return new StorageLoad(free_space, total_space, queue_depth + requests,
+                               latency);
+    }
+}
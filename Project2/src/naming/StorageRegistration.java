@@ -0,0 +1,81 @@
+package naming;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import storage.Storage;
+import common.Path;
+
+/* Registration of a storage server in progress. Records which buckets of
+ * files the storage server was asked to send, and, for a storage server
+ * recovered from the log, the files it has sent, so that the replicas it no
+ * longer hosts can be forgotten once it has sent all its files. The time the
+ * session was last used is kept so that abandoned sessions can be
+ * discarded */
+class StorageRegistration {
+	private final long identity;
+	private final Storage storage;
+	/* For each bucket of the file digest, whether its files are sent */
+	private final boolean[] changed;
+	/* Files sent, or null if the storage server is not recovered from the
+	 * log and so has no replicas to forget */
+	private final Set<Path> sent;
+	private volatile long lastAccess = System.nanoTime();
+
+	/* The identity is zero for a storage server known only by its stub */
+	StorageRegistration(long identity, Storage storage, boolean[] changed,
+			boolean recovered) {
+		this.identity = identity;
+		this.storage = storage;
+		this.changed = changed;
+		this.sent = recovered ?
+			Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>()) :
+			null;
+	}
+
+	long identity() {
+		return this.identity;
+	}
+
+	Storage storage() {
+		return this.storage;
+	}
+
+	boolean[] changed() {
+		return this.changed;
+	}
+
+	boolean isRecovered() {
+		return this.sent != null;
+	}
+
+	/* Records that the session is in use */
+	void touch() {
+		this.lastAccess = System.nanoTime();
+	}
+
+	long lastAccess() {
+		return this.lastAccess;
+	}
+
+	void sent(Path file) {
+		if(this.sent != null) {
+			this.sent.add(file);
+		}
+	}
+
+	/* Determines whether a replica recorded for the storage server is no
+	 * longer hosted by it: the file is in a bucket which was sent, but was
+	 * not itself sent */
+	boolean isForgotten(Path file) {
+		return this.changed[FileDigest.bucket(file)] &&
+			!this.sent.contains(file);
+	}
+}
@@ -0,0 +1,149 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import common.Path;
+
+/* Snapshot of a directory subtree, served to a client in pages. The snapshot
+ * is taken in full when the listing is created, so entries created or deleted
+ * while the client retrieves pages do not shift the pages, and no entry is
+ * skipped or listed twice. Each page is named by the index of its first
+ * entry, so a page can be retrieved again.
+ *
+ * Clients change the entries of a directory while holding its lock for
+ * exclusive access. The creator holds the lock on the listed directory for
+ * shared access, and the walk takes the lock on every directory it visits
+ * below it, so the snapshot is not changed while it is taken */
+class TreeListing {
+	/* Entries of the subtree, each directory followed by its contents */
+	private final ArrayList<Path> paths = new ArrayList<Path>();
+	/* Indices of the entries which are directories */
+	private final BitSet directories = new BitSet();
+	/* Maximum number of entries on a page */
+	private final int pageSize;
+	/* Time, as given by System.nanoTime, at which a page was last served */
+	private volatile long lastAccess = System.nanoTime();
+
+	/* Walks the subtree under the given directory, down to the given depth,
+	 * or to any depth if depth is not positive. Only entries whose paths start
+	 * with the prefix are included, and directories which cannot contain such
+	 * entries are not visited. The caller holds the lock on the directory */
+	TreeListing(FileNode node, Path directory, int depth, String prefix, 
+			int pageSize) throws InterruptedException {
+		this.pageSize = pageSize;
+
+		ArrayList<FileNode> locked = new ArrayList<FileNode>();
+		try {
+			this.lockSubdirectories(node, directory, depth, prefix, locked);
+			this.walk(node, directory, depth, prefix);
+		} finally {
+			for(FileNode lockedNode : locked) {
+				lockedNode.lock().unlockRead();
+			}
+		}
+	}
+
+	/* Locks the directories the walk visits for shared access, adding them
+	 * to the given list. The locks are taken a level at a time, and in order
+	 * of path within a level, which is the order in which lockAll takes its
+	 * locks, so that the walk cannot deadlock with a batch. The children of a
+	 * directory are read once its lock is held */
+	private void lockSubdirectories(FileNode node, Path directory, int depth,
+			String prefix, ArrayList<FileNode> locked) 
+					throws InterruptedException {
+		TreeMap<Path, FileNode> level = new TreeMap<Path, FileNode>();
+		level.put(directory, node);
+
+		for(; !level.isEmpty() && depth != 1; depth--) {
+			TreeMap<Path, FileNode> next = new TreeMap<Path, FileNode>();
+
+			for(Map.Entry<Path, FileNode> entry : level.entrySet()) {
+				for(String name : entry.getValue().childNames()) {
+					FileNode childNode = entry.getValue().child(name);
+					Path child = new Path(entry.getKey(), name);
+
+					if(childNode != null && childNode.isDirectory() &&
+							descends(child, prefix)) {
+						next.put(child, childNode);
+					}
+				}
+			}
+
+			for(FileNode childNode : next.values()) {
+				childNode.lock().lockRead();
+				locked.add(childNode);
+			}
+
+			level = next;
+		}
+	}
+
+	/* Determines whether the walk descends into a directory: whether the
+	 * prefix may match entries under it */
+	private static boolean descends(Path directory, String prefix) {
+		String name = directory.toString();
+		return name.startsWith(prefix) || prefix.startsWith(name + "/");
+	}
+
+	private void walk(FileNode node, Path directory, int depth, 
+			String prefix) {
+		String[] names = node.childNames().toArray(new String[0]);
+		Arrays.sort(names);
+
+		for(String name : names) {
+			FileNode childNode = node.child(name);
+
+			/* Deleted while the walk was in progress */
+			if(childNode == null) {
+				continue;
+			}
+
+			Path child = new Path(directory, name);
+			String childName = child.toString();
+
+			if(childName.startsWith(prefix)) {
+				if(childNode.isDirectory()) {
+					this.directories.set(this.paths.size());
+				}
+				this.paths.add(child);
+			}
+
+			/* Descend if the prefix may match entries under the directory */
+			if(childNode.isDirectory() && depth != 1 && 
+					descends(child, prefix)) {
+				this.walk(childNode, child, depth - 1, prefix);
+			}
+		}
+	}
+
+	/* Returns the page of entries starting at the given index. The cursor of
+	 * the page holds the listing's identifier and the index of the page which
+	 * follows it */
+	ListingPage page(long identifier, int start) {
+		if(start < 0 || start > this.paths.size()) {
+			throw new IllegalArgumentException("no page at entry " + start);
+		}
+
+		int end = (int)Math.min((long)start + this.pageSize, this.paths.size());
+		Path[] page = this.paths.subList(start, end).toArray(new Path[0]);
+		boolean[] isDirectory = new boolean[page.length];
+
+		for(int i = 0; i < page.length; i++) {
+			isDirectory[i] = this.directories.get(start + i);
+		}
+
+		this.lastAccess = System.nanoTime();
+
+		return new ListingPage((identifier << 32) | end, page, isDirectory, 
+				end == this.paths.size());
+	}
+
+	/* Returns the time at which a page was last served */
+	long lastAccess() {
+		return this.lastAccess;
+	}
+}
@@ -37,10 +37,19 @@
 
     <p>
     Commonly-accessed files are <em>replicated</em>: additional storage servers
-    are chosen to host them, if they are available. When a replicated file is
-    accessed for writing, all copies of the file but one are
+    are chosen to host them, if they are available. The number of replicas of a
+    file follows the recent demand for it, counted with reads which decay over
+    time, and replicas are removed again once the demand has fallen. When a
+    replicated file is accessed for writing, all copies of the file but one are
     <em>invalidated</em> (deleted).
 
+    <p>
+    Registered storage servers periodically report their <em>load</em>: free
+    space, requests in progress and the time recent requests waited to be
+    served. The naming server uses the reports to choose the storage servers
+    which host new files and replicas, and to order the replicas of files
+    returned to clients, by the policies set on <code>NamingServer</code>.
+
     <p>
     The naming server provides two interfaces: a <em>service interface</em>
     through which clients can perform naming server operations and obtain stubs
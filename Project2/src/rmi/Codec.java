@@ -0,0 +1,131 @@
+package rmi;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Wire encoding of RMI requests and responses.
+
+    <p>
+    Each connection between a stub and a skeleton uses one codec. The stub
+    names the codec in the first byte it sends on a new connection, and the
+    skeleton answers using the same codec, so a skeleton serves stubs using
+    any registered codec. Stubs created from a skeleton use the codec set on
+    that skeleton with <code>Skeleton.setCodec</code>; stubs created from an
+    address use the codec given to <code>Stub.create</code>, or
+    <code>SERIALIZATION</code> by default.
+
+    <p>
+    Two codecs are provided. <code>SERIALIZATION</code> sends requests and
+    responses as serialized Java objects. <code>COMPACT</code> uses a binary
+    encoding for the types used by the filesystem interfaces and falls back to
+    Java serialization for any other type. Further codecs may be added with
+    <code>register</code>; every process which uses a codec must register it.
+ */
+public abstract class Codec
+{
+    /** Registered codecs, by id. */
+    private static final ConcurrentHashMap<Byte, Codec> codecs =
+        new ConcurrentHashMap<Byte, Codec>();
+
+    /** Java object serialization. */
+    public static final Codec   SERIALIZATION = new SerializationCodec();
+    /** Compact binary encoding, with Java serialization for other types. */
+    public static final Codec   COMPACT = new CompactCodec();
+
+    static
+    {
+        register(SERIALIZATION);
+        register(COMPACT);
+    }
+
+    /** Returns the id which names the codec on the wire. */
+    public abstract byte id();
+
+    /** Creates the encoder for messages sent on a connection.
+
+        @param stream Stream to which the encoded messages are written.
+        @throws IOException If the encoder cannot write any initial data.
+     */
+    public abstract MessageOutput output(OutputStream stream)
+        throws IOException;
+
+    /** Creates the decoder for messages received on a connection.
+
+        @param stream Stream from which the encoded messages are read.
+        @throws IOException If the decoder cannot read any initial data.
+     */
+    public abstract MessageInput input(InputStream stream) throws IOException;
+
+    /** Registers a codec so that connections naming its id can be served.
+
+        @param codec The codec.
+        @throws IllegalStateException If a different codec is already
+                                      registered with the same id.
+        @throws IllegalArgumentException If the codec's id is
+                                         <code>StreamHandler.STREAM_ID</code>.
+        @throws NullPointerException If <code>codec</code> is
+                                     <code>null</code>.
+     */
+    public static void register(Codec codec)
+    {
+        if(codec.id() == StreamHandler.STREAM_ID)
+            throw new IllegalArgumentException("codec id is reserved");
+
+        Codec   existing = codecs.putIfAbsent(codec.id(), codec);
+
+        if(existing != null && existing != codec)
+            throw new IllegalStateException("codec id already registered");
+    }
+
+    /** Returns the codec with the given id, or <code>null</code> if none is
+        registered. */
+    public static Codec forId(byte id)
+    {
+        return codecs.get(id);
+    }
+
+    /** Encoder for the messages sent on one connection. Calls are made by one
+        thread at a time. */
+    public interface MessageOutput
+    {
+        /** Writes and flushes a request.
+
+            @throws ObjectStreamException If an argument cannot be encoded. The
+                                         connection remains usable.
+            @throws IOException If the connection fails.
+         */
+        void writeRequest(requestObject request) throws IOException;
+
+        /** Writes and flushes a response.
+
+            @throws ObjectStreamException If the return value cannot be
+                                         encoded. The connection remains
+                                         usable.
+            @throws IOException If the connection fails.
+         */
+        void writeResponse(responseObject response) throws IOException;
+    }
+
+    /** Decoder for the messages received on one connection. */
+    public interface MessageInput
+    {
+        /** Reads the next request.
+
+            @throws EOFException If the connection is closed between messages.
+            @throws IOException If the connection fails.
+            @throws ClassNotFoundException If a class named in the request is
+                                           not available.
+         */
+        requestObject readRequest() throws IOException, ClassNotFoundException;
+
+        /** Reads the next response.
+
+            @throws EOFException If the connection is closed between messages.
+            @throws IOException If the connection fails.
+            @throws ClassNotFoundException If a class named in the response is
+                                           not available.
+         */
+        responseObject readResponse()
+            throws IOException, ClassNotFoundException;
+    }
+}
@@ -0,0 +1,484 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import common.Path;
+
+/* Codec with a binary encoding for the types used by the filesystem
+ * interfaces. Each message is sent as a length followed by its encoding, and
+ * is encoded completely before any of it is written, so a value which cannot
+ * be encoded leaves the connection usable. Values of any other type are sent
+ * as serialized Java objects. */
+public class CompactCodec extends Codec {
+
+	/* Type tags preceding each encoded value */
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte BYTES = 5;
+	private static final byte STRING = 6;
+	private static final byte STRING_ARRAY = 7;
+	private static final byte PATH = 8;
+	private static final byte PATH_ARRAY = 9;
+	private static final byte OBJECT_ARRAY = 10;
+	private static final byte STUB = 11;
+	private static final byte EXCEPTION = 12;
+	private static final byte SERIALIZED = 13;
+
+	/* Longest message accepted. Buffers for a message grow as its bytes
+	 * arrive, so a corrupt length cannot allocate more than was sent */
+	static final int MAX_MESSAGE_LENGTH = 256 * 1024 * 1024;
+	private static final int RECEIVE_CHUNK = 64 * 1024;
+	/* Fewest bytes taken by an encoded value, path or stack frame, by which
+	 * the element counts in a message are bounded */
+	private static final int MIN_VALUE_SIZE = 1;
+	private static final int MIN_PATH_SIZE = 4;
+	private static final int MIN_FRAME_SIZE = 9;
+
+	public byte id() {
+		return 1;
+	}
+
+	public MessageOutput output(OutputStream stream) {
+		final DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(stream));
+
+		return new MessageOutput() {
+			public void writeRequest(requestObject request)
+					throws IOException {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				DataOutputStream message = new DataOutputStream(buffer);
+
+				message.writeLong(request.getRequestId());
+				message.writeLong(request.getMethodId());
+				writeValue(message, request.getArgs());
+
+				send(buffer);
+			}
+
+			public void writeResponse(responseObject response)
+					throws IOException {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				DataOutputStream message = new DataOutputStream(buffer);
+
+				message.writeLong(response.getRequestId());
+				message.writeBoolean(response.isException());
+				writeValue(message, response.getReturn());
+
+				send(buffer);
+			}
+
+			private void send(ByteArrayOutputStream buffer)
+					throws IOException {
+				out.writeInt(buffer.size());
+				buffer.writeTo(out);
+				out.flush();
+			}
+		};
+	}
+
+	public MessageInput input(InputStream stream) {
+		final DataInputStream in =
+				new DataInputStream(new BufferedInputStream(stream));
+
+		return new MessageInput() {
+			public requestObject readRequest()
+					throws IOException, ClassNotFoundException {
+				DataInputStream message = receive();
+
+				long requestId = message.readLong();
+				long methodId = message.readLong();
+				Object args = readValue(message);
+
+				if(args != null && !(args instanceof Object[])) {
+					throw new StreamCorruptedException("arguments expected");
+				}
+
+				return new requestObject(requestId, methodId, (Object[]) args);
+			}
+
+			public responseObject readResponse()
+					throws IOException, ClassNotFoundException {
+				DataInputStream message = receive();
+
+				long requestId = message.readLong();
+				boolean isException = message.readBoolean();
+				Object serverReturn = readValue(message);
+
+				return new responseObject(requestId, isException,
+						serverReturn);
+			}
+
+			/* reads a whole message, so that the stream stays in step even
+			 * if the message cannot be decoded */
+			private DataInputStream receive() throws IOException {
+				int length = in.readInt();
+				if(length < 0 || length > MAX_MESSAGE_LENGTH) {
+					throw new StreamCorruptedException("invalid length " +
+							length);
+				}
+
+				byte[] message = new byte[Math.min(length, RECEIVE_CHUNK)];
+				int received = 0;
+				while(received < length) {
+					if(received == message.length) {
+						message = Arrays.copyOf(message,
+								(int) Math.min(length, 2L * received));
+					}
+					int count = in.read(message, received,
+							message.length - received);
+					if(count < 0) {
+						throw new EOFException();
+					}
+					received += count;
+				}
+
+				return new DataInputStream(new ByteArrayInputStream(message));
+			}
+		};
+	}
+
+	/* Writes a value preceded by its type tag */
+	private static void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if(value == null) {
+			out.writeByte(NULL);
+		}
+		else if(value instanceof Boolean) {
+			out.writeByte(((Boolean) value) ? TRUE : FALSE);
+		}
+		else if(value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		}
+		else if(value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}
+		else if(value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		else if(value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}
+		else if(value.getClass() == String[].class) {
+			String[] strings = (String[]) value;
+			out.writeByte(STRING_ARRAY);
+			out.writeInt(strings.length);
+			for(int i = 0; i < strings.length; i++) {
+				writeValue(out, strings[i]);
+			}
+		}
+		else if(value.getClass() == Path.class) {
+			out.writeByte(PATH);
+			writePath(out, (Path) value);
+		}
+		else if(value.getClass() == Path[].class) {
+			Path[] paths = (Path[]) value;
+			out.writeByte(PATH_ARRAY);
+			out.writeInt(paths.length);
+			for(int i = 0; i < paths.length; i++) {
+				writePath(out, paths[i]);
+			}
+		}
+		else if(value.getClass() == Object[].class) {
+			Object[] values = (Object[]) value;
+			out.writeByte(OBJECT_ARRAY);
+			out.writeInt(values.length);
+			for(int i = 0; i < values.length; i++) {
+				writeValue(out, values[i]);
+			}
+		}
+		else if(isStub(value)) {
+			out.writeByte(STUB);
+			writeStub(out, value);
+		}
+		else if(isSimpleException(value)) {
+			out.writeByte(EXCEPTION);
+			writeException(out, (Throwable) value);
+		}
+		else {
+			/* any other type is serialized. NotSerializableException is
+			 * thrown before anything is sent */
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream serialized = new ObjectOutputStream(buffer);
+			serialized.writeObject(value);
+			serialized.close();
+
+			out.writeByte(SERIALIZED);
+			out.writeInt(buffer.size());
+			buffer.writeTo(out);
+		}
+	}
+
+	/* Reads a value written by writeValue */
+	private static Object readValue(DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		byte tag = in.readByte();
+
+		switch(tag) {
+		case NULL:
+			return null;
+		case FALSE:
+			return false;
+		case TRUE:
+			return true;
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case BYTES:
+			byte[] bytes = new byte[readLength(in, 1)];
+			in.readFully(bytes);
+			return bytes;
+		case STRING:
+			return readString(in);
+		case STRING_ARRAY:
+			String[] strings = new String[readLength(in, MIN_VALUE_SIZE)];
+			for(int i = 0; i < strings.length; i++) {
+				strings[i] = (String) readValue(in);
+			}
+			return strings;
+		case PATH:
+			return readPath(in);
+		case PATH_ARRAY:
+			Path[] paths = new Path[readLength(in, MIN_PATH_SIZE)];
+			for(int i = 0; i < paths.length; i++) {
+				paths[i] = readPath(in);
+			}
+			return paths;
+		case OBJECT_ARRAY:
+			Object[] values = new Object[readLength(in, MIN_VALUE_SIZE)];
+			for(int i = 0; i < values.length; i++) {
+				values[i] = readValue(in);
+			}
+			return values;
+		case STUB:
+			return readStub(in);
+		case EXCEPTION:
+			return readException(in);
+		case SERIALIZED:
+			byte[] serialized = new byte[readLength(in, 1)];
+			in.readFully(serialized);
+			ObjectInputStream objectIn = new ObjectInputStream(
+					new ByteArrayInputStream(serialized));
+			return objectIn.readObject();
+		default:
+			throw new StreamCorruptedException("unknown type " + tag);
+		}
+	}
+
+	/* Reads the number of elements which follow, each taking at least the
+	 * given number of bytes. The count is checked against the bytes left in
+	 * the message before any array is allocated for it */
+	private static int readLength(DataInputStream in, int elementSize)
+			throws IOException {
+		int length = in.readInt();
+		if(length < 0 || (long) length * elementSize > in.available()) {
+			throw new StreamCorruptedException("invalid length " + length);
+		}
+		return length;
+	}
+
+	/* Strings are sent as their length and UTF-8 encoding, since
+	 * writeUTF cannot send strings longer than 64 KB */
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readLength(in, 1)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/* Paths are sent as their string form */
+	private static void writePath(DataOutputStream out, Path path)
+			throws IOException {
+		writeString(out, path.toString());
+	}
+
+	private static Path readPath(DataInputStream in) throws IOException {
+		try {
+			return new Path(readString(in));
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException("invalid path");
+		}
+	}
+
+	private static boolean isStub(Object value) {
+		return Proxy.isProxyClass(value.getClass()) &&
+				Proxy.getInvocationHandler(value)
+					instanceof RMIInvocationHandler;
+	}
+
+	/* Stubs are sent as their interface, address and codec. The address is
+	 * sent with its numeric form when it has one, so that the receiver does
+	 * not have to look the hostname up */
+	private static void writeStub(DataOutputStream out, Object stub)
+			throws IOException {
+		RMIInvocationHandler handler =
+				(RMIInvocationHandler) Proxy.getInvocationHandler(stub);
+		InetSocketAddress address = handler.getAddress();
+
+		out.writeUTF(handler.getintface().getName());
+		out.writeByte(handler.getCodecId());
+		out.writeUTF(address.getHostString());
+		out.writeInt(address.getPort());
+
+		if(address.isUnresolved()) {
+			out.writeInt(0);
+		}
+		else {
+			byte[] ip = address.getAddress().getAddress();
+			out.writeInt(ip.length);
+			out.write(ip);
+		}
+	}
+
+	private static Object readStub(DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		Class<?> intface = Class.forName(in.readUTF());
+		Codec codec = Codec.forId(in.readByte());
+		String host = in.readUTF();
+		int port = in.readInt();
+		byte[] ip = new byte[readLength(in, 1)];
+		in.readFully(ip);
+
+		if(codec == null) {
+			throw new InvalidClassException("stub uses an unknown codec");
+		}
+
+		InetSocketAddress address;
+		if(ip.length == 0) {
+			address = InetSocketAddress.createUnresolved(host, port);
+		}
+		else {
+			address = new InetSocketAddress(
+					InetAddress.getByAddress(host, ip), port);
+		}
+
+		try {
+			return Stub.create(intface, address, codec);
+		} catch (Error e) {
+			throw new InvalidClassException(intface.getName(),
+					"not a remote interface");
+		}
+	}
+
+	/* Exceptions whose type can be rebuilt from a message are sent as their
+	 * type, message, stack trace and cause. Other exceptions are serialized */
+	private static boolean isSimpleException(Object value) {
+		if(!(value instanceof Throwable) ||
+				((Throwable) value).getSuppressed().length != 0 ||
+				!Modifier.isPublic(value.getClass().getModifiers())) {
+			return false;
+		}
+
+		try {
+			value.getClass().getConstructor(String.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static void writeException(DataOutputStream out, Throwable t)
+			throws IOException {
+		out.writeUTF(t.getClass().getName());
+		out.writeBoolean(t.getMessage() != null);
+		if(t.getMessage() != null) {
+			writeString(out, t.getMessage());
+		}
+
+		StackTraceElement[] trace = t.getStackTrace();
+		out.writeInt(trace.length);
+		for(StackTraceElement frame : trace) {
+			out.writeUTF(frame.getClassName());
+			out.writeUTF(frame.getMethodName());
+			out.writeBoolean(frame.getFileName() != null);
+			if(frame.getFileName() != null) {
+				out.writeUTF(frame.getFileName());
+			}
+			out.writeInt(frame.getLineNumber());
+		}
+
+		/* the cause is sent as any other value, so a cause which is not
+		 * simple is serialized */
+		Throwable cause = t.getCause();
+		writeValue(out, cause == t ? null : cause);
+	}
+
+	private static Throwable readException(DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		String className = in.readUTF();
+		String message = in.readBoolean() ? readString(in) : null;
+
+		StackTraceElement[] trace =
+				new StackTraceElement[readLength(in, MIN_FRAME_SIZE)];
+		for(int i = 0; i < trace.length; i++) {
+			String declaringClass = in.readUTF();
+			String methodName = in.readUTF();
+			String fileName = in.readBoolean() ? in.readUTF() : null;
+			trace[i] = new StackTraceElement(declaringClass, methodName,
+					fileName, in.readInt());
+		}
+
+		Object cause = readValue(in);
+		if(cause != null && !(cause instanceof Throwable)) {
+			throw new StreamCorruptedException("cause is not an exception");
+		}
+
+		Class<?> type = Class.forName(className);
+		if(!Throwable.class.isAssignableFrom(type)) {
+			throw new InvalidClassException(className, "not an exception");
+		}
+
+		Throwable t;
+		try {
+			Constructor<?> constructor = type.getConstructor(String.class);
+			t = (Throwable) constructor.newInstance(message);
+		} catch (Exception e) {
+			throw new InvalidClassException(className,
+					"cannot be constructed");
+		}
+
+		t.setStackTrace(trace);
+		if(cause != null) {
+			try {
+				t.initCause((Throwable) cause);
+			} catch (IllegalStateException e) {
+				/* the constructor already set a cause */
+			}
+		}
+		return t;
+	}
+}
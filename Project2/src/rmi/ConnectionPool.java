@@ -0,0 +1,112 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Long-lived connections shared by all stubs which connect to the same
+ * skeleton address with the same codec. New connections are opened only while
+ * every existing connection is busy, up to MAX_CONNECTIONS per address. */
+public class ConnectionPool {
+
+	public static final int MAX_CONNECTIONS = 4;
+
+	/* Maps a skeleton address to its pools, one for each codec */
+	private static ConcurrentHashMap<InetSocketAddress, ConnectionPool[]>
+			pools = new ConcurrentHashMap<InetSocketAddress, ConnectionPool[]>();
+
+	private InetSocketAddress address;
+	private Codec codec;
+	private ArrayList<StubConnection> connections =
+			new ArrayList<StubConnection>();
+	/* Number of connections being opened, which count against the limit */
+	private int connecting = 0;
+
+	private ConnectionPool(InetSocketAddress address, Codec codec) {
+		this.address = address;
+		this.codec = codec;
+	}
+
+	/* Returns the pool for the given address and codec, creating it if
+	 * needed */
+	public static ConnectionPool forAddress(InetSocketAddress address,
+			Codec codec) {
+		ConnectionPool[] byCodec = pools.get(address);
+
+		if(byCodec == null) {
+			pools.putIfAbsent(address, new ConnectionPool[256]);
+			byCodec = pools.get(address);
+		}
+
+		int index = codec.id() & 0xff;
+		synchronized(byCodec) {
+			if(byCodec[index] == null) {
+				byCodec[index] = new ConnectionPool(address, codec);
+			}
+			return byCodec[index];
+		}
+	}
+
+	/* Returns the least busy connection, opening a new one if all existing
+	 * connections have calls outstanding and the limit is not reached. The
+	 * new connection is opened outside the monitor, so that a slow or
+	 * unreachable server does not hold up callers which can use a connection
+	 * already open. A slot is reserved for it while it connects */
+	public StubConnection acquire() throws IOException {
+		synchronized(this) {
+			while(true) {
+				StubConnection best = null;
+				for(StubConnection c : connections) {
+					if(best == null ||
+							c.getPendingCalls() < best.getPendingCalls()) {
+						best = c;
+					}
+				}
+
+				boolean full =
+						connections.size() + connecting >= MAX_CONNECTIONS;
+				if(best != null && (best.getPendingCalls() == 0 || full)) {
+					return best;
+				}
+				if(!full) {
+					connecting++;
+					break;
+				}
+
+				//Every slot is taken by a connection still being opened
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted waiting for connection");
+				}
+			}
+		}
+
+		StubConnection connection = null;
+		try {
+			connection = new StubConnection(this, address, codec);
+			return connection;
+		} finally {
+			synchronized(this) {
+				connecting--;
+				if(connection != null) {
+					connections.add(connection);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/* Returns the number of open connections */
+	synchronized int size() {
+		return connections.size();
+	}
+
+	/* Called by a connection when it is closed */
+	public synchronized void remove(StubConnection connection) {
+		connections.remove(connection);
+	}
+
+}
@@ -8,17 +8,42 @@ package rmi;
 
 import java.net.InetSocketAddress;
 
+/* Skeleton whose owner can wait for it to stop. The listening thread may stop
+ * and notify before the owner waits, so the owner waits while isStopped is
+ * false rather than for a single notify */
 public class GracefulSkeleton<T> extends Skeleton<T> {
 	
+	/* Set when the listening thread has stopped, and while the skeleton has
+	 * not been started */
+	private boolean stopped = true;
+	
 	public GracefulSkeleton(Class<T> c, T server, InetSocketAddress address) {
 		super(c, server, address);
 	}
 
+	@Override
+	public synchronized void start() throws RMIException {
+		this.stopped = false;
+		try {
+			super.start();
+		} catch (RMIException e) {
+			//No listening thread was started to report the stop
+			this.stopped = true;
+			throw e;
+		}
+	}
+
 	@Override
 	protected void stopped(Throwable cause){
 		synchronized(this){
-			this.notify();
+			this.stopped = true;
+			this.notifyAll();
 		}
 	}
 	
+	/* Returns true once the listening thread has stopped */
+	public synchronized boolean isStopped() {
+		return this.stopped;
+	}
+	
 }
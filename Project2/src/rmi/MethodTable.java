@@ -0,0 +1,119 @@
+package rmi;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Table of the methods of a remote interface, keyed by method id.
+ *
+ * A method id is derived from the method's name, parameter types and return
+ * type, so a stub and a skeleton built from the same interface agree on the
+ * ids without exchanging them, and a stub built from a different version of a
+ * method finds no match rather than calling the wrong method. Stubs send the
+ * id in place of the method's name and types, and skeletons look the method
+ * up once here instead of by reflection on every request. */
+public class MethodTable {
+
+	/* Tables are built once per interface and shared */
+	private static ConcurrentHashMap<Class<?>, MethodTable> tables =
+			new ConcurrentHashMap<Class<?>, MethodTable>();
+
+	private HashMap<Long, Method> methods = new HashMap<Long, Method>();
+	private ConcurrentHashMap<Method, Long> ids =
+			new ConcurrentHashMap<Method, Long>();
+
+	private MethodTable(Class<?> intface) {
+		Method[] interfaceMethods = intface.getMethods();
+
+		for(int i = 0; i < interfaceMethods.length; i++) {
+			long id = methodId(interfaceMethods[i]);
+			Method existing = methods.get(id);
+
+			/* two methods with the same id could not be told apart */
+			if(existing != null && !sameSignature(existing,
+					interfaceMethods[i])) {
+				throw new Error("methods " + existing + " and " +
+						interfaceMethods[i] + " have the same id");
+			}
+
+			methods.put(id, interfaceMethods[i]);
+			ids.put(interfaceMethods[i], id);
+		}
+	}
+
+	/* Returns the table for the given interface, building it if needed */
+	public static MethodTable forInterface(Class<?> intface) {
+		MethodTable table = tables.get(intface);
+
+		if(table == null) {
+			tables.putIfAbsent(intface, new MethodTable(intface));
+			table = tables.get(intface);
+		}
+
+		return table;
+	}
+
+	/* Returns the method with the given id, or null if there is none */
+	public Method getMethod(long id) {
+		return methods.get(id);
+	}
+
+	/* Returns the id of a method of the interface */
+	public long getId(Method method) {
+		Long id = ids.get(method);
+
+		/* the proxy may pass an equivalent method declared by another
+		 * interface */
+		if(id == null) {
+			id = methodId(method);
+			ids.put(method, id);
+		}
+
+		return id;
+	}
+
+	/* Computes the id of a method from the first eight bytes of the SHA-1
+	 * digest of its signature */
+	private static long methodId(Method method) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(method.getName());
+		sb.append("(");
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for(int i = 0; i < parameterTypes.length; i++) {
+			if(i > 0)
+				sb.append(",");
+			sb.append(parameterTypes[i].getName());
+		}
+		sb.append(")");
+		sb.append(method.getReturnType().getName());
+
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(
+					sb.toString().getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-1 is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("UTF-8 is not available", e);
+		}
+
+		long id = 0;
+		for(int i = 0; i < 8; i++) {
+			id = (id << 8) | (digest[i] & 0xff);
+		}
+
+		return id;
+	}
+
+	/* Methods inherited from several interfaces appear more than once */
+	private static boolean sameSignature(Method a, Method b) {
+		return a.getName().equals(b.getName()) &&
+				a.getReturnType().equals(b.getReturnType()) &&
+				Arrays.equals(a.getParameterTypes(),
+						b.getParameterTypes());
+	}
+}
@@ -11,12 +11,20 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
 	private int port;
 	private InetSocketAddress address;
 	private Class intface;
+	/* id of the codec used on connections to the skeleton */
+	private byte codecId;
 	
 	public RMIInvocationHandler(InetSocketAddress address, Class c) {
+		this(address, c, Codec.SERIALIZATION);
+	}
+	
+	public RMIInvocationHandler(InetSocketAddress address, Class<?> c, 
+			Codec codec) {
 		this.hostname = address.getHostName();
 		this.port = address.getPort();
 		this.address = address;
 		this.intface = c;
+		this.codecId = codec.id();
 	}
 	
 	public Object invoke(Object proxy, Method method, Object[] args) throws Exception  {
@@ -32,19 +40,20 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
 			return r.getintface().getName() + " " + r.getAddress().toString();
 		}
 		
-		/* Returns a hashCode based on implementing interface and network address 
-		 * if local method hashCode is called */
+		/* Returns a hashCode based on implementing interface, network address 
+		 * and codec if local method hashCode is called */
 		if(method.getName().equals("hashCode") && method.getReturnType().getName()
 				.equals("int") && method.getParameterTypes().length == 0) {
 			
 			RMIInvocationHandler r = (RMIInvocationHandler) 
 					java.lang.reflect.Proxy.getInvocationHandler(proxy);
 			
-			return r.getintface().hashCode() * r.getAddress().hashCode();		
+			return (r.getintface().hashCode() * r.getAddress().hashCode()) ^ 
+					r.getCodecId();
 		}
 		
 		/* Determines if two proxy objects are equal based on the interface 
-		 * they implement and address they connect to */
+		 * they implement, address they connect to and codec they use */
 		if(method.getName().equals("equals")&&method.getReturnType().getName().
 				equals("boolean") && method.getParameterTypes().length == 1) {
 			
@@ -58,38 +67,45 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
 					Proxy.getInvocationHandler(args[0]);
 			
 			if(r.getintface().equals(q.getintface()) 
-					&& r.getAddress().equals(q.getAddress()) ) {
+					&& r.getAddress().equals(q.getAddress())
+					&& r.getCodecId() == q.getCodecId()) {
 				return true;
 			}
 			else
 				return false;		
 		}
 		
-		Socket connection;
 		responseObject serverReturn = null;
+		Codec codec = Codec.forId(codecId);
+		if(codec == null) {
+			throw new RMIException("codec " + codecId + " is not registered");
+		}
+		ConnectionPool pool = ConnectionPool.forAddress(address, codec);
+		long methodId = MethodTable.forInterface(intface).getId(method);
 		
 		try {
-			/* Connects to server and forwards information and 
-			 * Receives a response. Throws an RMIException if 
-			 * Problems occurred */
-			connection = new Socket(hostname, port);
-			ObjectOutputStream out = 
-					new ObjectOutputStream(connection.getOutputStream());
-			out.flush();
-			ObjectInputStream in = 
-					new ObjectInputStream(connection.getInputStream());
-			/* Sends method, parameter types, return type,
-			 * and arguements */
-			out.writeObject(method.getName());
-			out.writeObject(method.getParameterTypes());
-			out.writeObject(method.getReturnType().getName());
-			out.writeObject(args); 
-			serverReturn = (responseObject) in.readObject();			
-			connection.close();
+			/* Forwards the method id and arguments over a shared connection 
+			 * to the server and receives a response. Throws an RMIException 
+			 * if problems occurred */
+			long timeout = Stub.getCallTimeout();
+			for(int attempt = 0; ; attempt++) {
+				StubConnection connection = pool.acquire();
+				try {
+					serverReturn = connection.call(methodId, args, timeout);
+					break;
+				} catch (StubConnection.NotSentException e) {
+					/* The server closed the connection, while stopping, 
+					 * before reading the request. The call was not made and
+					 * can be sent again on another connection, of which the
+					 * pool holds at most MAX_CONNECTIONS that may be closing
+					 * too. Calls which may have been read are never sent 
+					 * again, as they need not be idempotent */
+					if(attempt == ConnectionPool.MAX_CONNECTIONS)
+						throw e;
+				}
+			}
 		} catch (IOException e) {
-			throw new RMIException(e.getCause());
-		} catch (ClassNotFoundException e) {
-			throw new RMIException(e.getCause());
+			throw new RMIException(e);
 		}
 			
 		/* if the method on the server threw an exception, 
@@ -107,5 +123,9 @@ public class RMIInvocationHandler implements InvocationHandler, Serializable {
 	
 	public InetSocketAddress getAddress() {
 		return address; 
-	}	
+	}
+	
+	public byte getCodecId() {
+		return codecId;
+	}
 }
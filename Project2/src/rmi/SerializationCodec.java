@@ -0,0 +1,71 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.WriteAbortedException;
+
+/* Codec sending requests and responses as serialized Java objects over one
+ * object stream per connection */
+public class SerializationCodec extends Codec {
+
+	public byte id() {
+		return 0;
+	}
+
+	public MessageOutput output(OutputStream stream) throws IOException {
+		final ObjectOutputStream out = new ObjectOutputStream(stream);
+		out.flush();
+
+		return new MessageOutput() {
+			public void writeRequest(requestObject request)
+					throws IOException {
+				write(request);
+			}
+
+			public void writeResponse(responseObject response)
+					throws IOException {
+				write(response);
+			}
+
+			/* streams are reset after every message so that objects which
+			 * are sent again are not replaced with back references. If an
+			 * object cannot be serialized the stream tells the reader to
+			 * discard the message, so the connection stays usable */
+			private void write(Object message) throws IOException {
+				out.writeObject(message);
+				out.reset();
+				out.flush();
+			}
+		};
+	}
+
+	public MessageInput input(InputStream stream) throws IOException {
+		final ObjectInputStream in = new ObjectInputStream(stream);
+
+		return new MessageInput() {
+			public requestObject readRequest()
+					throws IOException, ClassNotFoundException {
+				return (requestObject) read();
+			}
+
+			public responseObject readResponse()
+					throws IOException, ClassNotFoundException {
+				return (responseObject) read();
+			}
+
+			/* skips messages the writer was unable to finish */
+			private Object read() throws IOException, ClassNotFoundException {
+				while(true) {
+					try {
+						return in.readObject();
+					} catch (WriteAbortedException e) {
+						continue;
+					}
+				}
+			}
+		};
+	}
+}
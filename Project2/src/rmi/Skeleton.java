@@ -3,6 +3,13 @@ package rmi;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** RMI skeleton
@@ -21,6 +28,24 @@ import java.net.*;
     <code>RMIException</code>, in addition to any other exceptions that the user
     desires.
 
+    <p>
+    Requests are performed on an executor, by default a pool of at most
+    <code>DEFAULT_THREADS</code> threads. A different executor may be set with
+    <code>setExecutor</code>. The number of requests outstanding at once and
+    the number of open connections are bounded. Requests and connections over
+    these bounds are rejected, and the rejection is reported to
+    <code>service_error</code>.
+
+    <p>
+    The skeleton serves stubs using any registered <code>Codec</code>. Stubs
+    created from the skeleton use the codec set with <code>setCodec</code>,
+    by default <code>Codec.SERIALIZATION</code>.
+
+    <p>
+    Bulk data may bypass the codec on stream connections opened with
+    <code>Stub.openStream</code>, which are served by the handler set with
+    <code>setStreamHandler</code>.
+
     <p>
     Exceptions may occur at the top level in the listening and service threads.
     The skeleton's response to these exceptions can be customized by deriving
@@ -29,6 +54,12 @@ import java.net.*;
 */
 public class Skeleton<T>
 {
+    /** Number of threads in the default request executor. */
+    public static final int DEFAULT_THREADS = 256;
+    /** Default bound on requests being performed or waiting for a thread. */
+    public static final int DEFAULT_MAX_REQUESTS = 4096;
+    /** Default bound on open connections from stubs. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
     
 	private int port = 0;
 	private String HostName = null; 
@@ -38,6 +69,23 @@ public class Skeleton<T>
 	private listenThread listen = null;
 	private ServerSocket listen_socket;
 	private Class intface = null;
+	/* methods of the interface, resolved once at construction */
+	private MethodTable methodTable = null;
+	/* connections from stubs which are currently open */
+	private Set<dispatchThread> connections = Collections.newSetFromMap(
+			new ConcurrentHashMap<dispatchThread, Boolean>());
+	/* executor set by the user, or null to use the default pool */
+	private ExecutorService executor = null;
+	/* executor performing requests while the server is running */
+	private volatile ExecutorService activeExecutor = null;
+	private volatile int maxRequests = DEFAULT_MAX_REQUESTS;
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	/* codec used by stubs created from this skeleton */
+	private volatile Codec codec = Codec.SERIALIZATION;
+	/* serves stream connections, or null if they are refused */
+	private volatile StreamHandler streamHandler = null;
+	/* requests being performed or waiting for a thread */
+	private AtomicInteger outstandingRequests = new AtomicInteger();
 	
 	
 	/** Creates a <code>Skeleton</code> with no initial server address. The
@@ -71,6 +119,7 @@ public class Skeleton<T>
     	if(c.isInterface() && throwRMIcheck(c)) {
     		this.server = server;
     		this.intface = c;
+    		this.methodTable = MethodTable.forInterface(c);
     	}
     	else {
     		throw new Error("error");
@@ -110,6 +159,7 @@ public class Skeleton<T>
     	if(c.isInterface() && throwRMIcheck(c)) {
     		this.intface = c;
     		this.server = server;
+    		this.methodTable = MethodTable.forInterface(c);
     		this.port = address.getPort();
         	this.HostName = address.getHostName();
     	}
@@ -178,7 +228,8 @@ public class Skeleton<T>
         <p>
         A thread is created to listen for connection requests, and the method
         returns immediately. Additional threads are created when connections are
-        accepted. The network address used for the server is determined by which
+        accepted. Connections are kept open by stubs, and each may carry many
+        requests. The network address used for the server is determined by which
         constructor was used to create the <code>Skeleton</code> object.
 
         @throws RMIException When the listening socket cannot be created or
@@ -194,8 +245,20 @@ public class Skeleton<T>
     		/* set running flag */
     		setisRunning(true);
     		
+    		/* requests are performed on the user's executor, or on a new 
+    		 * default pool each time the server starts */
+    		if(executor != null) {
+    			activeExecutor = executor;
+    		}
+    		else {
+    			activeExecutor = SkeletonExecutors.fixed(DEFAULT_THREADS);
+    		}
+    		
     		try {
-				listen_socket = new ServerSocket(getPort());	
+				/* the socket is opened through a channel so that stream
+				 * connections can be handed a channel of their own */
+				listen_socket = ServerSocketChannel.open().socket();
+				listen_socket.bind(new InetSocketAddress(getPort()));
 				
 				/* set port number */
 				this.port = listen_socket.getLocalPort();					
@@ -222,9 +285,10 @@ public class Skeleton<T>
     /** Stops the skeleton server, if it is already running.
 
         <p>
-        The listening thread terminates. Threads created to service connections
-        may continue running until their invocations of the <code>service</code>
-        method return. The server stops at some later time; the method
+        The listening thread terminates, and open connections stop accepting
+        requests. Threads created to service connections may continue running
+        until their invocations of the <code>service</code> method return, after
+        which the connections are closed. The server stops at some later time; the method
         <code>stopped</code> is called at that point. The server may then be
         restarted.
      */
@@ -239,6 +303,104 @@ public class Skeleton<T>
 		} catch (IOException e) {			
 			System.err.println("Unable to close the connection");
 		}
+    	
+    	/* stop reading requests from connections which stubs keep open */
+    	for(dispatchThread connection : connections) {
+    		connection.shutdown();
+    	}
+    	
+    	/* the default pool finishes requests it has accepted and its threads
+    	 * then exit */
+    	if(executor == null && activeExecutor != null) {
+    		activeExecutor.shutdown();
+    	}
+    }
+    
+    /** Sets the executor on which requests are performed.
+
+        <p>
+        The executor takes effect the next time the skeleton is started. The
+        skeleton does not shut down an executor set with this method. Standard
+        executors are available from <code>SkeletonExecutors</code>.
+
+        @param executor The executor, or <code>null</code> to use a pool of
+                        <code>DEFAULT_THREADS</code> threads.
+     */
+    public synchronized void setExecutor(ExecutorService executor)
+    {
+    	this.executor = executor;
+    }
+    
+    /** Sets the maximum number of requests which may be performed or wait
+        for a thread at once.
+
+        <p>
+        A request arriving while this many requests are outstanding is
+        rejected: the stub receives an <code>RMIException</code>, and
+        <code>service_error</code> is called.
+
+        @param maxRequests The maximum number of outstanding requests.
+        @throws IllegalArgumentException If <code>maxRequests</code> is not
+                                         positive.
+     */
+    public void setMaxRequests(int maxRequests)
+    {
+    	if(maxRequests <= 0) {
+    		throw new IllegalArgumentException();
+    	}
+    	this.maxRequests = maxRequests;
+    }
+    
+    /** Sets the maximum number of connections which may be open at once.
+
+        <p>
+        A connection accepted while this many connections are open is closed
+        immediately, and <code>service_error</code> is called.
+
+        @param maxConnections The maximum number of open connections.
+        @throws IllegalArgumentException If <code>maxConnections</code> is not
+                                         positive.
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+    	if(maxConnections <= 0) {
+    		throw new IllegalArgumentException();
+    	}
+    	this.maxConnections = maxConnections;
+    }
+    
+    /** Sets the codec used by stubs subsequently created from this skeleton.
+
+        <p>
+        The skeleton continues to serve stubs using any registered codec, so
+        stubs created earlier are unaffected.
+
+        @param codec The codec.
+        @throws NullPointerException If <code>codec</code> is
+                                     <code>null</code>.
+     */
+    public void setCodec(Codec codec)
+    {
+    	if(codec == null) {
+    		throw new NullPointerException();
+    	}
+    	this.codec = codec;
+    }
+    
+    /** Returns the codec used by stubs created from this skeleton. */
+    public Codec getCodec()
+    {
+    	return codec;
+    }
+    
+    /** Sets the handler for stream connections to this skeleton.
+
+        @param handler The handler, or <code>null</code> to refuse stream
+                       connections.
+     */
+    public void setStreamHandler(StreamHandler handler)
+    {
+    	this.streamHandler = handler;
     }
 
 	/* Helper methods to set and retrieve local variables */
@@ -266,6 +428,53 @@ public class Skeleton<T>
 		return intface;
 	}
 	
+	MethodTable getMethodTable() {
+		return methodTable;
+	}
+	
+	StreamHandler getStreamHandler() {
+		return streamHandler;
+	}
+	
+	/* Connections register themselves so that they can be shut down */
+	void addConnection(dispatchThread connection) {
+		connections.add(connection);
+	}
+	
+	void removeConnection(dispatchThread connection) {
+		connections.remove(connection);
+	}
+	
+	boolean acceptsConnection() {
+		return connections.size() < maxConnections;
+	}
+	
+	/* Hands a request to the executor. Returns false if the request is 
+	 * rejected because too many requests are outstanding */
+	boolean execute(final Runnable request) {
+		if(outstandingRequests.incrementAndGet() > maxRequests) {
+			outstandingRequests.decrementAndGet();
+			return false;
+		}
+		
+		try {
+			activeExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						request.run();
+					} finally {
+						outstandingRequests.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			outstandingRequests.decrementAndGet();
+			return false;
+		}
+		
+		return true;
+	}
+	
 	/* Method checks that every method in Class c throws an RMIException */
 	private static boolean throwRMIcheck(Class c) {
     	Method[] methods = c.getMethods();
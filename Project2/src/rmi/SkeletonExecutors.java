@@ -0,0 +1,140 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Executors on which a <code>Skeleton</code> may perform requests.
+
+    <p>
+    An executor is given to a skeleton with <code>Skeleton.setExecutor</code>
+    before the skeleton is started. The number of requests waiting for a thread
+    is bounded by the skeleton itself, so the executors returned here need not
+    bound their queues.
+ */
+public abstract class SkeletonExecutors
+{
+    /** Idle pool threads exit after this many seconds. */
+    private static final long   KEEP_ALIVE_SECONDS = 60;
+
+    /** Returns a pool of at most <code>threads</code> threads.
+
+        <p>
+        Threads are created as requests arrive and exit when idle, so an idle
+        skeleton holds no threads. Requests which arrive while all threads are
+        busy wait in a queue. If requests performed by the skeleton block
+        waiting for other requests - as lock requests do - the pool must have
+        enough threads for every such request that may wait at once.
+
+        @param threads The maximum number of threads.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive.
+     */
+    public static ExecutorService fixed(int threads)
+    {
+        ThreadPoolExecutor  pool =
+            new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                                   TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /** Returns a work-stealing pool with the given parallelism.
+
+        <p>
+        This pool suits skeletons whose requests are short and do not block,
+        such as storage server data requests.
+
+        @param parallelism The number of threads which run requests.
+        @throws IllegalArgumentException If <code>parallelism</code> is not
+                                         positive.
+     */
+    public static ExecutorService workStealing(int parallelism)
+    {
+        return new ForkJoinPool(parallelism);
+    }
+
+    /** Determines whether the running Java platform supports virtual
+        threads.
+
+        @return <code>true</code> if <code>virtualThreads</code> can create an
+                executor, <code>false</code> otherwise.
+     */
+    public static boolean supportsVirtualThreads()
+    {
+        return virtualThreadFactoryMethod() != null;
+    }
+
+    /** Returns an executor which performs each request on a new virtual
+        thread.
+
+        <p>
+        Virtual threads are cheap to create and to block, so this executor
+        suits skeletons whose requests may wait a long time for other
+        requests, such as the naming server's lock requests. Since each request
+        has its own thread, requests can never be held up waiting for a thread
+        while the requests they wait for cannot run.
+
+        @throws UnsupportedOperationException If the Java platform does not
+                                              support virtual threads.
+     */
+    public static ExecutorService virtualThreads()
+    {
+        Method  factory = virtualThreadFactoryMethod();
+
+        if(factory == null)
+        {
+            throw new UnsupportedOperationException("virtual threads are " +
+                                                    "not supported");
+        }
+
+        try
+        {
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch(Exception e)
+        {
+            throw new UnsupportedOperationException("unable to create " +
+                                                    "virtual thread executor",
+                                                    e);
+        }
+    }
+
+    /** Returns an executor which performs each request on its own thread.
+
+        <p>
+        Virtual threads are used where the Java platform supports them.
+        Otherwise, platform threads are created as needed and reused when
+        idle. The number of threads is limited only by the skeleton's bound on
+        outstanding requests.
+     */
+    public static ExecutorService threadPerRequest()
+    {
+        if(supportsVirtualThreads())
+            return virtualThreads();
+
+        return Executors.newCachedThreadPool();
+    }
+
+    /** Looks up <code>Executors.newVirtualThreadPerTaskExecutor</code>, which
+        exists only on platforms with virtual threads. The method is called
+        reflectively so that the library also runs on earlier platforms. */
+    private static Method virtualThreadFactoryMethod()
+    {
+        try
+        {
+            return Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+        }
+        catch(NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/** Server side of a raw stream connection to a skeleton.
+
+    <p>
+    A connection opened with <code>Stub.openStream</code> bypasses the codec
+    and is handed to the handler set on the skeleton with
+    <code>Skeleton.setStreamHandler</code>. The handler then owns the channel
+    and may transfer data on it directly, for example with
+    <code>FileChannel.transferTo</code>. Stream connections count against the
+    skeleton's connection limit, and are shut down for input when the skeleton
+    is stopped.
+ */
+public interface StreamHandler
+{
+    /** First byte sent on a stream connection, in place of a codec id. No
+        codec may be registered with this id. */
+    public static final byte    STREAM_ID = -1;
+
+    /** Serves a stream connection.
+
+        <p>
+        The method is called on the thread servicing the connection, and the
+        connection is closed when it returns.
+
+        @param channel The connection, in blocking mode. The stream id has
+                       already been read from it.
+        @throws IOException If the connection fails. The exception is passed
+                            to the skeleton's <code>service_error</code>
+                            method.
+     */
+    void serve(SocketChannel channel) throws IOException;
+}
@@ -1,6 +1,9 @@
 package rmi;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.lang.reflect.*;
 import java.lang.reflect.Proxy;
 
@@ -14,11 +17,15 @@ import java.lang.reflect.Proxy;
     <p>
     The network address of the remote server is set when a stub is created, and
     may not be modified afterwards. Two stubs are equal if they implement the
-    same interface and carry the same remote server address - and would
-    therefore connect to the same skeleton. Stubs are serializable.
+    same interface, carry the same remote server address and use the same
+    codec - and would therefore send the same requests to the same skeleton.
+    Stubs are serializable.
  */
 public abstract class Stub
 {
+    /* Time in milliseconds for which calls wait for a response, or zero */
+    private static volatile long callTimeout = 0;
+    
     /** Creates a stub, given a skeleton with an assigned adress.
 
         <p>
@@ -75,7 +82,8 @@ public abstract class Stub
     			getHostName(), skeleton.getPort());
     	
     	/* creates invocation handler */
-    	InvocationHandler handler = new RMIInvocationHandler(address, c);
+    	InvocationHandler handler = new RMIInvocationHandler(address, c,
+    			skeleton.getCodec());
     	
     	/* creates a new proxy object and returns it */
     	Object impl = (T) Proxy.newProxyInstance(c.getClassLoader(), 
@@ -137,7 +145,8 @@ public abstract class Stub
     			skeleton.getPort());
     	
     	/* creates invocation handler */
-    	InvocationHandler handler = new RMIInvocationHandler(address, c);
+    	InvocationHandler handler = new RMIInvocationHandler(address, c,
+    			skeleton.getCodec());
     	
     	/* creates a new proxy object and returns it */
     	Object impl = (T) Proxy.newProxyInstance(c.getClassLoader(), 
@@ -164,10 +173,30 @@ public abstract class Stub
                       this interface cannot be dynamically created.
      */
     public static <T> T create(Class<T> c, InetSocketAddress address)
+    {
+    	return create(c, address, Codec.SERIALIZATION);
+    }
+
+    /** Creates a stub, given the address of a remote server and the codec
+        with which to communicate with it.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param codec The codec used on connections to the skeleton.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> T create(Class<T> c, InetSocketAddress address,
+                               Codec codec)
     {
         
     	/* checks for null inputs */
-    	if(c == null || address == null) {
+    	if(c == null || address == null || codec == null) {
     		throw new NullPointerException();
     	}
     	
@@ -177,7 +206,7 @@ public abstract class Stub
     	}
     	
     	/* creates invocation handler */
-    	InvocationHandler handler = new RMIInvocationHandler(address, c);
+    	InvocationHandler handler = new RMIInvocationHandler(address, c, codec);
     	
     	/* creates a new proxy object and returns it */
     	Object impl = (T) Proxy.newProxyInstance(c.getClassLoader(), 
@@ -187,6 +216,86 @@ public abstract class Stub
     	
     }
     
+    /** Sets the time for which calls through stubs wait for a response.
+
+        <p>
+        A call which receives no response in this time fails with an
+        <code>RMIException</code>, although the server may still perform it.
+        The setting applies to every stub in the virtual machine, and to calls
+        started after it is made. Calls also end with an
+        <code>RMIException</code> if the calling thread is interrupted while
+        waiting.
+
+        @param milliseconds The time in milliseconds, or zero to wait without
+                            limit, which is the default.
+        @throws IllegalArgumentException If <code>milliseconds</code> is
+                                         negative.
+     */
+    public static void setCallTimeout(long milliseconds)
+    {
+    	if(milliseconds < 0) {
+    		throw new IllegalArgumentException();
+    	}
+    	callTimeout = milliseconds;
+    }
+    
+    /** Returns the time for which calls wait for a response, or zero if they
+        wait without limit. */
+    public static long getCallTimeout()
+    {
+    	return callTimeout;
+    }
+    
+    /** Opens a stream connection to the skeleton a stub communicates with.
+
+        <p>
+        The connection bypasses the codec and is served by the stream handler
+        set on the skeleton. If the skeleton has no stream handler, it closes
+        the connection. The caller is responsible for closing the channel.
+
+        @param stub The stub.
+        @return A connected channel in blocking mode.
+        @throws IOException If the connection cannot be opened.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static SocketChannel openStream(Object stub) throws IOException
+    {
+    	if(stub == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if(!Proxy.isProxyClass(stub.getClass()) || 
+    			!(Proxy.getInvocationHandler(stub) 
+    					instanceof RMIInvocationHandler)) {
+    		throw new IllegalArgumentException("not a stub");
+    	}
+    	
+    	InetSocketAddress address = ((RMIInvocationHandler) Proxy.
+    			getInvocationHandler(stub)).getAddress();
+    	
+    	/* connects and names the connection as a stream in place of a codec */
+    	SocketChannel channel = SocketChannel.open();
+    	try {
+    		channel.connect(new InetSocketAddress(address.getHostName(), 
+    				address.getPort()));
+    		channel.socket().setTcpNoDelay(true);
+    		ByteBuffer header = ByteBuffer.allocate(1);
+    		header.put(StreamHandler.STREAM_ID);
+    		header.flip();
+    		while(header.hasRemaining()) {
+    			channel.write(header);
+    		}
+    	} catch (IOException e) {
+    		channel.close();
+    		throw e;
+    	}
+    	
+    	return channel;
+    }
+    
     /* Method checks that every method in Class c throws an RMIException */
     private static boolean throwRMIcheck(Class c) {
     	
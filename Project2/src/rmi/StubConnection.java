@@ -0,0 +1,248 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectStreamException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* A long-lived connection from stubs to a skeleton. Many calls may be
+ * outstanding on the connection at once; each request carries an id and a
+ * reader thread hands every response to the call waiting on that id.
+ *
+ * Requests are written in the order of their ids. A skeleton which closes the
+ * connection first sends a closing notice with the id of the last request it
+ * read, so that the calls after it are known never to have been made and are
+ * failed with NotSentException. Any other failure leaves it unknown whether
+ * the call was made. */
+public class StubConnection implements Runnable {
+
+	/* Time in milliseconds for which a call whose request could not be
+	 * written waits for the skeleton's closing notice */
+	private static final long READER_WAIT = 1000;
+
+	private ConnectionPool pool;
+	private Socket connection;
+	private Codec.MessageOutput out;
+	private Codec.MessageInput in;
+	private Thread reader;
+	/* Calls which have been sent and are waiting for a response */
+	private ConcurrentHashMap<Long, PendingCall> pending =
+			new ConcurrentHashMap<Long, PendingCall>();
+	/* guarded by out */
+	private long nextRequestId = 0;
+	/* flags are volatile for thread safety */
+	private volatile boolean closed = false;
+	/* set on the closing notice, after which no calls are sent */
+	private volatile boolean draining = false;
+	/* id of the last request the skeleton read, from its closing notice */
+	private volatile long lastRead = -1;
+
+	public StubConnection(ConnectionPool pool, InetSocketAddress address,
+			Codec codec) throws IOException {
+		this.pool = pool;
+
+		/* Connects to server, names the codec used on the connection and
+		 * creates the encoder and decoder once for its lifetime */
+		this.connection = new Socket(address.getHostName(), address.getPort());
+		try {
+			this.connection.setTcpNoDelay(true);
+			this.connection.getOutputStream().write(codec.id());
+			this.out = codec.output(connection.getOutputStream());
+			this.in = codec.input(connection.getInputStream());
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+
+		/* start the thread which receives responses */
+		reader = new Thread(this);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/* Sends a request and blocks until the matching response arrives, or
+	 * for at most timeout milliseconds if timeout is positive */
+	public responseObject call(long methodId, Object[] args, long timeout)
+			throws IOException {
+
+		PendingCall call = new PendingCall();
+		long requestId = -1;
+
+		try {
+			synchronized(out) {
+				/* the connection may have been closed before the call was
+				 * registered, in which case no one will complete it */
+				if(closed || draining) {
+					throw new NotSentException("connection closed");
+				}
+				requestId = nextRequestId++;
+				pending.put(requestId, call);
+				try {
+					out.writeRequest(new requestObject(requestId, methodId,
+							args));
+				} catch (IOException e) {
+					pending.remove(requestId);
+					throw e;
+				}
+			}
+		} catch (NotSentException e) {
+			throw e;
+		} catch (ObjectStreamException e) {
+			/* the arguments could not be encoded. The codec leaves the
+			 * connection usable, so only this call fails */
+			throw e;
+		} catch (IOException e) {
+			/* the write may have failed because the skeleton closed the
+			 * connection, in which case its notice tells whether it read the
+			 * request. The notice may still be unread, so the reader is given
+			 * the chance to read up to the end of the connection first */
+			awaitReader();
+			close(e);
+			if(draining && requestId > lastRead)
+				throw new NotSentException(e.getMessage());
+			throw e;
+		}
+
+		try {
+			return call.await(timeout);
+		} finally {
+			pending.remove(requestId);
+		}
+	}
+
+	/* Receives responses and wakes the calls waiting for them */
+	public void run() {
+		try {
+			while(true) {
+				responseObject response = in.readResponse();
+				if(response.getRequestId() == responseObject.CLOSING) {
+					/* no more calls are sent; those already sent are
+					 * answered if the skeleton read them */
+					lastRead = (Long) response.getReturn();
+					draining = true;
+					pool.remove(this);
+					continue;
+				}
+
+				PendingCall call = pending.remove(response.getRequestId());
+				if(call != null)
+					call.complete(response);
+			}
+		} catch (EOFException e) {
+			close(new IOException("connection closed by server"));
+		} catch (IOException e) {
+			close(e);
+		} catch (ClassNotFoundException e) {
+			close(new IOException(e));
+		} catch (ClassCastException e) {
+			close(new IOException("malformed closing notice"));
+		}
+	}
+
+	/* Waits for the reader thread to reach the end of the connection, for
+	 * at most READER_WAIT milliseconds. The output is shut down first, so
+	 * that a skeleton which is still reading closes the connection */
+	private void awaitReader() {
+		try {
+			connection.shutdownOutput();
+		} catch (IOException e) {}
+
+		try {
+			reader.join(READER_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Closes the connection and fails every call still waiting on it */
+	public void close(IOException cause) {
+		if(closed)
+			return;
+		closed = true;
+
+		pool.remove(this);
+		try {
+			connection.close();
+		} catch (IOException e) {}
+
+		/* taking the lock waits for a request being written, so that every
+		 * request sent is failed below */
+		synchronized(out) {}
+
+		for(Long requestId : pending.keySet()) {
+			PendingCall call = pending.remove(requestId);
+			if(call == null)
+				continue;
+			if(draining && requestId > lastRead)
+				call.fail(new NotSentException(cause.getMessage()));
+			else
+				call.fail(cause);
+		}
+	}
+
+	/* Helper methods to retrieve connection state */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getPendingCalls() {
+		return pending.size();
+	}
+
+	/* A call waiting for its response */
+	private static class PendingCall {
+
+		private responseObject response = null;
+		private IOException failure = null;
+
+		public synchronized void complete(responseObject response) {
+			this.response = response;
+			notifyAll();
+		}
+
+		public synchronized void fail(IOException failure) {
+			this.failure = failure;
+			notifyAll();
+		}
+
+		public synchronized responseObject await(long timeout)
+				throws IOException {
+			long deadline = System.currentTimeMillis() + timeout;
+
+			while(response == null && failure == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(timeout > 0 && remaining <= 0) {
+					throw new SocketTimeoutException("no response after " +
+							timeout + " ms");
+				}
+				try {
+					wait(timeout > 0 ? remaining : 0);
+				} catch (InterruptedException e) {
+					/* restore interrupt status for the caller */
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"interrupted waiting for response");
+				}
+			}
+
+			if(failure != null)
+				throw failure;
+
+			return response;
+		}
+	}
+
+	/* Failure of a call which the skeleton is known never to have read, and
+	 * which may therefore be sent again */
+	static class NotSentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NotSentException(String message) {
+			super(message);
+		}
+	}
+}
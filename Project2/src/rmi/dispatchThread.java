@@ -1,87 +1,170 @@
 package rmi;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
 import java.net.*;
 
 public class dispatchThread extends Thread {
 
 	private Socket connection;
 	private Skeleton skeleton;
-	
+	private Codec.MessageOutput out = null;
+	/* Number of requests read from the connection but not yet answered */
+	private int inFlight = 0;
+	/* Set once no more requests will be read from the connection */
+	private boolean closing = false;
+	/* Set when the skeleton stops reading requests */
+	private boolean stopping = false;
+	/* Id of the last request read, for the closing notice */
+	private long lastRead = -1;
+
 	public dispatchThread(Socket connection, Skeleton skeleton) {
 		this.connection = connection;
 		this.skeleton = skeleton;
 	}
 
 	public void run() {
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
-		/* wrapper class to denote if the response is an exception or not */
-		responseObject response = null;
-	
+		Codec.MessageInput in = null;
+
 			try {
-				/* create input and output streams */
-				out = new ObjectOutputStream(connection.getOutputStream());
-				out.flush();
-				in = new ObjectInputStream(connection.getInputStream());
-				
-				/* read in method name, parameter types, return type and 
-				 * arguments */
-				Object methodName = in.readObject();	
-				Object parameterTypes = in.readObject();
-				Object returnType = in.readObject();
-				Object args = in.readObject();
-				
-				/* retrieve the proper Method from the given interface */
-				Method serverMethod = skeleton.getIntface().
-						getMethod((String)methodName,(Class[])parameterTypes);
-
-				/* throw an exception if the return types don't match */
-				if(returnType.equals(serverMethod.
-						getReturnType().getName()) == false ) {	
-					Throwable t = new RMIException("Return Type Mismatch");
-					response = new responseObject(true, t);
+				/* the stub names its codec in the first byte, the encoder
+				 * and decoder are then created once for the lifetime of the
+				 * connection */
+				connection.setTcpNoDelay(true);
+				InputStream stream = connection.getInputStream();
+				int codecId = stream.read();
+				if(codecId == -1) {
+					throw new EOFException();
 				}
-					
-				/* call the proper method on the server */
-				try {
-					Object serverReturn = serverMethod.
-							invoke(skeleton.getServer(), (Object [])args);
-					response = new responseObject(false, serverReturn);
-					/* response in not an exception */
-				} catch(IllegalAccessException e){
-					/* response is an exception */
-					Throwable t = new RMIException(e.getCause());
-					response = new responseObject(true, t);
-				} catch(IllegalArgumentException e) {
-					/* response is an exception */
-					Throwable t = new RMIException(e.getCause());
-					response = new responseObject(true, t);
-				} catch(InvocationTargetException e) {
-					/* Underlying method threw an exception */
-					response = new responseObject(true, e.getCause());
-					out.writeObject(response);
+				if((byte) codecId == StreamHandler.STREAM_ID) {
+					serveStream();
+					return;
+				}
+				Codec codec = Codec.forId((byte) codecId);
+				if(codec == null) {
+					throw new IOException("unknown codec " + codecId);
 				}
-					
-				/* send the return value of the method in a wrapper */
-				out.writeObject(response);
-				connection.close();
+				out = codec.output(connection.getOutputStream());
+				in = codec.input(stream);
+
+				/* read requests until the stub closes the connection, and
+				 * hand each to the skeleton's executor so that a blocking
+				 * call does not hold up the calls behind it */
+				while(true) {
+					requestObject request = in.readRequest();
+					lastRead = request.getRequestId();
+					beginRequest();
+					if(!skeleton.execute(
+							new requestThread(this, skeleton, request))) {
+						/* too many requests are outstanding, tell the stub
+						 * rather than queueing without bound */
+						RMIException e = new RMIException(
+								"request rejected: server busy");
+						skeleton.service_error(e);
+						sendResponse(new responseObject(
+								request.getRequestId(), true, e));
+					}
+				}
+			} catch (EOFException e) {
+				/* stub closed the connection between requests */
 			} catch (ClassNotFoundException e){
 				/* error occurred in the service thread */
-				skeleton.service_error(new RMIException(e.getCause()));
-			} catch (NoSuchMethodException e) {
-				/* error occurred in the service thread */
-				skeleton.service_error(new RMIException(e.getCause()));
-			} catch (SecurityException e) {
-				/* error occurred in the service thread */
-				skeleton.service_error(new RMIException(e.getCause()));
+				skeleton.service_error(new RMIException(e));
 			} catch(IOException e) {
-				/* error occurred in the service thread */
-				skeleton.service_error(new RMIException(e.getCause()));
+				/* error occurred in the service thread, unless the skeleton
+				 * is shutting the connection down */
+				if(!isClosing())
+					skeleton.service_error(new RMIException(e));
+			} finally {
+				finishReading();
+			}
+	}
+
+	/* Hands a stream connection to the skeleton's stream handler */
+	private void serveStream() throws IOException {
+		StreamHandler handler = skeleton.getStreamHandler();
+		if(handler == null || connection.getChannel() == null) {
+			throw new IOException("stream connections are not served");
+		}
+		handler.serve(connection.getChannel());
+	}
+
+	/* Sends the response to a request back on this connection */
+	public void sendResponse(responseObject response) {
+		try {
+			synchronized(out) {
+				try {
+					out.writeResponse(response);
+				} catch (ObjectStreamException e) {
+					/* the return value could not be encoded. The codec
+					 * leaves the connection usable, so report the failure
+					 * in its place */
+					skeleton.service_error(new RMIException(e));
+					out.writeResponse(new responseObject(
+							response.getRequestId(), true,
+							new RMIException(e)));
+				}
 			}
+		} catch (IOException e) {
+			/* error occurred in the service thread */
+			skeleton.service_error(new RMIException(e));
+		} finally {
+			endRequest();
+		}
+	}
+
+	/* Stops reading requests. Requests already read are still answered,
+	 * after which the connection is closed */
+	public void shutdown() {
+		synchronized(this) {
+			closing = true;
+			stopping = true;
+		}
+		try {
+			connection.shutdownInput();
+		} catch (IOException e) {}
+	}
+
+	private synchronized boolean isClosing() {
+		return closing;
+	}
+
+	private synchronized void beginRequest() {
+		inFlight++;
+	}
+
+	private synchronized void endRequest() {
+		inFlight--;
+		if(closing && inFlight == 0) {
+			close();
+		}
+	}
+
+	private synchronized void finishReading() {
+		closing = true;
+
+		/* tell the stub which requests were read, so that it can send the
+		 * others again elsewhere */
+		if(stopping && out != null) {
+			try {
+				synchronized(out) {
+					out.writeResponse(new responseObject(
+							responseObject.CLOSING, false, lastRead));
+				}
+			} catch (IOException e) {}
+		}
+
+		if(inFlight == 0) {
+			close();
+		}
+	}
+
+	private void close() {
+		skeleton.removeConnection(this);
+		try {
+			connection.close();
+		} catch (IOException e) {}
 	}
 }
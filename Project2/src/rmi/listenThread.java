@@ -24,12 +24,26 @@ public class listenThread extends Thread {
 			try {
 				Socket connection = ssocket.accept();
 				
+				/* Refuses connections over the skeleton's limit rather than
+				 * creating a thread for each */
+				if(!skeleton.acceptsConnection()) {
+					connection.close();
+					skeleton.service_error(new RMIException(
+							"connection rejected: too many open connections"));
+					continue;
+				}
+				
 				/* Accepts connection and handles request in a separate 
 				 * thread */
 				dispatchThread dispatch = 
 						new dispatchThread(connection, skeleton);		
-				if(skeleton.isRunning())
-					dispatch.start();			
+				skeleton.addConnection(dispatch);
+				dispatch.start();
+				
+				/* the skeleton may have stopped before the connection was
+				 * registered */
+				if(!skeleton.isRunning())
+					dispatch.shutdown();
 							
 			} catch (IOException e) {
 				/* Handles exceptions based on return of listen error */
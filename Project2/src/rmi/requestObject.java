@@ -0,0 +1,36 @@
+/* Wrapper class for a single method call sent from a stub to a skeleton */
+/* Carries a request id so that responses can be matched to calls when several
+ * calls share one connection, and the id of the method in the interface's
+ * MethodTable in place of its name and types */
+
+package rmi;
+
+import java.io.Serializable;
+
+public class requestObject implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long requestId;
+	private long methodId;
+	private Object[] args = null;
+
+	public requestObject(long requestId, long methodId, Object[] args) {
+		this.requestId = requestId;
+		this.methodId = methodId;
+		this.args = args;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public long getMethodId() {
+		return methodId;
+	}
+
+	public Object[] getArgs() {
+		return args;
+	}
+
+}
@@ -0,0 +1,64 @@
+package rmi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/* Performs a single method call read from a connection and sends the result
+ * back on that connection */
+public class requestThread implements Runnable {
+
+	private dispatchThread dispatch;
+	private Skeleton<?> skeleton;
+	private requestObject request;
+
+	public requestThread(dispatchThread dispatch, Skeleton<?> skeleton,
+			requestObject request) {
+		this.dispatch = dispatch;
+		this.skeleton = skeleton;
+		this.request = request;
+	}
+
+	public void run() {
+		/* wrapper class to denote if the response is an exception or not */
+		responseObject response = null;
+		long requestId = request.getRequestId();
+
+		/* retrieve the proper Method from the interface's method table. A
+		 * stub whose method differs in name, parameter or return types has
+		 * a different id and finds no method */
+		Method serverMethod = skeleton.getMethodTable().
+				getMethod(request.getMethodId());
+
+		if(serverMethod == null) {
+			/* error occurred in the service thread, the stub is still told
+			 * so that it does not wait forever */
+			RMIException e = new RMIException("no such method in " +
+					skeleton.getIntface().getName());
+			skeleton.service_error(e);
+			response = new responseObject(requestId, true, e);
+		}
+		else {
+			/* call the proper method on the server */
+			try {
+				Object serverReturn = serverMethod.
+						invoke(skeleton.getServer(), request.getArgs());
+				/* response in not an exception */
+				response = new responseObject(requestId, false, serverReturn);
+			} catch(IllegalAccessException e){
+				/* response is an exception */
+				Throwable t = new RMIException(e.getCause());
+				response = new responseObject(requestId, true, t);
+			} catch(IllegalArgumentException e) {
+				/* response is an exception */
+				Throwable t = new RMIException(e.getCause());
+				response = new responseObject(requestId, true, t);
+			} catch(InvocationTargetException e) {
+				/* Underlying method threw an exception */
+				response = new responseObject(requestId, true, e.getCause());
+			}
+		}
+
+		/* send the return value of the method in a wrapper */
+		dispatch.sendResponse(response);
+	}
+}
@@ -7,6 +7,13 @@ import java.io.Serializable;
 
 public class responseObject implements Serializable {
 	
+	private static final long serialVersionUID = 1L;
+	
+	/* Request id of the notice sent before the skeleton closes a connection.
+	 * Its return value is the id of the last request read */
+	public static final long CLOSING = -1;
+	
+	private long requestId;
 	private Object serverReturn = null;
 	private boolean isException = false;
 	
@@ -15,6 +22,12 @@ public class responseObject implements Serializable {
 		this.serverReturn = serverReturn;
 	}
 	
+	public responseObject(long requestId, boolean isException, 
+			Object serverReturn) {
+		this(isException, serverReturn);
+		this.requestId = requestId;
+	}
+	
 	public Object getReturn() {
 		return serverReturn;
 	}
@@ -23,4 +36,8 @@ public class responseObject implements Serializable {
 		return isException; 
 	}
 	
+	public long getRequestId() {
+		return requestId;
+	}
+	
 }
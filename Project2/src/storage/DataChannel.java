@@ -0,0 +1,241 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import common.*;
+import rmi.*;
+
+/* Client end of a bulk data connection to a storage server. File data is sent
+ * as raw bytes on a stream connection to the storage skeleton rather than in
+ * serialized responses, so the server can send file regions straight from
+ * disk and reads land directly in the caller's buffer.
+ *
+ * Each request is an operation, offset, length and path, followed for a
+ * write by the data. Each response is a status, followed for a successful
+ * read by the data, for a successful checksum by the CRC-32 of the file, or
+ * for a failure by a message. Requests on one channel are
+ * performed one at a time. */
+public class DataChannel {
+
+	/* Operations */
+	static final byte READ = 1;
+	static final byte WRITE = 2;
+	static final byte CHECKSUM = 3;
+
+	/* Response statuses */
+	static final byte OK = 0;
+	static final byte NOT_FOUND = 1;
+	static final byte OUT_OF_BOUNDS = 2;
+	static final byte FAILED = 3;
+
+	/* Sent by the server when it accepts the connection */
+	static final byte READY = 0;
+
+	/* Size of the fixed part of a request: operation, offset, length and
+	 * path length */
+	static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+	/* Largest encoded path the server accepts, so that a corrupt header
+	 * cannot make it allocate a buffer of any size */
+	static final int MAX_PATH_LENGTH = 64 * 1024;
+
+	private SocketChannel channel;
+	private ByteBuffer status = ByteBuffer.allocate(4);
+
+	private DataChannel(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/* Opens a data channel to the server behind a storage stub. Returns null
+	 * if the server does not serve data channels, in which case data should
+	 * be transferred with the Storage interface */
+	public static DataChannel open(Storage server) throws IOException {
+		SocketChannel channel;
+		try {
+			channel = Stub.openStream(server);
+		} catch (IllegalArgumentException e) {
+			//Not a remote stub
+			return null;
+		}
+
+		//A server without a stream handler closes the connection instead of
+		//answering
+		ByteBuffer ready = ByteBuffer.allocate(1);
+		try {
+			if(!fill(channel, ready)) {
+				channel.close();
+				return null;
+			}
+		} catch (IOException e) {
+			channel.close();
+			return null;
+		}
+
+		return new DataChannel(channel);
+	}
+
+	/* Reads length bytes at offset into the buffer. Throws the same
+	 * exceptions as Storage.read */
+	public synchronized void read(Path file, long offset, byte[] buffer,
+			int bufferOffset, int length) throws IOException {
+		requestRead(file, offset, length);
+		receiveRead(buffer, bufferOffset, length);
+	}
+
+	/* Sends a read request without waiting for its data, so that several
+	 * reads can be in flight while earlier data is being consumed. The data
+	 * of each request must be received with receiveRead, in the order the
+	 * requests were sent, before the channel is used for anything else */
+	public synchronized void requestRead(Path file, long offset, int length)
+			throws IOException {
+		send(request(READ, file, offset, length));
+	}
+
+	/* Receives the data of the oldest read request sent with requestRead,
+	 * whose length must be given. Throws the exceptions Storage.read would
+	 * have thrown for that request */
+	public synchronized void receiveRead(byte[] buffer, int bufferOffset,
+			int length) throws IOException {
+		checkStatus();
+
+		if(!fill(channel, ByteBuffer.wrap(buffer, bufferOffset, length))) {
+			throw closed();
+		}
+	}
+
+	/* Writes length bytes from the buffer at offset. Throws the same
+	 * exceptions as Storage.write */
+	public synchronized void write(Path file, long offset, byte[] buffer,
+			int bufferOffset, int length) throws IOException {
+		requestWrite(file, offset, buffer, bufferOffset, length);
+		receiveWrite();
+	}
+
+	/* Sends a write request and its data without waiting for the result, so
+	 * that several writes can be in flight. The buffer may be reused once
+	 * this returns. The result of each request must be received with
+	 * receiveWrite, in the order the requests were sent, before the channel
+	 * is used for anything else */
+	public synchronized void requestWrite(Path file, long offset,
+			byte[] buffer, int bufferOffset, int length) throws IOException {
+		ByteBuffer header = request(WRITE, file, offset, length);
+		ByteBuffer data = ByteBuffer.wrap(buffer, bufferOffset, length);
+
+		//Header and data are sent with gathering writes, without copying
+		//the data
+		ByteBuffer[] message = new ByteBuffer[] {header, data};
+		while(header.hasRemaining() || data.hasRemaining()) {
+			channel.write(message);
+		}
+	}
+
+	/* Receives the result of the oldest write request sent with
+	 * requestWrite. Throws the exceptions Storage.write would have thrown for
+	 * that request */
+	public synchronized void receiveWrite() throws IOException {
+		checkStatus();
+	}
+
+	/* Returns the CRC-32 of the whole of a file. Throws the same exceptions
+	 * as Storage.size */
+	public synchronized long checksum(Path file) throws IOException {
+		send(request(CHECKSUM, file, 0, 0));
+		checkStatus();
+
+		ByteBuffer value = ByteBuffer.allocate(8);
+		if(!fill(channel, value)) {
+			throw closed();
+		}
+		return value.getLong(0);
+	}
+
+	/* Closes the channel. Errors are ignored */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	private ByteBuffer request(byte operation, Path file, long offset,
+			int length) throws UnsupportedEncodingException {
+		byte[] path = file.toString().getBytes("UTF-8");
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + path.length);
+		header.put(operation);
+		header.putLong(offset);
+		header.putInt(length);
+		header.putInt(path.length);
+		header.put(path);
+		header.flip();
+
+		return header;
+	}
+
+	private void send(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/* Reads the status of a response, throwing the failure it reports */
+	private void checkStatus() throws IOException {
+		status.clear();
+		status.limit(1);
+		if(!fill(channel, status)) {
+			throw closed();
+		}
+
+		byte code = status.get(0);
+		if(code == OK) {
+			return;
+		}
+
+		//Failures carry a message
+		status.clear();
+		if(!fill(channel, status)) {
+			throw closed();
+		}
+		int messageLength = status.getInt(0);
+		if(messageLength < 0) {
+			throw new StreamCorruptedException("negative length");
+		}
+		ByteBuffer message = ByteBuffer.allocate(messageLength);
+		if(!fill(channel, message)) {
+			throw closed();
+		}
+		String text = new String(message.array(), "UTF-8");
+
+		switch(code) {
+		case NOT_FOUND:
+			throw new FileNotFoundException(text);
+		case OUT_OF_BOUNDS:
+			throw new IndexOutOfBoundsException(text);
+		default:
+			throw new IOException(text);
+		}
+	}
+
+	private IOException closed() {
+		close();
+		return new EOFException("data channel closed by server");
+	}
+
+	/* Reads until the buffer is full. Returns false if the connection is
+	 * closed first */
+	static boolean fill(SocketChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
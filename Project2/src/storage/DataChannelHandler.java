@@ -0,0 +1,286 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.Lock;
+
+import common.*;
+import rmi.*;
+
+/* Server end of the data channels opened by DataChannel. Reads are sent with
+ * FileChannel.transferTo, which lets the kernel copy file pages to the socket
+ * without passing them through the heap. Reads of files which are read often
+ * are sent from their memory mapping, as for Storage.read. Writes are
+ * received through a direct buffer and written at their offset in the
+ * file. */
+class DataChannelHandler implements StreamHandler {
+
+	/* Size of the buffer used to receive written data */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private StorageServer server;
+
+	DataChannelHandler(StorageServer server) {
+		this.server = server;
+	}
+
+	@Override
+	public void serve(SocketChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(DataChannel.HEADER_SIZE);
+		ByteBuffer buffer = null;
+
+		channel.socket().setTcpNoDelay(true);
+		send(channel, ByteBuffer.wrap(new byte[] {DataChannel.READY}));
+
+		while(true) {
+			//The client closes the connection between requests when done
+			header.clear();
+			if(!DataChannel.fill(channel, header)) {
+				return;
+			}
+			header.flip();
+
+			byte operation = header.get();
+			long offset = header.getLong();
+			int length = header.getInt();
+			int pathLength = header.getInt();
+			if(length < 0 || pathLength < 0) {
+				throw new StreamCorruptedException("negative length");
+			}
+			if(pathLength > DataChannel.MAX_PATH_LENGTH) {
+				throw new StreamCorruptedException("invalid path length " +
+						pathLength);
+			}
+
+			ByteBuffer pathBytes = ByteBuffer.allocate(pathLength);
+			if(!DataChannel.fill(channel, pathBytes)) {
+				throw new EOFException();
+			}
+
+			long arrival = server.load().begin();
+			try {
+				if(operation == DataChannel.READ) {
+					read(channel, pathBytes.array(), offset, length, arrival);
+				}
+				else if(operation == DataChannel.WRITE) {
+					if(buffer == null) {
+						buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+					}
+					write(channel, buffer, pathBytes.array(), offset, length,
+							arrival);
+				}
+				else if(operation == DataChannel.CHECKSUM) {
+					checksum(channel, pathBytes.array(), arrival);
+				}
+				else {
+					throw new StreamCorruptedException("unknown operation " +
+							operation);
+				}
+			} finally {
+				server.load().end();
+			}
+		}
+	}
+
+	private void read(SocketChannel channel, byte[] path, long offset,
+			int length, long arrival) throws IOException {
+		Path file;
+		try {
+			file = toPath(path);
+		} catch (IOException e) {
+			sendFailure(channel, e);
+			return;
+		}
+
+		//The file is locked for the whole transfer, as for Storage.read
+		ArrayList<Lock> held = server.lock(file, false);
+		server.load().served(arrival);
+		try {
+			sendFile(channel, file, offset, length);
+		} finally {
+			server.unlock(held);
+		}
+	}
+
+	private void sendFile(SocketChannel channel, Path path, long offset,
+			int length) throws IOException {
+		MappedFileCache.Handle mapped;
+		FileChannelCache.Handle handle = null;
+		try {
+			mapped = server.openMapped(path, offset, length);
+			if(mapped == null) {
+				handle = server.openForRead(path, offset, length);
+			}
+		} catch (Exception e) {
+			sendFailure(channel, e);
+			return;
+		}
+
+		if(mapped != null) {
+			try {
+				ByteBuffer view = mapped.buffer();
+				view.limit((int)offset + length);
+				view.position((int)offset);
+				send(channel, ByteBuffer.wrap(new byte[] {DataChannel.OK}));
+				send(channel, view);
+			} finally {
+				mapped.release();
+			}
+			return;
+		}
+
+		try {
+			send(channel, ByteBuffer.wrap(new byte[] {DataChannel.OK}));
+
+			FileChannel file = handle.channel();
+			long position = offset;
+			long end = offset + length;
+			while(position < end) {
+				long sent = file.transferTo(position, end - position, channel);
+				if(sent <= 0) {
+					//The file was truncated after the request was checked.
+					//The client cannot be told, so the connection is dropped
+					throw new EOFException("file truncated during read");
+				}
+				position += sent;
+			}
+
+			server.countRead(path, file);
+		} finally {
+			handle.release();
+		}
+	}
+
+	private void write(SocketChannel channel, ByteBuffer buffer, byte[] path,
+			long offset, int length, long arrival) throws IOException {
+		FileChannelCache.Handle handle = null;
+		FileChannel file = null;
+		Exception failure = null;
+		ArrayList<Lock> held = null;
+		try {
+			Path target = toPath(path);
+			held = server.lock(target, true);
+			server.load().served(arrival);
+			handle = server.openForWrite(target, offset);
+			file = handle.channel();
+		} catch (Exception e) {
+			failure = e;
+		}
+
+		try {
+			long position = offset;
+			int remaining = length;
+
+			//The data is received even if it cannot be written, so that the
+			//connection stays in step
+			while(remaining > 0) {
+				buffer.clear();
+				if(remaining < buffer.capacity()) {
+					buffer.limit(remaining);
+				}
+				if(channel.read(buffer) == -1) {
+					throw new EOFException();
+				}
+				buffer.flip();
+				remaining -= buffer.remaining();
+
+				while(file != null && buffer.hasRemaining()) {
+					try {
+						position += file.write(buffer, position);
+					} catch (IOException e) {
+						failure = e;
+						file = null;
+					}
+				}
+			}
+		} finally {
+			if(handle != null) {
+				handle.release();
+			}
+			if(held != null) {
+				server.unlock(held);
+			}
+		}
+
+		if(failure != null) {
+			sendFailure(channel, failure);
+		}
+		else {
+			send(channel, ByteBuffer.wrap(new byte[] {DataChannel.OK}));
+		}
+	}
+
+	private void checksum(SocketChannel channel, byte[] path, long arrival)
+			throws IOException {
+		long value;
+		try {
+			Path file = toPath(path);
+			ArrayList<Lock> held = server.lock(file, false);
+			server.load().served(arrival);
+			try {
+				value = server.checksum(file);
+			} finally {
+				server.unlock(held);
+			}
+		} catch (Exception e) {
+			sendFailure(channel, e);
+			return;
+		}
+
+		ByteBuffer response = ByteBuffer.allocate(1 + 8);
+		response.put(DataChannel.OK);
+		response.putLong(value);
+		response.flip();
+		send(channel, response);
+	}
+
+	private Path toPath(byte[] path) throws IOException {
+		try {
+			return new Path(new String(path, "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			throw new FileNotFoundException("invalid path");
+		}
+	}
+
+	/* Reports a failure with the status matching the exception Storage would
+	 * have thrown */
+	private void sendFailure(SocketChannel channel, Exception e)
+			throws IOException {
+		byte code;
+		if(e instanceof FileNotFoundException) {
+			code = DataChannel.NOT_FOUND;
+		}
+		else if(e instanceof IndexOutOfBoundsException) {
+			code = DataChannel.OUT_OF_BOUNDS;
+		}
+		else {
+			code = DataChannel.FAILED;
+		}
+
+		String text = e.getMessage() == null ? "" : e.getMessage();
+		byte[] message = text.getBytes("UTF-8");
+
+		ByteBuffer response = ByteBuffer.allocate(1 + 4 + message.length);
+		response.put(code);
+		response.putInt(message.length);
+		response.put(message);
+		response.flip();
+		send(channel, response);
+	}
+
+	private static void send(SocketChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.*;
+
+/* Bounded cache of open file channels, so that reads and writes of a file do
+ * not each open and close it. Channels are opened for reading and writing and
+ * used only with positional reads and writes, so callers share a channel
+ * without coordinating a file position.
+ *
+ * The least recently used channel is evicted when the cache is full. A
+ * channel which is evicted or invalidated while in use is closed once its
+ * last user releases it. */
+class FileChannelCache {
+
+	private int capacity;
+	private LinkedHashMap<Path, Handle> handles;
+
+	FileChannelCache(int capacity) {
+		this.capacity = capacity;
+		//Access order makes iteration start from the least recently used
+		this.handles = new LinkedHashMap<Path, Handle>(16, 0.75f, true);
+	}
+
+	/* Returns a handle for a file, opening the file if it is not cached. The
+	 * handle must be released after use. Throws FileNotFoundException if the
+	 * file does not exist or is a directory */
+	Handle acquire(Path path, File file, boolean write) throws IOException {
+		synchronized(this) {
+			Handle handle = handles.get(path);
+			if(handle != null) {
+				handle.users++;
+				return handle;
+			}
+		}
+
+		if(!file.exists() || file.isDirectory()) {
+			throw new FileNotFoundException();
+		}
+
+		//Opened outside the cache lock, as opening may block. Readers share
+		//the path lock, so another reader may have opened the file meanwhile
+		FileChannel channel;
+		try {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		} catch (FileNotFoundException e) {
+			if(write) {
+				throw e;
+			}
+			//A file which cannot be written is read through a channel of
+			//its own, which is closed when it is released
+			Handle uncached =
+					new Handle(new RandomAccessFile(file, "r").getChannel());
+			uncached.discarded = true;
+			return uncached;
+		}
+
+		Handle handle = new Handle(channel);
+		Handle duplicate = null;
+		ArrayList<Handle> evicted = new ArrayList<Handle>();
+
+		synchronized(this) {
+			Handle existing = handles.get(path);
+			if(existing != null) {
+				existing.users++;
+				duplicate = handle;
+				handle = existing;
+			}
+			else {
+				handles.put(path, handle);
+			}
+
+			Iterator<Handle> eldest = handles.values().iterator();
+			while(handles.size() > capacity && eldest.hasNext()) {
+				Handle h = eldest.next();
+				if(h != handle) {
+					eldest.remove();
+					evicted.add(h);
+				}
+			}
+		}
+
+		if(duplicate != null) {
+			duplicate.close();
+		}
+		for(Handle h : evicted) {
+			h.discard();
+		}
+
+		return handle;
+	}
+
+	/* Drops the channels of a path and everything beneath it, before the
+	 * files are deleted or replaced */
+	void invalidate(Path path) {
+		ArrayList<Handle> invalidated = new ArrayList<Handle>();
+
+		synchronized(this) {
+			Iterator<Map.Entry<Path, Handle>> entries =
+					handles.entrySet().iterator();
+			while(entries.hasNext()) {
+				Map.Entry<Path, Handle> entry = entries.next();
+				if(entry.getKey().isSubpath(path)) {
+					entries.remove();
+					invalidated.add(entry.getValue());
+				}
+			}
+		}
+
+		for(Handle h : invalidated) {
+			h.discard();
+		}
+	}
+
+	/* A cached channel and the number of callers using it */
+	class Handle {
+
+		private FileChannel channel;
+		private int users = 1;
+		private boolean discarded = false;
+
+		private Handle(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		FileChannel channel() {
+			return channel;
+		}
+
+		void release() {
+			synchronized(FileChannelCache.this) {
+				users--;
+				if(!discarded || users > 0) {
+					return;
+				}
+			}
+			close();
+		}
+
+		private void discard() {
+			synchronized(FileChannelCache.this) {
+				discarded = true;
+				if(users > 0) {
+					return;
+				}
+			}
+			close();
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import naming.StorageLoad;
+
+/* Load of the storage server, reported to the naming server. Counts the client
+ * requests in progress, including those waiting for locks, and keeps a moving
+ * average of the time requests wait for their locks before being served. The
+ * time taken to serve a request is left out: it depends mostly on the amount
+ * of data moved, and a large transfer does not make the server busy. Each
+ * request moves the average an eighth of the way to its own wait */
+class LoadMonitor {
+
+	private static final int AVERAGE_SHIFT = 3;
+
+	private AtomicInteger inProgress = new AtomicInteger();
+	private AtomicLong wait = new AtomicLong();
+
+	/* Counts a request as started. Returns the arrival time, which must be
+	 * passed to served */
+	long begin() {
+		this.inProgress.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/* Records the time a request waited from its arrival until it holds its
+	 * locks and is about to be served */
+	void served(long arrival) {
+		long elapsed = System.nanoTime() - arrival;
+
+		long average, updated;
+		do {
+			average = this.wait.get();
+			updated = average == 0 ? elapsed :
+				average + ((elapsed - average) >> AVERAGE_SHIFT);
+		} while(!this.wait.compareAndSet(average, updated));
+	}
+
+	/* Counts a request as finished */
+	void end() {
+		this.inProgress.decrementAndGet();
+	}
+
+	/* Returns the current load, with the space of the filesystem holding the
+	 * given directory. The space is reported as unknown if the filesystem
+	 * cannot be queried, in which case its size is given as zero */
+	StorageLoad sample(File root) {
+		long free = root.getUsableSpace();
+		long total = root.getTotalSpace();
+		if(total == 0) {
+			free = -1;
+			total = -1;
+		}
+		return new StorageLoad(free, total, this.inProgress.get(),
+				this.wait.get());
+	}
+}
@@ -0,0 +1,291 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.*;
+
+/* Memory mappings of files which are read often, so that reads of them are
+ * copied straight from the page cache without a system call. A file is mapped
+ * once it has been read HOT_READS times without being written, matching the
+ * number of shared locks after which the naming server replicates a file.
+ *
+ * The total size of the mappings is kept within a budget. Mapped bytes are
+ * counted from the time a file is about to be mapped until it is unmapped. A
+ * file is mapped only if its mapping fits in the budget after the least
+ * recently read mappings are dropped. A dropped mapping is unmapped at once,
+ * or once its last reader releases it, rather than when it is garbage
+ * collected. Where the runtime cannot unmap explicitly, nothing is mapped. */
+class MappedFileCache {
+
+	static final int HOT_READS = 20;
+
+	/* Number of unmapped files whose reads are counted */
+	private static final int COUNTED_FILES = 4096;
+
+	/* sun.misc.Unsafe and its invokeCleaner method, which unmaps a mapped
+	 * buffer, or null if they are not available */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field instance = type.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			unsafe = instance.get(null);
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private long budget;
+	/* Bytes of mappings which are not unmapped yet, including dropped
+	 * mappings still in use and mappings being made */
+	private long mappedBytes = 0;
+	private LinkedHashMap<Path, Handle> mappings =
+			new LinkedHashMap<Path, Handle>(16, 0.75f, true);
+	private LinkedHashMap<Path, Integer> reads =
+			new LinkedHashMap<Path, Integer>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Path, Integer> eldest) {
+					return size() > COUNTED_FILES;
+				}
+			};
+
+	MappedFileCache(long budget) {
+		this.budget = budget;
+	}
+
+	/* Returns whether mappings can be unmapped explicitly, without which no
+	 * file is mapped */
+	static boolean canUnmap() {
+		return INVOKE_CLEANER != null;
+	}
+
+	/* Changes the budget, dropping mappings over the new budget. Dropped
+	 * mappings in use are counted until they are released */
+	void setBudget(long budget) {
+		ArrayList<Handle> evicted = new ArrayList<Handle>();
+		synchronized(this) {
+			this.budget = budget;
+			evict(0, evicted);
+		}
+		discard(evicted);
+	}
+
+	/* Returns the number of bytes mapped, including dropped mappings which
+	 * are still in use */
+	synchronized long mappedBytes() {
+		return mappedBytes;
+	}
+
+	/* Returns a handle for the mapping of a file, or null if it is not
+	 * mapped. The handle must be released after use, and its buffers must
+	 * not be used after it is released */
+	synchronized Handle acquire(Path path) {
+		Handle handle = mappings.get(path);
+		if(handle != null) {
+			handle.users++;
+		}
+		return handle;
+	}
+
+	/* Counts a read of an unmapped file, and maps the file once it is hot.
+	 * The caller holds the path lock for reading. A file which cannot be
+	 * mapped is read through its channel as before */
+	void read(Path path, FileChannel channel) throws IOException {
+		synchronized(this) {
+			if(!canUnmap() || mappings.containsKey(path)) {
+				return;
+			}
+			Integer count = reads.get(path);
+			count = (count == null) ? 1 : count + 1;
+			if(count < HOT_READS) {
+				reads.put(path, count);
+				return;
+			}
+			reads.remove(path);
+		}
+
+		long size = channel.size();
+		if(size == 0 || size > Integer.MAX_VALUE) {
+			return;
+		}
+
+		//Room is made by unmapping the least recently read mappings. The
+		//bytes are then reserved before mapping, so that mappings being made
+		//at the same time cannot together exceed the budget. If readers still
+		//hold the dropped mappings, the file is not mapped this time
+		ArrayList<Handle> evicted = new ArrayList<Handle>();
+		synchronized(this) {
+			if(size > budget) {
+				return;
+			}
+			evict(size, evicted);
+		}
+		discard(evicted);
+		synchronized(this) {
+			if(mappedBytes + size > budget) {
+				return;
+			}
+			mappedBytes += size;
+		}
+
+		//Mapped outside the lock. Another reader may map the file at the
+		//same time, in which case one mapping is kept
+		Handle handle;
+		try {
+			handle = new Handle(
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} catch (IOException e) {
+			synchronized(this) {
+				mappedBytes -= size;
+			}
+			return;
+		}
+
+		synchronized(this) {
+			if(!mappings.containsKey(path)) {
+				mappings.put(path, handle);
+				return;
+			}
+		}
+		handle.discard();
+	}
+
+	/* Drops the mapping and read count of a file before it is written */
+	void invalidateFile(Path path) {
+		Handle handle;
+		synchronized(this) {
+			handle = mappings.remove(path);
+			reads.remove(path);
+		}
+		if(handle != null) {
+			handle.discard();
+		}
+	}
+
+	/* Drops the mappings and read counts of a path and everything beneath it,
+	 * before the files are deleted or replaced */
+	void invalidate(Path path) {
+		ArrayList<Handle> invalidated = new ArrayList<Handle>();
+
+		synchronized(this) {
+			Iterator<Map.Entry<Path, Handle>> entries =
+					mappings.entrySet().iterator();
+			while(entries.hasNext()) {
+				Map.Entry<Path, Handle> entry = entries.next();
+				if(entry.getKey().isSubpath(path)) {
+					entries.remove();
+					invalidated.add(entry.getValue());
+				}
+			}
+
+			Iterator<Path> counted = reads.keySet().iterator();
+			while(counted.hasNext()) {
+				if(counted.next().isSubpath(path)) {
+					counted.remove();
+				}
+			}
+		}
+
+		discard(invalidated);
+	}
+
+	/* Drops the least recently read mappings until room more bytes fit in
+	 * the budget, or no mappings are left. The caller holds the cache
+	 * lock, and discards the dropped mappings after releasing it */
+	private void evict(long room, ArrayList<Handle> evicted) {
+		Iterator<Handle> eldest = mappings.values().iterator();
+		while(mappedBytes + room > budget && eldest.hasNext()) {
+			Handle handle = eldest.next();
+			eldest.remove();
+			evicted.add(handle);
+			//The bytes of a mapping in use are counted until it is released
+			if(handle.users == 0) {
+				room -= handle.mapping.capacity();
+			}
+		}
+	}
+
+	private static void discard(ArrayList<Handle> handles) {
+		for(Handle h : handles) {
+			h.discard();
+		}
+	}
+
+	/* A mapping and the number of readers using it */
+	class Handle {
+
+		private MappedByteBuffer mapping;
+		private int users = 0;
+		private boolean discarded = false;
+
+		private Handle(MappedByteBuffer mapping) {
+			this.mapping = mapping;
+		}
+
+		/* Returns a view of the whole mapping. Each view has its own
+		 * position, so readers may use views of a mapping concurrently */
+		ByteBuffer buffer() {
+			return mapping.duplicate();
+		}
+
+		void release() {
+			synchronized(MappedFileCache.this) {
+				users--;
+				if(!discarded || users > 0) {
+					return;
+				}
+			}
+			unmap();
+		}
+
+		private void discard() {
+			synchronized(MappedFileCache.this) {
+				discarded = true;
+				if(users > 0) {
+					return;
+				}
+			}
+			unmap();
+		}
+
+		//Unmapped before its bytes are returned to the budget, so that the
+		//budget bounds what is actually mapped
+		private void unmap() {
+			long size = mapping.capacity();
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, mapping);
+			} catch (Exception e) {
+				//Left to be unmapped when it is garbage collected
+			}
+			mapping = null;
+			synchronized(MappedFileCache.this) {
+				mappedBytes -= size;
+			}
+		}
+	}
+}
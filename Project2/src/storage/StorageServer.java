@@ -8,7 +8,23 @@ package storage;
 
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
 
 import common.*;
 import rmi.*;
@@ -23,10 +39,52 @@ import naming.*;
  */
 public class StorageServer implements Storage, Command
 {
-    private Skeleton<Storage> storageSkeleton;
-    private Skeleton<Command> commandSkeleton;
+    static final int LOCK_STRIPES = 256;
+    private static final int OPEN_FILES = 128;
+    private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+    /* Number of files sent to the naming server in each registration call */
+    private static final int REGISTRATION_BATCH = 4096;
+    /* Interval between load reports to the naming server, in milliseconds */
+    private static final long LOAD_REPORT_INTERVAL = 1000;
+    /* Names of the temporary files copies are fetched into. The random part
+     * is the number added by File.createTempFile */
+    private static final String COPY_PREFIX = ".";
+    private static final String COPY_SUFFIX = ".copy";
+    private static final String COPY_PATTERN = "\\..+\\.[0-9]+\\.copy";
+    
+    /** Default limit on the size of the mappings of frequently read files. */
+    public static final long DEFAULT_MAPPED_BYTES_BUDGET = 256L * 1024 * 1024;
+    
+    private GracefulSkeleton<Storage> storageSkeleton;
+    private GracefulSkeleton<Command> commandSkeleton;
     private File root;
-    private boolean ioExceptionThrown = false;
+    /* Per-path locks, so that operations on unrelated files do not wait for
+     * each other and readers of a file share it */
+    private StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+    /* Open channels of recently used files */
+    private FileChannelCache channels = new FileChannelCache(OPEN_FILES);
+    /* Mappings of files which are read often */
+    private MappedFileCache mappings = 
+    		new MappedFileCache(DEFAULT_MAPPED_BYTES_BUDGET);
+    /* Fetches the next chunk of each copy while the last is written */
+    private ExecutorService copyFetcher = 
+    		Executors.newCachedThreadPool(new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r);
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    /* Requests in progress and their waits, reported to the naming server */
+    private LoadMonitor load = new LoadMonitor();
+    private ScheduledExecutorService loadReporter = 
+    		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r);
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
 
 	/** Creates a storage server, given a directory on the local filesystem, and
         ports to use for the client and command interfaces.
@@ -59,6 +117,13 @@ public class StorageServer implements Storage, Command
       //Create GracefulSkeleton which notifies StorageServer when stopped
         this.commandSkeleton = 
         		new GracefulSkeleton<Command>(Command.class, this, commandAddr);
+        
+        //Stubs sent to the naming server and its clients use the compact codec
+        this.storageSkeleton.setCodec(Codec.COMPACT);
+        this.commandSkeleton.setCodec(Codec.COMPACT);
+        
+        //Serve bulk file data on stream connections to the storage port
+        this.storageSkeleton.setStreamHandler(new DataChannelHandler(this));
     }
 
     /** Creats a storage server, given a directory on the local filesystem.
@@ -80,6 +145,15 @@ public class StorageServer implements Storage, Command
     /** Starts the storage server and registers it with the given naming
         server.
 
+        <p>
+        If the naming server stub implements <code>BatchRegistration</code>,
+        the files are sent in batches, and only those the naming server does
+        not already know, and the storage server then reports its load to the
+        naming server every second. The storage server is identified to the
+        naming server by the hostname and the directory it serves, so that it
+        is recognized when it restarts on other ports. Otherwise, all files
+        are sent with a single call to <code>register</code>.
+
         @param hostname The externally-routable hostname of the local host on
                         which the storage server is running. This is used to
                         ensure that the stub which is provided to the naming
@@ -111,23 +185,55 @@ public class StorageServer implements Storage, Command
         Command commandStub = 
         		Stub.create(Command.class, this.commandSkeleton, hostname);
         
+        //Copies left by a crash are incomplete, and are not files of the
+        //server. No copy is in progress before the server is registered
+        removeCopyTemporaries(this.root);
+        
         //Register with naming server by sending stubs and path list
-    	Path[] dupList = 
-    	naming_server.register(storageStub, commandStub, Path.list(this.root));
+    	Path[] files = Path.list(this.root);
     	
-    	//Delete any files the naming server says are already stored elsewhere
-    	for (Path p : dupList){
-    		this.delete(p);
+    	if (naming_server instanceof BatchRegistration){
+    		this.registerInBatches((BatchRegistration)naming_server,
+    				identity(hostname, this.root), storageStub, commandStub,
+    				files);
+    		this.reportLoad((BatchRegistration)naming_server, storageStub);
+    	} else {
+    		Path[] dupList = 
+    			naming_server.register(storageStub, commandStub, files);
+    		this.deleteAll(dupList);
     	}
     	
-    	//Delete empty directories
-    	pruneEmptyDirectories(this.root);
+    	//Delete empty directories, with the whole tree locked
+    	ArrayList<Lock> held = this.locks.lock(new Path(), true);
+    	try {
+    		pruneEmptyDirectories(this.root);
+    	} finally {
+    		this.locks.unlock(held);
+    	}
+    }
+    
+    private void removeCopyTemporaries(File node){
+    	File[] directoryListing = node.listFiles();
+    	if (directoryListing == null){
+    		return;
+    	}
+    	
+    	for (File f : directoryListing){
+    		if (f.isDirectory()){
+    			removeCopyTemporaries(f);
+    		} else if (f.getName().matches(COPY_PATTERN)){
+    			f.delete();
+    		}
+    	}
     }
     
     private boolean pruneEmptyDirectories(File node){
     	boolean safeToDelete = true;
     	
     	File[] directoryListing = node.listFiles();
+    	if (directoryListing == null){
+    		return false;
+    	}
     	
     	for (File f : directoryListing){
     		if (f.isDirectory()){
@@ -145,6 +251,116 @@ public class StorageServer implements Storage, Command
     	return safeToDelete;
     }
 
+    /* Registers with a naming server which accepts files in batches. Only the
+     * files in buckets of the digest which the naming server does not know are
+     * sent, and duplicates are deleted as each batch is answered */
+    private void registerInBatches(BatchRegistration naming_server,
+    		long identity, Storage storageStub, Command commandStub,
+    		Path[] files)
+    	throws RMIException
+    {
+    	RegistrationSession session = naming_server.beginRegistration(
+    			identity, storageStub, commandStub, FileDigest.of(files));
+    	
+    	if (session.mustSendAny()){
+    		ArrayList<Path> batch = new ArrayList<Path>(REGISTRATION_BATCH);
+    		
+    		for (Path p : files){
+    			if (!session.mustSend(p)){
+    				continue;
+    			}
+    			
+    			batch.add(p);
+    			if (batch.size() == REGISTRATION_BATCH){
+    				this.deleteAll(naming_server.registerFiles(session.id(), 
+    						batch.toArray(new Path[batch.size()])));
+    				batch.clear();
+    			}
+    		}
+    		
+    		if (!batch.isEmpty()){
+    			this.deleteAll(naming_server.registerFiles(session.id(), 
+    					batch.toArray(new Path[batch.size()])));
+    		}
+    	}
+    	
+    	naming_server.endRegistration(session.id());
+    }
+    
+    //Returns the identity by which the naming server knows the server across
+    //restarts. The host and the directory served stay the same when the
+    //server restarts on other ports
+    private static long identity(String hostname, File root)
+    {
+    	String directory;
+    	try {
+    		directory = root.getCanonicalPath();
+    	} catch (IOException e) {
+    		directory = root.getAbsolutePath();
+    	}
+    	
+    	UUID name = UUID.nameUUIDFromBytes((hostname + ":" + directory)
+    			.getBytes(StandardCharsets.UTF_8));
+    	long identity =
+    		name.getMostSignificantBits() ^ name.getLeastSignificantBits();
+    	return identity == 0 ? 1 : identity;
+    }
+    
+    //Reports the load of the server to the naming server periodically. A
+    //report which fails on the network is replaced by the next one. Reports
+    //end if the naming server no longer knows the server, or on any other
+    //error, which is printed. An exception thrown from the task ends the
+    //schedule
+    private void reportLoad(final BatchRegistration naming_server,
+    		final Storage storageStub)
+    {
+    	this.loadReporter.scheduleWithFixedDelay(new Runnable() {
+    		public void run() {
+    			try {
+    				naming_server.reportLoad(storageStub, 
+    						load.sample(root));
+    			} catch (RMIException e) {
+    				//Retried at the next interval
+    			} catch (IllegalStateException e) {
+    				throw e;
+    			} catch (RuntimeException | Error e) {
+    				System.err.println("Unable to report load: " + e);
+    				throw e;
+    			}
+    		}
+    	}, 0, LOAD_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    //Delete any files the naming server says are already stored elsewhere
+    private void deleteAll(Path[] dupList)
+    {
+    	for (Path p : dupList){
+    		this.delete(p);
+    	}
+    }
+
+    /** Sets the limit on the total size of memory mappings of frequently read
+        files.
+
+        <p>
+        Files which are read many times without being written are mapped into
+        memory, and reads of them are served from the mapping. Mappings are
+        dropped, least recently read first, to make room for others, and a file
+        is not mapped if its mapping does not fit within the limit. Lowering the
+        limit drops mappings at once, although a mapping is only released when
+        reads in progress from it are complete.
+
+        @param bytes The limit, in bytes, or zero to disable mapping.
+        @throws IllegalArgumentException If <code>bytes</code> is negative.
+     */
+    public void setMappedBytesBudget(long bytes)
+    {
+    	if (bytes < 0){
+    		throw new IllegalArgumentException();
+    	}
+    	this.mappings.setBudget(bytes);
+    }
+
     /** Stops the storage server.
 
         <p>
@@ -155,8 +371,10 @@ public class StorageServer implements Storage, Command
     	this.commandSkeleton.stop();
     	synchronized(this.commandSkeleton){
     		try {
-    			//wait for notify from GracefulSkeleton stopped method
-    			this.commandSkeleton.wait();
+    			//wait for GracefulSkeleton to report that it has stopped
+    			while(!this.commandSkeleton.isStopped()){
+    				this.commandSkeleton.wait();
+    			}
     		} catch (InterruptedException e) {}
     	}
     	
@@ -164,12 +382,21 @@ public class StorageServer implements Storage, Command
     	
     	this.storageSkeleton.stop();
     	synchronized(this.storageSkeleton){
-	    	try {
-	    		//wait for notify from GracefulSkeleton stopped method
-				this.storageSkeleton.wait();
-			} catch (InterruptedException e) {}
+    		try {
+    			//wait for GracefulSkeleton to report that it has stopped
+    			while(!this.storageSkeleton.isStopped()){
+    				this.storageSkeleton.wait();
+    			}
+    		} catch (InterruptedException e) {}
     	}
     	
+    	this.copyFetcher.shutdown();
+    	this.loadReporter.shutdownNow();
+    	
+    	//Close the files left open for reuse
+    	this.channels.invalidate(new Path());
+    	this.mappings.invalidate(new Path());
+    	
     	this.stopped(null);
     }
 
@@ -184,73 +411,222 @@ public class StorageServer implements Storage, Command
 
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
-    	File f = file.toFile(this.root);
-    	
-    	if (!f.exists() || f.isDirectory()){
-    		throw new FileNotFoundException();
+    	long arrival = this.load.begin();
+    	ArrayList<Lock> held = this.locks.lock(file, false);
+    	this.load.served(arrival);
+    	try {
+	    	File f = file.toFile(this.root);
+	    	
+	    	if (!f.exists() || f.isDirectory()){
+	    		throw new FileNotFoundException();
+	    	}
+	    	
+	    	//Get and return the size of file
+	    	long size = f.length();
+	    	return size;
+    	} finally {
+    		this.locks.unlock(held);
+    		this.load.end();
     	}
-    	
-    	//Get and return the size of file
-    	long size = f.length();
-    	return size;
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
-    	File f = file.toFile(this.root);
-    	
-    	if (!f.exists() || f.isDirectory()){
-    		throw new FileNotFoundException();
+    	long arrival = this.load.begin();
+    	ArrayList<Lock> held = this.locks.lock(file, false);
+    	this.load.served(arrival);
+    	try {
+    		return this.readData(file, offset, length);
+    	} finally {
+    		this.locks.unlock(held);
+    		this.load.end();
     	}
-    	
-    	//Handle bad offset and length parameters
-    	if(offset + length > f.length() || offset < 0 || length < 0) {
-    		throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws FileNotFoundException, IOException
+    {
+    	long arrival = this.load.begin();
+    	ArrayList<Lock> held = this.locks.lock(file, true);
+    	this.load.served(arrival);
+    	try {
+    		this.writeData(file, offset, data);
+    	} finally {
+    		this.locks.unlock(held);
+    		this.load.end();
+    	}
+    }
+    
+    //Reads data from a file. The caller holds the lock for the file
+    private byte[] readData(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+    	//Hot files are copied from their mapping
+    	MappedFileCache.Handle mapped = this.openMapped(file, offset, length);
+    	if (mapped != null){
+    		try {
+    			byte[] data = new byte[length];
+    			ByteBuffer view = mapped.buffer();
+    			view.position((int)offset);
+    			view.get(data);
+    			return data;
+    		} finally {
+    			mapped.release();
+    		}
     	}
     	
+    	FileChannelCache.Handle reader = this.openForRead(file, offset, length);
+    	
     	byte[] data = new byte[length];
-    	RandomAccessFile reader = new RandomAccessFile(f, "r");
-    	reader.seek(offset);
-    	reader.read(data, 0, length);
-    	reader.close();
+    	ByteBuffer buffer = ByteBuffer.wrap(data);
+    	try {
+    		while (buffer.hasRemaining()){
+    			if (reader.channel().read(buffer, 
+    					offset + buffer.position()) < 0){
+    				throw new EOFException();
+    			}
+    		}
+    		
+    		this.mappings.read(file, reader.channel());
+    	} finally {
+    		reader.release();
+    	}
     	
     	return data;
     }
-
-    @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    
+    //Writes data to a file. The caller holds the lock for the file
+    private void writeData(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
-    	File f = file.toFile(this.root);
+    	FileChannelCache.Handle writer = this.openForWrite(file, offset);
     	
-    	if (!f.exists() || f.isDirectory()){
-    		throw new FileNotFoundException();
+    	ByteBuffer buffer = ByteBuffer.wrap(data);
+    	try {
+    		while (buffer.hasRemaining()){
+    			writer.channel().write(buffer, offset + buffer.position());
+    		}
+    	} finally {
+    		writer.release();
     	}
+    }
+    
+    //Load monitor counting the data channel's requests with the Storage ones
+    LoadMonitor load()
+    {
+    	return this.load;
+    }
+    
+    //Locks a path for the data channel, which transfers data outside of the
+    //Storage methods
+    ArrayList<Lock> lock(Path file, boolean exclusive)
+    {
+    	return this.locks.lock(file, exclusive);
+    }
+    
+    void unlock(ArrayList<Lock> held)
+    {
+    	this.locks.unlock(held);
+    }
+    
+    //Checks a read request and returns a channel to the file, for read and
+    //the data channel. The caller holds the lock for the file and releases
+    //the channel
+    FileChannelCache.Handle openForRead(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+    	FileChannelCache.Handle reader = 
+    			this.channels.acquire(file, file.toFile(this.root), false);
     	
-    	if (offset < 0){
+    	//Handle bad offset and length parameters
+    	try {
+	    	if(offset < 0 || length < 0 || 
+	    			offset + length > reader.channel().size()) {
+	    		throw new IndexOutOfBoundsException();
+	    	}
+    	} catch (RuntimeException e) {
+    		reader.release();
+    		throw e;
+    	} catch (IOException e) {
+    		reader.release();
+    		throw e;
+    	}
+    	
+    	return reader;
+    }
+    
+    //Checks a read request of a hot file and returns its mapping, for read
+    //and the data channel, or null if the file is not mapped. A mapping is
+    //dropped before its file changes, so it has the current length. The
+    //caller holds the lock for the file and releases the mapping
+    MappedFileCache.Handle openMapped(Path file, long offset, int length)
+    {
+    	MappedFileCache.Handle mapped = this.mappings.acquire(file);
+    	if (mapped != null && (offset < 0 || length < 0 || 
+    			offset + length > mapped.buffer().capacity())){
+    		mapped.release();
     		throw new IndexOutOfBoundsException();
     	}
+    	return mapped;
+    }
+    
+    //Counts a read of a file which is not mapped, for the data channel,
+    //mapping the file once it is read often. The caller holds the lock for
+    //the file
+    void countRead(Path file, FileChannel channel) throws IOException
+    {
+    	this.mappings.read(file, channel);
+    }
+    
+    //Checks a write request and returns a channel to the file, for write and
+    //the data channel. The caller holds the lock for the file and releases
+    //the channel
+    FileChannelCache.Handle openForWrite(Path file, long offset)
+        throws FileNotFoundException, IOException
+    {
+    	File f = file.toFile(this.root);
     	
-    	RandomAccessFile writer = new RandomAccessFile(f,"rw");
+    	//The file is about to change, so its mapping is out of date
+    	this.mappings.invalidateFile(file);
     	
-    	writer.seek(offset);
-    	writer.write(data);
-    	writer.close();
+    	if (offset < 0){
+    		//The missing file is reported first
+    		if (!f.exists() || f.isDirectory()){
+    			throw new FileNotFoundException();
+    		}
+    		throw new IndexOutOfBoundsException();
+    	}
     	
+    	return this.channels.acquire(file, f, true);
     }
 
     // The following methods are documented in Command.java.
     @Override
-    public synchronized boolean create(Path file)
+    public boolean create(Path file)
     {    	
     	if (file.isRoot()){
     		return false;
     	}
     	
+    	ArrayList<Lock> held = this.locks.lock(file, true);
+    	try {
+    		return this.createFile(file);
+    	} catch (IOException e) {
+    		return false;
+    	} finally {
+    		this.locks.unlock(held);
+    	}
+    }
+    
+    //Creates a file and any missing parent directories. The caller holds the
+    //lock for the file
+    private boolean createFile(Path file) throws IOException
+    {
         File f = file.toFile(this.root);
         
         //Make parent directories to store file if needed
@@ -259,24 +635,24 @@ public class StorageServer implements Storage, Command
         	parent.toFile(this.root).mkdirs();
         } 
         
-        try {
-			return f.createNewFile();
-		} catch (IOException e) {
-			//catch exception to make it detectable in Copy
-			this.ioExceptionThrown = true;
-		}
-        
-        return false;
+        return f.createNewFile();
     }
 
     @Override
-    public synchronized boolean delete(Path path)
+    public boolean delete(Path path)
     {
     	if (path.isRoot()){
     		return false;
     	}
     	
-    	return this.delete(path.toFile(this.root));
+    	ArrayList<Lock> held = this.locks.lock(path, true);
+    	try {
+    		this.channels.invalidate(path);
+    		this.mappings.invalidate(path);
+    		return this.delete(path.toFile(this.root));
+    	} finally {
+    		this.locks.unlock(held);
+    	}
     }
 
     private boolean delete(File file){
@@ -297,42 +673,197 @@ public class StorageServer implements Storage, Command
     }
     
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException
     {
     	//FileNotFoundException will be thrown is file is not found on remote
     	//server or it is a directory
     	long size = server.size(file);    	
     	
-    	this.delete(file.toFile(this.root));
+    	//The copy is fetched into a temporary file next to the file, so any
+    	//existing version stays readable until the copy is complete
+    	File target = file.toFile(this.root);
+    	File temp = null;
+    	boolean fetched = false;
+    	
+    	//The highest directory this copy creates, removed if the copy fails
+    	Path created = null;
+    	ArrayList<Lock> held = this.locks.lock(file, false);
+    	try {
+    		for (Path dir = file.parent(); !dir.toFile(this.root).exists(); 
+    				dir = dir.parent()){
+    			created = dir;
+    		}
+    		
+    		File parent = target.getParentFile();
+    		parent.mkdirs();
+    		temp = File.createTempFile(COPY_PREFIX + target.getName() + ".", 
+    				COPY_SUFFIX, parent);
+    		
+    		fetched = this.fetch(file, size, server, temp);
+    	} finally {
+    		if (!fetched && temp != null){
+    			temp.delete();
+    		}
+    		this.locks.unlock(held);
+    		
+    		if (!fetched && created != null){
+    			this.removeCreated(created);
+    		}
+    	}
+    	
+    	if (!fetched){
+    		return false;
+    	}
+    	
+    	//The complete copy replaces the file in one step
+    	held = this.locks.lock(file, true);
+    	try {
+	    	this.channels.invalidate(file);
+	    	this.mappings.invalidate(file);
+	    	if (target.isDirectory()){
+	    		this.delete(target);
+	    	}
+	    	Files.move(temp.toPath(), target.toPath(), 
+	    			StandardCopyOption.ATOMIC_MOVE);
+    	} catch (IOException e) {
+    		temp.delete();
+    		throw e;
+    	} finally {
+    		this.locks.unlock(held);
+    	}
     	
-    	this.ioExceptionThrown = false;
-    	this.create(file);
-    	if(this.ioExceptionThrown){
-    		//throw IOException if it was caught during create
-    		throw new IOException();
+    	return true;
+    }
+    
+    //Removes the directories a failed copy created. The directory is locked
+    //exclusively, so no other copy or create is using it, and only empty
+    //directories are removed in case a file was created under it since
+    private void removeCreated(Path directory)
+    {
+    	ArrayList<Lock> held = this.locks.lock(directory, true);
+    	try {
+    		pruneEmptyDirectories(directory.toFile(this.root));
+    	} finally {
+    		this.locks.unlock(held);
     	}
+    }
+    
+    //Fetches a file from another server into a local file, in chunks of 
+    //COPY_CHUNK_SIZE. The next chunk is fetched while the last is written.
+    //Returns false if the data does not match the source's checksum
+    private boolean fetch(final Path file, long size, final Storage server,
+    		File destination) throws RMIException, IOException
+    {
+    	//The data channel is used if the source has one, which also allows
+    	//the copy to be checked against the source
+    	final DataChannel source = DataChannel.open(server);
+    	FileChannel out = new FileOutputStream(destination).getChannel();
+    	CRC32 crc = new CRC32();
+    	Future<byte[]> next = null;
     	
-    	long offset = 0;
-    	long bytesLeft = size;
-    	boolean writeSuccess = true;
+    	try {
+    		long offset = 0;
+    		if (size > 0){
+    			next = this.fetchChunk(file, offset, size, server, source);
+    		}
+    		
+    		while (next != null){
+    			byte[] chunk = this.await(next);
+    			offset += chunk.length;
+    			
+    			next = null;
+    			if (offset < size){
+    				next = this.fetchChunk(file, offset, size, server, source);
+    			}
+    			
+    			crc.update(chunk, 0, chunk.length);
+    			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    			while (buffer.hasRemaining()){
+    				out.write(buffer);
+    			}
+    		}
+    		
+    		//The copy reaches the disk before it replaces the file
+    		out.force(false);
+    		
+    		if (source != null){
+    			return source.checksum(file) == crc.getValue();
+    		}
+    		return true;
+    	} finally {
+    		if (next != null){
+    			next.cancel(true);
+    		}
+    		out.close();
+    		if (source != null){
+    			source.close();
+    		}
+    	}
+    }
+    
+    private Future<byte[]> fetchChunk(final Path file, final long offset, 
+    		long size, final Storage server, final DataChannel source)
+    {
+    	final int length = (int)Math.min(COPY_CHUNK_SIZE, size - offset);
     	
-    	//Handles writing out large files with size > Integer.MAX_VALUE
-    	while(bytesLeft > 0){
-    		int bytesWritten = bytesLeft > Integer.MAX_VALUE ? 
-    				Integer.MAX_VALUE : (int)(bytesLeft % Integer.MAX_VALUE);
-    		byte[] data = server.read(file, offset, bytesWritten);
-        	this.write(file, offset, data);
-        	
-        	//Read data back and compare to verify it was successfully written
-        	byte[] localData = this.read(file, offset, bytesWritten);
-        	writeSuccess = writeSuccess && Arrays.equals(data, localData);
-        	
-        	offset += bytesWritten;
-        	bytesLeft -= bytesWritten;	
+    	return this.copyFetcher.submit(new Callable<byte[]>() {
+    		public byte[] call() throws Exception {
+    			if (source == null){
+    				return server.read(file, offset, length);
+    			}
+    			byte[] chunk = new byte[length];
+    			source.read(file, offset, chunk, 0, length);
+    			return chunk;
+    		}
+    	});
+    }
+    
+    //Waits for a chunk, rethrowing the exception it failed with
+    private byte[] await(Future<byte[]> chunk) 
+    		throws RMIException, IOException
+    {
+    	try {
+    		return chunk.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException();
+    	} catch (ExecutionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof RMIException){
+    			throw (RMIException)cause;
+    		}
+    		if (cause instanceof IOException){
+    			throw (IOException)cause;
+    		}
+    		if (cause instanceof RuntimeException){
+    			throw (RuntimeException)cause;
+    		}
+    		throw new IOException(cause);
     	}
+    }
+    
+    //Computes the CRC-32 of a file, for the data channel. The caller holds
+    //the lock for the file
+    long checksum(Path file) throws FileNotFoundException, IOException
+    {
+    	FileChannelCache.Handle reader = this.openForRead(file, 0, 0);
+    	CRC32 crc = new CRC32();
     	
+    	try {
+    		FileChannel channel = reader.channel();
+    		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    		long position = 0;
+    		int read;
+    		while ((read = channel.read(buffer, position)) > 0){
+    			crc.update(buffer.array(), 0, read);
+    			position += read;
+    			buffer.clear();
+    		}
+    	} finally {
+    		reader.release();
+    	}
     	
-    	return writeSuccess;
+    	return crc.getValue();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package storage;
+
+/******************************************************************************
+ *
+ * Authors: Christopher Tomaszewski (CKT) & Dinesh Palanisamy (DINESHP)
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.*;
+
+/* Read/write locks for paths, spread over a fixed number of stripes chosen by
+ * path hash. Locking a path locks the stripes of its ancestors for shared
+ * access, so that operations on a directory exclude operations on anything
+ * beneath it while operations on unrelated files run in parallel. Stripes are
+ * always acquired in index order, so operations cannot deadlock. */
+class StripedLocks {
+
+	private ReentrantReadWriteLock[] stripes;
+
+	StripedLocks(int stripes) {
+		this.stripes = new ReentrantReadWriteLock[stripes];
+		for(int i = 0; i < stripes; i++) {
+			this.stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/* Locks a path for shared or exclusive access. Returns the locks held,
+	 * which must be passed to unlock */
+	ArrayList<Lock> lock(Path path, boolean exclusive) {
+		//Stripe index to whether it is needed for exclusive access. Stripes
+		//shared by an ancestor and the path itself take the stronger mode
+		TreeMap<Integer, Boolean> needed = new TreeMap<Integer, Boolean>();
+		needed.put(stripe(path), exclusive);
+
+		Path p = path;
+		while(!p.isRoot()) {
+			p = p.parent();
+			Integer index = stripe(p);
+			if(!needed.containsKey(index)) {
+				needed.put(index, false);
+			}
+		}
+
+		ArrayList<Lock> held = new ArrayList<Lock>(needed.size());
+		for(Map.Entry<Integer, Boolean> entry : needed.entrySet()) {
+			ReentrantReadWriteLock stripe = stripes[entry.getKey()];
+			Lock lock = entry.getValue() ? stripe.writeLock() :
+				stripe.readLock();
+			lock.lock();
+			held.add(lock);
+		}
+
+		return held;
+	}
+
+	/* Releases locks returned by lock, in reverse order */
+	void unlock(ArrayList<Lock> held) {
+		for(int i = held.size() - 1; i >= 0; i--) {
+			held.get(i).unlock();
+		}
+	}
+
+	int stripe(Path path) {
+		//Spread the hash bits, as string hashes of similar paths differ
+		//mostly in their low bits
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % stripes.length;
+	}
+}
@@ -0,0 +1,34 @@
+package unit;
+
+import test.*;
+
+/** Runs benchmarks of distributed filesystem components.
+
+    <p>
+    Each benchmark is a test residing in the package of the code it measures.
+    A benchmark prints its measurements, and fails only if the code it
+    measures fails. Benchmarks are given more time than unit tests.
+ */
+public class Benchmarks
+{
+    /** Runs the benchmarks.
+
+        @param arguments Ignored.
+     */
+    public static void main(String[] arguments)
+    {
+        // Create the benchmark list, the series object, and run the series.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Class<? extends Test>[]     tests =
+            new Class[] {common.PathBenchmark.class,
+                         common.DirectoryScanBenchmark.class,
+                         storage.StripedLocksBenchmark.class,
+                         storage.StorageReadBenchmark.class};
+        Series                      series = new Series(tests);
+        SeriesReport                report = series.run(60, System.out);
+
+        // Print the report and exit with an appropriate exit status.
+        report.print(System.out);
+        System.exit(report.successful() ? 0 : 2);
+    }
+}
@@ -5,7 +5,7 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Each test resides in the package of the code it tests.
  */
 public class UnitTests
 {
@@ -18,7 +18,17 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {rmi.ConnectionPoolTest.class,
+                        rmi.CompactCodecTest.class,
+                        storage.DataChannelTest.class,
+                        storage.StripedLocksTest.class,
+                        storage.MappedFileCacheTest.class,
+                        client.DFSOutputStreamTest.class,
+                        naming.BatchCallsTest.class,
+                        naming.ReadWriteLockTest.class,
+                        naming.LeaseTest.class,
+                        naming.MetadataLogTest.class,
+                        naming.BatchRegistrationTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,288 @@
+package client;
+
+import test.*;
+import common.*;
+import naming.*;
+import storage.*;
+import java.io.*;
+import java.util.*;
+
+/** Checks writes through <code>DFSOutputStream</code>.
+
+    <p>
+    The test starts a naming server and a storage server serving a temporary
+    directory. It then checks that, by default, each write reaches the storage
+    server before it returns and a failed write is reported by the write
+    itself. With write-behind enabled, small writes must be held back until a
+    chunk is full, the file must have the data written once the stream is
+    closed, and a failed chunk write must be reported by a later call.
+ */
+public class DFSOutputStreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking distributed output stream";
+
+    /** Chunk size used when write-behind is enabled. */
+    private static final int    CHUNK_SIZE = 1000;
+    /** Number of chunk writes kept in flight when write-behind is enabled. */
+    private static final int    WINDOW = 2;
+
+    /** Temporary directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Naming server. */
+    private NamingServer        naming_server;
+    /** Storage server. */
+    private StorageServer       storage_server;
+
+    /** Starts the naming and storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        try
+        {
+            naming_server = new NamingServer();
+            naming_server.start();
+
+            storage_server = new StorageServer(directory.root());
+            storage_server.start("127.0.0.1",
+                                 NamingStubs.registration("127.0.0.1"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testSynchronous();
+            testWriteBehind();
+            testSynchronousFailure();
+            testWriteBehindFailure();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error writing file", t);
+        }
+    }
+
+    /** Checks that each write reaches the storage server before it returns
+        when write-behind is not enabled. */
+    private void testSynchronous() throws Throwable
+    {
+        Path            file = create("/synchronous");
+        DFSOutputStream stream = new DFSOutputStream(naming_server, file);
+
+        try
+        {
+            stream.write(new byte[] {1, 2, 3});
+
+            if(local(file).length() != 3)
+                throw new TestFailed("write returned before it was performed");
+
+            stream.write(4);
+
+            if(local(file).length() != 4)
+            {
+                throw new TestFailed("single byte write returned before it " +
+                                     "was performed");
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Checks that small writes are coalesced into chunks, and that the file
+        has all the data once the stream is closed. */
+    private void testWriteBehind() throws Throwable
+    {
+        Path            file = create("/behind");
+        DFSOutputStream stream = new DFSOutputStream(naming_server, file);
+        byte[]          contents = new byte[CHUNK_SIZE * 5 + 123];
+        Random          random = new Random(CHUNK_SIZE);
+
+        random.nextBytes(contents);
+        stream.setWriteBehind(CHUNK_SIZE, WINDOW);
+
+        try
+        {
+            stream.write(contents, 0, 10);
+
+            if(local(file).length() != 0)
+                throw new TestFailed("partial chunk sent before flush");
+
+            // Write the rest in pieces of random sizes, some larger than a
+            // chunk.
+            int         offset = 10;
+
+            while(offset < contents.length)
+            {
+                int     length = Math.min(contents.length - offset,
+                                          random.nextInt(CHUNK_SIZE * 2));
+
+                stream.write(contents, offset, length);
+                offset += length;
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        expectContents(file, contents);
+    }
+
+    /** Checks that a failed write is reported by the write itself when
+        write-behind is not enabled. */
+    private void testSynchronousFailure() throws Throwable
+    {
+        Path            file = create("/failing");
+        DFSOutputStream stream = new DFSOutputStream(naming_server, file);
+
+        replaceWithDirectory(file);
+
+        try
+        {
+            stream.write(new byte[] {1});
+            throw new TestFailed("write to directory succeeded");
+        }
+        catch(IOException e) { }
+        finally
+        {
+            closeQuietly(stream);
+        }
+    }
+
+    /** Checks that a failed chunk write is reported by a later call, and that
+        the stream stays failed. */
+    private void testWriteBehindFailure() throws Throwable
+    {
+        Path            file = create("/failing-behind");
+        DFSOutputStream stream = new DFSOutputStream(naming_server, file);
+
+        replaceWithDirectory(file);
+        stream.setWriteBehind(CHUNK_SIZE, WINDOW);
+
+        try
+        {
+            // A whole chunk is sent without waiting for its result.
+            stream.write(new byte[CHUNK_SIZE]);
+
+            try
+            {
+                stream.flush();
+                throw new TestFailed("flush after failed write succeeded");
+            }
+            catch(IOException e) { }
+
+            try
+            {
+                stream.write(new byte[1]);
+                throw new TestFailed("write after failed write succeeded");
+            }
+            catch(IOException e) { }
+        }
+        finally
+        {
+            closeQuietly(stream);
+        }
+    }
+
+    /** Creates an empty file through the naming server. */
+    private Path create(String name) throws Throwable
+    {
+        Path        file = new Path(name);
+
+        if(!naming_server.createFile(file))
+            throw new TestFailed("unable to create " + file);
+
+        return file;
+    }
+
+    /** Returns the file in the storage server's directory for a path. */
+    private File local(Path file)
+    {
+        return file.toFile(directory.root());
+    }
+
+    /** Replaces a file in the storage server's directory with a directory,
+        so that writes to it fail on the storage server. */
+    private void replaceWithDirectory(Path file) throws TestFailed
+    {
+        if(!local(file).delete() || !local(file).mkdir())
+            throw new TestFailed("unable to replace " + file);
+    }
+
+    /** Checks that a file in the storage server's directory has the given
+        contents. */
+    private void expectContents(Path file, byte[] contents) throws Throwable
+    {
+        byte[]          stored = new byte[(int)local(file).length()];
+        DataInputStream input =
+            new DataInputStream(new FileInputStream(local(file)));
+
+        try
+        {
+            input.readFully(stored);
+        }
+        finally
+        {
+            input.close();
+        }
+
+        if(!Arrays.equals(stored, contents))
+            throw new TestFailed("file has wrong contents after close");
+    }
+
+    /** Closes a stream whose errors have already been checked. */
+    private static void closeQuietly(DFSOutputStream stream)
+    {
+        try
+        {
+            stream.close();
+        }
+        catch(IOException e) { }
+    }
+
+    /** Stops the servers and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
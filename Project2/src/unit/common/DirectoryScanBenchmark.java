@@ -0,0 +1,187 @@
+package common;
+
+import test.*;
+import java.io.*;
+import java.util.*;
+
+/** Measures the listing of local directory trees by <code>Path.list</code>.
+
+    <p>
+    The benchmark creates a tree of empty files in a temporary directory,
+    several levels of directories deep, and times <code>Path.list</code> on
+    it, which lists directories in parallel. For comparison, it also times a
+    walk of the tree which lists one directory at a time in the calling
+    thread. Each listing is timed over several passes, after passes which warm
+    up the code, and the average time of a pass is printed. The benchmark
+    fails only if a listing does not find every file.
+ */
+public class DirectoryScanBenchmark extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "benchmarking directory scan";
+
+    /** Number of levels of directories in the tree. */
+    private static final int    DEPTH = 3;
+    /** Number of subdirectories of each directory above the last level. */
+    private static final int    FAN_OUT = 12;
+    /** Number of files in each directory at the last level. */
+    private static final int    FILES_PER_DIRECTORY = 40;
+    /** Number of directories at the last level. */
+    private static final int    LEAVES = (int)Math.pow(FAN_OUT, DEPTH);
+    /** Number of files in the tree. */
+    private static final int    FILES = LEAVES * FILES_PER_DIRECTORY;
+    /** Number of directories in the tree, below its root. */
+    private static final int    DIRECTORIES =
+        (LEAVES * FAN_OUT - FAN_OUT) / (FAN_OUT - 1);
+    /** Number of timed passes. */
+    private static final int    PASSES = 5;
+    /** Number of passes performed before the timed passes. */
+    private static final int    WARM_UP_PASSES = 2;
+
+    /** Temporary directory holding the tree. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the tree. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            create(directory.root(), DEPTH);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create directory tree", t);
+        }
+    }
+
+    /** Creates the levels of the tree below a directory. */
+    private static void create(File parent, int levels) throws IOException
+    {
+        if(levels == 0)
+        {
+            for(int file = 0; file < FILES_PER_DIRECTORY; ++file)
+                new File(parent, "f" + file).createNewFile();
+
+            return;
+        }
+
+        for(int index = 0; index < FAN_OUT; ++index)
+        {
+            File        child = new File(parent, "d" + index);
+
+            if(!child.mkdir())
+                throw new IOException("unable to create " + child);
+
+            create(child, levels - 1);
+        }
+    }
+
+    /** Performs the benchmark.
+
+        @throws TestFailed If a listing does not find every file.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(int pass = 0; pass < WARM_UP_PASSES; ++pass)
+            {
+                parallel();
+                sequential();
+            }
+
+            long        parallel = 0;
+            long        sequential = 0;
+
+            for(int pass = 0; pass < PASSES; ++pass)
+            {
+                parallel += parallel();
+                sequential += sequential();
+            }
+
+            System.out.println();
+            System.out.printf("    %d files in %d directories%n", FILES,
+                              DIRECTORIES);
+            System.out.printf("    Path.list:          %6.1f ms%n",
+                              parallel / 1e6 / PASSES);
+            System.out.printf("    sequential walk:    %6.1f ms%n",
+                              sequential / 1e6 / PASSES);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error listing tree", t);
+        }
+    }
+
+    /** Lists the tree with <code>Path.list</code>, and returns the time
+        taken, in nanoseconds. */
+    private long parallel() throws Throwable
+    {
+        long        start = System.nanoTime();
+        Path[]      listing = Path.list(directory.root());
+        long        time = System.nanoTime() - start;
+
+        if(listing.length != FILES)
+        {
+            throw new TestFailed("Path.list found " + listing.length +
+                                 " files, not " + FILES);
+        }
+
+        return time;
+    }
+
+    /** Lists the tree one directory at a time, and returns the time taken,
+        in nanoseconds. */
+    private long sequential() throws TestFailed
+    {
+        ArrayList<Path> listing = new ArrayList<Path>();
+        long            start = System.nanoTime();
+
+        walk(directory.root(), new Path(), listing);
+
+        long            time = System.nanoTime() - start;
+
+        if(listing.size() != FILES)
+        {
+            throw new TestFailed("sequential walk found " + listing.size() +
+                                 " files, not " + FILES);
+        }
+
+        return time;
+    }
+
+    /** Adds the files in a directory tree to a list, listing one directory at
+        a time. */
+    private static void walk(File directory, Path path, List<Path> listing)
+    {
+        String[]    names = directory.list();
+
+        if(names == null)
+            return;
+
+        for(String name : names)
+        {
+            File    file = new File(directory, name);
+
+            if(file.isDirectory())
+                walk(file, new Path(path, name), listing);
+            else
+                listing.add(new Path(path, name));
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
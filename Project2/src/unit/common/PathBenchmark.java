@@ -0,0 +1,370 @@
+package common;
+
+import test.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Measures the operations on paths used most by the servers.
+
+    <p>
+    The benchmark creates paths nine components deep, looks them up in a hash
+    map using equal paths created separately, and times
+    <code>getSubPaths</code>, <code>parent</code> and <code>isSubpath</code>
+    on them. Each operation is timed over all the paths several times, after
+    passes which warm up the code. The same operations are timed on a copy of
+    the earlier implementation of paths, which kept components in a
+    <code>CopyOnWriteArrayList</code> and compared and hashed paths by their
+    string form. The average time of each operation is printed for both. The
+    benchmark fails only if a lookup does not find its path.
+ */
+public class PathBenchmark extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "benchmarking paths";
+
+    /** Number of distinct paths. */
+    private static final int    PATHS = 100000;
+    /** Number of times each operation is performed on every path in a
+        pass. */
+    private static final int    REPETITIONS = 10;
+    /** Number of passes performed before the timed pass. */
+    private static final int    WARM_UP_PASSES = 3;
+    /** Number of times each operation is performed on every path in a pass
+        over the earlier paths, which are much slower. */
+    private static final int    BASELINE_REPETITIONS = 1;
+    /** Names of the operations timed. */
+    private static final String[]   OPERATIONS =
+        {"hash map lookup", "getSubPaths", "parent", "isSubpath"};
+
+    /** Paths stored in the map. */
+    private Path[]              keys;
+    /** Paths equal to the keys, created separately, used to look them up. */
+    private Path[]              probes;
+    /** Map from each key to its index. */
+    private HashMap<Path, Integer>  map;
+    /** Keys in the earlier implementation of paths. */
+    private BaselinePath[]      baseline_keys;
+    /** Probes in the earlier implementation of paths. */
+    private BaselinePath[]      baseline_probes;
+    /** Map from each earlier key to its index. */
+    private HashMap<BaselinePath, Integer>  baseline_map;
+    /** Receives results, so that operations are not optimized away. */
+    private volatile Object     sink;
+
+    /** Creates the paths and the map. */
+    @Override
+    protected void initialize()
+    {
+        keys = new Path[PATHS];
+        probes = new Path[PATHS];
+        map = new HashMap<Path, Integer>();
+        baseline_keys = new BaselinePath[PATHS];
+        baseline_probes = new BaselinePath[PATHS];
+        baseline_map = new HashMap<BaselinePath, Integer>();
+
+        for(int index = 0; index < PATHS; ++index)
+        {
+            String  path = "/usr/share/data/set" + (index % 100) + "/part" +
+                           (index % 1000) + "/dir" + (index / 1000) +
+                           "/sub/file" + index;
+
+            keys[index] = new Path(path);
+            probes[index] = new Path(path);
+            map.put(keys[index], index);
+
+            baseline_keys[index] = new BaselinePath(path);
+            baseline_probes[index] = new BaselinePath(path);
+            baseline_map.put(baseline_keys[index], index);
+        }
+    }
+
+    /** Performs the benchmark.
+
+        @throws TestFailed If a lookup does not find its path.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(int pass = 0; pass < WARM_UP_PASSES; ++pass)
+        {
+            measure();
+            measureBaseline();
+        }
+
+        double[]    times = measure();
+        double[]    baseline = measureBaseline();
+
+        System.out.println();
+        System.out.printf("    %-16s %6s    %6s%n", "", "before", "after");
+
+        for(int operation = 0; operation < OPERATIONS.length; ++operation)
+        {
+            System.out.printf("    %-16s %6.0f ns %6.0f ns (%.1fx)%n",
+                              OPERATIONS[operation] + ":",
+                              baseline[operation], times[operation],
+                              baseline[operation] / times[operation]);
+        }
+    }
+
+    /** Times each operation over all the paths, and returns the average time
+        of a single call to each, in nanoseconds, in the order lookup,
+        <code>getSubPaths</code>, <code>parent</code>,
+        <code>isSubpath</code>. */
+    private double[] measure() throws TestFailed
+    {
+        long        calls = (long)PATHS * REPETITIONS;
+        long        matches = 0;
+        long[]      marks = new long[5];
+
+        marks[0] = System.nanoTime();
+
+        for(int repetition = 0; repetition < REPETITIONS; ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+            {
+                Integer found = map.get(probes[index]);
+
+                if(found == null || found != index)
+                {
+                    throw new TestFailed("lookup of " + probes[index] +
+                                         " failed");
+                }
+            }
+        }
+
+        marks[1] = System.nanoTime();
+
+        for(int repetition = 0; repetition < REPETITIONS; ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+                sink = probes[index].getSubPaths();
+        }
+
+        marks[2] = System.nanoTime();
+
+        for(int repetition = 0; repetition < REPETITIONS; ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+                sink = probes[index].parent();
+        }
+
+        marks[3] = System.nanoTime();
+
+        for(int repetition = 0; repetition < REPETITIONS; ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+            {
+                if(probes[index].isSubpath(keys[(index + 1) % PATHS]))
+                    ++matches;
+            }
+        }
+
+        marks[4] = System.nanoTime();
+        sink = matches;
+
+        return average(marks, calls);
+    }
+
+    /** Times each operation over all the paths in the earlier implementation,
+        and returns the average time of a single call to each, in nanoseconds,
+        in the same order as <code>measure</code>. */
+    private double[] measureBaseline() throws TestFailed
+    {
+        long        calls = (long)PATHS * BASELINE_REPETITIONS;
+        long        matches = 0;
+        long[]      marks = new long[5];
+
+        marks[0] = System.nanoTime();
+
+        for(int repetition = 0; repetition < BASELINE_REPETITIONS;
+            ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+            {
+                Integer found = baseline_map.get(baseline_probes[index]);
+
+                if(found == null || found != index)
+                {
+                    throw new TestFailed("lookup of " +
+                                         baseline_probes[index] + " failed");
+                }
+            }
+        }
+
+        marks[1] = System.nanoTime();
+
+        for(int repetition = 0; repetition < BASELINE_REPETITIONS;
+            ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+                sink = baseline_probes[index].getSubPaths();
+        }
+
+        marks[2] = System.nanoTime();
+
+        for(int repetition = 0; repetition < BASELINE_REPETITIONS;
+            ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+                sink = baseline_probes[index].parent();
+        }
+
+        marks[3] = System.nanoTime();
+
+        for(int repetition = 0; repetition < BASELINE_REPETITIONS;
+            ++repetition)
+        {
+            for(int index = 0; index < PATHS; ++index)
+            {
+                BaselinePath    other = baseline_keys[(index + 1) % PATHS];
+
+                if(baseline_probes[index].isSubpath(other))
+                    ++matches;
+            }
+        }
+
+        marks[4] = System.nanoTime();
+        sink = matches;
+
+        return average(marks, calls);
+    }
+
+    /** Returns the average time of a call in each interval between the given
+        times, in nanoseconds. */
+    private static double[] average(long[] marks, long calls)
+    {
+        double[]    times = new double[marks.length - 1];
+
+        for(int operation = 0; operation < times.length; ++operation)
+        {
+            times[operation] =
+                (double)(marks[operation + 1] - marks[operation]) / calls;
+        }
+
+        return times;
+    }
+
+    /** Path as implemented before it was backed by an immutable array, kept
+        to compare against. Only the operations timed are copied. */
+    private static class BaselinePath
+    {
+        /** Components of the path. */
+        private CopyOnWriteArrayList<String>    components;
+
+        /** Creates a path which represents the root directory. */
+        BaselinePath()
+        {
+            components = new CopyOnWriteArrayList<String>();
+        }
+
+        /** Creates a path from a path string. */
+        BaselinePath(String path)
+        {
+            if(!path.startsWith("/") || path.contains(":"))
+                throw new IllegalArgumentException();
+
+            components = new CopyOnWriteArrayList<String>();
+
+            StringTokenizer tokenizer = new StringTokenizer(path, "/");
+
+            while(tokenizer.hasMoreTokens())
+                components.add(tokenizer.nextToken());
+        }
+
+        /** Determines whether the path represents the root directory. */
+        boolean isRoot()
+        {
+            return components.isEmpty();
+        }
+
+        /** Returns the path to the parent of this path. */
+        BaselinePath parent()
+        {
+            if(isRoot())
+                throw new IllegalArgumentException();
+
+            String          last = components.remove(components.size() - 1);
+            String          parent_path = toString();
+
+            components.add(last);
+
+            return new BaselinePath(parent_path);
+        }
+
+        /** Determines if the given path is a subpath of this path. */
+        boolean isSubpath(BaselinePath other)
+        {
+            if(other.isRoot())
+                return true;
+
+            int             length = components.size();
+            BaselinePath    path = this;
+
+            while(length >= other.components.size())
+            {
+                if(other.equals(path))
+                    return true;
+
+                path = path.parent();
+                --length;
+            }
+
+            return false;
+        }
+
+        /** Returns the paths of this path and of each directory above it,
+            for locking. */
+        BaselinePath[] getSubPaths()
+        {
+            if(isRoot())
+                return new BaselinePath[] {this};
+
+            BaselinePath[]  listing =
+                new BaselinePath[components.size() + 1];
+            StringBuilder   builder = new StringBuilder();
+
+            listing[0] = new BaselinePath();
+
+            for(int index = 0; index < components.size(); ++index)
+            {
+                builder.append("/");
+                builder.append(components.get(index));
+                listing[index + 1] = new BaselinePath(builder.toString());
+            }
+
+            return listing;
+        }
+
+        /** Compares two paths by their string form. */
+        @Override
+        public boolean equals(Object other)
+        {
+            return toString().equals(other.toString());
+        }
+
+        /** Returns the hash code of the string form of the path. */
+        @Override
+        public int hashCode()
+        {
+            return toString().hashCode();
+        }
+
+        /** Converts the path to a string. */
+        @Override
+        public String toString()
+        {
+            if(components.isEmpty())
+                return "/";
+
+            StringBuilder   builder = new StringBuilder();
+
+            for(String component : components)
+            {
+                builder.append("/");
+                builder.append(component);
+            }
+
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package naming;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks the batch calls of the naming server.
+
+    <p>
+    The test starts a naming server and a storage server serving a temporary
+    directory. It checks that objects are created and deleted in batches with a
+    result for each path, that a batch of locks excludes other clients until
+    it is released and is released if a path is missing, and that
+    <code>stat</code> reports each object. A second storage server, which
+    cannot be contacted, is then registered, and the size of the file it
+    hosts must be reported as unknown without failing the batch.
+ */
+public class BatchCallsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server batch calls";
+
+    /** File hosted by the storage server which cannot be contacted. */
+    private static final Path   UNREACHABLE_FILE = new Path("/unreachable");
+
+    /** Temporary directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Naming server being tested. */
+    private NamingServer        naming_server;
+    /** Storage server. */
+    private StorageServer       storage_server;
+
+    /** Starts the servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        try
+        {
+            naming_server = new NamingServer();
+            naming_server.start();
+
+            storage_server = new StorageServer(directory.root());
+            storage_server.start("127.0.0.1",
+                                 NamingStubs.registration("127.0.0.1"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCreate();
+            testLockAll();
+            testLockAllMissing();
+            testDeleteAll();
+            testStat();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error in batch call", t);
+        }
+    }
+
+    /** Checks that objects are created in batches, with a result for each
+        path. */
+    private void testCreate() throws Throwable
+    {
+        boolean[]   directories = naming_server.createDirectories(
+            new Path[] {new Path("/d"), new Path("/d/e"), new Path("/d")});
+
+        if(!Arrays.equals(directories, new boolean[] {true, true, false}))
+            throw new TestFailed("createDirectories returned wrong results");
+
+        boolean[]   files = naming_server.createFiles(
+            new Path[] {new Path("/d/a"), new Path("/d/e/b"),
+                        new Path("/d/a")});
+
+        if(!Arrays.equals(files, new boolean[] {true, true, false}))
+            throw new TestFailed("createFiles returned wrong results");
+
+        if(!new File(directory.root(), "d/e/b").isFile())
+            throw new TestFailed("file not created on storage server");
+
+        try
+        {
+            naming_server.createFiles(new Path[] {new Path("/missing/f")});
+            throw new TestFailed("file created in missing directory");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Checks that a batch of locks excludes other clients until it is
+        released. */
+    private void testLockAll() throws Throwable
+    {
+        final Path[]    paths =
+            new Path[] {new Path("/d/e/b"), new Path("/d/a"), new Path("/d/a")};
+
+        naming_server.lockAll(paths, true);
+
+        final boolean[] acquired = new boolean[1];
+        Thread          thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    naming_server.lock(new Path("/d/a"), false);
+
+                    synchronized(acquired)
+                    {
+                        acquired[0] = true;
+                    }
+
+                    naming_server.unlock(new Path("/d/a"), false);
+                }
+                catch(Throwable t)
+                {
+                    failure(t);
+                }
+            }
+        };
+
+        try
+        {
+            thread.start();
+            thread.join(200);
+
+            synchronized(acquired)
+            {
+                if(acquired[0])
+                {
+                    throw new TestFailed("lock granted while batch of locks " +
+                                         "was held");
+                }
+            }
+        }
+        finally
+        {
+            naming_server.unlockAll(paths, true);
+        }
+
+        thread.join();
+
+        synchronized(acquired)
+        {
+            if(!acquired[0])
+                throw new TestFailed("lock not granted after batch release");
+        }
+    }
+
+    /** Checks that a batch of locks including a missing path fails, and
+        releases the locks it took. */
+    private void testLockAllMissing() throws Throwable
+    {
+        try
+        {
+            naming_server.lockAll(new Path[] {new Path("/d/a"),
+                                              new Path("/d/missing")}, true);
+            throw new TestFailed("batch of locks on missing path succeeded");
+        }
+        catch(FileNotFoundException e) { }
+
+        if(naming_server.lock(new Path("/d/a"), true, 1000) == 0)
+            throw new TestFailed("failed batch of locks left a lock held");
+
+        naming_server.unlock(new Path("/d/a"), true);
+    }
+
+    /** Checks the status of a directory, of files, of a missing object, and
+        of a file whose storage server cannot be contacted. */
+    private void testStat() throws Throwable
+    {
+        naming_server.createFiles(new Path[] {new Path("/d/a"),
+                                              new Path("/d/b")});
+
+        FileOutputStream    stream =
+            new FileOutputStream(new File(directory.root(), "d/a"));
+
+        try
+        {
+            stream.write(new byte[42]);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        // New files could be placed on the unreachable server, so it is only
+        // registered once the files have been created.
+        InetSocketAddress   address = unusedAddress();
+
+        naming_server.register(Stub.create(Storage.class, address),
+                               Stub.create(Command.class, address),
+                               new Path[] {UNREACHABLE_FILE});
+
+        FileStatus[]        status = naming_server.stat(
+            new Path[] {new Path("/d"), new Path("/d/a"), new Path("/nothing"),
+                        UNREACHABLE_FILE, new Path("/d/b")});
+
+        if(status.length != 5)
+            throw new TestFailed("stat returned wrong number of results");
+
+        if(status[0] == null || !status[0].isDirectory())
+            throw new TestFailed("directory not reported as directory");
+
+        if(status[1] == null || status[1].isDirectory() ||
+           status[1].size() != 42 || status[1].storage().length != 1)
+        {
+            throw new TestFailed("status of file is incorrect");
+        }
+
+        if(status[2] != null)
+            throw new TestFailed("status returned for missing object");
+
+        if(status[3] == null ||
+           status[3].size() != FileStatus.UNKNOWN_SIZE)
+        {
+            throw new TestFailed("size of file on unreachable server not " +
+                                 "reported as unknown");
+        }
+
+        if(status[4] == null || status[4].size() != 0)
+            throw new TestFailed("status of file after unreachable file is " +
+                                 "incorrect");
+    }
+
+    /** Checks that objects are deleted in batches, including objects inside
+        directories deleted earlier in the batch, and on the storage
+        server. */
+    private void testDeleteAll() throws Throwable
+    {
+        boolean[]   deleted = naming_server.deleteAll(
+            new Path[] {new Path("/d/e"), new Path("/d/e/b"),
+                        new Path("/d/a")});
+
+        if(!Arrays.equals(deleted, new boolean[] {true, true, true}))
+            throw new TestFailed("deleteAll returned wrong results");
+
+        if(!Arrays.equals(naming_server.list(new Path("/d")), new String[0]))
+            throw new TestFailed("deleted objects still listed");
+
+        if(new File(directory.root(), "d/a").exists())
+            throw new TestFailed("file not deleted from storage server");
+    }
+
+    /** Returns the address of a port on which nothing listens. */
+    private static InetSocketAddress unusedAddress() throws IOException
+    {
+        ServerSocket    socket = new ServerSocket(0);
+
+        try
+        {
+            return new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /** Stops the servers and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
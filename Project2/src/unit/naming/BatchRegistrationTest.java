@@ -0,0 +1,339 @@
+package naming;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks the registration of storage servers in batches.
+
+    <p>
+    The test starts a naming server which keeps its directory tree in a
+    temporary directory, and a storage server serving a directory of files.
+    The storage server registers through a local object which counts the files
+    it sends. All the files are sent at first. The naming server is then
+    restarted, and the storage server restarted on new ports: it must send no
+    files, and its new stubs must replace the stubs recorded for it. Finally,
+    the storage server alone is restarted after a file has been added and
+    another removed: only some of the files must be sent, the changes must be
+    seen by the naming server, and the earlier stubs must not remain. Last,
+    a registration is begun and not finished, as by a storage server which
+    fails while registering: its session must be discarded when the same
+    storage server begins to register again.
+ */
+public class BatchRegistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server batch registration";
+
+    /** Number of files served by the storage server at first. */
+    private static final int    FILES = 200;
+
+    /** Temporary directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Temporary directory holding the naming server's log. */
+    private TemporaryDirectory  metadata;
+    /** Naming server. */
+    private NamingServer        naming_server;
+    /** Storage server. */
+    private StorageServer       storage_server;
+    /** Registration interface given to the storage server. */
+    private final CountingRegistration  registration =
+        new CountingRegistration();
+
+    /** Creates the files, and starts the naming server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            metadata = new TemporaryDirectory();
+
+            for(int index = 0; index < FILES; ++index)
+                directory.add(new String[] {"d", "f" + index}, "" + index);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directories", t);
+        }
+
+        try
+        {
+            naming_server = new NamingServer(metadata.root());
+            naming_server.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testFirstRegistration();
+            testNamingServerRestart();
+            testStorageServerRestart();
+            testAbandonedSession();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error in registration", t);
+        }
+    }
+
+    /** Checks that all files are sent when the storage server first
+        registers. */
+    private void testFirstRegistration() throws Throwable
+    {
+        startStorageServer();
+
+        if(registration.sent() != FILES)
+        {
+            throw new TestFailed("first registration sent " +
+                                 registration.sent() + " files, not " + FILES);
+        }
+
+        expectServed(new Path("/d/f1"));
+    }
+
+    /** Checks that a storage server restarted along with the naming server
+        sends no files, and is known by its new stubs. */
+    private void testNamingServerRestart() throws Throwable
+    {
+        stopStorageServer();
+
+        naming_server.stop();
+        naming_server = null;
+        naming_server = new NamingServer(metadata.root());
+        naming_server.start();
+
+        startStorageServer();
+
+        if(registration.sent() != 0)
+        {
+            throw new TestFailed("unchanged storage server sent " +
+                                 registration.sent() + " files");
+        }
+
+        expectServed(new Path("/d/f1"));
+    }
+
+    /** Checks that a storage server restarted with changed files sends only
+        some of them, that the changes are seen, and that the stubs of the
+        earlier run are forgotten. */
+    private void testStorageServerRestart() throws Throwable
+    {
+        stopStorageServer();
+
+        directory.add(new String[] {"d", "added"}, "added");
+
+        if(!new File(directory.root(), "d/f0").delete())
+            throw new TestFailed("unable to remove file");
+
+        startStorageServer();
+
+        if(registration.sent() == 0 || registration.sent() >= FILES)
+        {
+            throw new TestFailed("changed storage server sent " +
+                                 registration.sent() + " files");
+        }
+
+        List<String>    listing =
+            Arrays.asList(naming_server.list(new Path("/d")));
+
+        if(!listing.contains("added"))
+            throw new TestFailed("added file not registered");
+
+        if(listing.contains("f0"))
+            throw new TestFailed("removed file still registered");
+
+        expectServed(new Path("/d/added"));
+        expectServed(new Path("/d/f1"));
+    }
+
+    /** Checks that an unfinished registration session is discarded when the
+        same storage server begins to register again. */
+    private void testAbandonedSession() throws Throwable
+    {
+        long                identity = 42;
+        long[]              digest = new FileDigest().buckets();
+        RegistrationSession abandoned =
+            naming_server.beginRegistration(identity, storageStub(7100),
+                                            commandStub(7101), digest);
+
+        naming_server.registerFiles(abandoned.id(),
+                                    new Path[] {new Path("/abandoned")});
+
+        // The storage server restarts on new ports.
+        RegistrationSession session =
+            naming_server.beginRegistration(identity, storageStub(7102),
+                                            commandStub(7103), digest);
+
+        try
+        {
+            naming_server.registerFiles(abandoned.id(), new Path[0]);
+            throw new TestFailed("abandoned session not discarded");
+        }
+        catch(IllegalArgumentException e) { }
+
+        naming_server.endRegistration(session.id());
+    }
+
+    /** Returns a stub for a storage server which is only registered. */
+    private static Storage storageStub(int port)
+    {
+        return Stub.create(Storage.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Returns a command stub for a storage server which is only
+        registered. */
+    private static Command commandStub(int port)
+    {
+        return Stub.create(Command.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Checks that a file has a single replica, on the running storage
+        server. */
+    private void expectServed(Path file) throws Throwable
+    {
+        Storage[]   replicas = naming_server.getReplicas(file);
+
+        if(replicas.length != 1)
+        {
+            throw new TestFailed(file + " has " + replicas.length +
+                                 " replicas, not 1");
+        }
+
+        try
+        {
+            replicas[0].size(file);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("replica of " + file + " is not on the " +
+                                 "running storage server", e);
+        }
+    }
+
+    /** Starts a storage server serving the directory of files, and counts the
+        files it sends. */
+    private void startStorageServer() throws Throwable
+    {
+        registration.reset();
+
+        storage_server = new StorageServer(directory.root());
+        storage_server.start("127.0.0.1", registration);
+    }
+
+    /** Stops the storage server. */
+    private void stopStorageServer()
+    {
+        storage_server.stop();
+        storage_server = null;
+    }
+
+    /** Stops the servers and removes the temporary directories. */
+    @Override
+    protected void clean()
+    {
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+
+        if(metadata != null)
+        {
+            metadata.remove();
+            metadata = null;
+        }
+    }
+
+    /** Registration interface which passes calls to the current naming
+        server, counting the files sent. */
+    private class CountingRegistration implements BatchRegistration
+    {
+        /** Number of files sent since the last reset. */
+        private int         sent = 0;
+
+        /** Resets the count of files sent. */
+        synchronized void reset()
+        {
+            sent = 0;
+        }
+
+        /** Returns the number of files sent since the last reset. */
+        synchronized int sent()
+        {
+            return sent;
+        }
+
+        @Override
+        public synchronized Path[] register(Storage client_stub,
+                                            Command command_stub,
+                                            Path[] files)
+        {
+            sent += files.length;
+            return naming_server.register(client_stub, command_stub, files);
+        }
+
+        @Override
+        public RegistrationSession beginRegistration(long identity,
+                                                     Storage client_stub,
+                                                     Command command_stub,
+                                                     long[] digest)
+        {
+            return naming_server.beginRegistration(identity, client_stub,
+                                                   command_stub, digest);
+        }
+
+        @Override
+        public synchronized Path[] registerFiles(long session, Path[] files)
+        {
+            sent += files.length;
+            return naming_server.registerFiles(session, files);
+        }
+
+        @Override
+        public void endRegistration(long session)
+        {
+            naming_server.endRegistration(session);
+        }
+
+        @Override
+        public void reportLoad(Storage client_stub, StorageLoad load)
+        {
+            NamingServer    server = naming_server;
+
+            if(server != null)
+                server.reportLoad(client_stub, load);
+        }
+    }
+}
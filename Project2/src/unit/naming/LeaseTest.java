@@ -0,0 +1,235 @@
+package naming;
+
+import test.*;
+import common.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Checks the leases on the locks granted by the naming server.
+
+    <p>
+    The test first checks the lease table with a short tick: a lease is ended
+    exactly once, by its identifier, by its key or by expiring, and renewing
+    one of several shared leases on the same objects must not keep the others
+    from expiring. It then starts a naming server, and checks that each lock
+    is given its own lease identifier, and that a lease is renewed and
+    released only by its identifier.
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server leases";
+
+    /** Length of a tick of the lease table, in milliseconds. */
+    private static final long   TICK = 10;
+    /** Number of slots in the lease table. */
+    private static final int    SLOTS = 8;
+    /** Lease time used with the lease table, in milliseconds. */
+    private static final long   LEASE = 100;
+
+    /** Key of leases on shared locks on the root directory. */
+    private static final LeaseTable.Key ROOT_SHARED =
+        new LeaseTable.Key(new Path[] {new Path("/")}, false);
+
+    /** Naming server. */
+    private NamingServer        naming_server;
+
+    /** Starts the naming server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            naming_server = new NamingServer();
+            naming_server.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testTake();
+            testRenewOne();
+            testExpiry();
+            testServerLeases();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error using leases", t);
+        }
+    }
+
+    /** Checks that leases are given distinct identifiers, and are ended once,
+        by identifier or by key. */
+    private void testTake() throws Throwable
+    {
+        LeaseTable  table = new LeaseTable(SLOTS, millis(TICK));
+        long        first = table.add(ROOT_SHARED, locks(), expiry(LEASE));
+        long        second = table.add(ROOT_SHARED, locks(), expiry(LEASE));
+
+        if(first == 0 || second == 0 || first == second)
+            throw new TestFailed("lease identifiers are not distinct");
+
+        Lease       lease = table.take(first);
+
+        if(lease == null || lease.identifier() != first || !lease.hasEnded())
+            throw new TestFailed("lease not ended by identifier");
+
+        if(table.take(first) != null || table.renew(first, expiry(LEASE)))
+            throw new TestFailed("lease used after it was ended");
+
+        lease = table.take(ROOT_SHARED);
+
+        if(lease == null || lease.identifier() != second)
+            throw new TestFailed("lease not ended by key");
+
+        if(table.take(second) != null || table.take(ROOT_SHARED) != null)
+            throw new TestFailed("lease ended twice");
+    }
+
+    /** Checks that renewing one of several shared leases on the same objects
+        does not keep the others from expiring. */
+    private void testRenewOne() throws Throwable
+    {
+        LeaseTable  table = new LeaseTable(SLOTS, millis(TICK));
+        long        live = table.add(ROOT_SHARED, locks(), expiry(LEASE));
+        long        crashed = table.add(ROOT_SHARED, locks(), expiry(LEASE));
+        long        deadline = System.nanoTime() + millis(LEASE * 3);
+        List<Lease> expired = new ArrayList<Lease>();
+
+        task("renewing one of two shared leases");
+
+        while(System.nanoTime() - deadline < 0)
+        {
+            if(!table.renew(live, expiry(LEASE)))
+                throw new TestFailed("renewed lease expired");
+
+            expired.addAll(table.reclaimExpired());
+            Thread.sleep(TICK);
+        }
+
+        task();
+
+        if(expired.size() != 1 || expired.get(0).identifier() != crashed)
+            throw new TestFailed("lease not renewed did not expire alone");
+
+        if(table.renew(crashed, expiry(LEASE)))
+            throw new TestFailed("expired lease renewed");
+
+        if(table.take(live) == null)
+            throw new TestFailed("renewed lease not held");
+    }
+
+    /** Checks that an expired lease is reclaimed once, and can then neither
+        be renewed nor ended by its client. */
+    private void testExpiry() throws Throwable
+    {
+        LeaseTable  table = new LeaseTable(SLOTS, millis(TICK));
+        long        lease = table.add(ROOT_SHARED, locks(), expiry(TICK));
+
+        Thread.sleep(TICK * 3);
+
+        List<Lease> expired = table.reclaimExpired();
+
+        if(expired.size() != 1 || expired.get(0).identifier() != lease)
+            throw new TestFailed("expired lease not reclaimed");
+
+        if(!table.reclaimExpired().isEmpty())
+            throw new TestFailed("expired lease reclaimed twice");
+
+        if(table.renew(lease, expiry(LEASE)) || table.take(lease) != null ||
+           table.take(ROOT_SHARED) != null)
+        {
+            throw new TestFailed("reclaimed lease used by client");
+        }
+    }
+
+    /** Checks that the naming server gives each lock its own lease, renewed
+        and released by its identifier. */
+    private void testServerLeases() throws Throwable
+    {
+        Path        root = new Path("/");
+        long        first = naming_server.lock(root, false);
+        long        second = naming_server.lock(root, false);
+
+        if(first == 0 || second == 0 || first == second)
+            throw new TestFailed("shared locks given the same lease");
+
+        naming_server.renew(first);
+        naming_server.unlock(first);
+
+        try
+        {
+            naming_server.renew(first);
+            throw new TestFailed("released lease renewed");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            naming_server.unlock(first);
+            throw new TestFailed("released lease released again");
+        }
+        catch(IllegalArgumentException e) { }
+
+        // The second shared lock is still held, and keeps out exclusive
+        // requests.
+        naming_server.renew(second);
+
+        if(naming_server.lock(root, true, TICK * 10) != 0)
+        {
+            throw new TestFailed("exclusive lock granted while shared lock " +
+                                 "was held");
+        }
+
+        naming_server.unlock(second);
+
+        long        exclusive = naming_server.lock(root, true, LEASE);
+
+        if(exclusive == 0)
+            throw new TestFailed("exclusive lock refused after release");
+
+        naming_server.unlock(exclusive);
+    }
+
+    /** Returns an empty set of locks for a lease. */
+    private static Map<FileNode, Boolean> locks()
+    {
+        return new LinkedHashMap<FileNode, Boolean>();
+    }
+
+    /** Returns the expiry of a lease granted now for the given time, in
+        milliseconds. */
+    private static long expiry(long milliseconds)
+    {
+        return System.nanoTime() + millis(milliseconds);
+    }
+
+    /** Converts milliseconds to nanoseconds. */
+    private static long millis(long milliseconds)
+    {
+        return TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    /** Stops the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(naming_server != null)
+        {
+            naming_server.stop();
+            naming_server = null;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package naming;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+import java.io.*;
+import java.net.*;
+
+/** Checks the recovery of the naming server's directory tree from its log.
+
+    <p>
+    The test records changes to a tree in a log in a temporary directory, and
+    recovers the tree into a new root, as the naming server does when it
+    restarts. A log which is not closed stands for a naming server which
+    crashed. The test checks that a record torn by a crash is cut off, and the
+    records before it recovered, and that changes logged after a snapshot are
+    replayed over the snapshot.
+ */
+public class MetadataLogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server metadata log";
+
+    /** Stub for a storage server, which is only recorded. */
+    private static final Storage    STORAGE =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7000));
+    /** Stub for another storage server. */
+    private static final Storage    OTHER_STORAGE =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7001));
+
+    /** Temporary directory holding the log. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testTornTail();
+            testSnapshotReplay();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error using metadata log", t);
+        }
+    }
+
+    /** Checks that a record torn by a crash is cut off, that the records
+        before it are recovered, and that records logged after recovery are
+        not lost behind it. */
+    private void testTornTail() throws Throwable
+    {
+        File        logDirectory = new File(directory.root(), "torn");
+        MetadataLog log = new MetadataLog(logDirectory, FileNode.directory());
+
+        log.createDirectory(new Path("/a"));
+        log.sync(log.createFile(new Path("/a/f"), STORAGE));
+
+        // The naming server crashes while writing a record.
+        File        segment = lastSegment(logDirectory);
+        long        length = segment.length();
+
+        append(segment, new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5, 6});
+
+        FileNode    root = FileNode.directory();
+
+        log = new MetadataLog(logDirectory, root);
+
+        if(segment.length() != length)
+            throw new TestFailed("torn record not cut off");
+
+        expectFile(root, "/a/f", STORAGE);
+
+        // The server crashes again after logging more changes.
+        log.sync(log.createDirectory(new Path("/b")));
+
+        root = FileNode.directory();
+        log = new MetadataLog(logDirectory, root);
+
+        expectFile(root, "/a/f", STORAGE);
+        expectDirectory(root, "/b");
+    }
+
+    /** Checks that the segments a snapshot replaces are deleted, and that
+        changes logged after the snapshot are replayed over it. */
+    private void testSnapshotReplay() throws Throwable
+    {
+        File        logDirectory = new File(directory.root(), "snapshot");
+        FileNode    root = FileNode.directory();
+        MetadataLog log = new MetadataLog(logDirectory, root);
+
+        // The snapshot is taken from the tree, which is changed before each
+        // change is logged.
+        FileNode    a = root.addChild("a", FileNode.directory());
+
+        log.createDirectory(new Path("/a"));
+        a.addChild("f", FileNode.file(STORAGE));
+        log.createFile(new Path("/a/f"), STORAGE);
+        a.addChild("g", FileNode.file(STORAGE));
+        log.sync(log.createFile(new Path("/a/g"), STORAGE));
+
+        // Closing the log writes a snapshot, which replaces the segments
+        // written so far.
+        File[]      replaced = segments(logDirectory);
+
+        log.close();
+
+        if(!new File(logDirectory, "snapshot").isFile())
+            throw new TestFailed("snapshot not written when log closed");
+
+        for(File segment : replaced)
+        {
+            if(segment.exists())
+            {
+                throw new TestFailed("segment replaced by snapshot not " +
+                                     "deleted");
+            }
+        }
+
+        root = FileNode.directory();
+        log = new MetadataLog(logDirectory, root);
+
+        expectFile(root, "/a/f", STORAGE);
+        expectFile(root, "/a/g", STORAGE);
+
+        // Change the recovered tree, then crash.
+        resolve(root, "/a").removeChild("g");
+        log.delete(new Path("/a/g"));
+        resolve(root, "/a/f").storage().add(OTHER_STORAGE);
+        log.addReplica(new Path("/a/f"), OTHER_STORAGE);
+        root.addChild("c", FileNode.directory());
+        log.sync(log.createDirectory(new Path("/c")));
+
+        root = FileNode.directory();
+        new MetadataLog(logDirectory, root);
+
+        expectFile(root, "/a/f", STORAGE, OTHER_STORAGE);
+        expectDirectory(root, "/c");
+
+        if(resolve(root, "/a/g") != null)
+            throw new TestFailed("deletion after snapshot not replayed");
+    }
+
+    /** Checks that a file was recovered with the given storage servers. */
+    private static void expectFile(FileNode root, String path,
+                                   Storage... storage) throws TestFailed
+    {
+        FileNode    node = resolve(root, path);
+
+        if(node == null || node.isDirectory())
+            throw new TestFailed("file " + path + " not recovered");
+
+        if(node.storage().size() != storage.length)
+            throw new TestFailed("replicas of " + path + " not recovered");
+
+        for(Storage server : storage)
+        {
+            if(!node.storage().contains(server))
+                throw new TestFailed("replica of " + path + " not recovered");
+        }
+    }
+
+    /** Checks that a directory was recovered. */
+    private static void expectDirectory(FileNode root, String path)
+        throws TestFailed
+    {
+        FileNode    node = resolve(root, path);
+
+        if(node == null || !node.isDirectory())
+            throw new TestFailed("directory " + path + " not recovered");
+    }
+
+    /** Finds the node of an object in a recovered tree, or returns
+        <code>null</code>. */
+    private static FileNode resolve(FileNode root, String path)
+    {
+        FileNode    node = root;
+
+        for(String component : new Path(path))
+        {
+            node = node.child(component);
+
+            if(node == null)
+                return null;
+        }
+
+        return node;
+    }
+
+    /** Returns the log segments in a log directory. */
+    private static File[] segments(File logDirectory)
+    {
+        return logDirectory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File directory, String name)
+            {
+                return name.startsWith("log.");
+            }
+        });
+    }
+
+    /** Returns the last segment holding records in a log directory. */
+    private static File lastSegment(File logDirectory) throws TestFailed
+    {
+        File        last = null;
+
+        for(File segment : segments(logDirectory))
+        {
+            if(segment.length() > 0 &&
+               (last == null || number(segment) > number(last)))
+            {
+                last = segment;
+            }
+        }
+
+        if(last == null)
+            throw new TestFailed("no records written to log");
+
+        return last;
+    }
+
+    /** Returns the number of a log segment. */
+    private static long number(File segment)
+    {
+        return Long.parseLong(segment.getName().substring("log.".length()));
+    }
+
+    /** Appends bytes to a file. */
+    private static void append(File file, byte[] bytes) throws IOException
+    {
+        FileOutputStream    stream = new FileOutputStream(file, true);
+
+        try
+        {
+            stream.write(bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package naming;
+
+import test.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Checks the shared/exclusive lock on filesystem objects.
+
+    <p>
+    The test checks that shared holders share the lock and exclude exclusive
+    requests, that requests are served in arrival order, so that a shared
+    request does not overtake a waiting exclusive request, that a release
+    wakes together the shared requests queued ahead of the next exclusive
+    request, that a request which times out leaves the queue, and that
+    stopping the lock grants every waiting request. Finally, threads take the
+    lock at random in both modes, and must never hold it in conflicting
+    modes.
+ */
+public class ReadWriteLockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lock";
+
+    /** Time for which a request is expected to wait, in milliseconds. */
+    private static final long   WAIT = 100;
+    /** Number of threads in the random test. */
+    private static final int    THREADS = 4;
+    /** Number of locks taken by each thread in the random test. */
+    private static final int    ITERATIONS = 5000;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testSharing();
+            testArrivalOrder();
+            testSharedWakeUp();
+            testTimeout();
+            testInterrupt();
+            testRandom();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected error using lock", t);
+        }
+    }
+
+    /** Checks that shared holders share the lock, and that shared and
+        exclusive holders exclude each other. */
+    private void testSharing() throws Throwable
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+
+        lock.lockRead();
+
+        if(!lock.tryLockRead(0))
+            throw new TestFailed("second shared request refused");
+
+        if(lock.tryLockWrite(millis(WAIT)))
+            throw new TestFailed("exclusive request granted to shared lock");
+
+        lock.unlockRead();
+        lock.unlockRead();
+
+        if(!lock.tryLockWrite(0) || !lock.isWriteLocked())
+            throw new TestFailed("exclusive request refused on free lock");
+
+        if(lock.tryLockRead(millis(WAIT)) || lock.tryLockWrite(millis(WAIT)))
+            throw new TestFailed("request granted to exclusive lock");
+
+        lock.unlockWrite();
+
+        if(lock.isWriteLocked() || lock.isReadLocked())
+            throw new TestFailed("lock held after release");
+    }
+
+    /** Checks that a shared request does not overtake a waiting exclusive
+        request, which is granted once the shared holder leaves. */
+    private void testArrivalOrder() throws Throwable
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+
+        lock.lockRead();
+
+        Waiter          writer = new Waiter(lock, true);
+
+        writer.start();
+        awaitQueued(lock, writer);
+
+        if(lock.tryLockRead(millis(WAIT)))
+            throw new TestFailed("shared request overtook exclusive request");
+
+        lock.unlockRead();
+        writer.expectGranted("exclusive request after shared holder left");
+
+        if(!lock.isWriteLocked())
+            throw new TestFailed("lock not held by exclusive request");
+
+        lock.unlockWrite();
+    }
+
+    /** Checks that releasing an exclusive lock wakes the shared requests
+        queued ahead of the next exclusive request together, and not that
+        request. */
+    private void testSharedWakeUp() throws Throwable
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        Waiter[]        readers = new Waiter[3];
+
+        lock.lockWrite();
+
+        for(int index = 0; index < readers.length; ++index)
+        {
+            readers[index] = new Waiter(lock, false);
+            readers[index].start();
+            awaitQueued(lock, readers[index]);
+        }
+
+        Waiter          writer = new Waiter(lock, true);
+
+        writer.start();
+        awaitQueued(lock, writer);
+
+        lock.unlockWrite();
+
+        // The readers hold the lock at once, and do not release it until
+        // they are told to.
+        for(Waiter reader : readers)
+            reader.expectGranted("shared request after exclusive release");
+
+        if(writer.granted())
+            throw new TestFailed("exclusive request granted with shared");
+
+        for(Waiter reader : readers)
+            reader.release();
+
+        writer.expectGranted("exclusive request after shared holders left");
+        writer.release();
+    }
+
+    /** Checks that a request which times out leaves the queue, so that it
+        does not hold back the requests behind it. */
+    private void testTimeout() throws Throwable
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+
+        lock.lockRead();
+
+        if(lock.tryLockWrite(millis(WAIT)))
+            throw new TestFailed("exclusive request granted to shared lock");
+
+        if(lock.hasWriteRequests())
+            throw new TestFailed("timed out request still queued");
+
+        if(!lock.tryLockRead(0))
+            throw new TestFailed("shared request held back by timed out " +
+                                 "request");
+
+        lock.unlockRead();
+        lock.unlockRead();
+    }
+
+    /** Checks that stopping the lock grants every waiting request. */
+    private void testInterrupt() throws Throwable
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+        Waiter[]        waiters = new Waiter[]
+            {new Waiter(lock, true), new Waiter(lock, false),
+             new Waiter(lock, true)};
+
+        lock.lockWrite();
+
+        for(Waiter waiter : waiters)
+        {
+            waiter.start();
+            awaitQueued(lock, waiter);
+        }
+
+        lock.interrupt();
+
+        if(!lock.isStopped())
+            throw new TestFailed("lock not stopped");
+
+        for(Waiter waiter : waiters)
+            waiter.expectGranted("request on stopped lock");
+
+        for(Waiter waiter : waiters)
+            waiter.release();
+    }
+
+    /** Checks that threads taking the lock at random in both modes never
+        hold it in conflicting modes, and finish. */
+    private void testRandom() throws Throwable
+    {
+        final ReadWriteLock lock = new ReadWriteLock();
+        // Number of shared holders, or -1 while an exclusive holder holds
+        // the lock.
+        final AtomicInteger holders = new AtomicInteger();
+        Thread[]            threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final Random    random = new Random(index);
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int iteration = 0; iteration < ITERATIONS;
+                            ++iteration)
+                        {
+                            if(random.nextInt(4) == 0)
+                                holdExclusive(lock, holders);
+                            else
+                                holdShared(lock, holders);
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(t);
+                    }
+                }
+            };
+
+            threads[index].start();
+        }
+
+        task("locking at random");
+
+        for(Thread thread : threads)
+            thread.join();
+
+        task();
+    }
+
+    /** Takes the lock for exclusive access, checking that no other thread
+        holds it. */
+    private static void holdExclusive(ReadWriteLock lock,
+                                      AtomicInteger holders) throws Throwable
+    {
+        lock.lockWrite();
+
+        try
+        {
+            if(!holders.compareAndSet(0, -1))
+                throw new TestFailed("exclusive lock granted while held");
+
+            Thread.yield();
+            holders.set(0);
+        }
+        finally
+        {
+            lock.unlockWrite();
+        }
+    }
+
+    /** Takes the lock for shared access, checking that no thread holds it
+        for exclusive access. */
+    private static void holdShared(ReadWriteLock lock, AtomicInteger holders)
+        throws Throwable
+    {
+        lock.lockRead();
+
+        try
+        {
+            if(holders.getAndIncrement() < 0)
+                throw new TestFailed("shared lock granted while exclusive");
+
+            Thread.yield();
+            holders.decrementAndGet();
+        }
+        finally
+        {
+            lock.unlockRead();
+        }
+    }
+
+    /** Waits until a thread is waiting for the lock, so that requests are
+        queued in a known order. */
+    private static void awaitQueued(ReadWriteLock lock, Waiter waiter)
+        throws Throwable
+    {
+        long            deadline = System.nanoTime() + millis(WAIT * 10);
+
+        while(waiter.getState() != Thread.State.WAITING &&
+              waiter.getState() != Thread.State.TIMED_WAITING)
+        {
+            if(System.nanoTime() - deadline > 0)
+                throw new TestFailed("request did not wait for lock");
+
+            Thread.sleep(1);
+        }
+
+        // A thread holding the lock also waits, to be told to release it.
+        if(waiter.granted())
+            throw new TestFailed("request granted while lock was held");
+    }
+
+    /** Converts milliseconds to nanoseconds. */
+    private static long millis(long milliseconds)
+    {
+        return TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    /** Thread which takes the lock, and holds it until told to release it. */
+    private class Waiter extends Thread
+    {
+        /** Lock taken. */
+        private final ReadWriteLock lock;
+        /** Indicates that the lock is taken for exclusive access. */
+        private final boolean       exclusive;
+        /** Indicates that the lock has been granted. */
+        private boolean             granted = false;
+        /** Indicates that the lock is to be released. */
+        private boolean             released = false;
+
+        /** Creates a thread which takes the given lock. */
+        Waiter(ReadWriteLock lock, boolean exclusive)
+        {
+            this.lock = lock;
+            this.exclusive = exclusive;
+        }
+
+        /** Takes the lock, waits to be told to release it, and releases
+            it. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                if(exclusive)
+                    lock.lockWrite();
+                else
+                    lock.lockRead();
+
+                synchronized(this)
+                {
+                    granted = true;
+                    notifyAll();
+
+                    while(!released)
+                        wait();
+                }
+
+                if(exclusive)
+                    lock.unlockWrite();
+                else
+                    lock.unlockRead();
+            }
+            catch(Throwable t)
+            {
+                failure(t);
+            }
+        }
+
+        /** Returns <code>true</code> if the lock has been granted. */
+        synchronized boolean granted()
+        {
+            return granted;
+        }
+
+        /** Waits for the lock to be granted, and fails the test if it is
+            not granted in time. */
+        synchronized void expectGranted(String description)
+            throws TestFailed, InterruptedException
+        {
+            long        deadline = System.nanoTime() + millis(WAIT * 10);
+
+            while(!granted)
+            {
+                long    remaining = deadline - System.nanoTime();
+
+                if(remaining <= 0)
+                    throw new TestFailed(description + " not granted");
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+
+        /** Tells the thread to release the lock, and waits for it to
+            finish. */
+        void release() throws InterruptedException
+        {
+            synchronized(this)
+            {
+                released = true;
+                notifyAll();
+            }
+
+            join();
+        }
+    }
+}
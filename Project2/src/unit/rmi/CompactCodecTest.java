@@ -0,0 +1,308 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import common.Path;
+
+/** Checks the compact codec.
+
+    <p>
+    The test encodes responses carrying each type the codec encodes itself,
+    and some it serializes, and checks that they are decoded to equal values.
+    Exceptions must keep their message, stack trace and cause. The test then
+    checks that messages and arrays with lengths larger than the data sent are
+    rejected, and that stubs using different codecs are not equal.
+ */
+public class CompactCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking compact codec";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testValues();
+        testRequest();
+        testException();
+        testLengths();
+        testStubEquality();
+    }
+
+    /** Checks that values of each type are decoded to equal values.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testValues() throws TestFailed
+    {
+        Object[]    values = new Object[]
+        {
+            null, true, false, 42, -7L, new byte[] {1, 2, 3}, "caf\u00e9",
+            new String[] {"a", null, "c"}, new Path("/a/b"),
+            new Path[] {new Path("/"), new Path("/x")},
+            new Object[] {1, "two", new Path("/three")},
+            new ArrayList<String>(Arrays.asList("serialized"))
+        };
+
+        for(Object value : values)
+        {
+            Object  decoded = roundTrip(value);
+
+            if(!Arrays.deepEquals(new Object[] {value},
+                                  new Object[] {decoded}))
+            {
+                throw new TestFailed("value " + value + " decoded as " +
+                                     decoded);
+            }
+        }
+
+        Object  stub = createStub(Codec.COMPACT);
+
+        if(!stub.equals(roundTrip(stub)))
+            throw new TestFailed("stub decoded as a different stub");
+    }
+
+    /** Checks that a request is decoded with its ids and arguments.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testRequest() throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+
+            Codec.COMPACT.output(buffer).writeRequest(
+                new requestObject(5, 6, new Object[] {new Path("/f"), 7L}));
+
+            requestObject           request = Codec.COMPACT.input(
+                new ByteArrayInputStream(buffer.toByteArray())).readRequest();
+
+            if(request.getRequestId() != 5 || request.getMethodId() != 6 ||
+               !Arrays.equals(request.getArgs(),
+                              new Object[] {new Path("/f"), 7L}))
+            {
+                throw new TestFailed("request decoded incorrectly");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode request", t);
+        }
+    }
+
+    /** Checks that an exception keeps its message, stack trace and cause.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testException() throws TestFailed
+    {
+        IOException         cause = new FileNotFoundException("missing");
+        RMIException        exception = new RMIException("failed", cause);
+        Object              decoded = roundTrip(exception);
+
+        if(!(decoded instanceof RMIException))
+            throw new TestFailed("exception decoded as " + decoded);
+
+        Throwable           received = (Throwable) decoded;
+
+        if(!"failed".equals(received.getMessage()))
+            throw new TestFailed("exception message lost");
+
+        if(!sameFrames(received.getStackTrace(), exception.getStackTrace()))
+        {
+            throw new TestFailed("exception stack trace lost");
+        }
+
+        if(!(received.getCause() instanceof FileNotFoundException) ||
+           !"missing".equals(received.getCause().getMessage()))
+        {
+            throw new TestFailed("exception cause lost");
+        }
+
+        if(!sameFrames(received.getCause().getStackTrace(),
+                       cause.getStackTrace()))
+        {
+            throw new TestFailed("cause stack trace lost");
+        }
+    }
+
+    /** Compares stack traces by the class, method, file and line of each
+        frame. The module of a frame is not sent. */
+    private static boolean sameFrames(StackTraceElement[] first,
+                                      StackTraceElement[] second)
+    {
+        if(first.length != second.length)
+            return false;
+
+        for(int index = 0; index < first.length; ++index)
+        {
+            StackTraceElement   a = first[index];
+            StackTraceElement   b = second[index];
+
+            if(!a.getClassName().equals(b.getClassName()) ||
+               !a.getMethodName().equals(b.getMethodName()) ||
+               !Objects.equals(a.getFileName(), b.getFileName()) ||
+               a.getLineNumber() != b.getLineNumber())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Checks that lengths larger than the data sent are rejected.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testLengths() throws TestFailed
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(buffer);
+
+        // A message claiming to be longer than any accepted.
+        try
+        {
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeLong(0);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write message", e);
+        }
+
+        expectRejected(buffer.toByteArray(), "overlong message");
+
+        // A message holding an array with more elements than it has bytes.
+        // Tag 10 is an array of values.
+        buffer.reset();
+
+        try
+        {
+            out.writeInt(8 + 1 + 1 + 4);
+            out.writeLong(0);
+            out.writeBoolean(false);
+            out.writeByte(10);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write message", e);
+        }
+
+        expectRejected(buffer.toByteArray(), "overlong array");
+
+        // A message cut short by the end of the stream.
+        buffer.reset();
+
+        try
+        {
+            out.writeInt(1024);
+            out.writeLong(0);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to write message", e);
+        }
+
+        try
+        {
+            Codec.COMPACT.input(new ByteArrayInputStream(
+                buffer.toByteArray())).readResponse();
+            throw new TestFailed("truncated message accepted");
+        }
+        catch(EOFException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("truncated message not reported as end " +
+                                 "of stream", t);
+        }
+    }
+
+    /** Checks that stubs using different codecs are not equal.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testStubEquality() throws TestFailed
+    {
+        Object  compact = createStub(Codec.COMPACT);
+        Object  serialization = createStub(Codec.SERIALIZATION);
+
+        if(compact.equals(serialization) || serialization.equals(compact))
+            throw new TestFailed("stubs with different codecs are equal");
+
+        if(!compact.equals(createStub(Codec.COMPACT)))
+            throw new TestFailed("stubs with the same codec are not equal");
+
+        if(compact.hashCode() != createStub(Codec.COMPACT).hashCode())
+            throw new TestFailed("equal stubs have different hash codes");
+    }
+
+    /** Checks that decoding a response fails with
+        <code>StreamCorruptedException</code>. */
+    private void expectRejected(byte[] message, String description)
+        throws TestFailed
+    {
+        try
+        {
+            Codec.COMPACT.input(new ByteArrayInputStream(message))
+                .readResponse();
+            throw new TestFailed(description + " accepted");
+        }
+        catch(StreamCorruptedException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed(description + " not rejected", t);
+        }
+    }
+
+    /** Encodes a value in a response and decodes it again. */
+    private Object roundTrip(Object value) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+
+            Codec.COMPACT.output(buffer).writeResponse(
+                new responseObject(3, value instanceof Throwable, value));
+
+            responseObject          response = Codec.COMPACT.input(
+                new ByteArrayInputStream(buffer.toByteArray()))
+                    .readResponse();
+
+            if(response.getRequestId() != 3)
+                throw new TestFailed("request id decoded incorrectly");
+
+            return response.getReturn();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode " + value, t);
+        }
+    }
+
+    /** Creates a stub for a fixed address with the given codec. */
+    private Object createStub(Codec codec)
+    {
+        return Stub.create(Remote.class,
+                           new InetSocketAddress("127.0.0.1", 7000), codec);
+    }
+
+    /** Remote interface of the stubs created in the test. */
+    public interface Remote
+    {
+        /** Method which is never called. */
+        void method() throws RMIException;
+    }
+}
@@ -0,0 +1,537 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that stubs share pooled connections and that calls are not made
+    twice.
+
+    <p>
+    The test first makes more simultaneous calls through a stub than the pool
+    has connections, and checks that they complete over at most
+    <code>ConnectionPool.MAX_CONNECTIONS</code> connections. It then restarts
+    the skeleton between two calls of a method which is not idempotent, and
+    checks that the method is performed once for each call. Finally, it serves
+    a connection from a socket which stops reading as a skeleton would, and
+    checks that only the call the server did not read fails as not sent, that
+    calls time out, and that a waiting call ends when its thread is
+    interrupted.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking stub connection pooling and resending";
+
+    /** Number of simultaneous calls made through the pool. */
+    private static final int    CALLS = 2 * ConnectionPool.MAX_CONNECTIONS;
+
+    /** Server object used in the test. */
+    private CountingServer      server;
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Socket from which connections are served by the test itself. */
+    private ServerSocket        fake_server;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new CountingServer();
+
+        try
+        {
+            ServerSocket    probe = new ServerSocket(0);
+            int             port = probe.getLocalPort();
+
+            probe.close();
+
+            skeleton = new TestSkeleton(new InetSocketAddress(port));
+            skeleton.start();
+
+            fake_server = new ServerSocket(0);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testPooling();
+        testRestart();
+        testClosingNotice();
+        testTimeout();
+        testInterrupt();
+    }
+
+    /** Checks that simultaneous calls share at most
+        <code>MAX_CONNECTIONS</code> connections.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testPooling() throws TestFailed
+    {
+        final Counter       stub = createStub();
+        Thread[]            threads = new Thread[CALLS];
+        final AtomicInteger completed = new AtomicInteger();
+
+        for(int index = 0; index < CALLS; ++index)
+        {
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stub.await();
+                        completed.incrementAndGet();
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("unable to call server", t));
+                    }
+                }
+            };
+
+            threads[index].start();
+        }
+
+        task("waiting for calls to reach the server");
+        server.awaitWaiting(1);
+        task();
+
+        ConnectionPool  pool = ConnectionPool.forAddress(
+            new InetSocketAddress(skeleton.getHostName(), skeleton.getPort()),
+            Codec.SERIALIZATION);
+
+        if(pool.size() > ConnectionPool.MAX_CONNECTIONS)
+        {
+            throw new TestFailed("pool opened " + pool.size() +
+                                 " connections");
+        }
+
+        server.release();
+        join(threads);
+
+        if(completed.get() != CALLS)
+            throw new TestFailed("not all calls completed");
+
+        if(pool.size() > ConnectionPool.MAX_CONNECTIONS)
+        {
+            throw new TestFailed("pool opened " + pool.size() +
+                                 " connections");
+        }
+    }
+
+    /** Checks that a call on a pooled connection to a restarted skeleton is
+        performed once.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testRestart() throws TestFailed
+    {
+        Counter     stub = createStub();
+        int         before;
+
+        try
+        {
+            before = stub.increment();
+
+            skeleton.stop();
+            skeleton.awaitStopped();
+            skeleton.start();
+
+            if(stub.increment() != before + 1)
+                throw new TestFailed("call made more than once");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call restarted skeleton", t);
+        }
+
+        if(server.count() != before + 1)
+            throw new TestFailed("call made more than once");
+    }
+
+    /** Checks that, when a server closes a connection with a notice, only the
+        calls it did not read fail as not sent.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testClosingNotice() throws TestFailed
+    {
+        final StubConnection    connection = connect();
+        final IOException[]     failures = new IOException[2];
+        Thread[]                threads = new Thread[2];
+
+        for(int index = 0; index < threads.length; ++index)
+        {
+            final int   call = index;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        connection.call(0, null, 0);
+                        failure(new TestFailed("call returned without " +
+                                               "response"));
+                    }
+                    catch(IOException e)
+                    {
+                        failures[call] = e;
+                    }
+                }
+            };
+
+            threads[index].start();
+        }
+
+        // Read both requests, and claim to have read only the first.
+        try
+        {
+            Socket              socket = fake_server.accept();
+            InputStream         input = socket.getInputStream();
+
+            input.read();
+
+            Codec.MessageInput  in = Codec.COMPACT.input(input);
+            Codec.MessageOutput out =
+                Codec.COMPACT.output(socket.getOutputStream());
+            long                first = in.readRequest().getRequestId();
+            long                second = in.readRequest().getRequestId();
+
+            out.writeResponse(new responseObject(responseObject.CLOSING,
+                                                 false, Math.min(first,
+                                                                 second)));
+            socket.close();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to serve connection", t);
+        }
+
+        join(threads);
+
+        int     not_sent = 0;
+
+        for(IOException failure : failures)
+        {
+            if(failure == null)
+                throw new TestFailed("call did not fail");
+
+            if(failure instanceof StubConnection.NotSentException)
+                ++not_sent;
+        }
+
+        if(not_sent != 1)
+        {
+            throw new TestFailed(not_sent + " of two calls failed as not " +
+                                 "sent, expected one");
+        }
+    }
+
+    /** Checks that a call with a timeout fails when no response arrives.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testTimeout() throws TestFailed
+    {
+        StubConnection  connection = connect();
+        Socket          socket = acceptFake();
+
+        try
+        {
+            connection.call(0, null, 100);
+            throw new TestFailed("call returned without response");
+        }
+        catch(SocketTimeoutException e) { }
+        catch(IOException e)
+        {
+            throw new TestFailed("call failed without timing out", e);
+        }
+        finally
+        {
+            connection.close(new IOException("test finished"));
+            closeQuietly(socket);
+        }
+
+        if(connection.getPendingCalls() != 0)
+            throw new TestFailed("timed out call still pending");
+    }
+
+    /** Checks that a waiting call ends when its thread is interrupted.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testInterrupt() throws TestFailed
+    {
+        final StubConnection    connection = connect();
+        Socket                  socket = acceptFake();
+        final IOException[]     failure = new IOException[1];
+        Thread                  thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    connection.call(0, null, 0);
+                }
+                catch(IOException e)
+                {
+                    failure[0] = e;
+                }
+            }
+        };
+
+        try
+        {
+            thread.start();
+
+            while(connection.getPendingCalls() == 0)
+                Thread.sleep(10);
+
+            thread.interrupt();
+            join(new Thread[] {thread});
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            connection.close(new IOException("test finished"));
+            closeQuietly(socket);
+        }
+
+        if(!(failure[0] instanceof InterruptedIOException))
+            throw new TestFailed("interrupted call did not end", failure[0]);
+    }
+
+    /** Stops the servers. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.release();
+            server = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(fake_server != null)
+        {
+            closeQuietly(fake_server);
+            fake_server = null;
+        }
+    }
+
+    /** Creates a stub for the skeleton. */
+    private Counter createStub() throws TestFailed
+    {
+        try
+        {
+            return Stub.create(Counter.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+    }
+
+    /** Opens a connection to the socket served by the test. The compact
+        codec is used because, unlike serialization, it sends no header which
+        the connection would wait for before the test accepts it. */
+    private StubConnection connect() throws TestFailed
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", fake_server.getLocalPort());
+
+        try
+        {
+            return new StubConnection(
+                ConnectionPool.forAddress(address, Codec.COMPACT),
+                address, Codec.COMPACT);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to connect", e);
+        }
+    }
+
+    /** Accepts a connection on the socket served by the test. */
+    private Socket acceptFake() throws TestFailed
+    {
+        try
+        {
+            return fake_server.accept();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to accept connection", e);
+        }
+    }
+
+    /** Waits for threads to exit. */
+    private void join(Thread[] threads) throws TestFailed
+    {
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Closes a socket, ignoring errors. */
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch(IOException e) { }
+    }
+
+    /** Remote interface of the server used in the test. */
+    public interface Counter
+    {
+        /** Counts a call, and returns the number of calls so far. */
+        int increment() throws RMIException;
+
+        /** Waits until the server is released. */
+        void await() throws RMIException;
+    }
+
+    /** Server which counts calls, and holds calls until released. */
+    private static class CountingServer implements Counter
+    {
+        /** Number of calls to <code>increment</code>. */
+        private int         count = 0;
+        /** Number of calls waiting in <code>await</code>. */
+        private int         waiting = 0;
+        /** Set once waiting calls may return. */
+        private boolean     released = false;
+
+        @Override
+        public synchronized int increment()
+        {
+            return ++count;
+        }
+
+        synchronized int count()
+        {
+            return count;
+        }
+
+        @Override
+        public synchronized void await()
+        {
+            ++waiting;
+            notifyAll();
+
+            while(!released)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        /** Waits until at least the given number of calls are waiting. */
+        synchronized void awaitWaiting(int calls)
+        {
+            while(waiting < calls)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        /** Lets waiting calls return. */
+        synchronized void release()
+        {
+            released = true;
+            notifyAll();
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads, and reports when it stops. */
+    private class TestSkeleton extends Skeleton<Counter>
+    {
+        /** Set when the skeleton has stopped. */
+        private boolean     stopped = false;
+
+        /** Creates a <code>TestSkeleton</code> at the given address. */
+        TestSkeleton(InetSocketAddress address)
+        {
+            super(Counter.class, server, address);
+        }
+
+        @Override
+        public synchronized void start() throws RMIException
+        {
+            stopped = false;
+            super.start();
+        }
+
+        /** Records that the skeleton has stopped. */
+        @Override
+        protected synchronized void stopped(Throwable cause)
+        {
+            stopped = true;
+            notifyAll();
+        }
+
+        /** Waits for the skeleton to stop. */
+        synchronized void awaitStopped() throws InterruptedException
+        {
+            while(!stopped)
+                wait();
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package storage;
+
+import test.*;
+import common.*;
+import naming.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/** Checks transfers on the data channel of a storage server.
+
+    <p>
+    The test starts a storage server serving a temporary directory, with a
+    registration interface implemented by the test itself. It then reads,
+    writes and checksums a file through a data channel, including transfers
+    larger than the buffers used by the server, requests sent ahead of their
+    results, reads of the file once it is read often enough to be mapped, and
+    requests which fail. Data written through the channel must be
+    visible through the <code>Storage</code> interface, and the channel must
+    remain usable after a request fails. Finally, a request naming a path
+    longer than the server accepts must close the connection.
+ */
+public class DataChannelTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage data channel";
+
+    /** Size of the file transferred, larger than the server's buffers. */
+    private static final int    FILE_SIZE = 300 * 1024 + 17;
+    /** Time for which the server is expected to answer, in milliseconds. */
+    private static final int    WAIT = 5000;
+
+    /** Path of the file transferred. */
+    private final Path          file = new Path("/dir/file");
+    /** Temporary directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Storage server being tested. */
+    private StorageServer       server;
+    /** Stub for the storage server client service. */
+    private Storage             client_stub;
+    /** Data channel to the storage server. */
+    private DataChannel         channel;
+    /** Contents of the file. */
+    private byte[]              contents;
+
+    /** Starts the storage server and opens a data channel. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(contents);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"dir", "file"});
+
+            FileOutputStream    stream = new FileOutputStream(
+                new File(new File(directory.root(), "dir"), "file"));
+
+            try
+            {
+                stream.write(contents);
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        try
+        {
+            server = new StorageServer(directory.root());
+            server.start("127.0.0.1", new TestRegistration());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage server", t);
+        }
+
+        try
+        {
+            channel = DataChannel.open(client_stub);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to open data channel", t);
+        }
+
+        if(channel == null)
+            throw new TestFailed("storage server does not serve data channels");
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testRead();
+            testPipelinedReads();
+            testHotReads();
+            testFailures();
+            testWrite();
+            testChecksum();
+            testOversizedPath();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("data channel request failed", t);
+        }
+    }
+
+    /** Checks reads of the whole file and of parts of it. */
+    private void testRead() throws TestFailed, IOException
+    {
+        byte[]      buffer = new byte[FILE_SIZE + 2];
+
+        channel.read(file, 0, buffer, 1, FILE_SIZE);
+        expectRange(buffer, 1, 0, FILE_SIZE, "whole file read");
+
+        channel.read(file, 70000, buffer, 0, 5);
+        expectRange(buffer, 0, 70000, 5, "partial read");
+
+        channel.read(file, FILE_SIZE, buffer, 0, 0);
+    }
+
+    /** Checks reads sent before the data of earlier reads is received. */
+    private void testPipelinedReads() throws TestFailed, IOException
+    {
+        int[]       offsets = new int[] {0, 1000, 200000};
+        int         length = 65 * 1024;
+        byte[]      buffer = new byte[length];
+
+        for(int offset : offsets)
+            channel.requestRead(file, offset, length);
+
+        for(int offset : offsets)
+        {
+            channel.receiveRead(buffer, 0, length);
+            expectRange(buffer, 0, offset, length, "pipelined read");
+        }
+    }
+
+    /** Checks reads of a file read often enough to be served from a memory
+        mapping. The remaining checks then run against the mapped file. */
+    private void testHotReads() throws TestFailed, IOException, RMIException
+    {
+        byte[]      buffer = new byte[FILE_SIZE];
+
+        for(int read = 0; read < MappedFileCache.HOT_READS; ++read)
+        {
+            channel.read(file, 0, buffer, 0, FILE_SIZE);
+            expectRange(buffer, 0, 0, FILE_SIZE, "hot file read");
+        }
+
+        channel.read(file, 70000, buffer, 0, 5);
+        expectRange(buffer, 0, 70000, 5, "partial hot file read");
+
+        byte[]      remote = client_stub.read(file, 1000, 65 * 1024);
+
+        expectRange(remote, 0, 1000, remote.length, "Storage hot file read");
+    }
+
+    /** Checks that failed requests throw the exceptions the
+        <code>Storage</code> interface would, and leave the channel usable. */
+    private void testFailures() throws TestFailed, IOException
+    {
+        byte[]      buffer = new byte[16];
+
+        try
+        {
+            channel.read(new Path("/missing"), 0, buffer, 0, 1);
+            throw new TestFailed("read of missing file succeeded");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            channel.read(file, FILE_SIZE - 1, buffer, 0, 2);
+            throw new TestFailed("read past end of file succeeded");
+        }
+        catch(IndexOutOfBoundsException e) { }
+
+        try
+        {
+            channel.write(new Path("/dir"), 0, buffer, 0, buffer.length);
+            throw new TestFailed("write to directory succeeded");
+        }
+        catch(FileNotFoundException e) { }
+
+        // The data of the failed write must not be taken as a request.
+        channel.read(file, 3, buffer, 0, buffer.length);
+        expectRange(buffer, 0, 3, buffer.length, "read after failures");
+    }
+
+    /** Checks that written data is visible through the channel and the
+        <code>Storage</code> interface, including writes past the end of the
+        file and writes sent ahead of their results. */
+    private void testWrite() throws TestFailed, IOException, RMIException
+    {
+        byte[]      data = new byte[100 * 1024];
+
+        new Random(1).nextBytes(data);
+
+        // Overwrite a region and extend the file.
+        channel.write(file, 5000, data, 0, data.length);
+        System.arraycopy(data, 0, contents, 5000, data.length);
+
+        int         end = FILE_SIZE + 10;
+
+        channel.requestWrite(file, end, data, 0, 10);
+        channel.requestWrite(file, FILE_SIZE, data, 10, 10);
+        channel.receiveWrite();
+        channel.receiveWrite();
+
+        contents = Arrays.copyOf(contents, end + 10);
+        System.arraycopy(data, 10, contents, FILE_SIZE, 10);
+        System.arraycopy(data, 0, contents, end, 10);
+
+        if(client_stub.size(file) != contents.length)
+            throw new TestFailed("file has wrong size after writes");
+
+        byte[]      buffer = new byte[contents.length];
+
+        channel.read(file, 0, buffer, 0, buffer.length);
+        expectRange(buffer, 0, 0, buffer.length, "read after write");
+
+        byte[]      remote = client_stub.read(file, 0, contents.length);
+
+        expectRange(remote, 0, 0, remote.length, "Storage read after write");
+    }
+
+    /** Checks the checksum of the file. */
+    private void testChecksum() throws TestFailed, IOException
+    {
+        CRC32       crc = new CRC32();
+
+        crc.update(contents);
+
+        if(channel.checksum(file) != crc.getValue())
+            throw new TestFailed("checksum does not match file contents");
+
+        try
+        {
+            channel.checksum(new Path("/missing"));
+            throw new TestFailed("checksum of missing file succeeded");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Checks that the server closes a connection whose request gives a path
+        length larger than it accepts, rather than allocating room for the
+        path and waiting for it. */
+    private void testOversizedPath() throws TestFailed, IOException
+    {
+        SocketChannel   raw = Stub.openStream(client_stub);
+
+        try
+        {
+            if(!DataChannel.fill(raw, ByteBuffer.allocate(1)))
+                throw new TestFailed("data channel not opened");
+
+            ByteBuffer  header = ByteBuffer.allocate(DataChannel.HEADER_SIZE);
+
+            header.put(DataChannel.READ).putLong(0).putInt(1)
+                  .putInt(DataChannel.MAX_PATH_LENGTH + 1);
+            header.flip();
+
+            while(header.hasRemaining())
+                raw.write(header);
+
+            raw.socket().setSoTimeout(WAIT);
+
+            try
+            {
+                if(raw.socket().getInputStream().read() != -1)
+                    throw new TestFailed("oversized path answered");
+            }
+            catch(SocketTimeoutException e)
+            {
+                throw new TestFailed("server waited for oversized path");
+            }
+            catch(IOException e) { }
+        }
+        finally
+        {
+            raw.close();
+        }
+    }
+
+    /** Stops the storage server and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that part of a buffer matches the file contents. */
+    private void expectRange(byte[] buffer, int buffer_offset,
+                             int file_offset, int length, String description)
+        throws TestFailed
+    {
+        for(int index = 0; index < length; ++index)
+        {
+            if(buffer[buffer_offset + index] != contents[file_offset + index])
+            {
+                throw new TestFailed(description + " returned wrong data at " +
+                                     "offset " + (file_offset + index));
+            }
+        }
+    }
+
+    /** Registration interface which accepts the storage server and keeps its
+        client stub. */
+    private class TestRegistration implements Registration
+    {
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            DataChannelTest.this.client_stub = client_stub;
+
+            return new Path[0];
+        }
+    }
+}
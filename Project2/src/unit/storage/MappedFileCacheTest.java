@@ -0,0 +1,293 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** Checks the memory mappings of frequently read files.
+
+    <p>
+    The test checks that a file is mapped only once it has been read often,
+    that the mapping has the contents of the file, that the total size of the
+    mappings stays within the budget by dropping the least recently read
+    mapping, that a dropped mapping still in use is counted against the budget
+    until it is released, and that writing a file drops its mapping.
+ */
+public class MappedFileCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage mapped file cache";
+
+    /** Number of files mapped by the test. */
+    private static final int    FILES = 3;
+    /** Size of each file, in bytes. */
+    private static final int    FILE_SIZE = 64 * 1024;
+    /** Budget which holds the mappings of two files, but not three. */
+    private static final long   BUDGET = FILE_SIZE * 5 / 2;
+
+    /** Temporary directory holding the files. */
+    private TemporaryDirectory  directory;
+    /** Paths of the files. */
+    private final Path[]        paths = new Path[FILES];
+    /** Channels open to the files. */
+    private final FileChannel[] channels = new FileChannel[FILES];
+    /** Contents of the files. */
+    private final byte[][]      contents = new byte[FILES][FILE_SIZE];
+    /** Cache being tested. */
+    private MappedFileCache     cache;
+
+    /** Creates the files, and opens channels to them. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        if(!MappedFileCache.canUnmap())
+            throw new TestFailed("runtime cannot unmap mappings");
+
+        Random      random = new Random(FILE_SIZE);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            for(int index = 0; index < FILES; ++index)
+            {
+                File                file;
+                FileOutputStream    stream;
+
+                directory.add(new String[] {"dir", "file" + index});
+                paths[index] = new Path("/dir/file" + index);
+                random.nextBytes(contents[index]);
+
+                file = new File(directory.root(), "dir/file" + index);
+                stream = new FileOutputStream(file);
+
+                try
+                {
+                    stream.write(contents[index]);
+                }
+                finally
+                {
+                    stream.close();
+                }
+
+                channels[index] = new RandomAccessFile(file, "r").getChannel();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary files", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            cache = new MappedFileCache(BUDGET);
+            testHot();
+
+            cache = new MappedFileCache(BUDGET);
+            testEviction();
+
+            cache = new MappedFileCache(BUDGET);
+            testInUse();
+
+            cache = new MappedFileCache(BUDGET);
+            testInvalidate();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to read file", e);
+        }
+    }
+
+    /** Checks that a file is mapped once it is read often, and that the
+        mapping has the contents of the file. */
+    private void testHot() throws TestFailed, IOException
+    {
+        for(int read = 1; read < MappedFileCache.HOT_READS; ++read)
+            cache.read(paths[0], channels[0]);
+
+        if(cache.acquire(paths[0]) != null)
+            throw new TestFailed("file mapped before it was read often");
+
+        cache.read(paths[0], channels[0]);
+        expectMapped(0);
+        expectBytes(FILE_SIZE);
+    }
+
+    /** Checks that the least recently read mapping is dropped to keep the
+        mappings within the budget. */
+    private void testEviction() throws TestFailed, IOException
+    {
+        map(0);
+        map(1);
+        expectBytes(2 * FILE_SIZE);
+
+        // Reading the first file makes the second the least recently read.
+        expectMapped(0);
+        map(2);
+
+        expectMapped(0);
+        expectMapped(2);
+
+        if(cache.acquire(paths[1]) != null)
+            throw new TestFailed("least recently read mapping not dropped");
+
+        expectBytes(2 * FILE_SIZE);
+    }
+
+    /** Checks that a dropped mapping in use is counted against the budget
+        until it is released, and that no file is mapped while it would
+        exceed the budget. */
+    private void testInUse() throws TestFailed, IOException
+    {
+        cache.setBudget(FILE_SIZE * 3 / 2);
+        map(0);
+
+        MappedFileCache.Handle  held = cache.acquire(paths[0]);
+
+        try
+        {
+            // Making room for the second file drops the first, which is in
+            // use, so there is no room for the second.
+            map(1);
+
+            if(cache.acquire(paths[0]) != null)
+                throw new TestFailed("mapping in use not dropped");
+
+            if(cache.acquire(paths[1]) != null)
+                throw new TestFailed("file mapped while a dropped mapping " +
+                                     "in use filled the budget");
+
+            expectBytes(FILE_SIZE);
+            expectContents(held.buffer(), 0);
+        }
+        finally
+        {
+            held.release();
+        }
+
+        expectBytes(0);
+
+        map(1);
+        expectMapped(1);
+        expectBytes(FILE_SIZE);
+
+        cache.setBudget(0);
+        expectBytes(0);
+    }
+
+    /** Checks that writing a file drops its mapping and its read count. */
+    private void testInvalidate() throws TestFailed, IOException
+    {
+        map(0);
+        cache.invalidateFile(paths[0]);
+
+        if(cache.acquire(paths[0]) != null)
+            throw new TestFailed("mapping not dropped when file written");
+
+        expectBytes(0);
+
+        for(int read = 1; read < MappedFileCache.HOT_READS; ++read)
+            cache.read(paths[1], channels[1]);
+
+        cache.invalidate(new Path("/dir"));
+        cache.read(paths[1], channels[1]);
+
+        if(cache.acquire(paths[1]) != null)
+            throw new TestFailed("read count not dropped with directory");
+    }
+
+    /** Reads a file often enough for it to be mapped. */
+    private void map(int index) throws IOException
+    {
+        for(int read = 0; read < MappedFileCache.HOT_READS; ++read)
+            cache.read(paths[index], channels[index]);
+    }
+
+    /** Checks that a file is mapped with its contents. */
+    private void expectMapped(int index) throws TestFailed
+    {
+        MappedFileCache.Handle  handle = cache.acquire(paths[index]);
+
+        if(handle == null)
+            throw new TestFailed(paths[index] + " not mapped");
+
+        try
+        {
+            expectContents(handle.buffer(), index);
+        }
+        finally
+        {
+            handle.release();
+        }
+    }
+
+    /** Checks that a mapping has the contents of a file. */
+    private void expectContents(ByteBuffer buffer, int index)
+        throws TestFailed
+    {
+        byte[]      mapped = new byte[buffer.remaining()];
+
+        buffer.get(mapped);
+
+        if(!Arrays.equals(mapped, contents[index]))
+            throw new TestFailed("mapping of " + paths[index] + " does not " +
+                                 "have the contents of the file");
+    }
+
+    /** Checks the number of bytes mapped. */
+    private void expectBytes(long expected) throws TestFailed
+    {
+        long        mapped = cache.mappedBytes();
+
+        if(mapped != expected)
+        {
+            throw new TestFailed(mapped + " bytes mapped, expected " +
+                                 expected);
+        }
+
+        if(mapped > BUDGET)
+            throw new TestFailed("mapped bytes exceed the budget");
+    }
+
+    /** Closes the channels, drops the mappings and removes the files. */
+    @Override
+    protected void clean()
+    {
+        if(cache != null)
+        {
+            cache.invalidate(new Path());
+            cache = null;
+        }
+
+        for(int index = 0; index < FILES; ++index)
+        {
+            if(channels[index] != null)
+            {
+                try
+                {
+                    channels[index].close();
+                }
+                catch(IOException e) { }
+
+                channels[index] = null;
+            }
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
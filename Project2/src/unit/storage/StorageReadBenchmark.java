@@ -0,0 +1,274 @@
+package storage;
+
+import test.*;
+import common.*;
+import naming.*;
+import java.io.*;
+import java.util.*;
+
+/** Measures the throughput of concurrent reads from a running storage server.
+
+    <p>
+    The benchmark starts two storage servers serving the same temporary
+    directory of files. The first locks files with the striped path locks
+    used by the storage server. The second also holds a single lock on the
+    whole server for each read, as the storage server did before it locked
+    paths, when its methods were synchronized. Client threads read chunks of
+    the files through <code>Storage</code> stubs, either each from a file of
+    its own or all from the same file, for increasing numbers of threads. The
+    number of reads completed per second is printed for each server. The
+    benchmark fails only if a read fails.
+ */
+public class StorageReadBenchmark extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "benchmarking storage server reads";
+
+    /** Numbers of client threads reading at once. */
+    private static final int[]  THREADS = {1, 2, 4, 8};
+    /** Size of each file read, in bytes. */
+    private static final int    FILE_SIZE = 1024 * 1024;
+    /** Size of each read, in bytes. */
+    private static final int    CHUNK_SIZE = 16 * 1024;
+    /** Number of reads made by each thread in a timed run. */
+    private static final int    READS = 1000;
+    /** Number of reads made by each thread in a run which warms up the
+        code. */
+    private static final int    WARM_UP_READS = 100;
+
+    /** Temporary directory served by the storage servers. */
+    private TemporaryDirectory  directory;
+    /** Storage server locking paths. */
+    private StorageServer       striped_server;
+    /** Storage server holding a single lock for each read. */
+    private StorageServer       single_server;
+    /** Stub for the storage server locking paths. */
+    private Storage             striped;
+    /** Stub for the storage server holding a single lock. */
+    private Storage             single;
+
+    /** Creates the files, and starts the storage servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        int         files = THREADS[THREADS.length - 1];
+        byte[]      contents = new byte[FILE_SIZE];
+
+        new Random(FILE_SIZE).nextBytes(contents);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            for(int index = 0; index < files; ++index)
+            {
+                directory.add(new String[] {"dir", "file" + index});
+
+                FileOutputStream    stream = new FileOutputStream(
+                    new File(directory.root(), "dir/file" + index));
+
+                try
+                {
+                    stream.write(contents);
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        try
+        {
+            StubRegistration    registration = new StubRegistration();
+
+            striped_server = new StorageServer(directory.root());
+            striped_server.start("127.0.0.1", registration);
+            striped = registration.client_stub;
+
+            single_server = new SingleLockServer(directory.root());
+            single_server.start("127.0.0.1", registration);
+            single = registration.client_stub;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage servers", t);
+        }
+    }
+
+    /** Performs the benchmark.
+
+        @throws TestFailed If a read fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        double[][]  results = new double[THREADS.length][4];
+
+        for(int index = 0; index < THREADS.length; ++index)
+        {
+            run(striped, THREADS[index], false, WARM_UP_READS);
+            run(single, THREADS[index], false, WARM_UP_READS);
+        }
+
+        for(int index = 0; index < THREADS.length; ++index)
+        {
+            int     threads = THREADS[index];
+
+            results[index][0] = run(striped, threads, false, READS);
+            results[index][1] = run(single, threads, false, READS);
+            results[index][2] = run(striped, threads, true, READS);
+            results[index][3] = run(single, threads, true, READS);
+        }
+
+        System.out.println();
+        System.out.printf("    reads of %d KB per second%n", CHUNK_SIZE / 1024);
+        System.out.printf("    %7s  %-21s  %s%n", "", "different files",
+                          "same file");
+        System.out.printf("    %7s  %9s %11s  %9s %11s%n", "threads",
+                          "striped", "single lock", "striped", "single lock");
+
+        for(int index = 0; index < THREADS.length; ++index)
+        {
+            System.out.printf("    %7d  %9.0f %11.0f  %9.0f %11.0f%n",
+                              THREADS[index], results[index][0],
+                              results[index][1], results[index][2],
+                              results[index][3]);
+        }
+    }
+
+    /** Reads from a storage server with several threads at once, and returns
+        the number of reads completed per second.
+
+        @param server Stub for the storage server.
+        @param count Number of threads.
+        @param same_file If <code>true</code>, all threads read the same file.
+                         Otherwise, each thread reads a file of its own.
+        @param reads Number of reads made by each thread.
+        @throws TestFailed If a read fails.
+     */
+    private double run(final Storage server, int count,
+                       final boolean same_file, final int reads)
+        throws TestFailed
+    {
+        Thread[]    threads = new Thread[count];
+
+        for(int index = 0; index < count; ++index)
+        {
+            final Path  file = new Path("/dir/file" + (same_file ? 0 : index));
+            final int   first = index;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        int     chunks = FILE_SIZE / CHUNK_SIZE;
+
+                        for(int read = 0; read < reads; ++read)
+                        {
+                            long    offset =
+                                (long)((first + read) % chunks) * CHUNK_SIZE;
+                            byte[]  data =
+                                server.read(file, offset, CHUNK_SIZE);
+
+                            if(data.length != CHUNK_SIZE)
+                            {
+                                throw new TestFailed("read of " + file +
+                                                     " returned " +
+                                                     data.length + " bytes");
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(t);
+                    }
+                }
+            };
+        }
+
+        long        start = System.nanoTime();
+
+        for(Thread thread : threads)
+            thread.start();
+
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        double      seconds = (System.nanoTime() - start) / 1e9;
+
+        return count * reads / seconds;
+    }
+
+    /** Stops the storage servers and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(striped_server != null)
+        {
+            striped_server.stop();
+            striped_server = null;
+        }
+
+        if(single_server != null)
+        {
+            single_server.stop();
+            single_server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Storage server which holds a lock on the whole server for each read,
+        as the storage server did when its methods were synchronized. */
+    private static class SingleLockServer extends StorageServer
+    {
+        /** Creates the storage server. */
+        SingleLockServer(File root)
+        {
+            super(root);
+        }
+
+        @Override
+        public synchronized byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException, IOException
+        {
+            return super.read(file, offset, length);
+        }
+    }
+
+    /** Registration interface which accepts storage servers and keeps the
+        client stub of the last one registered. */
+    private static class StubRegistration implements Registration
+    {
+        /** Client stub of the storage server registered last. */
+        Storage             client_stub;
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            this.client_stub = client_stub;
+
+            return new Path[0];
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/** Measures the striped path locks of the storage server.
+
+    <p>
+    The benchmark first measures the time taken to lock and unlock a file four
+    levels deep with no other thread holding locks. It then runs threads which
+    each lock a different file exclusively and hold the lock while waiting, as
+    a storage server thread holds the lock of a file during a disk or network
+    transfer. This is done once with a single stripe, which is equivalent to a
+    single lock for the whole server, and once with the stripes used by the
+    storage server. The results are printed. The benchmark fails only if the
+    locks fail.
+ */
+public class StripedLocksBenchmark extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "benchmarking storage striped locks";
+
+    /** Number of uncontended lock and unlock pairs timed. */
+    private static final int    UNCONTENDED_ITERATIONS = 200000;
+    /** Number of threads holding locks on different files. */
+    private static final int    THREADS = 8;
+    /** Number of locks taken by each thread. */
+    private static final int    HOLDING_ITERATIONS = 200;
+    /** Time for which each lock is held, in nanoseconds. */
+    private static final long   HOLD_TIME = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** Performs the benchmark.
+
+        @throws TestFailed If the locks fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StripedLocks    striped = new StripedLocks(StorageServer.LOCK_STRIPES);
+
+        // Warm up before timing.
+        uncontended(striped);
+
+        long            uncontended = uncontended(striped);
+        double          single = holding(new StripedLocks(1));
+        double          many = holding(striped);
+
+        System.out.println();
+        System.out.printf("    uncontended lock and unlock:  %8d ns%n",
+                          uncontended);
+        System.out.printf("    %d threads holding %d us, one stripe:  " +
+                          "%8.0f locks/s%n", THREADS,
+                          TimeUnit.NANOSECONDS.toMicros(HOLD_TIME), single);
+        System.out.printf("    %d threads holding %d us, %d stripes:  " +
+                          "%8.0f locks/s (%.1fx)%n", THREADS,
+                          TimeUnit.NANOSECONDS.toMicros(HOLD_TIME),
+                          StorageServer.LOCK_STRIPES, many, many / single);
+    }
+
+    /** Returns the average time taken to lock and unlock a file for reading,
+        in nanoseconds, with no contention. */
+    private long uncontended(StripedLocks locks)
+    {
+        Path    file = new Path("/a/b/c/file");
+        long    start = System.nanoTime();
+
+        for(int iteration = 0; iteration < UNCONTENDED_ITERATIONS; ++iteration)
+            locks.unlock(locks.lock(file, false));
+
+        return (System.nanoTime() - start) / UNCONTENDED_ITERATIONS;
+    }
+
+    /** Returns the number of locks taken per second by threads which each
+        lock a different file exclusively and hold the lock for
+        <code>HOLD_TIME</code>. */
+    private double holding(final StripedLocks locks) throws TestFailed
+    {
+        Thread[]    threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final Path  file = new Path("/dir/file" + index);
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for(int iteration = 0; iteration < HOLDING_ITERATIONS;
+                        ++iteration)
+                    {
+                        ArrayList<Lock> held = locks.lock(file, true);
+
+                        try
+                        {
+                            LockSupport.parkNanos(HOLD_TIME);
+                        }
+                        finally
+                        {
+                            locks.unlock(held);
+                        }
+                    }
+                }
+            };
+        }
+
+        long        start = System.nanoTime();
+
+        for(Thread thread : threads)
+            thread.start();
+
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        double      seconds = (System.nanoTime() - start) / 1e9;
+
+        return THREADS * HOLDING_ITERATIONS / seconds;
+    }
+}
@@ -0,0 +1,255 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/** Checks the striped path locks of the storage server.
+
+    <p>
+    The test checks that a path locked for exclusive access excludes locks on
+    the path and on the paths beneath it, that paths in different stripes can
+    be locked exclusively at once, and that many threads locking random paths
+    in random modes never hold conflicting locks and do not deadlock.
+ */
+public class StripedLocksTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage striped locks";
+
+    /** Paths locked by the threads of the random test. */
+    private static final Path[] PATHS = new Path[]
+    {
+        new Path("/"), new Path("/a"), new Path("/a/b"), new Path("/a/b/c"),
+        new Path("/a/d"), new Path("/e"), new Path("/e/f")
+    };
+    /** Number of threads in the random test. */
+    private static final int    THREADS = 4;
+    /** Number of locks taken by each thread in the random test. */
+    private static final int    ITERATIONS = 5000;
+
+    /** Locks being tested. */
+    private StripedLocks        locks;
+    /** Locks held in the random test, with whether each is exclusive. */
+    private final List<Map.Entry<Path, Boolean>>    holders =
+        new ArrayList<Map.Entry<Path, Boolean>>();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        locks = new StripedLocks(StorageServer.LOCK_STRIPES);
+
+        expectBlocked(new Path("/a"), true, new Path("/a/b/c"), false);
+        expectBlocked(new Path("/a/b"), true, new Path("/a"), true);
+        expectBlocked(new Path("/a"), false, new Path("/a"), true);
+        testUnrelated();
+        testRandom();
+    }
+
+    /** Checks that a lock waits while a conflicting lock is held. */
+    private void expectBlocked(Path held_path, boolean held_exclusive,
+                               final Path path, final boolean exclusive)
+        throws TestFailed
+    {
+        ArrayList<Lock>     held = locks.lock(held_path, held_exclusive);
+        final boolean[]     acquired = new boolean[1];
+        Thread              thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                locks.unlock(locks.lock(path, exclusive));
+
+                synchronized(acquired)
+                {
+                    acquired[0] = true;
+                }
+            }
+        };
+
+        try
+        {
+            thread.start();
+            thread.join(100);
+
+            synchronized(acquired)
+            {
+                if(acquired[0])
+                {
+                    throw new TestFailed("lock of " + path + " granted while " +
+                                         held_path + " was held");
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            locks.unlock(held);
+        }
+
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Checks that files in different stripes are locked exclusively at
+        once. */
+    private void testUnrelated() throws TestFailed
+    {
+        // Each file must be in a stripe of its own, apart from the stripes
+        // of its directories, which both files lock for shared access.
+        HashSet<Integer>    taken = new HashSet<Integer>();
+        Path[]              files = new Path[2];
+
+        taken.add(locks.stripe(new Path("/")));
+        taken.add(locks.stripe(new Path("/dir")));
+
+        for(int index = 0, found = 0; found < files.length; ++index)
+        {
+            Path    candidate = new Path("/dir/file" + index);
+
+            if(taken.add(locks.stripe(candidate)))
+                files[found++] = candidate;
+        }
+
+        Path        first = files[0];
+        Path        second = files[1];
+
+        ArrayList<Lock>     held = locks.lock(first, true);
+        final Path          other = second;
+        Thread              thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                locks.unlock(locks.lock(other, true));
+            }
+        };
+
+        // The other path is locked in another thread, which must not wait
+        // for the lock held by this one.
+        try
+        {
+            thread.start();
+            thread.join(1000);
+
+            if(thread.isAlive())
+            {
+                throw new TestFailed("lock of " + second + " waited for " +
+                                     "the lock of " + first);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+        finally
+        {
+            locks.unlock(held);
+        }
+    }
+
+    /** Checks that threads locking random paths never hold conflicting locks
+        and finish. */
+    private void testRandom() throws TestFailed
+    {
+        Thread[]    threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final Random    random = new Random(index);
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        lockRandomly(random);
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(t);
+                    }
+                }
+            };
+
+            threads[index].start();
+        }
+
+        task("locking random paths");
+
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        task();
+    }
+
+    /** Locks random paths in random modes, checking each lock against the
+        locks held by the other threads. */
+    private void lockRandomly(Random random) throws TestFailed
+    {
+        for(int iteration = 0; iteration < ITERATIONS; ++iteration)
+        {
+            Path                        path =
+                PATHS[random.nextInt(PATHS.length)];
+            boolean                     exclusive = random.nextBoolean();
+            ArrayList<Lock>             held = locks.lock(path, exclusive);
+            Map.Entry<Path, Boolean>    entry =
+                new AbstractMap.SimpleImmutableEntry<Path, Boolean>(
+                    path, exclusive);
+
+            synchronized(holders)
+            {
+                for(Map.Entry<Path, Boolean> other : holders)
+                {
+                    if(conflict(entry, other) || conflict(other, entry))
+                    {
+                        throw new TestFailed(path + " locked while " +
+                                             other.getKey() + " was held");
+                    }
+                }
+
+                holders.add(entry);
+            }
+
+            Thread.yield();
+
+            synchronized(holders)
+            {
+                holders.remove(entry);
+            }
+
+            locks.unlock(held);
+        }
+    }
+
+    /** Returns <code>true</code> if the first lock, when exclusive, excludes
+        the second: the second is on the same path or a path beneath it. */
+    private static boolean conflict(Map.Entry<Path, Boolean> first,
+                                    Map.Entry<Path, Boolean> second)
+    {
+        return first.getValue() && second.getKey().isSubpath(first.getKey());
+    }
+}